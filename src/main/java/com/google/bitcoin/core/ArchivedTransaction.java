@@ -0,0 +1,92 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.Date;
+
+import org.multibit.IsMultiBitClass;
+
+/**
+ * The summary a wallet keeps in memory of a transaction it has moved into its {@link WalletArchive}: enough to list
+ * the transaction in the history and to value the inputs that spend it, without holding the transaction itself.
+ * The transaction can be read back from the archive with {@link Wallet#readArchivedTransaction(ArchivedTransaction)}.
+ */
+public final class ArchivedTransaction implements IsMultiBitClass {
+    private final Sha256Hash hash;
+    private final int height;
+    private final long netValue;
+    private final long time;
+    // The value of each output that is ours, zero for the others.
+    private final long[] myOutputValues;
+
+    // Where the record starts in the archive file, set when it is written.
+    long offset;
+
+    ArchivedTransaction(Sha256Hash hash, int height, long netValue, long time, long[] myOutputValues) {
+        this.hash = hash;
+        this.height = height;
+        this.netValue = netValue;
+        this.time = time;
+        this.myOutputValues = myOutputValues;
+    }
+
+    public Sha256Hash getHash() {
+        return hash;
+    }
+
+    /**
+     * Returns the height of the highest block the transaction appeared in when it was archived.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the value sent to the wallet less the value sent from it, in nanocoins.
+     */
+    public BigInteger getNetValue() {
+        return BigInteger.valueOf(netValue);
+    }
+
+    /**
+     * Returns the update time of the transaction, or null if it did not have one.
+     */
+    public Date getTime() {
+        return time < 0 ? null : new Date(time);
+    }
+
+    /**
+     * Returns the value of the given output if it is ours, otherwise zero.
+     */
+    long getMyOutputValue(int index) {
+        if (index < 0 || index >= myOutputValues.length) {
+            return 0;
+        }
+        return myOutputValues[index];
+    }
+
+    int getNumberOfOutputs() {
+        return myOutputValues.length;
+    }
+
+    @Override
+    public String toString() {
+        return "archived tx " + hash + " at height " + height + " for "
+                + Utils.bitcoinValueToFriendlyString(getNetValue());
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.List;
+
+/**
+ * A WalletEventListener that can take a run of coins received events in one call. When a wallet dispatches its
+ * events through a {@link WalletEventQueue}, consecutive onCoinsReceived events that are still waiting to be
+ * dispatched are merged, and listeners implementing this interface are told about them all at once. Other
+ * listeners still get one onCoinsReceived call per transaction, each with the balances from before and after that
+ * transaction.<p>
+ *
+ * Listeners implementing this interface are also told about each best chain block given to
+ * {@link Wallet#receiveBlock(StoredBlock, List, BlockChain.NewBlockType)} in a single onBlockReceived call. Blocks
+ * whose events are still waiting to be dispatched when the next block arrives are merged the same way, so a run of
+ * blocks received while catching up or rescanning comes in one call.
+ */
+public interface BatchWalletEventListener extends WalletEventListener {
+    /**
+     * Called instead of onCoinsReceived when more than one transaction sending us coins was received before the
+     * events could be dispatched, for example while the block chain is being downloaded.
+     *
+     * @param wallet The wallet object that received the coins.
+     * @param transactions The transactions which sent us the coins, in the order they were received.
+     * @param prevBalance Balance before the first of the coins were received.
+     * @param newBalance Balance after the last of the coins were received.
+     */
+    void onCoinsReceived(Wallet wallet, List<Transaction> transactions, BigInteger prevBalance, BigInteger newBalance);
+
+    /**
+     * Called instead of onCoinsReceived once the transactions from one or more new best chain blocks have been
+     * applied to the wallet.
+     *
+     * @param wallet The wallet object the blocks were given to.
+     * @param block The last of the blocks, or null if it was not known.
+     * @param transactions The transactions in the blocks relevant to this wallet, in block order.
+     * @param coinsReceived Those of the transactions that sent us coins.
+     * @param prevBalance Balance before the first of the blocks was received.
+     * @param newBalance Balance after the last of the blocks was received.
+     */
+    void onBlockReceived(Wallet wallet, StoredBlock block, List<Transaction> transactions,
+            List<Transaction> coinsReceived, BigInteger prevBalance, BigInteger newBalance);
+}
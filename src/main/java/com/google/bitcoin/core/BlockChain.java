@@ -18,6 +18,7 @@ package com.google.bitcoin.core;
 
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.CachingBlockStore;
 
 import org.multibit.IsMultiBitClass;
 import org.slf4j.Logger;
@@ -25,6 +26,11 @@ import org.slf4j.LoggerFactory;
 
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * A BlockChain holds a series of {@link Block} objects, links them together, and knows how to verify that the
@@ -53,9 +59,19 @@ import java.util.*;
 public class BlockChain implements IsMultiBitClass {
     private static final Logger log = LoggerFactory.getLogger(BlockChain.class);
 
+    /**
+     * Blocks with fewer transactions than this are scanned on the thread adding them even when a scan executor is
+     * set, as handing them out costs more than it saves.
+     */
+    public static final int MINIMUM_TRANSACTIONS_FOR_PARALLEL_SCAN = 64;
+
     /** Keeps a map of block hashes to StoredBlocks. */
     protected BlockStore blockStore;
 
+    // The block store when it caches blocks and indexes the best chain by height, so walks back along the chain can
+    // jump straight to a height. Otherwise null.
+    private final CachingBlockStore cachingBlockStore;
+
     /**
      * Tracks the top of the best known chain.<p>
      *
@@ -69,6 +85,14 @@ public class BlockChain implements IsMultiBitClass {
     protected final NetworkParameters params;
     protected final List<Wallet> wallets;
 
+    // The wallets interested in each public key hash and public key, so a block is scanned with one lookup per
+    // output and input whatever the number of wallets. Guarded by this.
+    private final WalletRoutingIndex walletRoutingIndex = new WalletRoutingIndex();
+
+    // When set, large blocks are scanned on this executor in numberOfScanThreads slices. See setScanExecutor.
+    private ExecutorService scanExecutor;
+    private int numberOfScanThreads = 1;
+
     // Holds blocks that we have received but can't plug into the chain yet, eg because they were created whilst we
     // were downloading the block chain.
     private final ArrayList<Block> unconnectedBlocks = new ArrayList<Block>();
@@ -80,6 +104,7 @@ public class BlockChain implements IsMultiBitClass {
      *
      * For the store you can use a {@link com.google.bitcoin.store.MemoryBlockStore} if you don't care about saving the downloaded data, or a
      * {@link com.google.bitcoin.store.BoundedOverheadBlockStore} if you'd like to ensure fast startup the next time you run the program.
+     * Wrapping the store in a {@link CachingBlockStore} makes walking back along the chain cheap.
      */
     public BlockChain(NetworkParameters params, Wallet wallet, BlockStore blockStore) throws BlockStoreException {
         this(params, new ArrayList<Wallet>(), blockStore);
@@ -101,10 +126,14 @@ public class BlockChain implements IsMultiBitClass {
     public BlockChain(NetworkParameters params, List<Wallet> wallets,
                       BlockStore blockStore) throws BlockStoreException {
         this.blockStore = blockStore;
+        this.cachingBlockStore = blockStore instanceof CachingBlockStore ? (CachingBlockStore) blockStore : null;
         chainHead = blockStore.getChainHead();
         log.info("chain head is:\n{}", chainHead.getHeader());
         this.params = params;
         this.wallets = new ArrayList<Wallet>(wallets);
+        for (Wallet wallet : wallets) {
+            walletRoutingIndex.addWallet(wallet);
+        }
     }
 
     /**
@@ -114,6 +143,7 @@ public class BlockChain implements IsMultiBitClass {
      */
     public synchronized void addWallet(Wallet wallet) {
         wallets.add(wallet);
+        walletRoutingIndex.addWallet(wallet);
     }
 
     /**
@@ -283,6 +313,10 @@ public class BlockChain implements IsMultiBitClass {
      * found (ie they are part of the same chain).
      */
     private StoredBlock findSplit(StoredBlock newChainHead, StoredBlock chainHead) throws BlockStoreException {
+        if (cachingBlockStore != null && chainHead.equals(cachingBlockStore.getChainHead())) {
+            // The current chain is indexed by height, so only the new chain needs walking.
+            return cachingBlockStore.findFork(newChainHead);
+        }
         StoredBlock currentChainCursor = chainHead;
         StoredBlock newChainCursor = newChainHead;
         // Loop until we find the block both chains have in common. Example:
@@ -312,10 +346,7 @@ public class BlockChain implements IsMultiBitClass {
                                           HashMap<Wallet, List<Transaction>> newTransactions) throws VerificationException {
         for (Map.Entry<Wallet, List<Transaction>> entry : newTransactions.entrySet()) {
             try {
-                List<Transaction> txns = entry.getValue();
-                for (Transaction tx : txns) {
-                    entry.getKey().receive(tx, block, blockType);
-                }
+                entry.getKey().receiveBlock(block, entry.getValue(), blockType);
             } catch (ScriptException e) {
                 // We don't want scripts we don't understand to break the block chain so just note that this tx was
                 // not scanned here and continue.
@@ -360,6 +391,20 @@ public class BlockChain implements IsMultiBitClass {
         } while (blocksConnectedThisRound > 0);
     }
 
+    /**
+     * Returns the ancestor of the given block at the given height, or null if its chain does not reach that far back.
+     */
+    private StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+        if (cachingBlockStore != null) {
+            return cachingBlockStore.getAncestor(block, height);
+        }
+        StoredBlock cursor = block;
+        while (cursor != null && cursor.getHeight() > height) {
+            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+        }
+        return cursor;
+    }
+
     /**
      * Throws an exception if the blocks difficulty is not correct.
      */
@@ -378,16 +423,13 @@ public class BlockChain implements IsMultiBitClass {
         }
 
         // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-        // two weeks after the initial block chain download.
+        // two weeks after the initial block chain download, and with a caching block store it is a lookup by height.
         long now = System.currentTimeMillis();
-        StoredBlock cursor = blockStore.get(prev.getHash());
-        for (int i = 0; i < params.interval - 1; i++) {
-            if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
-            }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+        StoredBlock cursor = getAncestor(storedPrev, storedPrev.getHeight() - (params.interval - 1));
+        if (cursor == null) {
+            // This should never happen. If it does, it means we are following an incorrect or busted chain.
+            throw new VerificationException(
+                    "Difficulty transition point but we did not find a way back to the genesis block.");
         }
         log.debug("Difficulty transition traversal took {}msec", System.currentTimeMillis() - now);
 
@@ -422,49 +464,148 @@ public class BlockChain implements IsMultiBitClass {
 
     /**
      * For the transactions in the given block, update the txToWalletMap such that each wallet maps to a list of
-     * transactions for which it is relevant.
+     * transactions for which it is relevant. The wallets are found through the routing index, one lookup for each
+     * output and input. Large blocks are split across the scan executor if one is set; either way each wallet's list
+     * is in block order.
      */
-    private void scanTransactions(Block block, HashMap<Wallet, List<Transaction>> walletToTxMap)
+    void scanTransactions(Block block, HashMap<Wallet, List<Transaction>> walletToTxMap)
             throws VerificationException {
-        for (Transaction tx : block.transactions) {
-            try {
-                for (Wallet wallet : wallets) {
-                    boolean shouldReceive = false;
-                    for (TransactionOutput output : tx.getOutputs()) {
-                        // TODO: Handle more types of outputs, not just regular to address outputs.
-                        if (output.getScriptPubKey().isSentToIP()) continue;
-                        // This is not thread safe as a key could be removed between the call to isMine and receive.
-                        if (output.isMine(wallet)) {
-                            shouldReceive = true;
-                            break;
-                        }
-                    }
+        // Pick up any keys added to the wallets since the last block. The index is only read from here on, so the
+        // scan threads can share it.
+        walletRoutingIndex.update();
+        List<Transaction> transactions = block.transactions;
+        List<Set<Wallet>> interestedWallets = null;
+        if (scanExecutor != null && numberOfScanThreads > 1
+                && transactions.size() >= MINIMUM_TRANSACTIONS_FOR_PARALLEL_SCAN) {
+            interestedWallets = findInterestedWalletsInParallel(transactions);
+        }
+        if (interestedWallets == null) {
+            interestedWallets = findInterestedWallets(transactions);
+        }
 
-                    // Coinbase transactions don't have anything useful in their inputs (as they create coins out of thin air).
-                    if (!shouldReceive && !tx.isCoinBase()) {
-                        for (TransactionInput i : tx.getInputs()) {
-                            byte[] pubkey = i.getScriptSig().getPubKey();
-                            // This is not thread safe as a key could be removed between the call to isPubKeyMine and receive.
-                            if (wallet.isPubKeyMine(pubkey)) {
-                                shouldReceive = true;
-                            }
-                        }
-                    }
+        for (int i = 0; i < transactions.size(); i++) {
+            for (Wallet wallet : interestedWallets.get(i)) {
+                List<Transaction> txList = walletToTxMap.get(wallet);
+                if (txList == null) {
+                    txList = new LinkedList<Transaction>();
+                    walletToTxMap.put(wallet, txList);
+                }
+                txList.add(transactions.get(i));
+            }
+        }
+    }
 
-                    if (!shouldReceive) continue;
-                    List<Transaction> txList = walletToTxMap.get(wallet);
-                    if (txList == null) {
-                        txList = new LinkedList<Transaction>();
-                        walletToTxMap.put(wallet, txList);
+    /**
+     * Splits the transactions into one slice per scan thread and finds the wallets interested in each slice on the
+     * scan executor. Returns the interested wallets of each transaction in block order, or null if the executor
+     * would not take the work.
+     */
+    private List<Set<Wallet>> findInterestedWalletsInParallel(List<Transaction> transactions) {
+        int sliceSize = (transactions.size() + numberOfScanThreads - 1) / numberOfScanThreads;
+        List<Future<List<Set<Wallet>>>> slices = new ArrayList<Future<List<Set<Wallet>>>>();
+        try {
+            for (int start = 0; start < transactions.size(); start += sliceSize) {
+                final List<Transaction> slice =
+                        transactions.subList(start, Math.min(start + sliceSize, transactions.size()));
+                slices.add(scanExecutor.submit(new Callable<List<Set<Wallet>>>() {
+                    public List<Set<Wallet>> call() {
+                        return findInterestedWallets(slice);
                     }
-                    txList.add(tx);
+                }));
+            }
+        } catch (RejectedExecutionException e) {
+            // The executor has been shut down. Scan on this thread instead.
+            for (Future<List<Set<Wallet>>> slice : slices) {
+                slice.cancel(false);
+            }
+            return null;
+        }
+
+        List<Set<Wallet>> interestedWallets = new ArrayList<Set<Wallet>>(transactions.size());
+        try {
+            for (Future<List<Set<Wallet>>> slice : slices) {
+                interestedWallets.addAll(slice.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return interestedWallets;
+    }
+
+    /**
+     * Returns the wallets interested in each of the given transactions, in the same order.
+     */
+    private List<Set<Wallet>> findInterestedWallets(List<Transaction> transactions) {
+        List<Set<Wallet>> interestedWallets = new ArrayList<Set<Wallet>>(transactions.size());
+        for (Transaction tx : transactions) {
+            interestedWallets.add(findInterestedWallets(tx));
+        }
+        return interestedWallets;
+    }
+
+    /**
+     * Returns the wallets with a key in an output or input of the given transaction. The set is empty, and shared,
+     * if there are none, which is the case for almost every transaction.
+     */
+    private Set<Wallet> findInterestedWallets(Transaction tx) {
+        Set<Wallet> interestedWallets = null;
+        for (TransactionOutput output : tx.getOutputs()) {
+            try {
+                // TODO: Handle more types of outputs, not just regular to address outputs.
+                Script scriptPubKey = output.getScriptPubKey();
+                if (scriptPubKey.isSentToIP()) continue;
+                interestedWallets = addAll(interestedWallets,
+                        walletRoutingIndex.getWalletsForPubKeyHash(scriptPubKey.getPubKeyHash()));
+            } catch (ScriptException e) {
+                // As with output.isMine, an output we do not understand is not ours.
+                continue;
+            }
+        }
+
+        // Coinbase transactions don't have anything useful in their inputs (as they create coins out of thin air).
+        if (!tx.isCoinBase()) {
+            try {
+                for (TransactionInput i : tx.getInputs()) {
+                    interestedWallets = addAll(interestedWallets,
+                            walletRoutingIndex.getWalletsForPubKey(i.getScriptSig().getPubKey()));
                 }
             } catch (ScriptException e) {
-                // We don't want scripts we don't understand to break the block chain so just note that this tx was
-                // not scanned here and continue.
+                // We don't want scripts we don't understand to break the block chain so just note that the rest
+                // of the inputs of this tx were not scanned here and continue.
                 log.warn("Failed to parse a script: " + e.toString());
             }
         }
+        if (interestedWallets == null) {
+            return Collections.emptySet();
+        }
+        return interestedWallets;
+    }
+
+    private static Set<Wallet> addAll(Set<Wallet> interestedWallets, Set<Wallet> wallets) {
+        if (wallets.isEmpty()) {
+            return interestedWallets;
+        }
+        if (interestedWallets == null) {
+            interestedWallets = new HashSet<Wallet>();
+        }
+        interestedWallets.addAll(wallets);
+        return interestedWallets;
+    }
+
+    /**
+     * Makes blocks of at least {@link #MINIMUM_TRANSACTIONS_FOR_PARALLEL_SCAN} transactions be scanned for the
+     * wallets' keys on the given executor, split into one slice per thread. The wallets still receive the
+     * transactions in block order. Pass null, or one thread, to scan every block on the thread adding it.
+     *
+     * @param executor The executor to scan on, or null.
+     * @param numberOfThreads How many slices to split a block into, normally the number of threads of the executor.
+     */
+    public synchronized void setScanExecutor(ExecutorService executor, int numberOfThreads) {
+        this.scanExecutor = executor;
+        this.numberOfScanThreads = executor == null ? 1 : Math.max(1, numberOfThreads);
     }
 
     /**
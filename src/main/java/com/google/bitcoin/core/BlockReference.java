@@ -0,0 +1,91 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.Serializable;
+
+import org.multibit.IsMultiBitClass;
+
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+
+/**
+ * A reference to a block a wallet transaction appears in: the hash, height and time of the block. This is all the
+ * wallet needs to order and date its transactions and to find them again on a re-org, so a transaction keeps these
+ * rather than the {@link StoredBlock} with its whole header and chain work. The full block can be looked up in the
+ * block store with {@link #resolve(BlockStore)} when it is really needed.<p>
+ *
+ * Two references are equal when they refer to the same block.
+ */
+public final class BlockReference implements Serializable, IsMultiBitClass {
+    private static final long serialVersionUID = 4129305417302915521L;
+
+    private final Sha256Hash hash;
+    private final int height;
+    private final long timeSeconds;
+
+    public BlockReference(Sha256Hash hash, int height, long timeSeconds) {
+        this.hash = hash;
+        this.height = height;
+        this.timeSeconds = timeSeconds;
+    }
+
+    /**
+     * Returns a reference to the given block.
+     */
+    public static BlockReference of(StoredBlock block) {
+        Block header = block.getHeader();
+        return new BlockReference(header.getHash(), block.getHeight(), header.getTimeSeconds());
+    }
+
+    public Sha256Hash getHash() {
+        return hash;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the time in the header of the block, in seconds since the epoch.
+     */
+    public long getTimeSeconds() {
+        return timeSeconds;
+    }
+
+    /**
+     * Looks the block up in the given block store, returning null if the store does not have it.
+     */
+    public StoredBlock resolve(BlockStore blockStore) throws BlockStoreException {
+        return blockStore.get(hash);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof BlockReference && ((BlockReference) o).hash.equals(hash);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "block " + hash + " at height " + height;
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import org.multibit.IsMultiBitClass;
+
+/**
+ * Files the wallet's transactions under the hashes of the blocks they appear in, in the order they were received.
+ * This lets a re-org find the transactions in the blocks either side of the split without looking at every
+ * transaction in the wallet.<p>
+ *
+ * A transaction is filed under a block when the wallet records it as appearing in that block. Transactions stay
+ * filed whatever pool they are in, so callers check the pool of what they get back.
+ */
+final class BlockTransactionIndex implements IsMultiBitClass {
+
+    private final HashMap<Sha256Hash, LinkedHashMap<Sha256Hash, Transaction>> transactionsByBlock =
+            new HashMap<Sha256Hash, LinkedHashMap<Sha256Hash, Transaction>>();
+
+    void add(StoredBlock block, Transaction tx) {
+        add(block.getHeader().getHash(), tx);
+    }
+
+    void add(Sha256Hash blockHash, Transaction tx) {
+        LinkedHashMap<Sha256Hash, Transaction> transactions = transactionsByBlock.get(blockHash);
+        if (transactions == null) {
+            transactions = new LinkedHashMap<Sha256Hash, Transaction>();
+            transactionsByBlock.put(blockHash, transactions);
+        }
+        transactions.put(tx.getHash(), tx);
+    }
+
+    /**
+     * Files the transaction under every block it appears in.
+     */
+    void addAppearances(Transaction tx) {
+        Set<BlockReference> appearsIn = tx.getAppearsIn();
+        if (appearsIn == null) {
+            return;
+        }
+        for (BlockReference block : appearsIn) {
+            add(block.getHash(), tx);
+        }
+    }
+
+    /**
+     * Takes the transaction out from under every block it appears in.
+     */
+    void removeAppearances(Transaction tx) {
+        Set<BlockReference> appearsIn = tx.getAppearsIn();
+        if (appearsIn == null) {
+            return;
+        }
+        Sha256Hash txHash = tx.getHash();
+        for (BlockReference block : appearsIn) {
+            Sha256Hash blockHash = block.getHash();
+            LinkedHashMap<Sha256Hash, Transaction> transactions = transactionsByBlock.get(blockHash);
+            if (transactions != null) {
+                transactions.remove(txHash);
+                if (transactions.isEmpty()) {
+                    transactionsByBlock.remove(blockHash);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a live view of the transactions filed under the given block, in the order they were received. The
+     * view is empty if there are none.
+     */
+    Collection<Transaction> get(Sha256Hash blockHash) {
+        LinkedHashMap<Sha256Hash, Transaction> transactions = transactionsByBlock.get(blockHash);
+        if (transactions == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableCollection(transactions.values());
+    }
+
+    void clear() {
+        transactionsByBlock.clear();
+    }
+
+    int numberOfBlocks() {
+        return transactionsByBlock.size();
+    }
+}
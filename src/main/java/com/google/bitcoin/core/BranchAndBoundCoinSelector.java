@@ -0,0 +1,140 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.multibit.IsMultiBitClass;
+
+/**
+ * Searches for a set of outputs adding up to the target, or to no more than costOfChange above it, so that the
+ * transaction needs little or no change. Change outputs cost fees now and make the wallet more fragmented later.<p>
+ *
+ * The search is a depth first walk of the include/exclude tree over the outputs sorted largest first. A branch is
+ * abandoned as soon as it overshoots the window or the outputs left cannot reach the target. The walk gives up after
+ * {@link #MAXIMUM_TRIES} steps so a large wallet cannot stall a send. If no match is found the fallback selector
+ * is used.
+ */
+public class BranchAndBoundCoinSelector implements CoinSelector, IsMultiBitClass {
+
+    /**
+     * The maximum number of steps of the search before falling back.
+     */
+    public static final int MAXIMUM_TRIES = 100000;
+
+    private final long costOfChange;
+    private final CoinSelector fallback;
+
+    /**
+     * Creates a selector that only accepts exact matches and otherwise uses a {@link SmallestSufficientCoinSelector}.
+     */
+    public BranchAndBoundCoinSelector() {
+        this(0, new SmallestSufficientCoinSelector());
+    }
+
+    /**
+     * @param costOfChange How far over the target, in nanocoins, a selection may go and still count as a match.
+     * @param fallback The selector used when there is no match.
+     */
+    public BranchAndBoundCoinSelector(long costOfChange, CoinSelector fallback) {
+        assert costOfChange >= 0;
+        assert fallback != null;
+        this.costOfChange = costOfChange;
+        this.fallback = fallback;
+    }
+
+    public List<SpendableOutput> select(long target, Collection<SpendableOutput> candidates) {
+        List<SpendableOutput> match = findMatch(target, candidates);
+        if (match != null) {
+            return match;
+        }
+        return fallback.select(target, candidates);
+    }
+
+    /**
+     * Returns the selection within the window with the least excess found in the allowed number of tries, or null.
+     */
+    List<SpendableOutput> findMatch(long target, Collection<SpendableOutput> candidates) {
+        List<SpendableOutput> sorted = LargestFirstCoinSelector.sortByDescendingValue(candidates);
+        int numberOfCandidates = sorted.size();
+        long[] values = new long[numberOfCandidates];
+        long valueLeft = 0;
+        for (int i = 0; i < numberOfCandidates; i++) {
+            values[i] = sorted.get(i).getValue();
+            valueLeft += values[i];
+        }
+        if (valueLeft < target) {
+            return null;
+        }
+
+        // The indexes of the outputs currently included, in increasing order.
+        int[] selection = new int[numberOfCandidates];
+        int selectionSize = 0;
+        int[] bestSelection = null;
+        int bestSelectionSize = 0;
+        long bestExcess = Long.MAX_VALUE;
+
+        long valueSelected = 0;
+        int next = 0;
+        for (int tries = 0; tries < MAXIMUM_TRIES; tries++) {
+            boolean backtrack = false;
+            if (valueSelected + valueLeft < target || valueSelected > target + costOfChange) {
+                backtrack = true;
+            } else if (valueSelected >= target) {
+                long excess = valueSelected - target;
+                if (excess < bestExcess) {
+                    bestExcess = excess;
+                    bestSelection = selection.clone();
+                    bestSelectionSize = selectionSize;
+                    if (excess == 0) break;
+                }
+                backtrack = true;
+            }
+
+            if (backtrack) {
+                if (selectionSize == 0) break;
+                // Put the outputs skipped since the last included one back into the value left, then exclude it.
+                int lastIncluded = selection[selectionSize - 1];
+                for (next--; next > lastIncluded; next--) {
+                    valueLeft += values[next];
+                }
+                valueSelected -= values[lastIncluded];
+                selectionSize--;
+            } else {
+                valueLeft -= values[next];
+                // Excluding an output then including one of the same value would just repeat the previous branch.
+                boolean previousExcluded = next > 0 && (selectionSize == 0 || selection[selectionSize - 1] != next - 1);
+                if (!(previousExcluded && values[next] == values[next - 1])) {
+                    selection[selectionSize++] = next;
+                    valueSelected += values[next];
+                }
+            }
+            next++;
+        }
+
+        if (bestSelection == null) {
+            return null;
+        }
+        List<SpendableOutput> selected = new ArrayList<SpendableOutput>(bestSelectionSize);
+        for (int i = 0; i < bestSelectionSize; i++) {
+            selected.add(sorted.get(bestSelection[i]));
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.Arrays;
+
+import org.multibit.IsMultiBitClass;
+
+/**
+ * A ByteArrayKey wraps a fixed width byte[] (a public key hash or a full public key) so that equals and hashCode work
+ * correctly, allowing it to be used as a key in a hash map. The hash code is computed once as these keys are looked
+ * up for every input and output of every transaction scanned.<p>
+ *
+ * The wrapped array is not copied so callers must not modify it afterwards.
+ */
+public final class ByteArrayKey implements IsMultiBitClass {
+    private final byte[] bytes;
+    private final int hashCode;
+
+    public ByteArrayKey(byte[] bytes) {
+        assert bytes != null;
+        this.bytes = bytes;
+        this.hashCode = Arrays.hashCode(bytes);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof ByteArrayKey)) return false;
+        ByteArrayKey otherKey = (ByteArrayKey) other;
+        return hashCode == otherKey.hashCode && Arrays.equals(bytes, otherKey.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return Utils.bytesToHexString(bytes);
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A CoinSelector decides which of the wallet's spendable outputs are used as the inputs of a new transaction.
+ * See {@link Wallet#setCoinSelector(CoinSelector)}.
+ */
+public interface CoinSelector {
+    /**
+     * Chooses outputs from the candidates whose values add up to at least the target.
+     *
+     * @param target The value to raise, in nanocoins, including the fee.
+     * @param candidates The outputs available for spending. Implementations must not modify the collection.
+     * @return the chosen outputs, or null if the candidates cannot cover the target.
+     */
+    List<SpendableOutput> select(long target, Collection<SpendableOutput> candidates);
+}
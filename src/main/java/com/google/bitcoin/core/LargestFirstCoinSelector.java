@@ -0,0 +1,61 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.multibit.IsMultiBitClass;
+
+/**
+ * Spends the largest outputs first until the target is reached. This keeps the number of inputs, and so the size of
+ * the transaction and the fee, as small as possible.
+ */
+public class LargestFirstCoinSelector implements CoinSelector, IsMultiBitClass {
+
+    private static final Comparator<SpendableOutput> DESCENDING_VALUE = new Comparator<SpendableOutput>() {
+        public int compare(SpendableOutput first, SpendableOutput second) {
+            if (first.getValue() != second.getValue()) {
+                return first.getValue() > second.getValue() ? -1 : 1;
+            }
+            return first.getIndex() - second.getIndex();
+        }
+    };
+
+    public List<SpendableOutput> select(long target, Collection<SpendableOutput> candidates) {
+        List<SpendableOutput> selected = new ArrayList<SpendableOutput>();
+        long valueSelected = 0;
+        for (SpendableOutput candidate : sortByDescendingValue(candidates)) {
+            if (valueSelected >= target) break;
+            selected.add(candidate);
+            valueSelected += candidate.getValue();
+        }
+        return valueSelected >= target ? selected : null;
+    }
+
+    /**
+     * Returns a copy of the candidates sorted with the largest value first.
+     */
+    static List<SpendableOutput> sortByDescendingValue(Collection<SpendableOutput> candidates) {
+        List<SpendableOutput> sorted = new ArrayList<SpendableOutput>(candidates);
+        Collections.sort(sorted, DESCENDING_VALUE);
+        return sorted;
+    }
+}
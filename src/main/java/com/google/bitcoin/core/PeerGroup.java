@@ -128,8 +128,11 @@ public class PeerGroup implements IsMultiBitClass {
     
     public void addPendingTransactionListener(PendingTransactionListener listener) {
         if (peers != null) {
-            for (Peer loopPeer : peers) {
-                loopPeer.addPendingTransactionListener(listener);
+            // wallets are added from background threads while peers connect
+            synchronized (peers) {
+                for (Peer loopPeer : peers) {
+                    loopPeer.addPendingTransactionListener(listener);
+                }
             }
         }
         pendingTransactionListeners.add(listener);
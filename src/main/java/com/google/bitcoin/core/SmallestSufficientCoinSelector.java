@@ -0,0 +1,47 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.multibit.IsMultiBitClass;
+
+/**
+ * Spends the smallest single output that covers the target on its own, so the large outputs are kept back and the
+ * change is as small as it can be with one input. If no single output is big enough the outputs are spent largest
+ * first, as by {@link LargestFirstCoinSelector}.
+ */
+public class SmallestSufficientCoinSelector implements CoinSelector, IsMultiBitClass {
+
+    private final CoinSelector largestFirst = new LargestFirstCoinSelector();
+
+    public List<SpendableOutput> select(long target, Collection<SpendableOutput> candidates) {
+        SpendableOutput smallestSufficient = null;
+        for (SpendableOutput candidate : candidates) {
+            if (candidate.getValue() < target) continue;
+            if (smallestSufficient == null || candidate.getValue() < smallestSufficient.getValue()) {
+                smallestSufficient = candidate;
+            }
+        }
+        if (smallestSufficient != null) {
+            return Collections.singletonList(smallestSufficient);
+        }
+        return largestFirst.select(target, candidates);
+    }
+}
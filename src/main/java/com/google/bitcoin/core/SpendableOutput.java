@@ -0,0 +1,80 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+
+import org.multibit.IsMultiBitClass;
+
+/**
+ * A SpendableOutput is an entry in the wallet's index of outputs that are ours and not yet spent. It records the
+ * outpoint (the hash of the transaction and the index of the output within it) together with the value in
+ * nanocoins so that coin selection does not have to go back to the transaction for every candidate.<p>
+ *
+ * Two SpendableOutputs are equal if they refer to the same outpoint.
+ */
+public final class SpendableOutput implements IsMultiBitClass {
+    private final Sha256Hash txHash;
+    private final int index;
+    private final long value;
+    private final TransactionOutput output;
+
+    SpendableOutput(Sha256Hash txHash, int index, long value, TransactionOutput output) {
+        assert txHash != null;
+        this.txHash = txHash;
+        this.index = index;
+        this.value = value;
+        this.output = output;
+    }
+
+    /** Returns the hash of the transaction containing the output. */
+    public Sha256Hash getTxHash() {
+        return txHash;
+    }
+
+    /** Returns the index of the output within its transaction. */
+    public int getIndex() {
+        return index;
+    }
+
+    /** Returns the value of the output, in nanocoins. */
+    public long getValue() {
+        return value;
+    }
+
+    public TransactionOutput getOutput() {
+        return output;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof SpendableOutput)) return false;
+        SpendableOutput otherOutput = (SpendableOutput) other;
+        return index == otherOutput.index && txHash.equals(otherOutput.txHash);
+    }
+
+    @Override
+    public int hashCode() {
+        return txHash.hashCode() * 31 + index;
+    }
+
+    @Override
+    public String toString() {
+        return txHash + ":" + index + " (" + Utils.bitcoinValueToFriendlyString(BigInteger.valueOf(value)) + ")";
+    }
+}
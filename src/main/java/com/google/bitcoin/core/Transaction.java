@@ -53,14 +53,14 @@ public class Transaction extends ChildMessage implements Serializable, IsMultiBi
 
     private long lockTime;
 
-    // This is only stored in Java serialization. It records which blocks (and their height + work) the transaction
+    // This is not part of the BitCoin format. It records which blocks (by hash, height and time) the transaction
     // has been included in. For most transactions this set will have a single member. In the case of a chain split a
     // transaction may appear in multiple blocks but only one of them is part of the best chain. It's not valid to
     // have an identical transaction appear in two blocks in the same chain but this invariant is expensive to check,
     // so it's not directly enforced anywhere.
     //
     // If this transaction is not stored in the wallet, appearsIn is null.
-    Set<StoredBlock> appearsIn;
+    Set<BlockReference> appearsIn;
 
     // Stored only in Java serialization. This is either the time the transaction was broadcast as measured from the
     // local clock, or the time from the block in which it was included. Note that this can be changed by re-orgs so
@@ -174,10 +174,11 @@ public class Transaction extends ChildMessage implements Serializable, IsMultiBi
     }
 
     /**
-     * Returns a set of blocks which contain the transaction, or null if this transaction doesn't have that data
-     * because it's not stored in the wallet or because it has never appeared in a block.
+     * Returns a set of references to the blocks which contain the transaction, or null if this transaction doesn't
+     * have that data because it's not stored in the wallet or because it has never appeared in a block. Use
+     * {@link BlockReference#resolve(com.google.bitcoin.store.BlockStore)} to get a whole block.
      */
-    public Set<StoredBlock> getAppearsIn() {
+    public Set<BlockReference> getAppearsIn() {
         return appearsIn;
     }
 
@@ -194,9 +195,9 @@ public class Transaction extends ChildMessage implements Serializable, IsMultiBi
             updatedAt = new Date(block.getHeader().getTimeSeconds() * 1000);
         }
         if (appearsIn == null) {
-            appearsIn = new HashSet<StoredBlock>();
+            appearsIn = new HashSet<BlockReference>();
         }
-        appearsIn.add(block);
+        appearsIn.add(BlockReference.of(block));
     }
 
     /**
@@ -213,13 +214,13 @@ public class Transaction extends ChildMessage implements Serializable, IsMultiBi
         for (TransactionInput input : inputs) {
             // This input is taking value from an transaction in our wallet. To discover the value,
             // we must find the connected transaction.
-            TransactionOutput connected = input.getConnectedOutput(wallet.unspent);
-            if (connected == null)
-                connected = input.getConnectedOutput(wallet.spent);
-            if (connected == null)
-                connected = input.getConnectedOutput(wallet.pending);
-            if (connected == null)
+            TransactionOutput connected = input.getConnectedOutput(wallet.unspentSpentAndPending);
+            if (connected == null) {
+                // The connected transaction may have been moved out of memory into the wallet archive.
+                v = v.add(wallet.getArchivedOutputValue(input.getOutpoint().getHash(),
+                        (int) input.getOutpoint().getIndex()));
                 continue;
+            }
             // The connected output may be the change to the sender of a previous input sent to this wallet. In this
             // case we ignore it.
             if (!connected.isMine(wallet))
@@ -290,8 +291,8 @@ public class Transaction extends ChildMessage implements Serializable, IsMultiBi
             // We might return a time that is different to the best chain, as we don't know here which block is part
             // of the active chain and which are simply inactive. We just ignore this for now.
             // TODO: At some point we'll want to store storing full block headers in the wallet. Remove at that time.
-            for (StoredBlock b : appearsIn) {
-                earliestTimeSecs = Math.min(b.getHeader().getTimeSeconds(), earliestTimeSecs);
+            for (BlockReference b : appearsIn) {
+                earliestTimeSecs = Math.min(b.getTimeSeconds(), earliestTimeSecs);
             }
             updatedAt = new Date(earliestTimeSecs * 1000);
         }
@@ -662,6 +663,25 @@ public class Transaction extends ChildMessage implements Serializable, IsMultiBi
         out.defaultWriteObject();
     }
 
+    /**
+     * Transactions serialized before block references were introduced hold the stored blocks they appear in, which
+     * are turned into references as they are read.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (appearsIn != null) {
+            Set<BlockReference> references = new HashSet<BlockReference>();
+            for (Object block : (Set<?>) appearsIn) {
+                if (block instanceof StoredBlock) {
+                    references.add(BlockReference.of((StoredBlock) block));
+                } else {
+                    references.add((BlockReference) block);
+                }
+            }
+            appearsIn = references;
+        }
+    }
+
     public Date getUpdatedAt() {
         return updatedAt;
     }
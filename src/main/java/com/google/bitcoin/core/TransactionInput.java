@@ -292,6 +292,14 @@ public class TransactionInput extends ChildMessage implements Serializable, IsMu
         return true;
     }
 
+    /**
+     * Forgets the connected transaction without making its output spendable again. Used when the connected
+     * transaction is moved out of memory into a {@link WalletArchive}.
+     */
+    void releaseConnectedTransaction() {
+        outpoint.fromTx = null;
+    }
+
     /**
      * Ensure object is fully parsed before invoking java serialization.  The backing byte array
      * is transient so if the object has parseLazy = true and hasn't invoked checkParse yet
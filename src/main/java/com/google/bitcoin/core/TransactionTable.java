@@ -0,0 +1,366 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.multibit.IsMultiBitClass;
+
+import com.google.bitcoin.core.Wallet.Pool;
+
+/**
+ * A TransactionTable holds all of a wallet's transactions in a single hash table, each entry recording which pools
+ * the transaction is in. Moving a transaction between pools changes the entry in place rather than removing it from
+ * one map and hashing it into another.<p>
+ *
+ * A transaction is normally in exactly one pool but can be in more, for instance a spend of ours that is pending and
+ * has also been seen on a side chain is in both the pending and inactive pools. The table holds one transaction
+ * object per hash, so putting a different object with the same hash replaces it in every pool.<p>
+ *
+ * Entries are also threaded onto one linked list per combination of pools so that a pool can be walked without
+ * visiting the rest of the table. The {@link Map} views returned by {@link #view(Pool)} read and write through to
+ * the table.
+ */
+final class TransactionTable implements IsMultiBitClass {
+
+    private static final int NUMBER_OF_POOLS = Pool.ALL.ordinal();
+    private static final int ALL_POOLS = (1 << NUMBER_OF_POOLS) - 1;
+
+    private static final class Entry {
+        final Sha256Hash hash;
+        Transaction tx;
+        int pools;
+        Entry previous;
+        Entry next;
+
+        Entry(Sha256Hash hash, Transaction tx) {
+            this.hash = hash;
+            this.tx = tx;
+        }
+    }
+
+    private final HashMap<Sha256Hash, Entry> entries = new HashMap<Sha256Hash, Entry>();
+
+    // The head and length of the list of entries for each combination of pools, indexed by the pools bit mask.
+    private final Entry[] lists = new Entry[ALL_POOLS + 1];
+    private final int[] listSizes = new int[ALL_POOLS + 1];
+
+    private int modificationCount;
+
+    /**
+     * Returns the bit mask for the given pools. {@link Pool#ALL} stands for every pool.
+     */
+    static int mask(Pool... pools) {
+        int mask = 0;
+        for (Pool pool : pools) {
+            mask |= pool == Pool.ALL ? ALL_POOLS : 1 << pool.ordinal();
+        }
+        return mask;
+    }
+
+    /**
+     * Returns the transaction with the given hash if it is in any of the pools in the mask, otherwise null.
+     */
+    Transaction get(Sha256Hash hash, int mask) {
+        Entry entry = entries.get(hash);
+        return entry != null && (entry.pools & mask) != 0 ? entry.tx : null;
+    }
+
+    /**
+     * Returns the bit mask of the pools the transaction with the given hash is in, or 0 if it is not in the table.
+     */
+    int pools(Sha256Hash hash) {
+        Entry entry = entries.get(hash);
+        return entry == null ? 0 : entry.pools;
+    }
+
+    /**
+     * Adds the transaction to the pool, leaving it in any other pools it is already in.
+     *
+     * @return the transaction previously in the pool under the same hash, or null.
+     */
+    Transaction put(Sha256Hash hash, Transaction tx, Pool pool) {
+        int bit = mask(pool);
+        Entry entry = entries.get(hash);
+        if (entry == null) {
+            entry = new Entry(hash, tx);
+            entries.put(hash, entry);
+            link(entry, bit);
+            modificationCount++;
+            return null;
+        }
+        Transaction previous = (entry.pools & bit) != 0 ? entry.tx : null;
+        entry.tx = tx;
+        if (previous == null) {
+            relink(entry, entry.pools | bit);
+        }
+        return previous;
+    }
+
+    /**
+     * Takes the transaction out of the pool, and out of the table if it is in no other pool.
+     *
+     * @return the transaction removed or null if it was not in the pool.
+     */
+    Transaction remove(Sha256Hash hash, Pool pool) {
+        int bit = mask(pool);
+        Entry entry = entries.get(hash);
+        if (entry == null || (entry.pools & bit) == 0) {
+            return null;
+        }
+        removeFromPools(entry, bit);
+        return entry.tx;
+    }
+
+    /**
+     * Moves the transaction from one pool to another with a single lookup. Nothing happens if it is not in the from
+     * pool.
+     *
+     * @return true if the transaction was moved.
+     */
+    boolean move(Sha256Hash hash, Pool from, Pool to) {
+        Entry entry = entries.get(hash);
+        if (entry == null || (entry.pools & mask(from)) == 0) {
+            return false;
+        }
+        relink(entry, (entry.pools & ~mask(from)) | mask(to));
+        return true;
+    }
+
+    /**
+     * Removes every transaction from the pools in the mask.
+     */
+    void clear(int mask) {
+        for (int pools = 1; pools <= ALL_POOLS; pools++) {
+            if ((pools & mask) == 0) continue;
+            // Each entry leaves this list as its pools change so keep taking the head until it is empty.
+            while (lists[pools] != null) {
+                removeFromPools(lists[pools], mask);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of transactions in any of the pools in the mask.
+     */
+    int size(int mask) {
+        if (mask == ALL_POOLS) {
+            return entries.size();
+        }
+        int size = 0;
+        for (int pools = 1; pools <= ALL_POOLS; pools++) {
+            if ((pools & mask) != 0) {
+                size += listSizes[pools];
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns a live, writable map view of a single pool.
+     */
+    Map<Sha256Hash, Transaction> view(Pool pool) {
+        return new PoolView(mask(pool), pool);
+    }
+
+    /**
+     * Returns a live, read only map view of the transactions in any of the given pools.
+     */
+    Map<Sha256Hash, Transaction> view(Pool... pools) {
+        return view(mask(pools));
+    }
+
+    /**
+     * Returns a live, read only map view of the transactions in any of the pools in the mask.
+     */
+    Map<Sha256Hash, Transaction> view(int mask) {
+        return new PoolView(mask, null);
+    }
+
+    private void removeFromPools(Entry entry, int mask) {
+        int remaining = entry.pools & ~mask;
+        if (remaining == 0) {
+            unlink(entry);
+            entries.remove(entry.hash);
+            modificationCount++;
+        } else {
+            relink(entry, remaining);
+        }
+    }
+
+    private void link(Entry entry, int pools) {
+        entry.pools = pools;
+        entry.previous = null;
+        entry.next = lists[pools];
+        if (entry.next != null) {
+            entry.next.previous = entry;
+        }
+        lists[pools] = entry;
+        listSizes[pools]++;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.previous != null) {
+            entry.previous.next = entry.next;
+        } else {
+            lists[entry.pools] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.previous = entry.previous;
+        }
+        listSizes[entry.pools]--;
+        entry.previous = null;
+        entry.next = null;
+    }
+
+    private void relink(Entry entry, int pools) {
+        if (entry.pools == pools) return;
+        unlink(entry);
+        link(entry, pools);
+        modificationCount++;
+    }
+
+    /**
+     * A map view of the transactions in the pools in a mask. Only a view of a single pool can be written to.
+     */
+    private final class PoolView extends AbstractMap<Sha256Hash, Transaction> {
+        private final int mask;
+        private final Pool pool;
+
+        PoolView(int mask, Pool pool) {
+            this.mask = mask;
+            this.pool = pool;
+        }
+
+        @Override
+        public Transaction get(Object key) {
+            return key instanceof Sha256Hash ? TransactionTable.this.get((Sha256Hash) key, mask) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Transaction put(Sha256Hash key, Transaction value) {
+            checkWritable();
+            return TransactionTable.this.put(key, value, pool);
+        }
+
+        @Override
+        public Transaction remove(Object key) {
+            checkWritable();
+            return key instanceof Sha256Hash ? TransactionTable.this.remove((Sha256Hash) key, pool) : null;
+        }
+
+        @Override
+        public void clear() {
+            checkWritable();
+            TransactionTable.this.clear(mask);
+        }
+
+        @Override
+        public int size() {
+            return TransactionTable.this.size(mask);
+        }
+
+        @Override
+        public Set<Map.Entry<Sha256Hash, Transaction>> entrySet() {
+            return new AbstractSet<Map.Entry<Sha256Hash, Transaction>>() {
+                @Override
+                public Iterator<Map.Entry<Sha256Hash, Transaction>> iterator() {
+                    return new PoolIterator(PoolView.this);
+                }
+
+                @Override
+                public int size() {
+                    return PoolView.this.size();
+                }
+            };
+        }
+
+        private void checkWritable() {
+            if (pool == null) {
+                throw new UnsupportedOperationException("A view of more than one pool is read only");
+            }
+        }
+    }
+
+    /**
+     * Walks the lists of every combination of pools that overlaps the view.
+     */
+    private final class PoolIterator implements Iterator<Map.Entry<Sha256Hash, Transaction>> {
+        private final PoolView view;
+        private int expectedModificationCount = modificationCount;
+        private int pools;
+        private Entry next;
+        private Entry current;
+
+        PoolIterator(PoolView view) {
+            this.view = view;
+            advance();
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public Map.Entry<Sha256Hash, Transaction> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            if (expectedModificationCount != modificationCount) {
+                throw new ConcurrentModificationException();
+            }
+            current = next;
+            next = next.next;
+            if (next == null) {
+                advance();
+            }
+            return new AbstractMap.SimpleImmutableEntry<Sha256Hash, Transaction>(current.hash, current.tx);
+        }
+
+        public void remove() {
+            if (current == null) {
+                throw new IllegalStateException();
+            }
+            if (expectedModificationCount != modificationCount) {
+                throw new ConcurrentModificationException();
+            }
+            view.remove(current.hash);
+            current = null;
+            expectedModificationCount = modificationCount;
+        }
+
+        private void advance() {
+            while (next == null && pools < ALL_POOLS) {
+                pools++;
+                if ((pools & view.mask) != 0) {
+                    next = lists[pools];
+                }
+            }
+        }
+    }
+}
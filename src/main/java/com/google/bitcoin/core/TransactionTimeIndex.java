@@ -0,0 +1,128 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+import org.multibit.IsMultiBitClass;
+
+/**
+ * Keeps the wallet's transactions sorted by update time, newest first, with ties broken by hash. This lets the
+ * transaction history be read most recent first, or for a range of dates, without sorting the whole wallet.<p>
+ *
+ * A transaction is filed under the update time it had when it was added. The wallet removes and re-adds a
+ * transaction around every change it makes to it so the index stays in step. Transactions with no update time are
+ * treated as the oldest.
+ */
+final class TransactionTimeIndex implements IsMultiBitClass {
+
+    private final TreeMap<TimeKey, Transaction> transactionsByTime = new TreeMap<TimeKey, Transaction>();
+    private final HashMap<Sha256Hash, TimeKey> keysByHash = new HashMap<Sha256Hash, TimeKey>();
+
+    void add(Transaction tx) {
+        Sha256Hash txHash = tx.getHash();
+        remove(txHash);
+        TimeKey key = new TimeKey(getTime(tx.getUpdateTime()), txHash);
+        transactionsByTime.put(key, tx);
+        keysByHash.put(txHash, key);
+    }
+
+    void remove(Sha256Hash txHash) {
+        TimeKey key = keysByHash.remove(txHash);
+        if (key != null) {
+            transactionsByTime.remove(key);
+        }
+    }
+
+    void clear() {
+        transactionsByTime.clear();
+        keysByHash.clear();
+    }
+
+    int size() {
+        return keysByHash.size();
+    }
+
+    /**
+     * Returns a live view of all the transactions, newest first.
+     */
+    Collection<Transaction> newestFirst() {
+        return transactionsByTime.values();
+    }
+
+    /**
+     * Returns a live view of the transactions updated between the two dates inclusive, newest first.
+     */
+    Collection<Transaction> between(Date start, Date end) {
+        TimeKey newest = new TimeKey(end.getTime(), null);
+        TimeKey oldest = new TimeKey(start.getTime() - 1, null);
+        if (newest.compareTo(oldest) > 0) {
+            // the range is empty
+            return transactionsByTime.subMap(newest, newest).values();
+        }
+        return transactionsByTime.subMap(newest, oldest).values();
+    }
+
+    private static long getTime(Date updateTime) {
+        return updateTime == null ? Long.MIN_VALUE : updateTime.getTime();
+    }
+
+    /**
+     * Orders by time, newest first, then by hash. A null hash sorts before every other hash so that it can be used
+     * to mark the start of a time.
+     */
+    private static final class TimeKey implements Comparable<TimeKey> {
+        private final long time;
+        private final Sha256Hash txHash;
+
+        TimeKey(long time, Sha256Hash txHash) {
+            this.time = time;
+            this.txHash = txHash;
+        }
+
+        public int compareTo(TimeKey other) {
+            if (time != other.time) {
+                return time > other.time ? -1 : 1;
+            }
+            if (txHash == null || other.txHash == null) {
+                return txHash == other.txHash ? 0 : (txHash == null ? -1 : 1);
+            }
+            byte[] bytes = txHash.getBytes();
+            byte[] otherBytes = other.txHash.getBytes();
+            for (int i = 0; i < bytes.length; i++) {
+                int difference = (bytes[i] & 0xff) - (otherBytes[i] & 0xff);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof TimeKey && compareTo((TimeKey) other) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (time ^ (time >>> 32)) * 31 + (txHash == null ? 0 : txHash.hashCode());
+        }
+    }
+}
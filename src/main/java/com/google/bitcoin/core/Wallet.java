@@ -23,6 +23,7 @@ import org.slf4j.LoggerFactory;
 import java.io.*;
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.Executor;
 
 import static com.google.bitcoin.core.Utils.bitcoinValueToFriendlyString;
 
@@ -30,9 +31,9 @@ import static com.google.bitcoin.core.Utils.bitcoinValueToFriendlyString;
  * A Wallet stores keys and a record of transactions that have not yet been spent. Thus, it is capable of
  * providing transactions on demand that meet a given combined value.<p>
  *
- * The Wallet is read and written from disk, so be sure to follow the Java serialization versioning rules here. We
- * use the built in Java serialization to avoid the need to pull in a potentially large (code-size) third party
- * serialization library.<p>
+ * The Wallet is written to disk with {@link WalletFormat}, which also reads it back. Java serialization is only used
+ * to read legacy wallet files written before that format, so the serialized fields and readObject must keep
+ * accepting what those files hold.<p>
  */
 public class Wallet implements Serializable, IsMultiBitClass, PendingTransactionListener {
     private static final Logger log = LoggerFactory.getLogger(Wallet.class);
@@ -73,6 +74,17 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
     // 1. Sum up all unspent outputs of the transactions in unspent.
     // 2. Subtract the inputs of transactions in pending.
     // 3. If requested, re-add the outputs of pending transactions that are mine. This is the estimated balance.
+    //
+    // Rather than walking the pools on every getBalance call, the wallet keeps running totals of the above. Each
+    // transaction contributes to the totals according to the pool it is filed under, so any code that moves a
+    // transaction between pools, or changes the spent state of its outputs, takes its contribution out of the totals
+    // first (beforeTransactionUpdate) and puts it back afterwards (afterTransactionUpdate). Re-orgs simply
+    // recalculate. The spendable outputs and the time index are maintained the same way.
+    //
+    // Storage:
+    // The pools are not separate maps. All the transactions are kept in a single TransactionTable recording which
+    // pools each one is in, and the pool fields below are live views onto it. To keep wallet files compatible the
+    // serialized form is still the five pool maps, see serialPersistentFields.
 
     /**
      * Map of txhash->Transactions that have not made it into the best chain yet. They are eligible to move there but
@@ -80,7 +92,7 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
      * spent for the purposes of calculating our balance but their outputs are not available for spending yet. This
      * means after a spend, our balance can actually go down temporarily before going up again!
      */
-    public final Map<Sha256Hash, Transaction> pending;
+    public Map<Sha256Hash, Transaction> pending;
 
     /**
      * Map of txhash->Transactions where the Transaction has unspent outputs. These are transactions we can use
@@ -94,7 +106,7 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
      * theoretically you could spend zero-conf coins and all of them would be included together. To simplify we'll
      * make people wait but it would be a good improvement to resolve this in future.
      */
-    public final Map<Sha256Hash, Transaction> unspent;
+    public Map<Sha256Hash, Transaction> unspent;
 
     /**
      * Map of txhash->Transactions where the Transactions outputs are all fully spent. They are kept separately so
@@ -104,7 +116,7 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
      *
      * Transactions only appear in this map if they are part of the best chain.
      */
-    public final Map<Sha256Hash, Transaction> spent;
+    public Map<Sha256Hash, Transaction> spent;
 
     /**
      * An inactive transaction is one that is seen only in a block that is not a part of the best chain. We keep it
@@ -124,13 +136,113 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
      */
     public Map<Sha256Hash, Transaction> dead;
 
-    /** A list of public/private EC keys owned by this user. */
-    public final ArrayList<ECKey> keychain;
+    /**
+     * A list of public/private EC keys owned by this user. Add keys using {@link #addKey(ECKey)} so the key indexes
+     * below are kept up to date.
+     */
+    public ArrayList<ECKey> keychain;
 
-    private final NetworkParameters params;
+    private NetworkParameters params;
+
+    /**
+     * The serialized form of the wallet, which is unchanged from when the pools were separate maps. The pool fields
+     * are written as copies of the views and read back into the transaction table. The fields cannot be final as
+     * readObject has to set them.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("pending", Map.class),
+        new ObjectStreamField("unspent", Map.class),
+        new ObjectStreamField("spent", Map.class),
+        new ObjectStreamField("inactive", Map.class),
+        new ObjectStreamField("dead", Map.class),
+        new ObjectStreamField("keychain", ArrayList.class),
+        new ObjectStreamField("params", NetworkParameters.class)
+    };
+
+    // Every transaction in the wallet with the pools it is in. The pool fields above are views of this.
+    transient TransactionTable transactions;
+
+    // A read only view of the unspent, spent and pending pools, used to find the outputs our inputs connect to.
+    transient Map<Sha256Hash, Transaction> unspentSpentAndPending;
 
     transient private ArrayList<WalletEventListener> eventListeners;
 
+    // When set, events are queued and dispatched on an executor rather than called inline. See setEventExecutor.
+    transient private volatile WalletEventQueue eventQueue;
+
+    // In memory indexes of the keychain by public key hash and by full public key. Every output and input of every
+    // transaction seen during block scanning is checked against the keychain, so these keep that check O(1) rather
+    // than O(number of keys). They are not serialized and are rebuilt when the wallet is loaded.
+    transient private HashMap<ByteArrayKey, ECKey> keysByPubKeyHash;
+    transient private HashMap<ByteArrayKey, ECKey> keysByPubKey;
+
+    // The size of the keychain when the indexes were last brought up to date. Keys added straight to the public
+    // keychain list rather than through addKey are picked up by comparing against this.
+    transient private int numberOfIndexedKeys;
+
+    // Running totals, in nanocoins, of the AVAILABLE and ESTIMATED balances. Recalculated when the wallet is loaded.
+    transient private long availableBalance;
+    transient private long estimatedBalance;
+
+    // Set when keys are added. A new key can make outputs already in the wallet become ours, so the totals are
+    // recalculated on the next balance query. This keeps bulk key generation from paying for a recalculation per key.
+    transient private boolean balancesNeedRecalculating;
+
+    // The outputs of transactions in the unspent pool that are ours and not yet spent, keyed by outpoint. This is what
+    // createSend chooses coins from. Kept up to date alongside the running totals and rebuilt when they are
+    // recalculated.
+    transient private HashSet<SpendableOutput> spendableOutputs;
+
+    // Chooses which spendable outputs a new transaction spends.
+    transient private CoinSelector coinSelector;
+
+    // The transactions in the unspent, spent, pending and dead pools ordered by update time, for the transaction
+    // history. Rebuilt when the wallet is loaded and after a re-org.
+    transient private TransactionTimeIndex transactionsByTime;
+
+    // All the transactions filed under the blocks they appear in, so a re-org only looks at the transactions in the
+    // blocks either side of the split. Rebuilt when the wallet is loaded.
+    transient private BlockTransactionIndex transactionsByBlock;
+
+    // Where fully spent transactions buried deeper than archiveDepth blocks are moved to, or null to keep them all in
+    // memory. Volatile as the UI reads the archived transactions without the wallet lock.
+    transient private volatile WalletArchive archive;
+    transient private int archiveDepth;
+    // The chain height when the spent pool was last checked for transactions to archive.
+    transient private int lastArchiveHeight;
+
+    /**
+     * How many blocks the chain grows by between checks of the spent pool for transactions to archive.
+     */
+    public static final int ARCHIVE_INTERVAL = 144;
+
+    // Records changes to the transactions and keychain between full saves of the wallet, or null if the wallet is
+    // only ever saved in full. Told about every change while the wallet lock is held.
+    transient private WalletJournal journal;
+
+    // The read model for the user interface, replaced after every change so its balances can be read without the
+    // wallet lock.
+    transient private volatile WalletSnapshot snapshot;
+
+    // Set when keys are added. The snapshot balances may then be out of date so the next read publishes a new one.
+    transient private volatile boolean snapshotIsStale;
+
+    // What each transaction in the last snapshot meant to the wallet, by hash, so publishing a snapshot only works
+    // this out for the transactions that have changed since. A transaction's summary is dropped when it is updated
+    // and they are all dropped when the balances are recalculated, as the keys may have changed.
+    transient private HashMap<Sha256Hash, WalletSnapshot.TransactionSummary> transactionSummaries;
+
+    // Held by sendCoins instead of the wallet lock so that block processing carries on while a send is broadcast.
+    transient private Object sendLock;
+
+    /**
+     * System property which, when set to true, makes every balance query recalculate the balance the slow way and
+     * check it against the running totals. This is for debugging only.
+     */
+    public static final String CHECK_BALANCES_PROPERTY = "multibit.wallet.checkBalances";
+
+    private static volatile boolean checkBalances = Boolean.getBoolean(CHECK_BALANCES_PROPERTY);
+
     /**
      * Creates a new, empty wallet with no keys and no transactions. If you want to restore a wallet from disk instead,
      * see loadFromFile.
@@ -138,64 +250,130 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
     public Wallet(NetworkParameters params) {
         this.params = params;
         keychain = new ArrayList<ECKey>();
-        unspent = new HashMap<Sha256Hash, Transaction>();
-        spent = new HashMap<Sha256Hash, Transaction>();
-        inactive = new HashMap<Sha256Hash, Transaction>();
-        pending = new HashMap<Sha256Hash, Transaction>();
-        dead = new HashMap<Sha256Hash, Transaction>();
+        createTransactionTable();
         eventListeners = new ArrayList<WalletEventListener>();
+        coinSelector = new BranchAndBoundCoinSelector();
+        sendLock = new Object();
+        rebuildDerivedState();
     }
 
     /**
-     * Uses Java serialization to save the wallet to the given file.
+     * Saves the wallet to the given file in the binary format of {@link WalletFormat}. The wallet lock is only held
+     * while the state of the wallet is captured. It is encoded and written to a temporary file without the lock, and
+     * the temporary file is then renamed over the given file. How long each part took is logged.
      */
-    public synchronized void saveToFile(File f) throws IOException {
-        FileOutputStream stream = null;
-        try {
-            stream = new FileOutputStream(f);
-            saveToFileStream(stream);
-        } finally {
-            if (stream != null) stream.close();
+    public void saveToFile(File f) throws IOException {
+        long start = System.nanoTime();
+        WalletFormat.Snapshot walletSnapshot;
+        synchronized (this) {
+            walletSnapshot = WalletFormat.capture(this);
         }
+        long captured = System.nanoTime();
+        WalletFormat.writeToFile(walletSnapshot, f);
+        long written = System.nanoTime();
+        log.info("Saved wallet to {}, snapshot took {} ms, write took {} ms",
+                new Object[] { f, (captured - start) / 1000000, (written - captured) / 1000000 });
     }
 
     /**
-     * Uses Java serialization to save the wallet to the given file stream.
+     * Saves the wallet to the given file stream in the binary format of {@link WalletFormat}, and closes the stream.
+     * The wallet lock is not held while the stream is written.
      */
-    public synchronized void saveToFileStream(FileOutputStream f) throws IOException {
-        ObjectOutputStream oos = new ObjectOutputStream(f);
-        oos.writeObject(this);
-        oos.close();
+    public void saveToFileStream(FileOutputStream f) throws IOException {
+        try {
+            WalletFormat.write(this, f);
+        } finally {
+            f.close();
+        }
     }
 
-
     /**
-     * Returns a wallet deserialized from the given file.
+     * Returns a wallet loaded from the given file, which may be in the binary format or a legacy Java serialized
+     * wallet.
      */
     public static Wallet loadFromFile(File f) throws IOException {
         return loadFromFileStream(new FileInputStream(f));
     }
 
     /**
-     * Returns a wallet deserialied from the given file input stream.
+     * Returns a wallet loaded from the given file input stream, which may be in the binary format or a legacy Java
+     * serialized wallet. The stream is closed.
      */
     public static Wallet loadFromFileStream(FileInputStream f) throws IOException {
-        ObjectInputStream ois = null;
+        BufferedInputStream stream = new BufferedInputStream(f);
         try {
-            ois = new ObjectInputStream(f);
-            return (Wallet) ois.readObject();
+            if (WalletFormat.isBinaryWallet(stream)) {
+                return WalletFormat.read(stream);
+            }
+            return (Wallet) new ObjectInputStream(stream).readObject();
         } catch (ClassNotFoundException e) {
             throw new RuntimeException(e);
         } finally {
-            if (ois != null) ois.close();
+            stream.close();
         }
     }
 
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("pending", new HashMap<Sha256Hash, Transaction>(pending));
+        fields.put("unspent", new HashMap<Sha256Hash, Transaction>(unspent));
+        fields.put("spent", new HashMap<Sha256Hash, Transaction>(spent));
+        fields.put("inactive", new HashMap<Sha256Hash, Transaction>(inactive));
+        fields.put("dead", new HashMap<Sha256Hash, Transaction>(dead));
+        fields.put("keychain", keychain);
+        fields.put("params", params);
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
-        in.defaultReadObject();
+        ObjectInputStream.GetField fields = in.readFields();
+        keychain = (ArrayList<ECKey>) fields.get("keychain", null);
+        params = (NetworkParameters) fields.get("params", null);
+        createTransactionTable();
+        readPool(fields, "pending", pending);
+        readPool(fields, "unspent", unspent);
+        readPool(fields, "spent", spent);
+        readPool(fields, "inactive", inactive);
+        readPool(fields, "dead", dead);
         eventListeners = new ArrayList<WalletEventListener>();
+        coinSelector = new BranchAndBoundCoinSelector();
+        sendLock = new Object();
+        rebuildDerivedState();
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private static void readPool(ObjectInputStream.GetField fields, String name, Map<Sha256Hash, Transaction> pool)
+            throws IOException {
+        Map<Sha256Hash, Transaction> serializedPool = (Map<Sha256Hash, Transaction>) fields.get(name, null);
+        if (serializedPool != null) {
+            pool.putAll(serializedPool);
+        }
     }
 
+    /**
+     * Works out everything the wallet keeps alongside the keychain and the pools: the key indexes, balances,
+     * spendable outputs, time and block indexes and the snapshot. Called once the keychain and pools have been
+     * filled in.
+     */
+    void rebuildDerivedState() {
+        rebuildKeyIndexes();
+        recalculateBalances();
+        rebuildTimeIndex();
+        rebuildBlockIndex();
+        publishSnapshot();
+    }
+
+    private void createTransactionTable() {
+        transactions = new TransactionTable();
+        pending = transactions.view(Pool.PENDING);
+        unspent = transactions.view(Pool.UNSPENT);
+        spent = transactions.view(Pool.SPENT);
+        inactive = transactions.view(Pool.INACTIVE);
+        dead = transactions.view(Pool.DEAD);
+        unspentSpentAndPending = transactions.view(Pool.UNSPENT, Pool.SPENT, Pool.PENDING);
+    }
 
     /**
      * Called by (@link Peer) when we receive a pending transaction that sends coins to one of our addresses.
@@ -206,24 +384,31 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
      * @throws ScriptException
      */
     @Override
-    synchronized public void processPendingTransaction(Transaction transaction) {       
+    public void processPendingTransaction(Transaction transaction) {
+        awaitEventQueueCapacity();
+        synchronized (this) {
+            processPendingTransactionLocked(transaction);
+        }
+    }
+
+    private void processPendingTransactionLocked(Transaction transaction) {
         if (transaction.isMine(this) && !transaction.sent(this)) {
             log.debug("Wallet#receivePendingTransaction - received pending transaction: " + transaction);
             // the main receive logic is not run yet - this is done when the block with this transaction is received
             transaction.setUpdatedAt(new Date());
             
             // mark all the transaction outputs as being unspent (with respect to this wallet)
+            Sha256Hash txHash = transaction.getHash();
+            beforeTransactionUpdate(txHash);
             for (TransactionOutput transactionOutput : transaction.getOutputs()) {
                 transactionOutput.markAsUnspent();
             }
-            pending.put(transaction.getHash(), transaction);
+            pending.put(txHash, transaction);
+            afterTransactionUpdate(txHash);
+            publishSnapshot();
             
             // notify listeners
-            for (WalletEventListener walletEventListener : eventListeners) {
-                synchronized (walletEventListener) {
-                    walletEventListener.onPendingCoinsReceived(this, transaction);
-                }
-            }
+            dispatchEvent(new WalletEventQueue.PendingCoinsReceivedEvent(copyOfEventListeners(), transaction));
         }    
     }
 
@@ -245,15 +430,80 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
      * inactive side chain. We must still record these transactions and the blocks they appear in because a future
      * block might change which chain is best causing a reorganize. A re-org can totally change our balance!
      */
-    public synchronized void receive(Transaction tx, StoredBlock block, BlockChain.NewBlockType blockType) throws VerificationException, ScriptException {
-        receive(tx, block, blockType, false);
+    public void receive(Transaction tx, StoredBlock block, BlockChain.NewBlockType blockType) throws VerificationException, ScriptException {
+        awaitEventQueueCapacity();
+        synchronized (this) {
+            BigInteger prevBalance = getBalance();
+            boolean coinsReceived = receive(tx, block, blockType, false);
+            publishSnapshot();
+
+            log.info("Balance is now: " + bitcoinValueToFriendlyString(getBalance()));
+
+            // Inform anyone interested that we have new coins. Note: we may be re-entered by the event listener,
+            // so we must not make assumptions about our state after this returns! For example the balance we just
+            // received might already be spent!
+            if (coinsReceived) {
+                dispatchEvent(new WalletEventQueue.CoinsReceivedEvent(copyOfEventListeners(), tx, prevBalance,
+                        getBalance()));
+            }
+        }
     }
 
-    private synchronized void receive(Transaction tx, StoredBlock block,
+    /**
+     * Called by the {@link BlockChain} with all the transactions in a new block that are relevant to this wallet,
+     * in the order they appear in the block. This does the same book-keeping as calling
+     * {@link #receive(Transaction, StoredBlock, BlockChain.NewBlockType)} for each of them, but the wallet is locked
+     * once for the whole block, the snapshot is published once and listeners get one event for the block rather
+     * than one per transaction. Listeners implementing {@link BatchWalletEventListener} are given the whole list of
+     * transactions, other listeners get onCoinsReceived for each transaction that sent us coins.<p>
+     *
+     * If one of the transactions cannot be parsed the ones before it stay applied, the rest of the block is not
+     * applied and no event is sent.
+     */
+    public void receiveBlock(StoredBlock block, List<Transaction> transactions, BlockChain.NewBlockType blockType)
+            throws VerificationException, ScriptException {
+        awaitEventQueueCapacity();
+        synchronized (this) {
+            BigInteger prevBalance = getBalance();
+            List<Transaction> coinsReceived = new ArrayList<Transaction>();
+            try {
+                for (Transaction tx : transactions) {
+                    if (receive(tx, block, blockType, false)) {
+                        coinsReceived.add(tx);
+                    }
+                }
+                if (archive != null && block != null && blockType == BlockChain.NewBlockType.BEST_CHAIN
+                        && block.getHeight() - lastArchiveHeight >= ARCHIVE_INTERVAL) {
+                    try {
+                        archiveBuriedTransactions(block.getHeight());
+                    } catch (IOException e) {
+                        log.error("Could not archive spent transactions: " + e.getMessage(), e);
+                    }
+                }
+            } finally {
+                publishSnapshot();
+            }
+            BigInteger newBalance = getBalance();
+
+            log.info("Received {} transactions, balance is now: {}", transactions.size(),
+                    bitcoinValueToFriendlyString(newBalance));
+
+            // Side chain transactions go to the inactive pool and do not change what the listeners can see.
+            if (blockType == BlockChain.NewBlockType.BEST_CHAIN && !transactions.isEmpty()) {
+                dispatchEvent(new WalletEventQueue.BlockReceivedEvent(copyOfEventListeners(), block,
+                        new ArrayList<Transaction>(transactions), coinsReceived, prevBalance, newBalance));
+            }
+        }
+    }
+
+    /**
+     * Moves the transaction into the right pools. The caller publishes the snapshot and tells the listeners.
+     *
+     * @return true if this is a best chain transaction that sent us coins and reorg is false.
+     */
+    private synchronized boolean receive(Transaction tx, StoredBlock block,
                                       BlockChain.NewBlockType blockType, boolean reorg) throws VerificationException, ScriptException {
         // Runs in a peer thread.
-        BigInteger prevBalance = getBalance();
-
         Sha256Hash txHash = tx.getHash();
 
         boolean bestChain = blockType == BlockChain.NewBlockType.BEST_CHAIN;
@@ -272,28 +522,31 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
 
         // If this transaction is already in the wallet we may need to move it into a different pool. At the very
         // least we need to ensure we're manipulating the canonical object rather than a duplicate.
+        beforeTransactionUpdate(txHash);
         Transaction wtx = null;
-        if ((wtx = pending.remove(txHash)) != null) {
+        if ((wtx = pending.get(txHash)) != null) {
             log.info("  <-pending");
             // A transaction we created appeared in a block. Probably this is a spend we broadcast that has been
             // accepted by the network.
             //
             // Mark the tx as appearing in this block so we can find it later after a re-org.
-            if (block != null)
+            if (block != null) {
                 wtx.addBlockAppearance(block, bestChain);
+                transactionsByBlock.add(block, wtx);
+            }
             if (bestChain) {
                 if (valueSentToMe.equals(BigInteger.ZERO)) {
                     // There were no change transactions so this tx is fully spent.
                     log.info("  ->spent");
-                    boolean alreadyPresent = spent.put(wtx.getHash(), wtx) != null;
-                    assert !alreadyPresent : "TX in both pending and spent pools";
+                    assert !spent.containsKey(txHash) : "TX in both pending and spent pools";
+                    transactions.move(txHash, Pool.PENDING, Pool.SPENT);
                 } else {
                     // There was change back to us, or this tx was purely a spend back to ourselves (perhaps for
                     // anonymization purposes).
                     log.info("  ->unspent");
-                    boolean alreadyPresent = unspent.put(wtx.getHash(), wtx) != null;
+                    assert !unspent.containsKey(txHash) : "TX in both pending and unspent pools";
+                    transactions.move(txHash, Pool.PENDING, Pool.UNSPENT);
                     spendToMyself = true;
-                    assert !alreadyPresent : "TX in both pending and unspent pools";
                 }
             } else if (sideChain) {
                 // The transaction was accepted on an inactive side chain, but not yet by the best chain.
@@ -307,14 +560,15 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
                 boolean alreadyPresent = inactive.put(wtx.getHash(), wtx) != null;
                 if (alreadyPresent)
                     log.info("Saw a transaction be incorporated into multiple independent side chains");
-                // Put it back into the pending pool, because 'pending' means 'waiting to be included in best chain'.
-                pending.put(wtx.getHash(), wtx);
+                // It stays in the pending pool, because 'pending' means 'waiting to be included in best chain'.
             }
         } else {
             if (!reorg) {
                 // Mark the tx as appearing in this block so we can find it later after a re-org.
-                if (block != null)
+                if (block != null) {
                     tx.addBlockAppearance(block, bestChain);
+                    transactionsByBlock.add(block, tx);
+                }
             }
             // This TX didn't originate with us. It could be sending us coins and also spending our own coins if keys
             // are being shared between different wallets.
@@ -325,19 +579,9 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
                 processTxFromBestChain(tx);
             }
         }
+        afterTransactionUpdate(txHash);
 
-        log.info("Balance is now: " + bitcoinValueToFriendlyString(getBalance()));
-
-        // Inform anyone interested that we have new coins. Note: we may be re-entered by the event listener,
-        // so we must not make assumptions about our state after this loop returns! For example the balance we just
-        // received might already be spent!
-        if (!reorg && bestChain && (valueDifference.compareTo(BigInteger.ZERO) > 0 || spendToMyself)) {
-            for (WalletEventListener l : eventListeners) {
-                synchronized (l) {
-                    l.onCoinsReceived(this, tx, prevBalance, getBalance());
-                }
-            }
-        }
+        return !reorg && bestChain && (valueDifference.compareTo(BigInteger.ZERO) > 0 || spendToMyself);
     }
 
     /**
@@ -433,12 +677,18 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
     private void updateForSpends(Transaction tx) throws VerificationException {
         // tx is on the best chain by this point.
         for (TransactionInput input : tx.getInputs()) {
+            // Connecting the input changes the spent state of an output of the transaction it refers to, so take that
+            // transaction out of the balance totals until it has been updated.
+            Sha256Hash connectedHash = input.getOutpoint().getHash();
+            beforeTransactionUpdate(connectedHash);
+            Transaction deadTx = null;
             TransactionInput.ConnectionResult result = input.connect(unspent, false);
             if (result == TransactionInput.ConnectionResult.NO_SUCH_TX) {
                 // Not found in the unspent map. Try again with the spent map.
                 result = input.connect(spent, false);
                 if (result == TransactionInput.ConnectionResult.NO_SUCH_TX) {
                     // Doesn't spend any of our outputs or is coinbase.
+                    afterTransactionUpdate(connectedHash);
                     continue;
                 }
             }
@@ -465,16 +715,12 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
                             if (pending.containsKey(connected.getHash())) {
                                 log.info("Saw double spend from chain override pending tx {}", connected.getHashAsString());
                                 log.info("  <-pending ->dead");
-                                pending.remove(connected.getHash());
-                                dead.put(connected.getHash(), connected);
+                                beforeTransactionUpdate(connected.getHash());
+                                transactions.move(connected.getHash(), Pool.PENDING, Pool.DEAD);
                                 // Now forcibly change the connection.
                                 input.connect(unspent, true);
-                                // Inform the event listeners of the newly dead tx.
-                                for (WalletEventListener listener : eventListeners) {
-                                    synchronized (listener) {
-                                        listener.onDeadTransaction(this, connected, tx);
-                                    }
-                                }
+                                afterTransactionUpdate(connected.getHash());
+                                deadTx = connected;
                             }
                         }
                     }
@@ -486,19 +732,27 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
                 Transaction connected = input.getOutpoint().fromTx;
                 maybeMoveTxToSpent(connected, "prevtx");
             }
+            afterTransactionUpdate(connectedHash);
+
+            if (deadTx != null) {
+                // Inform the event listeners of the newly dead tx.
+                dispatchEvent(new WalletEventQueue.DeadTransactionEvent(copyOfEventListeners(), deadTx, tx));
+            }
         }
     }
 
-    /** If the transactions outputs are all marked as spent, and it's in the unspent map, move it. */
+    /**
+     * If the transactions outputs are all marked as spent, and it's in the unspent map, move it. A transaction with
+     * every output spent contributes nothing to the balance so this move does not change the balance totals.
+     */
     private void maybeMoveTxToSpent(Transaction tx, String context) {
         if (tx.isEveryOutputSpent()) {
             // There's nothing left I can spend in this transaction.
-            if (unspent.remove(tx.getHash()) != null) {
+            if (transactions.move(tx.getHash(), Pool.UNSPENT, Pool.SPENT)) {
                 if (log.isInfoEnabled()) {
                     log.info("  " + context + " <-unspent");
                     log.info("  " + context + " ->spent");
                 }
-                spent.put(tx.getHash(), tx);
             }
         }
     }
@@ -509,12 +763,65 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
      *
      * Threading: Event listener methods are dispatched on library provided threads and the both the wallet and the
      * listener objects are locked during dispatch, so your listeners do not have to be thread safe. However they
-     * should not block as the Peer will be unresponsive to network traffic whilst your listener is running.
+     * should not block as the Peer will be unresponsive to network traffic whilst your listener is running. If an
+     * event executor has been set the listener methods are called on the executor instead, with only the listener
+     * locked.
      */
     public synchronized void addEventListener(WalletEventListener listener) {
         eventListeners.add(listener);
     }
 
+    /**
+     * Makes the wallet queue its events and dispatch them on the given executor rather than calling its listeners
+     * while it is locked, so slow listeners do not hold up block processing. Events are still delivered one at a
+     * time and in order, and runs of coins received events are merged. Pass null to go back to calling listeners
+     * inline.
+     *
+     * @param executor The executor to dispatch events on, or null.
+     * @param capacity How many events may be queued before the wallet waits for its listeners to catch up.
+     */
+    public synchronized void setEventExecutor(Executor executor, int capacity) {
+        eventQueue = executor == null ? null : new WalletEventQueue(this, executor, capacity);
+    }
+
+    /**
+     * Returns the queue events are dispatched through, which keeps the back-pressure counts, or null if listeners
+     * are called inline.
+     */
+    public WalletEventQueue getEventQueue() {
+        return eventQueue;
+    }
+
+    private List<WalletEventListener> copyOfEventListeners() {
+        return new ArrayList<WalletEventListener>(eventListeners);
+    }
+
+    private void dispatchEvent(WalletEventQueue.Event event) {
+        WalletEventQueue queue = eventQueue;
+        if (queue != null) {
+            queue.add(event);
+            return;
+        }
+        for (WalletEventListener listener : event.listeners) {
+            // Synchronize on the event listener as well. This allows a single listener to handle events from
+            // multiple wallets without needing to worry about being thread safe.
+            synchronized (listener) {
+                event.dispatch(this, listener);
+            }
+        }
+    }
+
+    /**
+     * If events are being queued and the queue is full, waits a while for the listeners to catch up. This is done
+     * before the wallet is locked as the listeners may need the lock.
+     */
+    private void awaitEventQueueCapacity() {
+        WalletEventQueue queue = eventQueue;
+        if (queue != null && !Thread.holdsLock(this)) {
+            queue.awaitCapacity();
+        }
+    }
+
     /**
      * Removes the given event listener object. Returns true if the listener was removed,
      * false if that listener was never added.
@@ -524,19 +831,47 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
     }
 
     /**
-     * Call this when we have successfully transmitted the send tx to the network, to update the wallet.
+     * Call this when we have successfully transmitted the send tx to the network, to update the wallet.<p>
+     *
+     * sendCoins broadcasts without the wallet lock, so a block with the transaction in can be received before this
+     * is called. The transaction has then already been filed and its inputs connected, so this does nothing rather
+     * than put it in a second pool. A block received meanwhile can also have spent the same coins in another
+     * transaction. This one can then never confirm, so it is filed as dead instead of pending.
      */
     synchronized void confirmSend(Transaction tx) {
-        assert !pending.containsKey(tx.getHash()) : "confirmSend called on the same transaction twice";
+        if (transactions.pools(tx.getHash()) != 0) {
+            log.info("confirmSend of {} which is already in the wallet", tx.getHashAsString());
+            return;
+        }
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutput connectedOutput = input.getOutpoint().getConnectedOutput();
+            if (!connectedOutput.isAvailableForSpending()) {
+                log.info("confirmSend of {} whose coins are already spent", tx.getHashAsString());
+                log.info("  ->dead");
+                beforeTransactionUpdate(tx.getHash());
+                dead.put(tx.getHash(), tx);
+                afterTransactionUpdate(tx.getHash());
+                publishSnapshot();
+                TransactionInput spentBy = connectedOutput.getSpentBy();
+                assert spentBy != null;
+                dispatchEvent(new WalletEventQueue.DeadTransactionEvent(copyOfEventListeners(), tx,
+                        spentBy == null ? null : spentBy.getParentTransaction()));
+                return;
+            }
+        }
         log.info("confirmSend of {}", tx.getHashAsString());
         // Mark the outputs of the used transcations as spent, so we don't try and spend it again.
         for (TransactionInput input : tx.getInputs()) {
+            Sha256Hash connectedHash = input.getOutpoint().getHash();
+            beforeTransactionUpdate(connectedHash);
             TransactionOutput connectedOutput = input.getOutpoint().getConnectedOutput();
             connectedOutput.markAsSpent(input);
+            afterTransactionUpdate(connectedHash);
         }
         // Some of the outputs probably send coins back to us, eg for change or because this transaction is just
         // consolidating the wallet. Mark any output that is NOT back to us as spent. Then add this TX to the
         // pending pool.
+        beforeTransactionUpdate(tx.getHash());
         for (TransactionOutput output : tx.getOutputs()) {
             if (!output.isMine(this)) {
                 // This output didn't go to us, so by definition it is now spent.
@@ -544,6 +879,8 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
             }
         }
         pending.put(tx.getHash(), tx);
+        afterTransactionUpdate(tx.getHash());
+        publishSnapshot();
     }
 
     /**
@@ -552,16 +889,14 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
      * @param includeDead If true, transactions that were overridden by a double spend are included.
      * @param includeInactive If true, transactions that are on side chains (are unspendable) are included.
      */
-    public Set<Transaction> getTransactions(boolean includeDead, boolean includeInactive) {
-        Set<Transaction> all = new HashSet<Transaction>();
-        all.addAll(unspent.values());
-        all.addAll(spent.values());
-        all.addAll(pending.values());
+    public synchronized Set<Transaction> getTransactions(boolean includeDead, boolean includeInactive) {
+        int mask = TransactionTable.mask(Pool.UNSPENT, Pool.SPENT, Pool.PENDING);
         if (includeDead)
-            all.addAll(dead.values());
+            mask |= TransactionTable.mask(Pool.DEAD);
         if (includeInactive)
-            all.addAll(inactive.values());
-        return all;
+            mask |= TransactionTable.mask(Pool.INACTIVE);
+        // Each transaction is in the table once however many pools it is in, so there is nothing to merge.
+        return new HashSet<Transaction>(transactions.view(mask).values());
     }
 
     /** Returns all non-dead, active transactions ordered by recency. */
@@ -569,37 +904,45 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
         return getRecentTransactions(0, false);
     }
 
+    /**
+     * Returns the non-dead, active transactions updated between the two dates inclusive, ordered by increasing age.
+     */
+    public synchronized List<Transaction> getTransactionsByTime(Date start, Date end) {
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        for (Transaction tx : transactionsByTime.between(start, end)) {
+            if (dead.containsKey(tx.getHash())) continue;
+            transactions.add(tx);
+        }
+        return transactions;
+    }
+
     /**
      * Returns an list of N transactions, ordered by increasing age. Transactions on side chains are not included.
      * Dead transactions (overridden by double spends) are optionally included. <p>
      *
-     * Note: the current implementation is O(num transactions in wallet). Regardless of how many transactions are
-     * requested, the cost is always the same. In future, requesting smaller numbers of transactions may be faster
-     * depending on how the wallet is implemented (eg if backed by a database).
+     * The transactions are kept in time order as they are added so this costs O(N), plus any dead transactions
+     * skipped over, rather than a sort of the whole wallet.
      */
-    public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
+    public synchronized List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
         assert numTransactions >= 0;
-        // Firstly, put all transactions into an array.
         int size = getPoolSize(Pool.UNSPENT) + getPoolSize(Pool.SPENT) + getPoolSize(Pool.PENDING);
+        if (includeDead) {
+            size += getPoolSize(Pool.DEAD);
+        }
         if (numTransactions > size || numTransactions == 0) {
             numTransactions = size;
         }
-        ArrayList<Transaction> all = new ArrayList<Transaction>(getTransactions(includeDead, false));
-        // Order by date.
-        Collections.sort(all, Collections.reverseOrder(new Comparator<Transaction>() {
-            public int compare(Transaction t1, Transaction t2) {
-                return t1.getUpdateTime().compareTo(t2.getUpdateTime());
-            }
-        }));
-        if (numTransactions == all.size()) {
-            return all;
-        } else {
-            all.subList(numTransactions, all.size()).clear();
-            return all;
+        List<Transaction> recent = new ArrayList<Transaction>(numTransactions);
+        for (Transaction tx : transactionsByTime.newestFirst()) {
+            if (recent.size() == numTransactions) break;
+            if (!includeDead && dead.containsKey(tx.getHash())) continue;
+            recent.add(tx);
         }
+        return recent;
     }
 
-    // This is used only for unit testing, it's an internal API.
+    // This is an internal API, used by the transaction table and for unit testing. ALL must stay last as the
+    // transaction table gives each pool before it a bit.
     enum Pool {
         UNSPENT,
         SPENT,
@@ -638,7 +981,12 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
 
     /**
      * Sends coins to the given address, via the given {@link PeerGroup}.
-     * Change is returned to the first key in the wallet.
+     * Change is returned to the first key in the wallet.<p>
+     *
+     * The wallet is only locked while the transaction is created and confirmed, not while it is broadcast, so
+     * blocks can still be received in the meantime. If one of them has the transaction in, confirming it afterwards
+     * does nothing. If one of them spends the same coins in another transaction, the returned transaction is filed
+     * as dead. Sends are serialized against each other so two sends cannot pick the same coins.
      * 
      * @param to Which address to send coins to.
      * @param nanocoins How many nanocoins to send. You can use Utils.toNanoCoins() to calculate this.
@@ -646,15 +994,17 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
      * @return The {@link Transaction} that was created or null if there was insufficient balance to send the coins.
      * @throws IOException if there was a problem broadcasting the transaction
      */
-    public synchronized Transaction sendCoins(PeerGroup peerGroup, Address to, BigInteger nanocoins, final BigInteger fee) throws IOException {        
-        Transaction tx = createSend(to, nanocoins, fee);
-        if (tx == null)   // Not enough money! :-(
-            return null;
-        if (!peerGroup.broadcastTransaction(tx)) {
-            throw new IOException("Failed to broadcast tx to all connected peers");
-        }        
-        confirmSend(tx);
-        return tx;
+    public Transaction sendCoins(PeerGroup peerGroup, Address to, BigInteger nanocoins, final BigInteger fee) throws IOException {
+        synchronized (sendLock) {
+            Transaction tx = createSend(to, nanocoins, fee);
+            if (tx == null)   // Not enough money! :-(
+                return null;
+            if (!peerGroup.broadcastTransaction(tx)) {
+                throw new IOException("Failed to broadcast tx to all connected peers");
+            }
+            confirmSend(tx);
+            return tx;
+        }
     }
 
     /**
@@ -675,28 +1025,23 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
         final BigInteger total = nanocoins.add(fee);
         log.info("Creating send tx to " + address.toString() + " for " +
                 bitcoinValueToFriendlyString(total));
-        // To send money to somebody else, we need to do gather up transactions with unspent outputs until we have
-        // sufficient value. Many coin selection algorithms are possible, we use a simple but suboptimal one.
-        // TODO: Sort coins so we use the smallest first, to combat wallet fragmentation and reduce fees.
-        BigInteger valueGathered = BigInteger.ZERO;
-        List<TransactionOutput> gathered = new LinkedList<TransactionOutput>();
-        for (Transaction tx : unspent.values()) {
-            for (TransactionOutput output : tx.getOutputs()) {
-                if (!output.isAvailableForSpending()) continue;
-                if (!output.isMine(this)) continue;
-                gathered.add(output);
-                valueGathered = valueGathered.add(output.getValue());
-            }
-            if (valueGathered.compareTo(total) >= 0) break;
-        }
+        // To send money to somebody else, we need to gather up unspent outputs until we have sufficient value.
+        // Which ones are used is up to the coin selector.
+        ensureBalancesAreCurrent();
+        List<SpendableOutput> gathered = coinSelector.select(total.longValue(),
+                Collections.unmodifiableSet(spendableOutputs));
         // Can we afford this?
-        if (valueGathered.compareTo(total) < 0) {
+        if (gathered == null) {
             log.info("Insufficient value in wallet for send, missing " +
-                    bitcoinValueToFriendlyString(total.subtract(valueGathered)));
+                    bitcoinValueToFriendlyString(total.subtract(BigInteger.valueOf(availableBalance))));
             // TODO: Should throw an exception here.
             return null;
         }
         assert gathered.size() > 0;
+        BigInteger valueGathered = BigInteger.ZERO;
+        for (SpendableOutput output : gathered) {
+            valueGathered = valueGathered.add(BigInteger.valueOf(output.getValue()));
+        }
         Transaction sendTx = new Transaction(params);
         sendTx.addOutput(new TransactionOutput(params, sendTx, nanocoins, address));
         BigInteger change = valueGathered.subtract(total);
@@ -707,8 +1052,8 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
             log.info("  with " + bitcoinValueToFriendlyString(change) + " coins change");
             sendTx.addOutput(new TransactionOutput(params, sendTx, change, changeAddress));
         }
-        for (TransactionOutput output : gathered) {
-            sendTx.addInput(output);
+        for (SpendableOutput output : gathered) {
+            sendTx.addInput(output.getOutput());
         }
 
         // Now sign the inputs, thus proving that we are entitled to redeem the connected outputs.
@@ -731,8 +1076,14 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
      * Adds the given ECKey to the wallet. There is currently no way to delete keys (that would result in coin loss).
      */
     public synchronized void addKey(ECKey key) {
-        assert !keychain.contains(key);
+        assert findKeyFromPubKey(key.getPubKey()) == null : "Key is already in the keychain";
         keychain.add(key);
+        if (numberOfIndexedKeys == keychain.size() - 1) {
+            indexKey(key);
+            numberOfIndexedKeys = keychain.size();
+        }
+        balancesNeedRecalculating = true;
+        snapshotIsStale = true;
     }
 
     /**
@@ -741,10 +1092,9 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
      * @return ECKey object or null if no such key was found.
      */
     public synchronized ECKey findKeyFromPubHash(byte[] pubkeyHash) {
-        for (ECKey key : keychain) {
-            if (Arrays.equals(key.getPubKeyHash(), pubkeyHash)) return key;
-        }
-        return null;
+        if (pubkeyHash == null) return null;
+        ensureKeyIndexesAreCurrent();
+        return keysByPubKeyHash.get(new ByteArrayKey(pubkeyHash));
     }
 
     /** Returns true if this wallet contains a public key which hashes to the given hash. */
@@ -757,10 +1107,9 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
      * @return ECKey or null if no such key was found.
      */
     public synchronized ECKey findKeyFromPubKey(byte[] pubkey) {
-        for (ECKey key : keychain) {
-            if (Arrays.equals(key.getPubKey(), pubkey)) return key;
-        }
-        return null;
+        if (pubkey == null) return null;
+        ensureKeyIndexesAreCurrent();
+        return keysByPubKey.get(new ByteArrayKey(pubkey));
     }
 
     /** Returns true if this wallet contains a keypair with the given public key. */
@@ -768,6 +1117,37 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
         return findKeyFromPubKey(pubkey) != null;
     }
 
+    /**
+     * Rebuilds the indexes if keys have been added to the keychain list directly, without going through addKey.
+     */
+    private void ensureKeyIndexesAreCurrent() {
+        if (keysByPubKeyHash == null || numberOfIndexedKeys != keychain.size()) {
+            rebuildKeyIndexes();
+            balancesNeedRecalculating = true;
+        }
+    }
+
+    private void rebuildKeyIndexes() {
+        keysByPubKeyHash = new HashMap<ByteArrayKey, ECKey>(Math.max(16, keychain.size() * 2));
+        keysByPubKey = new HashMap<ByteArrayKey, ECKey>(Math.max(16, keychain.size() * 2));
+        for (ECKey key : keychain) {
+            indexKey(key);
+        }
+        numberOfIndexedKeys = keychain.size();
+    }
+
+    private void indexKey(ECKey key) {
+        // If the same key is in the keychain twice the first one wins, as it did with the linear search.
+        ByteArrayKey pubKeyHash = new ByteArrayKey(key.getPubKeyHash());
+        if (!keysByPubKeyHash.containsKey(pubKeyHash)) {
+            keysByPubKeyHash.put(pubKeyHash, key);
+        }
+        ByteArrayKey pubKey = new ByteArrayKey(key.getPubKey());
+        if (!keysByPubKey.containsKey(pubKey)) {
+            keysByPubKey.put(pubKey, key);
+        }
+    }
+
     /**
      * It's possible to calculate a wallets balance from multiple points of view. This enum selects which
      * getBalance() should use.<p>
@@ -807,26 +1187,307 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
      * Returns the balance of this wallet as calculated by the provided balanceType.
      */
     public synchronized BigInteger getBalance(BalanceType balanceType) {
-        BigInteger available = BigInteger.ZERO;
-        for (Transaction tx : unspent.values()) {
-            for (TransactionOutput output : tx.getOutputs()) {
-                if (!output.isMine(this)) continue;
-                if (!output.isAvailableForSpending()) continue;
-                available = available.add(output.getValue());
-            }
-        }
+        return BigInteger.valueOf(getBalanceInNanocoins(balanceType));
+    }
+
+    /**
+     * Returns the balance of this wallet, in nanocoins, as calculated by the provided balanceType. This is read
+     * from running totals kept up to date as transactions move between pools so it is cheap to call.
+     */
+    public synchronized long getBalanceInNanocoins(BalanceType balanceType) {
+        ensureBalancesAreCurrent();
         if (balanceType == BalanceType.AVAILABLE)
-            return available;
+            return availableBalance;
         assert balanceType == BalanceType.ESTIMATED;
-        // Now add back all the pending outputs to assume the transaction goes through.
-        BigInteger estimated = available;
+        return estimatedBalance;
+    }
+
+    /**
+     * Returns the outputs this wallet can spend, that is the unspent outputs that are ours of transactions in the
+     * unspent pool. The returned collection is a read only view and must only be used while holding the wallet lock.
+     */
+    public synchronized Collection<SpendableOutput> getSpendableOutputs() {
+        ensureBalancesAreCurrent();
+        return Collections.unmodifiableSet(spendableOutputs);
+    }
+
+    /**
+     * Returns true if the given output of the given transaction is ours and available for spending.
+     */
+    public synchronized boolean isSpendable(Sha256Hash txHash, int index) {
+        ensureBalancesAreCurrent();
+        return spendableOutputs.contains(new SpendableOutput(txHash, index, 0, null));
+    }
+
+    /**
+     * Sets the coin selector used by createSend. The default is a {@link BranchAndBoundCoinSelector} which looks for
+     * a set of outputs needing no change and otherwise spends the smallest single output that covers the send.
+     */
+    public synchronized void setCoinSelector(CoinSelector coinSelector) {
+        assert coinSelector != null;
+        this.coinSelector = coinSelector;
+    }
+
+    public synchronized CoinSelector getCoinSelector() {
+        return coinSelector;
+    }
+
+    private void ensureBalancesAreCurrent() {
+        ensureKeyIndexesAreCurrent();
+        if (balancesNeedRecalculating) {
+            recalculateBalances();
+        }
+        if (checkBalances) {
+            checkBalances();
+        }
+    }
+
+    /**
+     * Returns the latest snapshot of the wallet for display. This does not take the wallet lock so it can be called
+     * from the user interface thread without waiting for block processing. The snapshot is replaced whenever the
+     * wallet processes a transaction, confirms a send or re-organizes. Changes made by writing to the pool fields
+     * directly are not reflected until the next of those.
+     */
+    public WalletSnapshot getSnapshot() {
+        if (snapshotIsStale) {
+            synchronized (this) {
+                if (snapshotIsStale) {
+                    publishSnapshot();
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private void publishSnapshot() {
+        snapshotIsStale = false;
+        ensureBalancesAreCurrent();
+        snapshot = new WalletSnapshot(availableBalance, estimatedBalance, unspent.values(), spent.values(),
+                pending.values(), inactive.values(), dead.values(), summarizeTransactionsByTime());
+    }
+
+    /**
+     * Returns the summaries of the non-dead, active transactions ordered by recency, reusing those of the last
+     * snapshot for the transactions that have not changed since.
+     */
+    private List<WalletSnapshot.TransactionSummary> summarizeTransactionsByTime() {
+        List<WalletSnapshot.TransactionSummary> summaries =
+                new ArrayList<WalletSnapshot.TransactionSummary>(transactionsByTime.size());
+        for (Transaction tx : transactionsByTime.newestFirst()) {
+            Sha256Hash txHash = tx.getHash();
+            if (dead.containsKey(txHash)) continue;
+            WalletSnapshot.TransactionSummary summary = transactionSummaries.get(txHash);
+            if (summary == null || summary.getTransaction() != tx) {
+                summary = summarize(tx);
+                transactionSummaries.put(txHash, summary);
+            }
+            summaries.add(summary);
+        }
+        return summaries;
+    }
+
+    private WalletSnapshot.TransactionSummary summarize(Transaction tx) {
+        BigInteger debit;
+        try {
+            debit = tx.getValueSentFromMe(this);
+        } catch (ScriptException e) {
+            log.error("Could not work out the value sent from the wallet by " + tx.getHashAsString(), e);
+            debit = null;
+        }
+        String receivingAddress = null;
+        String sendingAddress = null;
+        for (TransactionOutput output : tx.getOutputs()) {
+            try {
+                if (output.isMine(this)) {
+                    receivingAddress = new Address(params, output.getScriptPubKey().getPubKeyHash()).toString();
+                } else {
+                    sendingAddress = output.getScriptPubKey().getToAddress().toString();
+                }
+            } catch (ScriptException e) {
+                // An output we cannot read the address of is described without one.
+                log.debug("Could not read the address of an output of " + tx.getHashAsString(), e);
+            }
+        }
+        return new WalletSnapshot.TransactionSummary(tx, tx.getValueSentToMe(this), debit, tx.isMine(this),
+                receivingAddress, sendingAddress);
+    }
+
+    /**
+     * Switches the debug balance self check on or off. When on, every balance query recalculates the balance from
+     * the transaction pools and logs an error if the running totals disagree. See {@link #CHECK_BALANCES_PROPERTY}.
+     */
+    public static void setCheckBalances(boolean checkBalances) {
+        Wallet.checkBalances = checkBalances;
+    }
+
+    /**
+     * Recalculates the balances from the transaction pools and compares them with the running totals and the
+     * spendable outputs. On a mismatch the error is logged and the running totals or the spendable outputs are
+     * rebuilt.
+     *
+     * @return true if the running totals were correct.
+     */
+    synchronized boolean checkBalances() {
+        long calculatedAvailable = calculateAvailableBalance();
+        long calculatedEstimated = calculatedAvailable + calculatePendingBalance();
+        long spendableValue = 0;
+        for (SpendableOutput output : spendableOutputs) {
+            spendableValue += output.getValue();
+        }
+        boolean correct = calculatedAvailable == availableBalance && calculatedEstimated == estimatedBalance
+                && spendableValue == calculatedAvailable;
+        if (spendableValue != calculatedAvailable) {
+            log.error("Wallet spendable outputs add up to " + spendableValue + " but should be " + calculatedAvailable);
+            rebuildSpendableOutputs();
+        }
+        if (calculatedAvailable != availableBalance || calculatedEstimated != estimatedBalance) {
+            log.error("Wallet balance totals are wrong. Available was " + availableBalance + " but should be "
+                    + calculatedAvailable + ", estimated was " + estimatedBalance + " but should be "
+                    + calculatedEstimated);
+            availableBalance = calculatedAvailable;
+            estimatedBalance = calculatedEstimated;
+        }
+        return correct;
+    }
+
+    /**
+     * Recalculates the running balance totals and the spendable outputs from scratch by walking the unspent and
+     * pending pools. The transaction summaries are dropped too, as keys may have been added since.
+     */
+    private void recalculateBalances() {
+        transactionSummaries = new HashMap<Sha256Hash, WalletSnapshot.TransactionSummary>();
+        rebuildSpendableOutputs();
+        availableBalance = calculateAvailableBalance();
+        estimatedBalance = availableBalance + calculatePendingBalance();
+        balancesNeedRecalculating = false;
+    }
+
+    private void rebuildSpendableOutputs() {
+        spendableOutputs = new HashSet<SpendableOutput>();
+        for (Transaction tx : unspent.values()) {
+            addSpendableOutputs(tx);
+        }
+    }
+
+    private long calculateAvailableBalance() {
+        long available = 0;
+        for (Transaction tx : unspent.values()) {
+            available += getAvailableValueSentToMe(tx);
+        }
+        return available;
+    }
+
+    private long calculatePendingBalance() {
+        long pendingValue = 0;
         for (Transaction tx : pending.values()) {
-            for (TransactionOutput output : tx.getOutputs()) {
-                if (!output.isMine(this)) continue;
-                estimated = estimated.add(output.getValue());
+            pendingValue += getValueSentToMe(tx);
+        }
+        return pendingValue;
+    }
+
+    /**
+     * Takes the contribution of the transaction filed under the given hash out of the running balance totals and the
+     * spendable outputs. Call this before the transaction changes pool or any of its outputs change spent state and
+     * call {@link #afterTransactionUpdate(Sha256Hash)} afterwards.
+     */
+    private void beforeTransactionUpdate(Sha256Hash txHash) {
+        transactionsByTime.remove(txHash);
+        transactionSummaries.remove(txHash);
+        adjustBalances(txHash, -1);
+        Transaction tx = unspent.get(txHash);
+        if (tx != null) {
+            removeSpendableOutputs(tx);
+        }
+    }
+
+    /**
+     * Adds the contribution of the transaction filed under the given hash to the running balance totals and the
+     * spendable outputs.
+     */
+    private void afterTransactionUpdate(Sha256Hash txHash) {
+        adjustBalances(txHash, 1);
+        Transaction tx = unspent.get(txHash);
+        if (tx != null) {
+            addSpendableOutputs(tx);
+        }
+        if (tx == null) tx = spent.get(txHash);
+        if (tx == null) tx = pending.get(txHash);
+        if (tx == null) tx = dead.get(txHash);
+        if (tx != null) {
+            transactionsByTime.add(tx);
+        }
+        if (journal != null) {
+            journal.transactionChanged(txHash);
+        }
+    }
+
+    private void rebuildTimeIndex() {
+        transactionsByTime = new TransactionTimeIndex();
+        for (Map<Sha256Hash, Transaction> pool : Arrays.asList(unspent, spent, pending, dead)) {
+            for (Transaction tx : pool.values()) {
+                transactionsByTime.add(tx);
             }
         }
-        return estimated;
+    }
+
+    private void rebuildBlockIndex() {
+        transactionsByBlock = new BlockTransactionIndex();
+        for (Transaction tx : transactions.view(Pool.UNSPENT, Pool.SPENT, Pool.PENDING, Pool.INACTIVE, Pool.DEAD)
+                .values()) {
+            transactionsByBlock.addAppearances(tx);
+        }
+    }
+
+    private void addSpendableOutputs(Transaction tx) {
+        List<TransactionOutput> outputs = tx.getOutputs();
+        for (int i = 0; i < outputs.size(); i++) {
+            TransactionOutput output = outputs.get(i);
+            if (!output.isAvailableForSpending()) continue;
+            if (!output.isMine(this)) continue;
+            spendableOutputs.add(new SpendableOutput(tx.getHash(), i, output.getValue().longValue(), output));
+        }
+    }
+
+    private void removeSpendableOutputs(Transaction tx) {
+        int numberOfOutputs = tx.getOutputs().size();
+        for (int i = 0; i < numberOfOutputs; i++) {
+            spendableOutputs.remove(new SpendableOutput(tx.getHash(), i, 0, null));
+        }
+    }
+
+    private void adjustBalances(Sha256Hash txHash, int sign) {
+        // Confirmed transactions count towards both balances, pending ones only towards the estimated balance.
+        Transaction tx = unspent.get(txHash);
+        if (tx != null) {
+            long value = sign * getAvailableValueSentToMe(tx);
+            availableBalance += value;
+            estimatedBalance += value;
+        }
+        tx = pending.get(txHash);
+        if (tx != null) {
+            estimatedBalance += sign * getValueSentToMe(tx);
+        }
+    }
+
+    /** Returns the value of the outputs of the transaction that are mine and not spent yet, in nanocoins. */
+    private long getAvailableValueSentToMe(Transaction tx) {
+        long value = 0;
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (!output.isAvailableForSpending()) continue;
+            if (!output.isMine(this)) continue;
+            value += output.getValue().longValue();
+        }
+        return value;
+    }
+
+    /** Returns the value of all the outputs of the transaction that are mine, in nanocoins. */
+    private long getValueSentToMe(Transaction tx) {
+        long value = 0;
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (!output.isMine(this)) continue;
+            value += output.getValue().longValue();
+        }
+        return value;
     }
 
     @Override
@@ -894,99 +1555,132 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
         log.info("  New part of chain (top to bottom):");
         for (StoredBlock b : newBlocks) log.info("    {}", b.getHeader().getHashAsString());
 
+        boolean restoredArchive = restoreArchiveIfReached(oldBlocks);
+
         // Transactions that appear in the old chain segment.
         Map<Sha256Hash, Transaction> oldChainTransactions = new HashMap<Sha256Hash, Transaction>();
         // Transactions that appear in the old chain segment and NOT the new chain segment.
         Map<Sha256Hash, Transaction> onlyOldChainTransactions = new HashMap<Sha256Hash, Transaction>();
         // Transactions that appear in the new chain segment.
         Map<Sha256Hash, Transaction> newChainTransactions = new HashMap<Sha256Hash, Transaction>();
-        // Transactions that don't appear in either the new or the old section, ie, the shared trunk.
-        Map<Sha256Hash, Transaction> commonChainTransactions = new HashMap<Sha256Hash, Transaction>();
-
-        Map<Sha256Hash, Transaction> all = new HashMap<Sha256Hash, Transaction>();
-        all.putAll(unspent);
-        all.putAll(spent);
-        all.putAll(inactive);
-        for (Transaction tx : all.values()) {
-            Set<StoredBlock> appearsIn = tx.getAppearsIn();
-            assert appearsIn != null;
-            // If the set of blocks this transaction appears in is disjoint with one of the chain segments it means
-            // the transaction was never incorporated by a miner into that side of the chain.
-            boolean inOldSection = !Collections.disjoint(appearsIn, oldBlocks);
-            boolean inNewSection = !Collections.disjoint(appearsIn, newBlocks);
-            boolean inCommonSection = !inNewSection && !inOldSection;
-
-            if (inCommonSection) {
-                boolean alreadyPresent = commonChainTransactions.put(tx.getHash(), tx) != null;
-                assert !alreadyPresent : "Transaction appears twice in common chain segment";
-            } else {
-                if (inOldSection) {
-                    boolean alreadyPresent = oldChainTransactions.put(tx.getHash(), tx) != null;
-                    assert !alreadyPresent : "Transaction appears twice in old chain segment";
-                    if (!inNewSection) {
-                        alreadyPresent = onlyOldChainTransactions.put(tx.getHash(), tx) != null;
-                        assert !alreadyPresent : "Transaction appears twice in only-old map";
-                    }
-                }
-                if (inNewSection) {
-                    boolean alreadyPresent = newChainTransactions.put(tx.getHash(), tx) != null;
-                    assert !alreadyPresent : "Transaction appears twice in new chain segment";
-                }
+
+        // A live view, but it is only used before the pools are rebuilt below.
+        Map<Sha256Hash, Transaction> all = transactions.view(Pool.UNSPENT, Pool.SPENT, Pool.INACTIVE);
+        // Only the transactions in the blocks either side of the split can have changed, so look those up in the
+        // block index rather than asking every transaction in the wallet which blocks it appears in.
+        findTransactionsInBlocks(oldBlocks, all, oldChainTransactions);
+        findTransactionsInBlocks(newBlocks, all, newChainTransactions);
+        for (Transaction tx : oldChainTransactions.values()) {
+            if (!newChainTransactions.containsKey(tx.getHash())) {
+                onlyOldChainTransactions.put(tx.getHash(), tx);
             }
         }
 
         // If there is no difference it means we have nothing we need to do and the user does not care.
-        boolean affectedUs = !oldChainTransactions.equals(newChainTransactions);
+        boolean affectedUs = restoredArchive || !oldChainTransactions.equals(newChainTransactions);
         log.info(affectedUs ? "Re-org affected our transactions" : "Re-org had no effect on our transactions");
         if (!affectedUs) return;
 
-        // For simplicity we will reprocess every transaction to ensure it's in the right bucket and has the right
-        // connections. Attempting to update each one with minimal work is possible but complex and was leading to
-        // edge cases that were hard to fix. As re-orgs are rare the amount of work this implies should be manageable
-        // unless the user has an enormous wallet. As an optimization fully spent transactions buried deeper than
-        // 1000 blocks could be put into yet another bucket which we never touch and assume re-orgs cannot affect.
+        // Only the transactions in the blocks either side of the split, the pending and dead transactions and the
+        // transactions whose outputs they spend are reprocessed. A transaction in the common part of the chain can
+        // only spend outputs of other common transactions, so its connections are left alone. Fully spent
+        // transactions buried deeper than the archive depth are kept out of memory in the archive and only brought
+        // back by a re-org that reaches down to them, in which case every transaction is reconnected as the ones
+        // spending the restored outputs are not known.
 
         for (Transaction tx : onlyOldChainTransactions.values()) log.info("  Only Old: {}", tx.getHashAsString());
         for (Transaction tx : oldChainTransactions.values()) log.info("  Old: {}", tx.getHashAsString());
         for (Transaction tx : newChainTransactions.values()) log.info("  New: {}", tx.getHashAsString());
 
-        // Break all the existing connections.
-        for (Transaction tx : all.values())
-            tx.disconnectInputs();
-        for (Transaction tx : pending.values())
+        Set<Transaction> toDisconnect = new HashSet<Transaction>();
+        List<Transaction> commonChainTransactions = new ArrayList<Transaction>();
+        if (restoredArchive) {
+            for (Transaction tx : all.values()) {
+                Sha256Hash txHash = tx.getHash();
+                if (!oldChainTransactions.containsKey(txHash) && !newChainTransactions.containsKey(txHash)) {
+                    commonChainTransactions.add(tx);
+                }
+            }
+            toDisconnect.addAll(all.values());
+        } else {
+            toDisconnect.addAll(oldChainTransactions.values());
+            toDisconnect.addAll(newChainTransactions.values());
+        }
+        toDisconnect.addAll(pending.values());
+
+        // Breaking a connection changes the spent state of an output of the transaction it refers to, so take those
+        // transactions out of the balance totals along with the ones leaving their pools until they are refiled.
+        Set<Sha256Hash> updated = new LinkedHashSet<Sha256Hash>();
+        updated.addAll(oldChainTransactions.keySet());
+        updated.addAll(newChainTransactions.keySet());
+        for (Transaction tx : toDisconnect) {
+            for (TransactionInput input : tx.getInputs()) {
+                if (input.getOutpoint().fromTx != null) {
+                    updated.add(input.getOutpoint().fromTx.getHash());
+                }
+            }
+        }
+        for (Transaction tx : commonChainTransactions) {
+            updated.add(tx.getHash());
+        }
+        for (Sha256Hash txHash : updated) {
+            beforeTransactionUpdate(txHash);
+        }
+
+        // Break the existing connections.
+        for (Transaction tx : toDisconnect)
             tx.disconnectInputs();
         // Reconnect the transactions in the common part of the chain.
-        for (Transaction tx : commonChainTransactions.values()) {
+        for (Transaction tx : commonChainTransactions) {
             TransactionInput badInput = tx.connectForReorganize(all);
             assert badInput == null : "Failed to connect " + tx.getHashAsString() + ", " + badInput.toString();
         }
+        // The transactions either side of the split are refiled below.
+        for (Sha256Hash txHash : oldChainTransactions.keySet()) {
+            transactions.remove(txHash, Pool.UNSPENT);
+            transactions.remove(txHash, Pool.SPENT);
+            transactions.remove(txHash, Pool.INACTIVE);
+        }
+        for (Sha256Hash txHash : newChainTransactions.keySet()) {
+            transactions.remove(txHash, Pool.UNSPENT);
+            transactions.remove(txHash, Pool.SPENT);
+            transactions.remove(txHash, Pool.INACTIVE);
+        }
         // Recalculate the unspent/spent buckets for the transactions the re-org did not affect.
-        unspent.clear();
-        spent.clear();
-        inactive.clear();
-        for (Transaction tx : commonChainTransactions.values()) {
+        for (Sha256Hash txHash : updated) {
+            Transaction tx = transactions.get(txHash, TransactionTable.mask(Pool.UNSPENT, Pool.SPENT));
+            if (tx == null) {
+                continue;
+            }
             int unspentOutputs = 0;
             for (TransactionOutput output : tx.getOutputs()) {
                 if (output.isAvailableForSpending()) unspentOutputs++;
             }
             if (unspentOutputs > 0) {
-                log.info("  TX {}: ->unspent", tx.getHashAsString());
-                unspent.put(tx.getHash(), tx);
+                if (transactions.move(txHash, Pool.SPENT, Pool.UNSPENT)) {
+                    log.info("  TX {}: ->unspent", tx.getHashAsString());
+                }
             } else {
-                log.info("  TX {}: ->spent", tx.getHashAsString());
-                spent.put(tx.getHash(), tx);
+                if (transactions.move(txHash, Pool.UNSPENT, Pool.SPENT)) {
+                    log.info("  TX {}: ->spent", tx.getHashAsString());
+                }
             }
         }
+        for (Sha256Hash txHash : updated) {
+            afterTransactionUpdate(txHash);
+        }
+
         // Now replay the act of receiving the blocks that were previously in a side chain. This will:
         //   - Move any transactions that were pending and are now accepted into the right bucket.
         //   - Connect the newly active transactions.
         Collections.reverse(newBlocks);  // Need bottom-to-top but we get top-to-bottom.
         for (StoredBlock b : newBlocks) {
             log.info("Replaying block {}", b.getHeader().getHashAsString());
-            Set<Transaction> txns = new HashSet<Transaction>();
-            for (Transaction tx : newChainTransactions.values()) {
-                if (tx.appearsIn.contains(b)) {
-                    txns.add(tx);
+            List<Transaction> txns = new ArrayList<Transaction>();
+            for (Transaction tx : transactionsByBlock.get(b.getHeader().getHash())) {
+                Transaction newChainTx = newChainTransactions.get(tx.getHash());
+                if (newChainTx != null) {
+                    txns.add(newChainTx);
                     log.info("  containing tx {}", tx.getHashAsString());
                 }
             }
@@ -1005,10 +1699,7 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
         // another re-org or re-inclusion into the main chain. For inactive transactions where we spent money we must
         // put them back into the pending pool if we can reconnect them, so we don't create a double spend whilst the
         // network heals itself.
-        Map<Sha256Hash, Transaction> pool = new HashMap<Sha256Hash, Transaction>();
-        pool.putAll(unspent);
-        pool.putAll(spent);
-        pool.putAll(pending);
+        Map<Sha256Hash, Transaction> pool = unspentSpentAndPending;
         Map<Sha256Hash, Transaction> toReprocess = new HashMap<Sha256Hash, Transaction>();
         toReprocess.putAll(onlyOldChainTransactions);
         toReprocess.putAll(pending);
@@ -1023,27 +1714,118 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
         //    dead instead of pending.
         //
         // This only occurs when we are double spending our own coins.
-        for (Transaction tx : dead.values()) {
+        for (Transaction tx : new ArrayList<Transaction>(dead.values())) {
             reprocessTxAfterReorg(pool, tx);
         }
         for (Transaction tx : toReprocess.values()) {
             reprocessTxAfterReorg(pool, tx);
         }
 
+        publishSnapshot();
         log.info("post-reorg balance is {}", Utils.bitcoinValueToFriendlyString(getBalance()));
 
         // Inform event listeners that a re-org took place.
-        for (WalletEventListener l : eventListeners) {
-            // Synchronize on the event listener as well. This allows a single listener to handle events from
-            // multiple wallets without needing to worry about being thread safe.
-            synchronized (l) {
-                l.onReorganize(this);
+        dispatchEvent(new WalletEventQueue.ReorganizeEvent(copyOfEventListeners()));
+    }
+
+    /**
+     * Brings every archived transaction back into the spent pool if the old part of the chain reaches down to the
+     * height of any of them. Which of them are affected is worked out by the re-org as for any other transaction,
+     * so the whole archive is restored rather than trying to pick out the ones that are affected. They are archived
+     * again once they are buried deep enough.
+     *
+     * @return true if the archive was restored.
+     */
+    private boolean restoreArchiveIfReached(List<StoredBlock> oldBlocks) {
+        if (archive == null || archive.size() == 0 || oldBlocks.isEmpty()) {
+            return false;
+        }
+        int lowestOldHeight = Integer.MAX_VALUE;
+        for (StoredBlock b : oldBlocks) {
+            lowestOldHeight = Math.min(lowestOldHeight, b.getHeight());
+        }
+        List<ArchivedTransaction> archived = archive.getTransactions();
+        int highestArchivedHeight = -1;
+        for (ArchivedTransaction archivedTx : archived) {
+            highestArchivedHeight = Math.max(highestArchivedHeight, archivedTx.getHeight());
+        }
+        if (lowestOldHeight > highestArchivedHeight) {
+            return false;
+        }
+
+        log.info("Re-org reaches height {}, restoring {} archived transactions", lowestOldHeight, archived.size());
+        List<Transaction> restored = new ArrayList<Transaction>(archived.size());
+        for (ArchivedTransaction archivedTx : archived) {
+            Transaction tx;
+            try {
+                tx = archive.read(archivedTx);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not restore archived transaction " + archivedTx.getHash(), e);
+            }
+            Sha256Hash txHash = tx.getHash();
+            beforeTransactionUpdate(txHash);
+            transactions.put(txHash, tx, Pool.SPENT);
+            afterTransactionUpdate(txHash);
+            transactionsByBlock.addAppearances(tx);
+            archive.forget(txHash);
+            restored.add(tx);
+        }
+        // The outputs they spend may still be marked as spent by the copies that were archived, so take them over.
+        for (Transaction tx : restored) {
+            for (TransactionInput input : tx.getInputs()) {
+                if (!input.isCoinBase()) {
+                    Sha256Hash connectedHash = input.getOutpoint().getHash();
+                    beforeTransactionUpdate(connectedHash);
+                    input.connect(unspentSpentAndPending, true);
+                    afterTransactionUpdate(connectedHash);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Puts the transactions in the given pool that appear in any of the given blocks into found.
+     */
+    private void findTransactionsInBlocks(List<StoredBlock> blocks, Map<Sha256Hash, Transaction> pool,
+            Map<Sha256Hash, Transaction> found) {
+        // Each block is looked up once, however many times it is listed.
+        Set<Sha256Hash> blockHashes = new HashSet<Sha256Hash>();
+        for (StoredBlock b : blocks) {
+            Sha256Hash blockHash = b.getHeader().getHash();
+            if (!blockHashes.add(blockHash)) {
+                continue;
+            }
+            for (Transaction tx : transactionsByBlock.get(blockHash)) {
+                Transaction poolTx = pool.get(tx.getHash());
+                if (poolTx != null) {
+                    found.put(tx.getHash(), poolTx);
+                }
             }
         }
     }
 
     private void reprocessTxAfterReorg(Map<Sha256Hash, Transaction> pool, Transaction tx) {
         log.info("  TX {}", tx.getHashAsString());
+        // Connecting the inputs changes the spent state of the outputs they refer to, so take those transactions out
+        // of the balance totals along with this one until it has been refiled.
+        Set<Sha256Hash> updated = new LinkedHashSet<Sha256Hash>();
+        updated.add(tx.getHash());
+        for (TransactionInput input : tx.getInputs()) {
+            if (!input.isCoinBase()) {
+                updated.add(input.getOutpoint().getHash());
+            }
+        }
+        for (Sha256Hash txHash : updated) {
+            beforeTransactionUpdate(txHash);
+        }
+        refileTxAfterReorg(pool, tx);
+        for (Sha256Hash txHash : updated) {
+            afterTransactionUpdate(txHash);
+        }
+    }
+
+    private void refileTxAfterReorg(Map<Sha256Hash, Transaction> pool, Transaction tx) {
         int numInputs = tx.getInputs().size();
         int noSuchTx = 0;
         int success = 0;
@@ -1069,11 +1851,7 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
                 dead.put(tx.getHash(), tx);
                 pending.remove(tx.getHash());
                 // Inform the event listeners of the newly dead tx.
-                for (WalletEventListener listener : eventListeners) {
-                    synchronized (listener) {
-                        listener.onDeadTransaction(this, tx, replacement);
-                    }
-                }
+                dispatchEvent(new WalletEventQueue.DeadTransactionEvent(copyOfEventListeners(), tx, replacement));
                 break;
             }
         }
@@ -1090,6 +1868,191 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
         }
     }
 
+    public NetworkParameters getNetworkParameters() {
+        return params;
+    }
+
+    /**
+     * Returns the journal the wallet's changes are recorded in, or null if it is only saved in full.
+     */
+    public synchronized WalletJournal getJournal() {
+        return journal;
+    }
+
+    synchronized void setJournal(WalletJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Sets the archive that fully spent transactions buried at least depth blocks deep are moved to, or null to keep
+     * them all in memory. Transactions are archived as blocks are received, see {@link #ARCHIVE_INTERVAL}. Archived
+     * transactions that are also in the wallet, for example because the wallet was not saved after they were
+     * archived, are kept in the wallet.
+     */
+    public synchronized void setArchive(WalletArchive archive, int depth) {
+        if (archive != null) {
+            for (Sha256Hash txHash : transactions.view(Pool.UNSPENT, Pool.SPENT, Pool.PENDING, Pool.INACTIVE,
+                    Pool.DEAD).keySet()) {
+                archive.forget(txHash);
+            }
+        }
+        this.archive = archive;
+        archiveDepth = depth;
+        lastArchiveHeight = 0;
+    }
+
+    public WalletArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * Returns the summaries of the archived transactions, newest first.
+     */
+    public List<ArchivedTransaction> getArchivedTransactions() {
+        WalletArchive currentArchive = archive;
+        if (currentArchive == null) {
+            return Collections.emptyList();
+        }
+        return currentArchive.getTransactions();
+    }
+
+    /**
+     * Reads an archived transaction back from the archive, for example to show its details. It is not put back into
+     * the wallet.
+     */
+    public Transaction readArchivedTransaction(ArchivedTransaction archivedTransaction) throws IOException {
+        WalletArchive currentArchive = archive;
+        if (currentArchive == null) {
+            throw new IOException("The wallet has no archive");
+        }
+        return currentArchive.read(archivedTransaction);
+    }
+
+    /**
+     * Returns the value of the given output of an archived transaction if it is ours, otherwise zero.
+     */
+    BigInteger getArchivedOutputValue(Sha256Hash txHash, int index) {
+        WalletArchive currentArchive = archive;
+        if (currentArchive == null) {
+            return BigInteger.ZERO;
+        }
+        ArchivedTransaction archivedTransaction = currentArchive.get(txHash);
+        if (archivedTransaction == null) {
+            return BigInteger.ZERO;
+        }
+        return BigInteger.valueOf(archivedTransaction.getMyOutputValue(index));
+    }
+
+    /**
+     * Moves the spent transactions buried at least the archive depth below the given chain height into the archive.
+     * A transaction is only archived if each of its outputs that is ours was spent by a transaction that is buried
+     * as deep or already archived, so only a re-org at least that deep can affect it.
+     *
+     * @return The number of transactions archived.
+     */
+    public synchronized int archiveBuriedTransactions(int chainHeight) throws IOException {
+        lastArchiveHeight = chainHeight;
+        if (archive == null) {
+            return 0;
+        }
+        int buriedHeight = chainHeight - archiveDepth;
+        List<Transaction> toArchive = new ArrayList<Transaction>();
+        List<ArchivedTransaction> summaries = new ArrayList<ArchivedTransaction>();
+        for (Transaction tx : spent.values()) {
+            if (!isBuriedAndFullySpent(tx, buriedHeight)) {
+                continue;
+            }
+            try {
+                summaries.add(createArchivedTransaction(tx));
+                toArchive.add(tx);
+            } catch (ScriptException e) {
+                log.warn("Not archiving tx {}: {}", tx.getHashAsString(), e.toString());
+            }
+        }
+        if (toArchive.isEmpty()) {
+            return 0;
+        }
+
+        // They are all on disk before any leave the wallet, so a failed write leaves the wallet as it was.
+        archive.append(toArchive, summaries);
+        for (Transaction tx : toArchive) {
+            Sha256Hash txHash = tx.getHash();
+            beforeTransactionUpdate(txHash);
+            transactions.remove(txHash, Pool.SPENT);
+            afterTransactionUpdate(txHash);
+            transactionsByBlock.removeAppearances(tx);
+            // Let the inputs spending it forget it so it can be garbage collected. They are valued from the summary.
+            for (TransactionOutput output : tx.getOutputs()) {
+                TransactionInput spentBy = output.getSpentBy();
+                if (spentBy != null) {
+                    spentBy.releaseConnectedTransaction();
+                }
+            }
+        }
+        publishSnapshot();
+        log.info("Archived {} spent transactions buried more than {} blocks deep", toArchive.size(), archiveDepth);
+        return toArchive.size();
+    }
+
+    private boolean isBuriedAndFullySpent(Transaction tx, int buriedHeight) {
+        if (getHighestAppearance(tx) > buriedHeight) {
+            return false;
+        }
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (!output.isMine(this)) {
+                continue;
+            }
+            TransactionInput spentBy = output.getSpentBy();
+            if (spentBy == null) {
+                return false;
+            }
+            Transaction spender = spentBy.getParentTransaction();
+            Sha256Hash spenderHash = spender.getHash();
+            if (archive.contains(spenderHash)) {
+                continue;
+            }
+            if (!unspent.containsKey(spenderHash) && !spent.containsKey(spenderHash)) {
+                // Spent by a pending transaction, which may yet be replaced.
+                return false;
+            }
+            if (getHighestAppearance(spender) > buriedHeight) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ArchivedTransaction createArchivedTransaction(Transaction tx) throws ScriptException {
+        List<TransactionOutput> outputs = tx.getOutputs();
+        long[] myOutputValues = new long[outputs.size()];
+        for (int i = 0; i < outputs.size(); i++) {
+            TransactionOutput output = outputs.get(i);
+            if (output.isMine(this)) {
+                myOutputValues[i] = output.getValue().longValue();
+            }
+        }
+        BigInteger netValue = tx.getValueSentToMe(this).subtract(tx.getValueSentFromMe(this));
+        Date time = tx.getUpdateTime();
+        return new ArchivedTransaction(tx.getHash(), getHighestAppearance(tx), netValue.longValue(),
+                time == null ? -1 : time.getTime(), myOutputValues);
+    }
+
+    /**
+     * Returns the height of the highest block the transaction appears in, or Integer.MAX_VALUE if it is not known
+     * to appear in any.
+     */
+    private static int getHighestAppearance(Transaction tx) {
+        Set<BlockReference> appearsIn = tx.getAppearsIn();
+        if (appearsIn == null || appearsIn.isEmpty()) {
+            return Integer.MAX_VALUE;
+        }
+        int highest = -1;
+        for (BlockReference b : appearsIn) {
+            highest = Math.max(highest, b.getHeight());
+        }
+        return highest;
+    }
+
     /**
      * Returns an immutable view of the transactions currently waiting for network confirmations.
      */
@@ -1100,11 +2063,29 @@ public class Wallet implements Serializable, IsMultiBitClass, PendingTransaction
     /**
      * remove all transactions from the wallet
      */
-    public void removeAllTransactions(){
+    public synchronized void removeAllTransactions(){
         pending.clear();
         unspent.clear();
         spent.clear();
         inactive.clear();
         dead.clear();
+        spendableOutputs.clear();
+        transactionsByTime.clear();
+        transactionsByBlock.clear();
+        transactionSummaries.clear();
+        if (archive != null) {
+            try {
+                archive.clear();
+            } catch (IOException e) {
+                log.error("Could not clear the wallet archive: " + e.getMessage(), e);
+            }
+        }
+        lastArchiveHeight = 0;
+        availableBalance = 0;
+        estimatedBalance = 0;
+        if (journal != null) {
+            journal.allTransactionsChanged();
+        }
+        publishSnapshot();
     }
 }
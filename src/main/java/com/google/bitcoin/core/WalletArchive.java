@@ -0,0 +1,307 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.multibit.IsMultiBitClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A WalletArchive holds the fully spent transactions a wallet no longer needs to keep in memory, in an append only
+ * file next to the wallet file. Only an {@link ArchivedTransaction} summary of each is kept in memory. See
+ * {@link Wallet#setArchive(WalletArchive, int)}.<p>
+ *
+ * Each record holds the summary, the transaction in the bitcoin wire format and references to the blocks it
+ * appeared in, so the transaction can be read back exactly as it was. Records are only ever added: a transaction
+ * that is archived again gets a new record which replaces the earlier one when the file is next read. The file is
+ * synced before the wallet lets go of the transactions written to it, and a partly written record at the end of the
+ * file is dropped when it is read.<p>
+ *
+ * A transaction that is also in the wallet is not treated as archived. The wallet file is saved after the archive is
+ * written to, so after a crash the wallet file may still hold transactions that were archived; the copy in the
+ * wallet is then the one used.
+ */
+public class WalletArchive implements IsMultiBitClass {
+    private static final Logger log = LoggerFactory.getLogger(WalletArchive.class);
+
+    /**
+     * How many blocks deep a fully spent transaction is buried before it is archived, unless the wallet is told
+     * otherwise.
+     */
+    public static final int DEFAULT_DEPTH = 1000;
+
+    // "MBAR"
+    private static final int MAGIC = 0x4d424152;
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_LENGTH = 8;
+
+    private final NetworkParameters params;
+    private final File file;
+
+    // In the order they were archived. Guarded by this.
+    private final LinkedHashMap<Sha256Hash, ArchivedTransaction> summaries =
+            new LinkedHashMap<Sha256Hash, ArchivedTransaction>();
+
+    /**
+     * Opens the archive in the given file, reading the summaries of the transactions in it. The file is created
+     * when the first transaction is archived.
+     */
+    public WalletArchive(NetworkParameters params, File file) throws IOException {
+        this.params = params;
+        this.file = file;
+        if (file.exists()) {
+            readSummaries();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized int size() {
+        return summaries.size();
+    }
+
+    synchronized boolean contains(Sha256Hash txHash) {
+        return summaries.containsKey(txHash);
+    }
+
+    synchronized ArchivedTransaction get(Sha256Hash txHash) {
+        return summaries.get(txHash);
+    }
+
+    /**
+     * Stops treating the transaction as archived, because the wallet has it in memory. The file is not changed.
+     */
+    synchronized void forget(Sha256Hash txHash) {
+        summaries.remove(txHash);
+    }
+
+    /**
+     * Returns a copy of the summaries of the archived transactions, newest first.
+     */
+    public synchronized List<ArchivedTransaction> getTransactions() {
+        List<ArchivedTransaction> transactions = new ArrayList<ArchivedTransaction>(summaries.values());
+        Collections.sort(transactions, new Comparator<ArchivedTransaction>() {
+            public int compare(ArchivedTransaction a, ArchivedTransaction b) {
+                Date aTime = a.getTime();
+                Date bTime = b.getTime();
+                long aMillis = aTime == null ? Long.MIN_VALUE : aTime.getTime();
+                long bMillis = bTime == null ? Long.MIN_VALUE : bTime.getTime();
+                if (aMillis != bMillis) {
+                    return aMillis > bMillis ? -1 : 1;
+                }
+                return b.getHeight() - a.getHeight();
+            }
+        });
+        return transactions;
+    }
+
+    /**
+     * Writes the transactions to the end of the file and syncs it. Each summary gets the offset of its record and is
+     * then treated as archived.
+     */
+    synchronized void append(List<Transaction> transactions, List<ArchivedTransaction> newSummaries)
+            throws IOException {
+        assert transactions.size() == newSummaries.size();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long position = raf.length();
+            if (position == 0) {
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                position = FILE_HEADER_LENGTH;
+            }
+            raf.seek(position);
+            for (int i = 0; i < transactions.size(); i++) {
+                byte[] record = createRecord(transactions.get(i), newSummaries.get(i));
+                newSummaries.get(i).offset = position;
+                raf.write(record);
+                position += record.length;
+            }
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+        for (ArchivedTransaction summary : newSummaries) {
+            summaries.put(summary.getHash(), summary);
+        }
+    }
+
+    /**
+     * Reads an archived transaction back from the file, with the blocks it appeared in and its update time. The
+     * transaction is not connected to any other.
+     */
+    synchronized Transaction read(ArchivedTransaction summary) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(summary.offset);
+            byte[] record = new byte[raf.readInt()];
+            raf.readFully(record);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            readSummary(in);
+            Transaction tx = readTransaction(in);
+            tx.setUpdatedAt(summary.getTime());
+            if (!tx.getHash().equals(summary.getHash())) {
+                throw new IOException("Archived transaction " + summary.getHash() + " read back as " + tx.getHash());
+            }
+            return tx;
+        } catch (ProtocolException e) {
+            throw new IOException("Could not parse archived transaction " + summary.getHash(), e);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Empties the archive, deleting the file.
+     */
+    synchronized void clear() throws IOException {
+        summaries.clear();
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete wallet archive " + file);
+        }
+    }
+
+    private void readSummaries() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long length = raf.length();
+            if (length == 0) {
+                return;
+            }
+            if (length < FILE_HEADER_LENGTH || raf.readInt() != MAGIC) {
+                throw new IOException("Not a wallet archive: " + file);
+            }
+            int version = raf.readInt();
+            if (version != VERSION) {
+                throw new IOException("Wallet archive " + file + " has unknown version " + version);
+            }
+            long position = FILE_HEADER_LENGTH;
+            while (length - position >= 4) {
+                raf.seek(position);
+                int recordLength = raf.readInt();
+                long end = position + 4 + recordLength;
+                if (recordLength < 0 || end > length) {
+                    break;
+                }
+                ArchivedTransaction summary = readSummary(raf);
+                summary.offset = position;
+                summaries.put(summary.getHash(), summary);
+                position = end;
+            }
+            if (position < length) {
+                // The last record was not completely written. The wallet only lets go of a transaction once its
+                // record is on disk so the transactions in it are still in the wallet file.
+                log.warn("Dropping {} bytes of a partly written record from the end of {}", length - position, file);
+                raf.setLength(position);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the transaction and the blocks it appeared in from a record, after the summary.
+     */
+    private Transaction readTransaction(DataInputStream in) throws IOException, ProtocolException {
+        Transaction tx = new Transaction(params, readBytes(in));
+        int numberOfAppearances = in.readInt();
+        if (numberOfAppearances > 0) {
+            Set<BlockReference> appearsIn = new HashSet<BlockReference>();
+            for (int i = 0; i < numberOfAppearances; i++) {
+                appearsIn.add(WalletFormat.readBlockReference(in));
+            }
+            tx.appearsIn = appearsIn;
+        }
+        return tx;
+    }
+
+    private static byte[] createRecord(Transaction tx, ArchivedTransaction summary) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);    // the record length, filled in below
+        out.write(summary.getHash().getBytes());
+        out.writeInt(summary.getHeight());
+        out.writeLong(summary.getNetValue().longValue());
+        Date time = summary.getTime();
+        out.writeLong(time == null ? -1 : time.getTime());
+        out.writeInt(summary.getNumberOfOutputs());
+        for (int i = 0; i < summary.getNumberOfOutputs(); i++) {
+            out.writeLong(summary.getMyOutputValue(i));
+        }
+        writeBytes(out, tx.bitcoinSerialize());
+        Set<BlockReference> appearsIn = tx.getAppearsIn();
+        if (appearsIn == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(appearsIn.size());
+            for (BlockReference block : appearsIn) {
+                WalletFormat.writeBlockReference(out, block);
+            }
+        }
+        out.close();
+        byte[] record = bytes.toByteArray();
+        int recordLength = record.length - 4;
+        record[0] = (byte) (recordLength >>> 24);
+        record[1] = (byte) (recordLength >>> 16);
+        record[2] = (byte) (recordLength >>> 8);
+        record[3] = (byte) recordLength;
+        return record;
+    }
+
+    private static ArchivedTransaction readSummary(DataInput in) throws IOException {
+        byte[] hash = new byte[32];
+        in.readFully(hash);
+        int height = in.readInt();
+        long netValue = in.readLong();
+        long time = in.readLong();
+        long[] myOutputValues = new long[in.readInt()];
+        for (int i = 0; i < myOutputValues.length; i++) {
+            myOutputValues[i] = in.readLong();
+        }
+        return new ArchivedTransaction(new Sha256Hash(hash), height, netValue, time, myOutputValues);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
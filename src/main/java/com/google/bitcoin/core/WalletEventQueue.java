@@ -0,0 +1,396 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.multibit.IsMultiBitClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A WalletEventQueue delivers a wallet's events to its listeners on an {@link Executor} instead of on the thread
+ * that changed the wallet, so a slow listener does not hold up block processing. See
+ * {@link Wallet#setEventExecutor(Executor, int)}.<p>
+ *
+ * Events are delivered one at a time in the order they happened, even if the executor has many threads. Coins
+ * received and block received events that are still queued when another of the same kind arrives are merged into
+ * one batch, see {@link BatchWalletEventListener}. Each merged transaction keeps the balances from before and after
+ * it, so listeners that do not take batches are told about it as if nothing had been merged.<p>
+ *
+ * The queue is bounded. When it is full the wallet waits for the listeners to catch up before starting its next
+ * change, but only for up to {@link #MAXIMUM_WAIT_MILLIS} as the listeners may themselves be waiting for a lock
+ * held by the thread feeding the wallet. The wait is done before the wallet is locked. The counts of waits and
+ * overflows are kept so back-pressure can be monitored.
+ */
+public class WalletEventQueue implements IsMultiBitClass {
+    private static final Logger log = LoggerFactory.getLogger(WalletEventQueue.class);
+
+    /**
+     * The longest the wallet waits for room in a full queue before carrying on regardless.
+     */
+    public static final long MAXIMUM_WAIT_MILLIS = 1000;
+
+    private final Wallet wallet;
+    private final Executor executor;
+    private final int capacity;
+
+    // Guarded by this.
+    private final LinkedList<Event> events = new LinkedList<Event>();
+    private boolean draining;
+
+    private long eventsQueued;
+    private long eventsCoalesced;
+    private long eventsDispatched;
+    private int maximumQueueLength;
+    private long numberOfWaits;
+    private long totalWaitMillis;
+    private long numberOfOverflows;
+
+    WalletEventQueue(Wallet wallet, Executor executor, int capacity) {
+        assert capacity > 0;
+        this.wallet = wallet;
+        this.executor = executor;
+        this.capacity = capacity;
+    }
+
+    /**
+     * An event waiting to be dispatched, with the listeners registered at the time it happened.
+     */
+    abstract static class Event {
+        final List<WalletEventListener> listeners;
+
+        Event(List<WalletEventListener> listeners) {
+            this.listeners = listeners;
+        }
+
+        abstract void dispatch(Wallet wallet, WalletEventListener listener);
+
+        /**
+         * Merges the next event into this one if possible, returning true if it was merged.
+         */
+        boolean coalesce(Event next) {
+            return false;
+        }
+    }
+
+    static final class CoinsReceivedEvent extends Event {
+        private final List<Transaction> transactions = new ArrayList<Transaction>(1);
+        private final List<BigInteger> prevBalances = new ArrayList<BigInteger>(1);
+        private final List<BigInteger> newBalances = new ArrayList<BigInteger>(1);
+
+        CoinsReceivedEvent(List<WalletEventListener> listeners, Transaction tx, BigInteger prevBalance,
+                BigInteger newBalance) {
+            super(listeners);
+            this.transactions.add(tx);
+            this.prevBalances.add(prevBalance);
+            this.newBalances.add(newBalance);
+        }
+
+        @Override
+        void dispatch(Wallet wallet, WalletEventListener listener) {
+            if (transactions.size() > 1 && listener instanceof BatchWalletEventListener) {
+                ((BatchWalletEventListener) listener).onCoinsReceived(wallet, transactions, prevBalances.get(0),
+                        newBalances.get(newBalances.size() - 1));
+            } else {
+                dispatchEach(wallet, listener, transactions, prevBalances, newBalances);
+            }
+        }
+
+        @Override
+        boolean coalesce(Event next) {
+            if (!(next instanceof CoinsReceivedEvent) || !next.listeners.equals(listeners)) {
+                return false;
+            }
+            CoinsReceivedEvent nextCoinsReceived = (CoinsReceivedEvent) next;
+            transactions.addAll(nextCoinsReceived.transactions);
+            prevBalances.addAll(nextCoinsReceived.prevBalances);
+            newBalances.addAll(nextCoinsReceived.newBalances);
+            return true;
+        }
+    }
+
+    /**
+     * The transactions from a best chain block. Consecutive blocks still queued, as while the chain is downloaded or
+     * rescanned, are merged into one event carrying the last block and the transactions of them all. Each
+     * transaction that sent us coins keeps the balances of its own block.
+     */
+    static final class BlockReceivedEvent extends Event {
+        private StoredBlock block;
+        private List<Transaction> transactions;
+        private List<Transaction> coinsReceived;
+        private final List<BigInteger> prevBalances;
+        private final List<BigInteger> newBalances;
+        private final BigInteger prevBalance;
+        private BigInteger newBalance;
+        private int numberOfBlocks = 1;
+
+        BlockReceivedEvent(List<WalletEventListener> listeners, StoredBlock block, List<Transaction> transactions,
+                List<Transaction> coinsReceived, BigInteger prevBalance, BigInteger newBalance) {
+            super(listeners);
+            this.block = block;
+            this.transactions = transactions;
+            this.coinsReceived = coinsReceived;
+            this.prevBalances = new ArrayList<BigInteger>(Collections.nCopies(coinsReceived.size(), prevBalance));
+            this.newBalances = new ArrayList<BigInteger>(Collections.nCopies(coinsReceived.size(), newBalance));
+            this.prevBalance = prevBalance;
+            this.newBalance = newBalance;
+        }
+
+        @Override
+        void dispatch(Wallet wallet, WalletEventListener listener) {
+            if (listener instanceof BatchWalletEventListener) {
+                ((BatchWalletEventListener) listener).onBlockReceived(wallet, block, transactions, coinsReceived,
+                        prevBalance, newBalance);
+            } else {
+                dispatchEach(wallet, listener, coinsReceived, prevBalances, newBalances);
+            }
+        }
+
+        @Override
+        boolean coalesce(Event next) {
+            if (!(next instanceof BlockReceivedEvent) || !next.listeners.equals(listeners)) {
+                return false;
+            }
+            BlockReceivedEvent nextBlockReceived = (BlockReceivedEvent) next;
+            if (numberOfBlocks == 1) {
+                // The lists came from the wallet, so copy them before adding to them.
+                transactions = new ArrayList<Transaction>(transactions);
+                coinsReceived = new ArrayList<Transaction>(coinsReceived);
+            }
+            transactions.addAll(nextBlockReceived.transactions);
+            coinsReceived.addAll(nextBlockReceived.coinsReceived);
+            prevBalances.addAll(nextBlockReceived.prevBalances);
+            newBalances.addAll(nextBlockReceived.newBalances);
+            block = nextBlockReceived.block;
+            newBalance = nextBlockReceived.newBalance;
+            numberOfBlocks++;
+            return true;
+        }
+    }
+
+    /**
+     * Tells a listener about each transaction that sent us coins, with the balances from before and after it.
+     */
+    private static void dispatchEach(Wallet wallet, WalletEventListener listener, List<Transaction> transactions,
+            List<BigInteger> prevBalances, List<BigInteger> newBalances) {
+        for (int i = 0; i < transactions.size(); i++) {
+            listener.onCoinsReceived(wallet, transactions.get(i), prevBalances.get(i), newBalances.get(i));
+        }
+    }
+
+    static final class PendingCoinsReceivedEvent extends Event {
+        private final Transaction tx;
+
+        PendingCoinsReceivedEvent(List<WalletEventListener> listeners, Transaction tx) {
+            super(listeners);
+            this.tx = tx;
+        }
+
+        @Override
+        void dispatch(Wallet wallet, WalletEventListener listener) {
+            listener.onPendingCoinsReceived(wallet, tx);
+        }
+    }
+
+    static final class ReorganizeEvent extends Event {
+        ReorganizeEvent(List<WalletEventListener> listeners) {
+            super(listeners);
+        }
+
+        @Override
+        void dispatch(Wallet wallet, WalletEventListener listener) {
+            listener.onReorganize(wallet);
+        }
+    }
+
+    static final class DeadTransactionEvent extends Event {
+        private final Transaction deadTx;
+        private final Transaction replacementTx;
+
+        DeadTransactionEvent(List<WalletEventListener> listeners, Transaction deadTx, Transaction replacementTx) {
+            super(listeners);
+            this.deadTx = deadTx;
+            this.replacementTx = replacementTx;
+        }
+
+        @Override
+        void dispatch(Wallet wallet, WalletEventListener listener) {
+            listener.onDeadTransaction(wallet, deadTx, replacementTx);
+        }
+    }
+
+    /**
+     * Adds an event to the queue, merging it into the last queued event if possible. This never blocks so it is
+     * safe to call with the wallet locked.
+     */
+    synchronized void add(Event event) {
+        eventsQueued++;
+        if (!events.isEmpty() && events.getLast().coalesce(event)) {
+            eventsCoalesced++;
+            return;
+        }
+        events.add(event);
+        if (events.size() > maximumQueueLength) {
+            maximumQueueLength = events.size();
+        }
+        if (!draining) {
+            draining = true;
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        drain();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The executor has been shut down, for instance on exit. Leave the events queued and try again with
+                // the next one rather than never draining again.
+                draining = false;
+                notifyAll();
+                log.error("Wallet event executor rejected the queue, " + events.size() + " events queued", e);
+            }
+        }
+    }
+
+    /**
+     * Waits until there is room in the queue, or for {@link #MAXIMUM_WAIT_MILLIS}. Must not be called with the
+     * wallet locked.
+     */
+    synchronized void awaitCapacity() {
+        if (events.size() < capacity) {
+            return;
+        }
+        numberOfWaits++;
+        long start = System.currentTimeMillis();
+        long waited = 0;
+        try {
+            while (events.size() >= capacity && waited < MAXIMUM_WAIT_MILLIS) {
+                wait(MAXIMUM_WAIT_MILLIS - waited);
+                waited = System.currentTimeMillis() - start;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        totalWaitMillis += System.currentTimeMillis() - start;
+        if (events.size() >= capacity) {
+            numberOfOverflows++;
+            log.warn("Wallet event listeners are not keeping up, " + events.size() + " events queued");
+        }
+    }
+
+    /**
+     * Waits until every queued event has been dispatched, for up to the given time. Events left queued because the
+     * executor rejected the drain are not dispatched until the next event is added, so they run the wait out.
+     *
+     * @return true if the queue is empty.
+     */
+    public synchronized boolean awaitEmpty(long timeoutMillis) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (draining || !events.isEmpty()) {
+            long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    private void drain() {
+        while (true) {
+            Event event;
+            synchronized (this) {
+                event = events.poll();
+                if (event == null) {
+                    draining = false;
+                    notifyAll();
+                    return;
+                }
+                // Wake up a wallet waiting for room.
+                notifyAll();
+            }
+            for (WalletEventListener listener : event.listeners) {
+                // Synchronize on the listener as when events are dispatched inline so listeners need not be thread
+                // safe.
+                synchronized (listener) {
+                    try {
+                        event.dispatch(wallet, listener);
+                    } catch (RuntimeException e) {
+                        log.error("Wallet event listener threw an exception", e);
+                    }
+                }
+            }
+            synchronized (this) {
+                eventsDispatched++;
+            }
+        }
+    }
+
+    public synchronized int getQueueLength() {
+        return events.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** Returns the number of events added, including those merged into an earlier event. */
+    public synchronized long getEventsQueued() {
+        return eventsQueued;
+    }
+
+    /** Returns the number of events merged into an earlier event rather than queued separately. */
+    public synchronized long getEventsCoalesced() {
+        return eventsCoalesced;
+    }
+
+    public synchronized long getEventsDispatched() {
+        return eventsDispatched;
+    }
+
+    public synchronized int getMaximumQueueLength() {
+        return maximumQueueLength;
+    }
+
+    /** Returns how many times the wallet had to wait for room in the queue. */
+    public synchronized long getNumberOfWaits() {
+        return numberOfWaits;
+    }
+
+    public synchronized long getTotalWaitMillis() {
+        return totalWaitMillis;
+    }
+
+    /** Returns how many times the wallet gave up waiting and queued events beyond the capacity. */
+    public synchronized long getNumberOfOverflows() {
+        return numberOfOverflows;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "WalletEventQueue: " + events.size() + " of " + capacity + " queued (max " + maximumQueueLength
+                + "), " + eventsQueued + " added, " + eventsCoalesced + " coalesced, " + eventsDispatched
+                + " dispatched, " + numberOfWaits + " waits taking " + totalWaitMillis + " ms, " + numberOfOverflows
+                + " overflows";
+    }
+}
@@ -0,0 +1,507 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.multibit.IsMultiBitClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Wallet.Pool;
+
+/**
+ * Reads and writes wallets in a compact binary format, in place of Java serialization of the whole object graph.
+ * Transactions are written in the bitcoin wire format, each block they appear in is written once and referred to by
+ * number, and which inputs are connected and which outputs are spent is recorded so the spent state of every output
+ * can be rebuilt on load.<p>
+ *
+ * The layout, with all numbers big endian:
+ * <pre>
+ *   int magic "MBWF", int version
+ *   record: genesis block hash, to identify the network
+ *   int number of keys, then a record per key: the key in ASN.1
+ *   int number of blocks, then a record per block: 32 byte block hash, int height, long block time in seconds
+ *   int number of transactions, then a record per transaction:
+ *       byte pools, long update time or -1, transaction, int number of appearances, int block number...,
+ *       int number of inputs, byte connected flag per input, int number of outputs, byte spent flag per output
+ * </pre>
+ * Every record is an int length followed by that many bytes, and byte arrays inside a record are written the same
+ * way. Readers skip anything at the end of a record they do not understand, so later versions can add fields.<p>
+ *
+ * Most spent outputs are spent by a connected input, but the outputs of our own sends that pay someone else are
+ * marked spent with no input, see {@link Wallet#confirmSend(Transaction)}, and only the spent flags record those.<p>
+ *
+ * Legacy wallets written with Java serialization are still read by {@link Wallet#loadFromFile(File)}, and
+ * {@link #migrateLegacyWallet(File)} rewrites one in this format.
+ */
+public final class WalletFormat implements IsMultiBitClass {
+    private static final Logger log = LoggerFactory.getLogger(WalletFormat.class);
+
+    // "MBWF"
+    public static final int MAGIC = 0x4d425746;
+    public static final int VERSION = 2;
+
+    private static final int BLOCK_HASH_LENGTH = 32;
+
+    /**
+     * The suffix added to the name of a legacy wallet file when it is kept as a backup by the migrator.
+     */
+    public static final String LEGACY_BACKUP_SUFFIX = ".legacy";
+
+    // The pool for each bit of the pools byte. The bits are part of the format so this order must never change.
+    static final Pool[] POOL_BITS = { Pool.UNSPENT, Pool.SPENT, Pool.PENDING, Pool.INACTIVE, Pool.DEAD };
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Wallet files are written under this suffix and then renamed into place.
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private WalletFormat() {
+    }
+
+    /**
+     * The state of a wallet to be written, captured under the wallet lock. Transactions, keys and blocks do not
+     * change once they are in the wallet, so they are only referred to here. What can change is copied: the pools of
+     * each transaction, its update time, the blocks it appears in, which of its inputs are connected and which of its
+     * outputs are spent. Encoding the snapshot does not need the wallet lock.
+     */
+    static final class Snapshot {
+        final NetworkParameters params;
+        final ECKey[] keys;
+        final Transaction[] transactions;
+        final int[] pools;
+        final long[] updatedAt;
+        final BlockReference[][] appearsIn;
+        final byte[][] connectedInputs;
+        final byte[][] spentOutputs;
+
+        private Snapshot(NetworkParameters params, ECKey[] keys, int numberOfTransactions) {
+            this.params = params;
+            this.keys = keys;
+            transactions = new Transaction[numberOfTransactions];
+            pools = new int[numberOfTransactions];
+            updatedAt = new long[numberOfTransactions];
+            appearsIn = new BlockReference[numberOfTransactions][];
+            connectedInputs = new byte[numberOfTransactions][];
+            spentOutputs = new byte[numberOfTransactions][];
+        }
+    }
+
+    private static final BlockReference[] NO_BLOCKS = new BlockReference[0];
+
+    /**
+     * Captures the state of the wallet to be written. Called with the wallet lock held, which is only needed for as
+     * long as it takes to copy the references.
+     */
+    static Snapshot capture(Wallet wallet) {
+        Map<Sha256Hash, Transaction> all = wallet.transactions.view(TransactionTable.mask(Pool.ALL));
+        Snapshot snapshot = new Snapshot(wallet.getNetworkParameters(), wallet.keychain.toArray(new ECKey[0]),
+                all.size());
+        int i = 0;
+        for (Map.Entry<Sha256Hash, Transaction> entry : all.entrySet()) {
+            Transaction tx = entry.getValue();
+            snapshot.transactions[i] = tx;
+            snapshot.pools[i] = wallet.transactions.pools(entry.getKey());
+            Date updatedAt = tx.getUpdatedAt();
+            snapshot.updatedAt[i] = updatedAt == null ? -1 : updatedAt.getTime();
+            Set<BlockReference> appearsIn = tx.getAppearsIn();
+            snapshot.appearsIn[i] = appearsIn == null ? NO_BLOCKS
+                    : appearsIn.toArray(new BlockReference[appearsIn.size()]);
+            List<TransactionInput> inputs = tx.getInputs();
+            byte[] connected = new byte[inputs.size()];
+            for (int j = 0; j < connected.length; j++) {
+                connected[j] = (byte) (inputs.get(j).getOutpoint().fromTx != null ? 1 : 0);
+            }
+            snapshot.connectedInputs[i] = connected;
+            snapshot.spentOutputs[i] = captureSpentOutputs(tx);
+            i++;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Writes the wallet to the stream. The wallet lock is only held while its state is captured, not while it is
+     * encoded and written. The stream is flushed but not closed.
+     */
+    public static void write(Wallet wallet, OutputStream stream) throws IOException {
+        Snapshot snapshot;
+        synchronized (wallet) {
+            snapshot = capture(wallet);
+        }
+        write(snapshot, stream);
+    }
+
+    /**
+     * Writes a captured wallet to the stream. The stream is flushed but not closed.
+     */
+    static void write(Snapshot snapshot, OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE));
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(recordBytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        writeBytes(record, snapshot.params.genesisBlock.getHash().getBytes());
+        writeRecord(out, recordBytes);
+
+        out.writeInt(snapshot.keys.length);
+        for (ECKey key : snapshot.keys) {
+            writeBytes(record, key.toASN1());
+            writeRecord(out, recordBytes);
+        }
+
+        LinkedHashMap<BlockReference, Integer> blockNumbers = new LinkedHashMap<BlockReference, Integer>();
+        for (BlockReference[] appearsIn : snapshot.appearsIn) {
+            for (BlockReference block : appearsIn) {
+                if (!blockNumbers.containsKey(block)) {
+                    blockNumbers.put(block, blockNumbers.size());
+                }
+            }
+        }
+        out.writeInt(blockNumbers.size());
+        for (BlockReference block : blockNumbers.keySet()) {
+            writeBlockReference(record, block);
+            writeRecord(out, recordBytes);
+        }
+
+        out.writeInt(snapshot.transactions.length);
+        for (int i = 0; i < snapshot.transactions.length; i++) {
+            record.writeByte(toPoolBits(snapshot.pools[i]));
+            record.writeLong(snapshot.updatedAt[i]);
+            writeBytes(record, snapshot.transactions[i].bitcoinSerialize());
+            record.writeInt(snapshot.appearsIn[i].length);
+            for (BlockReference block : snapshot.appearsIn[i]) {
+                record.writeInt(blockNumbers.get(block));
+            }
+            record.writeInt(snapshot.connectedInputs[i].length);
+            record.write(snapshot.connectedInputs[i]);
+            record.writeInt(snapshot.spentOutputs[i].length);
+            record.write(snapshot.spentOutputs[i]);
+            writeRecord(out, recordBytes);
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes a captured wallet to a temporary file next to the given file, syncs it and renames it over the file,
+     * so the file always holds a complete wallet. Where a file cannot be renamed over another the old file is
+     * deleted first, and {@link #recoverInterruptedSave(File)} finishes the job if the program stops in between.
+     */
+    static void writeToFile(Snapshot snapshot, File file) throws IOException {
+        File temporaryFile = new File(file.getAbsolutePath() + TEMPORARY_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temporaryFile);
+        try {
+            write(snapshot, out);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temporaryFile.renameTo(file)) {
+            if (!file.delete() || !temporaryFile.renameTo(file)) {
+                throw new IOException("Could not replace " + file + " with " + temporaryFile);
+            }
+        }
+    }
+
+    /**
+     * Puts back a wallet file that a save had deleted but not yet replaced when the program stopped, see
+     * {@link #writeToFile(Snapshot, File)}. Call it before loading the wallet.
+     */
+    public static void recoverInterruptedSave(File walletFile) throws IOException {
+        File temporaryFile = new File(walletFile.getAbsolutePath() + TEMPORARY_SUFFIX);
+        if (!walletFile.exists() && temporaryFile.exists()) {
+            if (!temporaryFile.renameTo(walletFile)) {
+                throw new IOException("Could not rename " + temporaryFile + " to " + walletFile);
+            }
+            log.info("Recovered wallet {} from an interrupted save", walletFile);
+        }
+    }
+
+    /**
+     * Reads a wallet written by {@link #write(Wallet, OutputStream)}. The stream is not closed.
+     */
+    public static Wallet read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream, BUFFER_SIZE));
+        int magic = in.readInt();
+        if (magic != MAGIC) {
+            throw new IOException("Not a binary wallet");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Binary wallet has unknown version " + version);
+        }
+
+        try {
+            NetworkParameters params = findNetworkParameters(readBytes(readRecord(in)));
+            Wallet wallet = new Wallet(params);
+
+            int numberOfKeys = in.readInt();
+            for (int i = 0; i < numberOfKeys; i++) {
+                wallet.keychain.add(ECKey.fromASN1(readBytes(readRecord(in))));
+            }
+
+            int numberOfBlocks = in.readInt();
+            BlockReference[] blocks = new BlockReference[numberOfBlocks];
+            for (int i = 0; i < numberOfBlocks; i++) {
+                blocks[i] = readBlockReference(readRecord(in));
+            }
+
+            int numberOfTransactions = in.readInt();
+            List<Transaction> transactions = new ArrayList<Transaction>(numberOfTransactions);
+            List<byte[]> connectedInputs = new ArrayList<byte[]>(numberOfTransactions);
+            List<byte[]> spentOutputs = new ArrayList<byte[]>(numberOfTransactions);
+            for (int i = 0; i < numberOfTransactions; i++) {
+                DataInputStream record = readRecord(in);
+                int poolBits = record.readUnsignedByte();
+                long updatedAt = record.readLong();
+                Transaction tx = new Transaction(params, readBytes(record));
+                tx.setUpdatedAt(updatedAt < 0 ? null : new Date(updatedAt));
+                int numberOfAppearances = record.readInt();
+                if (numberOfAppearances > 0) {
+                    Set<BlockReference> appearsIn = new HashSet<BlockReference>();
+                    for (int j = 0; j < numberOfAppearances; j++) {
+                        appearsIn.add(blocks[record.readInt()]);
+                    }
+                    tx.appearsIn = appearsIn;
+                }
+                byte[] connected = new byte[record.readInt()];
+                record.readFully(connected);
+                byte[] spent = readSpentOutputs(record);
+
+                Sha256Hash txHash = tx.getHash();
+                for (int bit = 0; bit < POOL_BITS.length; bit++) {
+                    if ((poolBits & (1 << bit)) != 0) {
+                        wallet.transactions.put(txHash, tx, POOL_BITS[bit]);
+                    }
+                }
+                transactions.add(tx);
+                connectedInputs.add(connected);
+                spentOutputs.add(spent);
+            }
+
+            // Connect the inputs once every transaction is loaded, which marks the outputs they spend as spent.
+            Map<Sha256Hash, Transaction> all = wallet.transactions.view(TransactionTable.mask(Pool.ALL));
+            for (int i = 0; i < transactions.size(); i++) {
+                Transaction tx = transactions.get(i);
+                byte[] connected = connectedInputs.get(i);
+                List<TransactionInput> inputs = tx.getInputs();
+                for (int j = 0; j < inputs.size() && j < connected.length; j++) {
+                    if (connected[j] == 0) {
+                        continue;
+                    }
+                    TransactionInput.ConnectionResult result = inputs.get(j).connect(all, false);
+                    if (result != TransactionInput.ConnectionResult.SUCCESS) {
+                        log.warn("Could not reconnect input {} of tx {}: {}",
+                                new Object[] { j, tx.getHashAsString(), result });
+                    }
+                }
+            }
+            for (int i = 0; i < transactions.size(); i++) {
+                restoreSpentOutputs(transactions.get(i), spentOutputs.get(i));
+            }
+
+            wallet.rebuildDerivedState();
+            return wallet;
+        } catch (ProtocolException e) {
+            throw new IOException("Could not parse binary wallet", e);
+        }
+    }
+
+    /**
+     * Returns true if the stream starts with the binary wallet magic. The stream must support mark and is reset to
+     * where it was.
+     */
+    static boolean isBinaryWallet(InputStream stream) throws IOException {
+        stream.mark(4);
+        try {
+            DataInputStream in = new DataInputStream(stream);
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            // too short to be either format
+            return false;
+        } finally {
+            stream.reset();
+        }
+    }
+
+    /**
+     * Rewrites a legacy Java serialized wallet file in the binary format. The legacy file is kept alongside with
+     * {@link #LEGACY_BACKUP_SUFFIX} added to its name. The new file is written in full before anything is renamed.
+     *
+     * @return true if the file was migrated, false if it was already in the binary format.
+     */
+    public static boolean migrateLegacyWallet(File walletFile) throws IOException {
+        Wallet wallet;
+        InputStream stream = new BufferedInputStream(new FileInputStream(walletFile), BUFFER_SIZE);
+        try {
+            if (isBinaryWallet(stream)) {
+                return false;
+            }
+            wallet = (Wallet) new ObjectInputStream(stream).readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Could not read legacy wallet " + walletFile, e);
+        } finally {
+            stream.close();
+        }
+
+        File temporaryFile = new File(walletFile.getAbsolutePath() + TEMPORARY_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temporaryFile);
+        try {
+            write(wallet, out);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        File backupFile = new File(walletFile.getAbsolutePath() + LEGACY_BACKUP_SUFFIX);
+        if (backupFile.exists() && !backupFile.delete()) {
+            throw new IOException("Could not replace old legacy wallet backup " + backupFile);
+        }
+        if (!walletFile.renameTo(backupFile)) {
+            throw new IOException("Could not rename legacy wallet " + walletFile + " to " + backupFile);
+        }
+        if (!temporaryFile.renameTo(walletFile)) {
+            throw new IOException("Could not rename migrated wallet " + temporaryFile + " to " + walletFile);
+        }
+        log.info("Migrated legacy wallet {}, the original is kept as {}", walletFile, backupFile);
+        return true;
+    }
+
+    private static NetworkParameters findNetworkParameters(byte[] genesisHash) throws IOException {
+        NetworkParameters[] candidates = { NetworkParameters.prodNet(), NetworkParameters.testNet(),
+                NetworkParameters.unitTests() };
+        for (NetworkParameters params : candidates) {
+            if (Arrays.equals(params.genesisBlock.getHash().getBytes(), genesisHash)) {
+                return params;
+            }
+        }
+        throw new IOException("Binary wallet is for an unknown network");
+    }
+
+    static int toPoolBits(int poolMask) {
+        int bits = 0;
+        for (int bit = 0; bit < POOL_BITS.length; bit++) {
+            if ((poolMask & TransactionTable.mask(POOL_BITS[bit])) != 0) {
+                bits |= 1 << bit;
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Returns a flag per output of the transaction, set if the output is spent.
+     */
+    static byte[] captureSpentOutputs(Transaction tx) {
+        List<TransactionOutput> outputs = tx.getOutputs();
+        byte[] spent = new byte[outputs.size()];
+        for (int i = 0; i < spent.length; i++) {
+            spent[i] = (byte) (outputs.get(i).isAvailableForSpending() ? 0 : 1);
+        }
+        return spent;
+    }
+
+    /**
+     * Reads the spent flags at the end of a transaction record.
+     */
+    static byte[] readSpentOutputs(DataInputStream record) throws IOException {
+        byte[] spent = new byte[record.readInt()];
+        record.readFully(spent);
+        return spent;
+    }
+
+    /**
+     * Brings the spent state of the outputs of a transaction whose inputs have been connected into line with the
+     * given flags. Outputs spent by a connected input are already marked, this marks those spent by nothing, and
+     * makes spendable again an output the flags say is not spent that is not spent by any input.
+     */
+    static void restoreSpentOutputs(Transaction tx, byte[] spentOutputs) {
+        List<TransactionOutput> outputs = tx.getOutputs();
+        for (int i = 0; i < outputs.size() && i < spentOutputs.length; i++) {
+            TransactionOutput output = outputs.get(i);
+            if (spentOutputs[i] != 0 && output.isAvailableForSpending()) {
+                output.markAsSpent(null);
+            } else if (spentOutputs[i] == 0 && !output.isAvailableForSpending() && output.getSpentBy() == null) {
+                output.markAsUnspent();
+            }
+        }
+    }
+
+    static void writeBlockReference(DataOutputStream out, BlockReference block) throws IOException {
+        out.write(block.getHash().getBytes());
+        out.writeInt(block.getHeight());
+        out.writeLong(block.getTimeSeconds());
+    }
+
+    static BlockReference readBlockReference(DataInputStream in) throws IOException {
+        byte[] hash = new byte[BLOCK_HASH_LENGTH];
+        in.readFully(hash);
+        int height = in.readInt();
+        return new BlockReference(new Sha256Hash(hash), height, in.readLong());
+    }
+
+    static void writeRecord(DataOutputStream out, ByteArrayOutputStream recordBytes) throws IOException {
+        out.writeInt(recordBytes.size());
+        recordBytes.writeTo(out);
+        recordBytes.reset();
+    }
+
+    static DataInputStream readRecord(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Corrupt binary wallet, record length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Corrupt binary wallet, byte array length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,591 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.multibit.IsMultiBitClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Wallet.Pool;
+
+/**
+ * A WalletJournal records the changes made to a wallet since it was last written in full, so that saving after a
+ * send, a new address or a new block appends a few small records to a file next to the wallet rather than rewriting
+ * the whole wallet file. Loading reads the wallet file and replays the journal over it. Once the journal has grown
+ * past a threshold it is compacted: the whole wallet is written to the wallet file and the journal is emptied.<p>
+ *
+ * The wallet tells the journal which transactions changed while it holds its lock, and {@link #commit()} writes the
+ * current state of each of them, together with any new keys, as one entry that is synced to disk before it returns.
+ * An entry that was only partly written when the program stopped is discarded when the journal is next opened.<p>
+ *
+ * The layout, with all numbers big endian:
+ * <pre>
+ *   int magic "MBWJ", int version
+ *   entry: int length, int CRC32 of the records, records
+ *   record: byte type, int length and that many bytes
+ *     KEY: the key in ASN.1
+ *     TRANSACTION: byte pools, long update time or -1, transaction, int number of appearances, then the 32 byte
+ *         hash, int height and long time of each block, int number of inputs, byte connected flag per input,
+ *         int number of outputs, byte spent flag per output
+ *     REMOVED: transaction hash
+ *     CLEAR: nothing, every transaction is removed
+ * </pre>
+ * Byte arrays, block references, pool bits and spent flags are written as in {@link WalletFormat}. A transaction
+ * record holds the whole state of the transaction, so replaying records whose changes are already in the wallet
+ * file leaves it as it is.
+ */
+public final class WalletJournal implements IsMultiBitClass {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    // "MBWJ"
+    public static final int MAGIC = 0x4d42574a;
+    public static final int VERSION = 1;
+
+    /**
+     * The journal is not compacted until it is at least this many bytes long.
+     */
+    public static final long MINIMUM_COMPACTION_SIZE = 256 * 1024;
+
+    /**
+     * Beyond the minimum, the journal is compacted once it is this percentage of the size of the wallet file.
+     */
+    public static final int COMPACTION_PERCENTAGE = 50;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int ENTRY_HEADER_SIZE = 8;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte KEY = 1;
+    private static final byte TRANSACTION = 2;
+    private static final byte REMOVED = 3;
+    private static final byte CLEAR = 4;
+
+    private final Wallet wallet;
+    private final File walletFile;
+    private final File journalFile;
+
+    // Guards the files. It is taken before the wallet lock, never while holding it.
+    private final Object fileLock = new Object();
+    private FileOutputStream journalStream;
+    private long journalLength;
+
+    // The changes not yet written to the journal. Guarded by the wallet lock.
+    private final LinkedHashSet<Sha256Hash> changedTransactions = new LinkedHashSet<Sha256Hash>();
+    private boolean allTransactionsChanged;
+    private int numberOfJournaledKeys;
+
+    private WalletJournal(Wallet wallet, File walletFile, File journalFile) {
+        this.wallet = wallet;
+        this.walletFile = walletFile;
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Replays the journal, if there is one, over a wallet just loaded from the wallet file, then records the
+     * wallet's changes in it from now on.
+     */
+    public static WalletJournal open(Wallet wallet, File walletFile, File journalFile) throws IOException {
+        WalletJournal journal = new WalletJournal(wallet, walletFile, journalFile);
+        synchronized (journal.fileLock) {
+            synchronized (wallet) {
+                journal.replay();
+                journal.numberOfJournaledKeys = wallet.keychain.size();
+                wallet.setJournal(journal);
+            }
+        }
+        return journal;
+    }
+
+    /**
+     * Writes the wallet in full to the wallet file and starts an empty journal for it, replacing any journal that is
+     * already there. Use this for a wallet that has not been saved with a journal before.
+     */
+    public static WalletJournal create(Wallet wallet, File walletFile, File journalFile) throws IOException {
+        WalletJournal journal = new WalletJournal(wallet, walletFile, journalFile);
+        synchronized (journal.fileLock) {
+            journal.resetJournal();
+            synchronized (wallet) {
+                journal.numberOfJournaledKeys = wallet.keychain.size();
+                wallet.setJournal(journal);
+            }
+            journal.compact();
+        }
+        return journal;
+    }
+
+    public File getJournalFile() {
+        return journalFile;
+    }
+
+    /**
+     * Returns the length of the journal file in bytes.
+     */
+    public long getLength() {
+        synchronized (fileLock) {
+            return journalLength;
+        }
+    }
+
+    /**
+     * Notes that the transaction with the given hash was changed, added or removed. Called by the wallet with its
+     * lock held.
+     */
+    void transactionChanged(Sha256Hash txHash) {
+        if (!allTransactionsChanged) {
+            changedTransactions.add(txHash);
+        }
+    }
+
+    /**
+     * Notes that the transactions were changed wholesale, for example by clearing the wallet, so the next commit
+     * writes all of them. Called by the wallet with its lock held.
+     */
+    void allTransactionsChanged() {
+        allTransactionsChanged = true;
+        changedTransactions.clear();
+    }
+
+    /**
+     * Writes the changes made to the wallet since the last commit to the journal and syncs it to disk. The wallet
+     * lock is held while the changes are encoded, not while they are written.
+     */
+    public void commit() throws IOException {
+        synchronized (fileLock) {
+            byte[] entry;
+            synchronized (wallet) {
+                entry = takeChanges();
+            }
+            if (entry != null) {
+                append(entry);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the journal has grown enough, against the size of the wallet file, to be worth compacting.
+     */
+    public boolean isCompactionDue() {
+        synchronized (fileLock) {
+            return journalLength >= MINIMUM_COMPACTION_SIZE
+                    && journalLength * 100 >= walletFile.length() * COMPACTION_PERCENTAGE;
+        }
+    }
+
+    /**
+     * Writes the whole wallet to the wallet file and empties the journal. The wallet lock is only held while the
+     * state of the wallet is captured, not while it is encoded and written. Commits wait until the compaction has
+     * finished. See {@link WalletFormat#recoverInterruptedSave(File)} for what happens if the program stops part
+     * way through.
+     */
+    public void compact() throws IOException {
+        synchronized (fileLock) {
+            long start = System.nanoTime();
+            byte[] entry;
+            WalletFormat.Snapshot walletSnapshot;
+            synchronized (wallet) {
+                // Journal the outstanding changes first so the journal ends in the state being written to the wallet
+                // file. Should the program stop before the journal is emptied, replaying it over the new wallet file
+                // then changes nothing.
+                entry = takeChanges();
+                walletSnapshot = WalletFormat.capture(wallet);
+            }
+            long captured = System.nanoTime();
+            if (entry != null) {
+                append(entry);
+            }
+            WalletFormat.writeToFile(walletSnapshot, walletFile);
+            resetJournal();
+            long written = System.nanoTime();
+            log.info("Compacted wallet {}, snapshot took {} ms, write took {} ms",
+                    new Object[] { walletFile, (captured - start) / 1000000, (written - captured) / 1000000 });
+        }
+    }
+
+    /**
+     * Closes the journal file and stops recording the wallet's changes. Changes not yet committed are not written.
+     */
+    public void close() throws IOException {
+        synchronized (fileLock) {
+            synchronized (wallet) {
+                if (wallet.getJournal() == this) {
+                    wallet.setJournal(null);
+                }
+            }
+            if (journalStream != null) {
+                journalStream.close();
+                journalStream = null;
+            }
+        }
+    }
+
+    /**
+     * Encodes the changes not yet journaled as an entry and forgets them. Called with the wallet lock held.
+     *
+     * @return the entry or null if nothing has changed.
+     */
+    private byte[] takeChanges() throws IOException {
+        ByteArrayOutputStream recordsBytes = new ByteArrayOutputStream();
+        DataOutputStream records = new DataOutputStream(recordsBytes);
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(recordBytes);
+
+        List<ECKey> keychain = wallet.keychain;
+        for (int i = numberOfJournaledKeys; i < keychain.size(); i++) {
+            WalletFormat.writeBytes(record, keychain.get(i).toASN1());
+            writeRecord(records, KEY, recordBytes);
+        }
+
+        TransactionTable transactions = wallet.transactions;
+        if (allTransactionsChanged) {
+            writeRecord(records, CLEAR, recordBytes);
+            for (Map.Entry<Sha256Hash, Transaction> entry : transactions.view(TransactionTable.mask(Pool.ALL))
+                    .entrySet()) {
+                writeTransaction(record, entry.getValue(), transactions.pools(entry.getKey()));
+                writeRecord(records, TRANSACTION, recordBytes);
+            }
+        } else {
+            for (Sha256Hash txHash : changedTransactions) {
+                Transaction tx = transactions.get(txHash, TransactionTable.mask(Pool.ALL));
+                if (tx == null) {
+                    WalletFormat.writeBytes(record, txHash.getBytes());
+                    writeRecord(records, REMOVED, recordBytes);
+                } else {
+                    writeTransaction(record, tx, transactions.pools(txHash));
+                    writeRecord(records, TRANSACTION, recordBytes);
+                }
+            }
+        }
+
+        numberOfJournaledKeys = keychain.size();
+        changedTransactions.clear();
+        allTransactionsChanged = false;
+
+        if (recordsBytes.size() == 0) {
+            return null;
+        }
+        byte[] payload = recordsBytes.toByteArray();
+        CRC32 checksum = new CRC32();
+        checksum.update(payload);
+        ByteArrayOutputStream entryBytes = new ByteArrayOutputStream(ENTRY_HEADER_SIZE + payload.length);
+        DataOutputStream entry = new DataOutputStream(entryBytes);
+        entry.writeInt(payload.length);
+        entry.writeInt((int) checksum.getValue());
+        entry.write(payload);
+        return entryBytes.toByteArray();
+    }
+
+    private static void writeTransaction(DataOutputStream record, Transaction tx, int pools) throws IOException {
+        record.writeByte(WalletFormat.toPoolBits(pools));
+        record.writeLong(tx.getUpdatedAt() == null ? -1 : tx.getUpdatedAt().getTime());
+        WalletFormat.writeBytes(record, tx.bitcoinSerialize());
+        Set<BlockReference> appearsIn = tx.getAppearsIn();
+        if (appearsIn == null) {
+            record.writeInt(0);
+        } else {
+            record.writeInt(appearsIn.size());
+            for (BlockReference block : appearsIn) {
+                WalletFormat.writeBlockReference(record, block);
+            }
+        }
+        List<TransactionInput> inputs = tx.getInputs();
+        record.writeInt(inputs.size());
+        for (TransactionInput input : inputs) {
+            record.writeByte(input.getOutpoint().fromTx != null ? 1 : 0);
+        }
+        byte[] spentOutputs = WalletFormat.captureSpentOutputs(tx);
+        record.writeInt(spentOutputs.length);
+        record.write(spentOutputs);
+    }
+
+    private static void writeRecord(DataOutputStream records, byte type, ByteArrayOutputStream recordBytes)
+            throws IOException {
+        records.writeByte(type);
+        WalletFormat.writeRecord(records, recordBytes);
+    }
+
+    /**
+     * Appends an entry and syncs it. If the write fails the journal is cut back to where it was and the next commit
+     * writes every transaction and key, as the changes in the entry have already been forgotten.
+     */
+    private void append(byte[] entry) throws IOException {
+        try {
+            journalStream.write(entry);
+            journalStream.getFD().sync();
+            journalLength += entry.length;
+        } catch (IOException e) {
+            synchronized (wallet) {
+                allTransactionsChanged();
+                numberOfJournaledKeys = 0;
+            }
+            try {
+                journalStream.getChannel().truncate(journalLength);
+            } catch (IOException truncateException) {
+                log.error("Could not cut back journal " + journalFile, truncateException);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Replaces the journal file with one holding just the header.
+     */
+    private void resetJournal() throws IOException {
+        if (journalStream != null) {
+            journalStream.close();
+        }
+        journalStream = new FileOutputStream(journalFile);
+        DataOutputStream out = new DataOutputStream(journalStream);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.flush();
+        journalStream.getFD().sync();
+        journalLength = HEADER_SIZE;
+    }
+
+    /**
+     * Applies the complete entries in the journal to the wallet and opens the journal for appending after the last
+     * of them. Called with both locks held.
+     */
+    private void replay() throws IOException {
+        long fileLength = journalFile.length();
+        if (fileLength < HEADER_SIZE) {
+            // Not there, or emptied by a compaction that did not finish writing the header.
+            resetJournal();
+            return;
+        }
+
+        long validLength = HEADER_SIZE;
+        int numberOfEntries = 0;
+        Map<Sha256Hash, byte[]> connectedInputs = new LinkedHashMap<Sha256Hash, byte[]>();
+        Map<Sha256Hash, byte[]> spentOutputs = new HashMap<Sha256Hash, byte[]>();
+        Map<BlockReference, BlockReference> blocks = new HashMap<BlockReference, BlockReference>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile), BUFFER_SIZE));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(journalFile + " is not a wallet journal");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Wallet journal " + journalFile + " has unknown version " + version);
+            }
+            while (validLength < fileLength) {
+                byte[] payload = readEntry(in, fileLength - validLength);
+                if (payload == null) {
+                    log.warn("Discarding {} bytes left at the end of {} by an incomplete write",
+                            fileLength - validLength, journalFile);
+                    break;
+                }
+                applyEntry(payload, connectedInputs, spentOutputs, blocks);
+                validLength += ENTRY_HEADER_SIZE + payload.length;
+                numberOfEntries++;
+            }
+        } catch (ProtocolException e) {
+            throw new IOException("Could not parse wallet journal " + journalFile, e);
+        } finally {
+            in.close();
+        }
+
+        if (numberOfEntries > 0) {
+            reconnectInputs(connectedInputs, spentOutputs);
+            wallet.rebuildDerivedState();
+            log.info("Replayed {} journal entries for wallet {}", numberOfEntries, walletFile);
+        }
+
+        if (validLength < fileLength) {
+            RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+            try {
+                file.setLength(validLength);
+                file.getFD().sync();
+            } finally {
+                file.close();
+            }
+        }
+        journalStream = new FileOutputStream(journalFile, true);
+        journalLength = validLength;
+    }
+
+    /**
+     * Reads the records of the next entry, or returns null if the entry is incomplete or does not match its
+     * checksum.
+     */
+    private static byte[] readEntry(DataInputStream in, long remaining) throws IOException {
+        if (remaining < ENTRY_HEADER_SIZE) {
+            return null;
+        }
+        int length = in.readInt();
+        int expectedChecksum = in.readInt();
+        if (length < 0 || length > remaining - ENTRY_HEADER_SIZE) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        CRC32 checksum = new CRC32();
+        checksum.update(payload);
+        return (int) checksum.getValue() == expectedChecksum ? payload : null;
+    }
+
+    private void applyEntry(byte[] payload, Map<Sha256Hash, byte[]> connectedInputs,
+            Map<Sha256Hash, byte[]> spentOutputs, Map<BlockReference, BlockReference> blocks) throws IOException,
+            ProtocolException {
+        NetworkParameters params = wallet.getNetworkParameters();
+        TransactionTable transactions = wallet.transactions;
+        int all = TransactionTable.mask(Pool.ALL);
+        DataInputStream records = new DataInputStream(new ByteArrayInputStream(payload));
+        while (records.available() > 0) {
+            byte type = records.readByte();
+            DataInputStream record = WalletFormat.readRecord(records);
+            switch (type) {
+            case KEY:
+                ECKey key = ECKey.fromASN1(WalletFormat.readBytes(record));
+                if (wallet.findKeyFromPubKey(key.getPubKey()) == null) {
+                    wallet.addKey(key);
+                }
+                break;
+
+            case TRANSACTION:
+                int poolBits = record.readUnsignedByte();
+                long updatedAt = record.readLong();
+                Transaction parsed = new Transaction(params, WalletFormat.readBytes(record));
+                Sha256Hash txHash = parsed.getHash();
+                // Keep the object already in the wallet as other transactions may be connected to it.
+                Transaction tx = transactions.get(txHash, all);
+                if (tx == null) {
+                    tx = parsed;
+                }
+                tx.setUpdatedAt(updatedAt < 0 ? null : new Date(updatedAt));
+                int numberOfAppearances = record.readInt();
+                Set<BlockReference> appearsIn = null;
+                if (numberOfAppearances > 0) {
+                    appearsIn = new HashSet<BlockReference>();
+                    for (int i = 0; i < numberOfAppearances; i++) {
+                        BlockReference block = WalletFormat.readBlockReference(record);
+                        // Share one reference between the transactions in the same block.
+                        BlockReference known = blocks.get(block);
+                        if (known == null) {
+                            blocks.put(block, block);
+                        } else {
+                            block = known;
+                        }
+                        appearsIn.add(block);
+                    }
+                }
+                tx.appearsIn = appearsIn;
+                byte[] connected = new byte[record.readInt()];
+                record.readFully(connected);
+                byte[] spent = WalletFormat.readSpentOutputs(record);
+
+                for (int bit = 0; bit < WalletFormat.POOL_BITS.length; bit++) {
+                    if ((poolBits & (1 << bit)) != 0) {
+                        transactions.put(txHash, tx, WalletFormat.POOL_BITS[bit]);
+                    } else {
+                        transactions.remove(txHash, WalletFormat.POOL_BITS[bit]);
+                    }
+                }
+                connectedInputs.put(txHash, connected);
+                spentOutputs.put(txHash, spent);
+                break;
+
+            case REMOVED:
+                Sha256Hash removedHash = new Sha256Hash(WalletFormat.readBytes(record));
+                Transaction removed = transactions.get(removedHash, all);
+                if (removed != null) {
+                    // As when it was archived, the inputs spending it forget it without making the outputs
+                    // spendable.
+                    for (TransactionOutput output : removed.getOutputs()) {
+                        TransactionInput spentBy = output.getSpentBy();
+                        if (spentBy != null) {
+                            spentBy.releaseConnectedTransaction();
+                        }
+                    }
+                    for (Pool pool : WalletFormat.POOL_BITS) {
+                        transactions.remove(removedHash, pool);
+                    }
+                }
+                connectedInputs.remove(removedHash);
+                spentOutputs.remove(removedHash);
+                break;
+
+            case CLEAR:
+                transactions.clear(all);
+                connectedInputs.clear();
+                spentOutputs.clear();
+                break;
+
+            default:
+                // A record type from a later version, skip it.
+                break;
+            }
+        }
+    }
+
+    /**
+     * Brings the connections of the inputs of the replayed transactions into line with the journal, disconnecting
+     * first so an output can pass from one spend to another, then marks the outputs spent by nothing as the journal
+     * recorded them.
+     */
+    private void reconnectInputs(Map<Sha256Hash, byte[]> connectedInputs, Map<Sha256Hash, byte[]> spentOutputs) {
+        Map<Sha256Hash, Transaction> all = wallet.transactions.view(TransactionTable.mask(Pool.ALL));
+        for (Map.Entry<Sha256Hash, byte[]> entry : connectedInputs.entrySet()) {
+            Transaction tx = all.get(entry.getKey());
+            byte[] connected = entry.getValue();
+            List<TransactionInput> inputs = tx.getInputs();
+            for (int i = 0; i < inputs.size() && i < connected.length; i++) {
+                if (connected[i] == 0) {
+                    inputs.get(i).disconnect();
+                }
+            }
+        }
+        for (Map.Entry<Sha256Hash, byte[]> entry : connectedInputs.entrySet()) {
+            Transaction tx = all.get(entry.getKey());
+            byte[] connected = entry.getValue();
+            List<TransactionInput> inputs = tx.getInputs();
+            for (int i = 0; i < inputs.size() && i < connected.length; i++) {
+                TransactionInput input = inputs.get(i);
+                if (connected[i] == 0 || input.getOutpoint().fromTx != null) {
+                    continue;
+                }
+                TransactionInput.ConnectionResult result = input.connect(all, false);
+                if (result != TransactionInput.ConnectionResult.SUCCESS) {
+                    log.warn("Could not reconnect input {} of tx {}: {}", new Object[] { i, tx.getHashAsString(), result });
+                }
+            }
+        }
+        for (Map.Entry<Sha256Hash, byte[]> entry : spentOutputs.entrySet()) {
+            WalletFormat.restoreSpentOutputs(all.get(entry.getKey()), entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.multibit.IsMultiBitClass;
+
+/**
+ * Files the wallets of a block chain under the public key hashes and public keys of their keys, so that scanning a
+ * block finds the wallets interested in each output or input with one lookup rather than asking every wallet in
+ * turn.<p>
+ *
+ * Keys are never removed from a wallet, so the index remembers how many keys of each wallet it has filed and
+ * {@link #update()} files any keys added since. This picks up keys added through {@link Wallet#addKey(ECKey)} and
+ * keys added straight to the keychain list alike.
+ */
+final class WalletRoutingIndex implements IsMultiBitClass {
+
+    private final HashMap<ByteArrayKey, Set<Wallet>> walletsByPubKeyHash = new HashMap<ByteArrayKey, Set<Wallet>>();
+    private final HashMap<ByteArrayKey, Set<Wallet>> walletsByPubKey = new HashMap<ByteArrayKey, Set<Wallet>>();
+
+    // The number of keys of each wallet filed so far, in the order the wallets were added.
+    private final LinkedHashMap<Wallet, Integer> numberOfIndexedKeys = new LinkedHashMap<Wallet, Integer>();
+
+    void addWallet(Wallet wallet) {
+        if (!numberOfIndexedKeys.containsKey(wallet)) {
+            numberOfIndexedKeys.put(wallet, 0);
+            update(wallet);
+        }
+    }
+
+    /**
+     * Files the keys added to the wallets since they were last filed.
+     */
+    void update() {
+        for (Wallet wallet : numberOfIndexedKeys.keySet()) {
+            update(wallet);
+        }
+    }
+
+    private void update(Wallet wallet) {
+        synchronized (wallet) {
+            List<ECKey> keychain = wallet.keychain;
+            int indexed = numberOfIndexedKeys.get(wallet);
+            if (indexed == keychain.size()) {
+                return;
+            }
+            if (indexed > keychain.size()) {
+                // The keychain has been replaced. File the wallet again from scratch.
+                removeWallet(wallet);
+                indexed = 0;
+            }
+            for (int i = indexed; i < keychain.size(); i++) {
+                ECKey key = keychain.get(i);
+                file(walletsByPubKeyHash, new ByteArrayKey(key.getPubKeyHash()), wallet);
+                file(walletsByPubKey, new ByteArrayKey(key.getPubKey()), wallet);
+            }
+            numberOfIndexedKeys.put(wallet, keychain.size());
+        }
+    }
+
+    private void removeWallet(Wallet wallet) {
+        removeFrom(walletsByPubKeyHash, wallet);
+        removeFrom(walletsByPubKey, wallet);
+    }
+
+    /**
+     * Returns the wallets with a key that hashes to the given hash. The set is empty if there are none.
+     */
+    Set<Wallet> getWalletsForPubKeyHash(byte[] pubKeyHash) {
+        return lookup(walletsByPubKeyHash, pubKeyHash);
+    }
+
+    /**
+     * Returns the wallets with the given public key. The set is empty if there are none.
+     */
+    Set<Wallet> getWalletsForPubKey(byte[] pubKey) {
+        return lookup(walletsByPubKey, pubKey);
+    }
+
+    int numberOfPubKeyHashes() {
+        return walletsByPubKeyHash.size();
+    }
+
+    private static Set<Wallet> lookup(HashMap<ByteArrayKey, Set<Wallet>> index, byte[] bytes) {
+        if (bytes == null) {
+            return Collections.emptySet();
+        }
+        Set<Wallet> wallets = index.get(new ByteArrayKey(bytes));
+        if (wallets == null) {
+            return Collections.emptySet();
+        }
+        return wallets;
+    }
+
+    private static void file(HashMap<ByteArrayKey, Set<Wallet>> index, ByteArrayKey key, Wallet wallet) {
+        Set<Wallet> wallets = index.get(key);
+        if (wallets == null) {
+            // Almost every key belongs to one wallet.
+            index.put(key, Collections.singleton(wallet));
+        } else if (!wallets.contains(wallet)) {
+            Set<Wallet> moreWallets = new LinkedHashSet<Wallet>(wallets);
+            moreWallets.add(wallet);
+            index.put(key, moreWallets);
+        }
+    }
+
+    private static void removeFrom(HashMap<ByteArrayKey, Set<Wallet>> index, Wallet wallet) {
+        Iterator<Map.Entry<ByteArrayKey, Set<Wallet>>> iterator = index.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<ByteArrayKey, Set<Wallet>> entry = iterator.next();
+            if (entry.getValue().contains(wallet)) {
+                Set<Wallet> wallets = new LinkedHashSet<Wallet>(entry.getValue());
+                wallets.remove(wallet);
+                if (wallets.isEmpty()) {
+                    iterator.remove();
+                } else {
+                    entry.setValue(wallets);
+                }
+            }
+        }
+    }
+}
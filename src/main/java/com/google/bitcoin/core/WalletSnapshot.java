@@ -0,0 +1,206 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.multibit.IsMultiBitClass;
+
+import com.google.bitcoin.core.Wallet.BalanceType;
+
+/**
+ * A WalletSnapshot is an immutable copy of what the user interface shows of a wallet: its balances, the contents of
+ * its pools, its transactions in time order and, for each of those, what it means to the wallet. The wallet
+ * publishes a new snapshot after each change, with the wallet lock held, so it can be read from any thread without
+ * taking the lock and everything in it is of the same moment.<p>
+ *
+ * Working out the credit, debit and addresses of a transaction means looking at the wallet's keys and the outputs its
+ * inputs spend, so the wallet keeps the {@link TransactionSummary} of each transaction from one snapshot to the next
+ * and only works it out again for the transactions that have changed. Publishing a snapshot then costs copying the
+ * lists rather than describing the whole wallet again.<p>
+ *
+ * The lists are copies but the transactions in them are the wallet's own objects, which carry on changing (for
+ * instance the spent state of their outputs) after the snapshot is taken. Read what they meant to the wallet from
+ * their summaries rather than from the transactions.
+ */
+public final class WalletSnapshot implements IsMultiBitClass {
+    private final long availableBalance;
+    private final long estimatedBalance;
+    private final List<Transaction> unspent;
+    private final List<Transaction> spent;
+    private final List<Transaction> pending;
+    private final List<Transaction> inactive;
+    private final List<Transaction> dead;
+    private final List<Transaction> transactionsByTime;
+    private final List<TransactionSummary> summariesByTime;
+
+    /**
+     * What a transaction meant to the wallet when the snapshot was published.
+     */
+    public static final class TransactionSummary {
+        private final Transaction transaction;
+        private final BigInteger credit;
+        private final BigInteger debit;
+        private final boolean mine;
+        private final String receivingAddress;
+        private final String sendingAddress;
+
+        TransactionSummary(Transaction transaction, BigInteger credit, BigInteger debit, boolean mine,
+                String receivingAddress, String sendingAddress) {
+            this.transaction = transaction;
+            this.credit = credit;
+            this.debit = debit;
+            this.mine = mine;
+            this.receivingAddress = receivingAddress;
+            this.sendingAddress = sendingAddress;
+        }
+
+        public Transaction getTransaction() {
+            return transaction;
+        }
+
+        /**
+         * Returns the value of the outputs that pay the wallet, as {@link Transaction#getValueSentToMe(Wallet)}.
+         */
+        public BigInteger getCredit() {
+            return credit;
+        }
+
+        /**
+         * Returns the value of the wallet's outputs the inputs spend, as
+         * {@link Transaction#getValueSentFromMe(Wallet)}, or null if an input script could not be read.
+         */
+        public BigInteger getDebit() {
+            return debit;
+        }
+
+        /**
+         * Returns whether the transaction pays or spends the wallet, as {@link Transaction#isMine(Wallet)}.
+         */
+        public boolean isMine() {
+            return mine;
+        }
+
+        /**
+         * Returns the address of the last output that pays the wallet, or null if there is none.
+         */
+        public String getReceivingAddress() {
+            return receivingAddress;
+        }
+
+        /**
+         * Returns the address of the last output that pays someone else, or null if there is none.
+         */
+        public String getSendingAddress() {
+            return sendingAddress;
+        }
+    }
+
+    WalletSnapshot(long availableBalance, long estimatedBalance, Collection<Transaction> unspent,
+            Collection<Transaction> spent, Collection<Transaction> pending, Collection<Transaction> inactive,
+            Collection<Transaction> dead, List<TransactionSummary> summariesByTime) {
+        this.availableBalance = availableBalance;
+        this.estimatedBalance = estimatedBalance;
+        this.unspent = copyOf(unspent);
+        this.spent = copyOf(spent);
+        this.pending = copyOf(pending);
+        this.inactive = copyOf(inactive);
+        this.dead = copyOf(dead);
+        Transaction[] transactions = new Transaction[summariesByTime.size()];
+        for (int i = 0; i < transactions.length; i++) {
+            transactions[i] = summariesByTime.get(i).getTransaction();
+        }
+        this.transactionsByTime = unmodifiableList(transactions);
+        this.summariesByTime = unmodifiableList(
+                summariesByTime.toArray(new TransactionSummary[summariesByTime.size()]));
+    }
+
+    private static List<Transaction> copyOf(Collection<Transaction> transactions) {
+        return unmodifiableList(transactions.toArray(new Transaction[transactions.size()]));
+    }
+
+    private static <T> List<T> unmodifiableList(T[] elements) {
+        if (elements.length == 0) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(elements));
+    }
+
+    /**
+     * Returns the balance as calculated by the provided balanceType.
+     */
+    public BigInteger getBalance(BalanceType balanceType) {
+        return BigInteger.valueOf(getBalanceInNanocoins(balanceType));
+    }
+
+    public long getBalanceInNanocoins(BalanceType balanceType) {
+        if (balanceType == BalanceType.AVAILABLE)
+            return availableBalance;
+        assert balanceType == BalanceType.ESTIMATED;
+        return estimatedBalance;
+    }
+
+    public List<Transaction> getUnspent() {
+        return unspent;
+    }
+
+    public List<Transaction> getSpent() {
+        return spent;
+    }
+
+    public List<Transaction> getPending() {
+        return pending;
+    }
+
+    public List<Transaction> getInactive() {
+        return inactive;
+    }
+
+    public List<Transaction> getDead() {
+        return dead;
+    }
+
+    /**
+     * Returns all non-dead, active transactions ordered by recency, as {@link Wallet#getTransactionsByTime()}.
+     */
+    public List<Transaction> getTransactionsByTime() {
+        return transactionsByTime;
+    }
+
+    /**
+     * Returns the summaries of the transactions of {@link #getTransactionsByTime()}, in the same order.
+     */
+    public List<TransactionSummary> getSummariesByTime() {
+        return summariesByTime;
+    }
+
+    /**
+     * Returns up to the given number of the most recent non-dead, active transactions. Zero means all of them.
+     */
+    public List<Transaction> getRecentTransactions(int numTransactions) {
+        assert numTransactions >= 0;
+        List<Transaction> transactionsByTime = getTransactionsByTime();
+        if (numTransactions == 0 || numTransactions >= transactionsByTime.size()) {
+            return transactionsByTime;
+        }
+        return transactionsByTime.subList(0, numTransactions);
+    }
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.multibit.IsMultiBitClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+
+/**
+ * An index on disk of the median time of each block of the best chain, so the block from before a given time is
+ * found with a binary search rather than by stepping back from the chain head one header at a time.<p>
+ *
+ * The median time of a block is the median of the times of it and the ten blocks before it. Unlike the time of a
+ * block it never goes down along the chain, which is what makes the binary search possible. The file holds four
+ * bytes per block by height after a header with the hash of the highest block indexed, which is used to find the
+ * heights no longer on the best chain after a re-organize, a reset or a crash.<p>
+ *
+ * The index is kept up to date by the {@link CachingBlockStore} it is given to. The first time it is given to a store
+ * with a long chain it is built from the whole chain, once.
+ */
+public class BlockTimeIndex implements IsMultiBitClass {
+    private static final Logger log = LoggerFactory.getLogger(BlockTimeIndex.class);
+
+    /**
+     * The number of blocks the median time is taken over, as in the reference client.
+     */
+    public static final int MEDIAN_TIME_SPAN = 11;
+
+    // "MBTI"
+    private static final int MAGIC = 0x4d425449;
+    private static final int VERSION = 1;
+    private static final int HASH_LENGTH = 32;
+    private static final int FILE_HEADER_LENGTH = 8 + HASH_LENGTH;
+    private static final int RECORD_LENGTH = 4;
+
+    private final File file;
+    private final RandomAccessFile raf;
+
+    // The median time in seconds of each block by height, as unsigned ints. Guarded by this.
+    private int[] medianTimes = new int[1024];
+    private int numberOfBlocks;
+
+    // The hash of the block at height numberOfBlocks - 1, or null if there are none.
+    private Sha256Hash lastHash;
+
+    /**
+     * Opens the index in the given file, creating it if there is none. A file that is not an index is started again,
+     * as the index can always be rebuilt from the block store.
+     */
+    public BlockTimeIndex(File file) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        read();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the number of blocks indexed, the height of the highest plus one.
+     */
+    public synchronized int getNumberOfBlocks() {
+        return numberOfBlocks;
+    }
+
+    /**
+     * Returns the median time of the block of the best chain at the given height, in seconds since the epoch.
+     */
+    public synchronized long getMedianTime(int height) {
+        if (height < 0 || height >= numberOfBlocks) {
+            throw new IllegalArgumentException("No block at height " + height + " in " + file);
+        }
+        return medianTimes[height] & 0xffffffffL;
+    }
+
+    /**
+     * Returns the height of the last block of the best chain with a median time at or before the given time, in
+     * seconds since the epoch, or -1 if every block is later.
+     */
+    public synchronized int getHeightAtOrBefore(long timeSeconds) {
+        int low = 0;
+        int high = numberOfBlocks - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if ((medianTimes[middle] & 0xffffffffL) <= timeSeconds) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    public synchronized void close() throws IOException {
+        raf.close();
+    }
+
+    /**
+     * Brings the index into line with the best chain of the given store, dropping heights that are no longer on it
+     * and adding the blocks above. Called by the store with its lock held.
+     */
+    synchronized void update(CachingBlockStore blockStore) throws BlockStoreException, IOException {
+        if (numberOfBlocks > 0 && !lastHash.equals(blockStore.getBestChainHash(numberOfBlocks - 1))) {
+            // The highest block indexed has left the best chain. Keep the heights up to where its chain forks.
+            StoredBlock last = blockStore.get(lastHash);
+            StoredBlock fork = last == null ? null : blockStore.findFork(last);
+            truncate(blockStore, fork == null ? 0 : fork.getHeight() + 1);
+        }
+
+        StoredBlock chainHead = blockStore.getChainHead();
+        int firstHeight = numberOfBlocks;
+        int headHeight = chainHead.getHeight();
+        if (firstHeight > headHeight) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+
+        // The times of the blocks from MEDIAN_TIME_SPAN - 1 below the first new one, by height modulo the span.
+        long[] times = new long[MEDIAN_TIME_SPAN];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(RECORD_LENGTH * (headHeight - firstHeight + 1));
+        DataOutputStream records = new DataOutputStream(bytes);
+        for (int height = Math.max(0, firstHeight - MEDIAN_TIME_SPAN + 1); height <= headHeight; height++) {
+            StoredBlock block = blockStore.getBestChainBlock(height);
+            if (block == null) {
+                throw new BlockStoreException("The best chain has no block at height " + height);
+            }
+            times[height % MEDIAN_TIME_SPAN] = block.getHeader().getTimeSeconds();
+            if (height >= firstHeight) {
+                long medianTime = medianTime(times, height);
+                if (height > 0) {
+                    // The median time cannot go down along a valid chain. Make sure it does not here either, so the
+                    // binary search holds whatever the store has in it.
+                    medianTime = Math.max(medianTime, medianTimes[height - 1] & 0xffffffffL);
+                }
+                add((int) medianTime);
+                records.writeInt((int) medianTime);
+            }
+        }
+
+        // Write the records before the header, so a crash in between leaves a header that still names a block.
+        raf.seek(FILE_HEADER_LENGTH + (long) RECORD_LENGTH * firstHeight);
+        raf.write(bytes.toByteArray());
+        lastHash = chainHead.getHeader().getHash();
+        writeHeader();
+
+        if (headHeight - firstHeight > MEDIAN_TIME_SPAN) {
+            log.info("Indexed the times of {} blocks in {} ms", headHeight - firstHeight + 1,
+                    System.currentTimeMillis() - start);
+        }
+    }
+
+    private static long medianTime(long[] times, int height) {
+        int count = Math.min(height + 1, MEDIAN_TIME_SPAN);
+        long[] sorted = new long[count];
+        for (int i = 0; i < count; i++) {
+            sorted[i] = times[(height - i) % MEDIAN_TIME_SPAN];
+        }
+        Arrays.sort(sorted);
+        return sorted[count / 2];
+    }
+
+    private void add(int medianTime) {
+        if (numberOfBlocks == medianTimes.length) {
+            medianTimes = Arrays.copyOf(medianTimes, medianTimes.length * 2);
+        }
+        medianTimes[numberOfBlocks++] = medianTime;
+    }
+
+    private void truncate(CachingBlockStore blockStore, int newNumberOfBlocks) throws BlockStoreException,
+            IOException {
+        log.info("Dropping the times of {} blocks no longer on the best chain", numberOfBlocks - newNumberOfBlocks);
+        numberOfBlocks = newNumberOfBlocks;
+        lastHash = numberOfBlocks == 0 ? null : blockStore.getBestChainHash(numberOfBlocks - 1);
+        if (numberOfBlocks > 0 && lastHash == null) {
+            numberOfBlocks = 0;
+        }
+        // Write the header before shortening the file, for the same reason as when adding.
+        writeHeader();
+        raf.setLength(FILE_HEADER_LENGTH + (long) RECORD_LENGTH * numberOfBlocks);
+    }
+
+    private void writeHeader() throws IOException {
+        raf.seek(0);
+        raf.writeInt(MAGIC);
+        raf.writeInt(VERSION);
+        raf.write(lastHash == null ? new byte[HASH_LENGTH] : lastHash.getBytes());
+    }
+
+    private void read() throws IOException {
+        long length = raf.length();
+        if (length < FILE_HEADER_LENGTH) {
+            startAgain();
+            return;
+        }
+        raf.seek(0);
+        int magic = raf.readInt();
+        int version = raf.readInt();
+        if (magic != MAGIC || version != VERSION) {
+            log.warn("{} is not a block time index that can be read, starting it again", file);
+            startAgain();
+            return;
+        }
+        byte[] hash = new byte[HASH_LENGTH];
+        raf.readFully(hash);
+
+        // A record only partly written is dropped, the update after puts it back.
+        int numberOfRecords = (int) ((length - FILE_HEADER_LENGTH) / RECORD_LENGTH);
+        byte[] records = new byte[numberOfRecords * RECORD_LENGTH];
+        raf.readFully(records);
+        medianTimes = new int[Math.max(1024, numberOfRecords * 2)];
+        for (int i = 0; i < numberOfRecords; i++) {
+            int offset = i * RECORD_LENGTH;
+            add(((records[offset] & 0xff) << 24) | ((records[offset + 1] & 0xff) << 16)
+                    | ((records[offset + 2] & 0xff) << 8) | (records[offset + 3] & 0xff));
+        }
+        lastHash = numberOfBlocks == 0 ? null : new Sha256Hash(hash);
+    }
+
+    private void startAgain() throws IOException {
+        numberOfBlocks = 0;
+        lastHash = null;
+        writeHeader();
+        raf.setLength(FILE_HEADER_LENGTH);
+    }
+}
@@ -0,0 +1,324 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.multibit.IsMultiBitClass;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+
+/**
+ * A {@link BlockStore} that sits in front of another store and keeps the most recently used blocks in memory, along
+ * with the hash of every block of the best chain by height.<p>
+ *
+ * Walking the chain one block at a time, as the difficulty check, re-organizes and resets do, reads the underlying
+ * store once for each block. With this store in front the recently used blocks are read from memory, and a block of
+ * the best chain at a given height is found with one array access and at most one read rather than a walk.<p>
+ *
+ * The height index starts with the chain head and is filled in downwards as blocks further back are asked for, so
+ * opening the store does not walk the chain. It follows the chain head as it is set, dropping the blocks of the old
+ * best chain on a re-organize.<p>
+ *
+ * The numbers of lookups answered from memory and from the underlying store are counted, see {@link #getHits()} and
+ * {@link #getMisses()}.<p>
+ *
+ * A {@link BlockTimeIndex} given to the store is kept up to date with the best chain as the chain head is set.
+ */
+public class CachingBlockStore implements BlockStore, IsMultiBitClass {
+
+    /**
+     * The number of blocks kept by default, more than a difficulty interval so a retarget check reads from memory
+     * after the first.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final int HASH_LENGTH = 32;
+
+    private final BlockStore blockStore;
+
+    private final LinkedHashMap<Sha256Hash, StoredBlock> cache;
+
+    private StoredBlock chainHead;
+
+    // The hashes of the best chain from lowestIndexedHeight to highestIndexedHeight, HASH_LENGTH bytes per block at
+    // the offset of its height.
+    private byte[] bestChainHashes;
+    private int lowestIndexedHeight;
+    private int highestIndexedHeight;
+
+    private long hits;
+    private long misses;
+
+    private BlockTimeIndex blockTimeIndex;
+
+    public CachingBlockStore(BlockStore blockStore) throws BlockStoreException {
+        this(blockStore, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param blockStore The store to read and write through to.
+     * @param capacity The most blocks to keep in memory.
+     */
+    public CachingBlockStore(BlockStore blockStore, final int capacity) throws BlockStoreException {
+        this.blockStore = blockStore;
+        this.cache = new LinkedHashMap<Sha256Hash, StoredBlock>(capacity * 4 / 3 + 1, 0.75f, true) {
+            private static final long serialVersionUID = 3829467720463118591L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> eldest) {
+                return size() > capacity;
+            }
+        };
+        chainHead = blockStore.getChainHead();
+        cache.put(chainHead.getHeader().getHash(), chainHead);
+        bestChainHashes = new byte[HASH_LENGTH * Math.max(1024, chainHead.getHeight() * 2)];
+        lowestIndexedHeight = chainHead.getHeight();
+        highestIndexedHeight = chainHead.getHeight();
+        index(chainHead);
+    }
+
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        blockStore.put(block);
+        cache.put(block.getHeader().getHash(), block);
+    }
+
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        StoredBlock block = cache.get(hash);
+        if (block != null) {
+            hits++;
+            return block;
+        }
+        misses++;
+        block = blockStore.get(hash);
+        if (block != null) {
+            cache.put(hash, block);
+        }
+        return block;
+    }
+
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        return chainHead;
+    }
+
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        blockStore.setChainHead(chainHead);
+        cache.put(chainHead.getHeader().getHash(), chainHead);
+        this.chainHead = chainHead;
+
+        // Walk back from the new head until the walk meets the old best chain. Normally this is one step.
+        List<StoredBlock> newBlocks = new ArrayList<StoredBlock>();
+        StoredBlock cursor = chainHead;
+        while (cursor != null && cursor.getHeight() >= lowestIndexedHeight && !isIndexed(cursor)) {
+            newBlocks.add(cursor);
+            cursor = getPrev(cursor);
+        }
+        if (cursor != null && isIndexed(cursor)) {
+            // Drop the old best chain above the point the walk met it.
+            highestIndexedHeight = cursor.getHeight();
+        } else {
+            // The walk went below the index without meeting it, so start again from the new blocks. The heights
+            // below are filled in again as they are asked for.
+            if (newBlocks.isEmpty()) {
+                newBlocks.add(chainHead);
+            }
+            StoredBlock lowest = newBlocks.get(newBlocks.size() - 1);
+            lowestIndexedHeight = lowest.getHeight();
+            highestIndexedHeight = lowest.getHeight() - 1;
+        }
+        for (int i = newBlocks.size() - 1; i >= 0; i--) {
+            index(newBlocks.get(i));
+        }
+        highestIndexedHeight = chainHead.getHeight();
+
+        if (blockTimeIndex != null) {
+            updateBlockTimeIndex();
+        }
+    }
+
+    /**
+     * Keeps the given index of block times up to date with the best chain from now on, bringing it up to date
+     * first. Pass null to stop.
+     */
+    public synchronized void setBlockTimeIndex(BlockTimeIndex blockTimeIndex) throws BlockStoreException {
+        this.blockTimeIndex = blockTimeIndex;
+        if (blockTimeIndex != null) {
+            updateBlockTimeIndex();
+        }
+    }
+
+    public synchronized BlockTimeIndex getBlockTimeIndex() {
+        return blockTimeIndex;
+    }
+
+    /**
+     * Returns the block of the best chain at the given height, or null if there is none.
+     */
+    public synchronized StoredBlock getBestChainBlock(int height) throws BlockStoreException {
+        Sha256Hash hash = getBestChainHash(height);
+        return hash == null ? null : get(hash);
+    }
+
+    /**
+     * Returns the hash of the block of the best chain at the given height, or null if there is none.
+     */
+    public synchronized Sha256Hash getBestChainHash(int height) throws BlockStoreException {
+        if (height < 0 || height > highestIndexedHeight || !indexDownTo(height)) {
+            return null;
+        }
+        int offset = height * HASH_LENGTH;
+        return new Sha256Hash(Arrays.copyOfRange(bestChainHashes, offset, offset + HASH_LENGTH));
+    }
+
+    /**
+     * Returns true if the given block is part of the best chain.
+     */
+    public synchronized boolean isOnBestChain(StoredBlock block) throws BlockStoreException {
+        int height = block.getHeight();
+        return height <= highestIndexedHeight && indexDownTo(height) && isIndexed(block);
+    }
+
+    /**
+     * Returns the ancestor of the given block at the given height, or null if the chain of the block does not reach
+     * that far back. Only the part of the chain of the block that is not on the best chain is walked.
+     */
+    public synchronized StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+        if (height < 0 || height > block.getHeight()) {
+            return null;
+        }
+        StoredBlock cursor = block;
+        while (cursor != null && cursor.getHeight() > height && !isOnBestChain(cursor)) {
+            cursor = getPrev(cursor);
+        }
+        if (cursor == null || cursor.getHeight() == height) {
+            return cursor;
+        }
+        return getBestChainBlock(height);
+    }
+
+    /**
+     * Returns the most recent block of the best chain that is an ancestor of, or is, the given block. That is, the
+     * point at which the chain of the block forks from the best chain. Returns null if the chain of the block never
+     * meets the best chain.
+     */
+    public synchronized StoredBlock findFork(StoredBlock block) throws BlockStoreException {
+        StoredBlock cursor = block;
+        while (cursor != null && !isOnBestChain(cursor)) {
+            cursor = getPrev(cursor);
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns the number of lookups answered from memory.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that had to read the underlying store.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of blocks held in memory.
+     */
+    public synchronized int getNumberOfCachedBlocks() {
+        return cache.size();
+    }
+
+    /**
+     * Returns the number of heights of the best chain currently indexed.
+     */
+    public synchronized int getNumberOfIndexedBlocks() {
+        return highestIndexedHeight - lowestIndexedHeight + 1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CachingBlockStore: " + hits + " hits, " + misses + " misses, " + cache.size() + " blocks cached, "
+                + getNumberOfIndexedBlocks() + " heights indexed";
+    }
+
+    private void updateBlockTimeIndex() throws BlockStoreException {
+        try {
+            blockTimeIndex.update(this);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private StoredBlock getPrev(StoredBlock block) throws BlockStoreException {
+        if (block.getHeight() == 0) {
+            return null;
+        }
+        return get(block.getHeader().getPrevBlockHash());
+    }
+
+    /**
+     * Fills the height index in down to the given height, walking back from the lowest block indexed so far.
+     * Returns false if the chain does not reach that far back.
+     */
+    private boolean indexDownTo(int height) throws BlockStoreException {
+        if (height >= lowestIndexedHeight) {
+            return true;
+        }
+        int offset = lowestIndexedHeight * HASH_LENGTH;
+        StoredBlock cursor = get(new Sha256Hash(Arrays.copyOfRange(bestChainHashes, offset, offset + HASH_LENGTH)));
+        while (cursor != null && lowestIndexedHeight > height) {
+            cursor = getPrev(cursor);
+            if (cursor != null) {
+                lowestIndexedHeight = cursor.getHeight();
+                index(cursor);
+            }
+        }
+        return lowestIndexedHeight <= height;
+    }
+
+    private boolean isIndexed(StoredBlock block) {
+        int height = block.getHeight();
+        if (height < lowestIndexedHeight || height > highestIndexedHeight) {
+            return false;
+        }
+        byte[] hash = block.getHeader().getHash().getBytes();
+        int offset = height * HASH_LENGTH;
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            if (bestChainHashes[offset + i] != hash[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void index(StoredBlock block) {
+        int offset = block.getHeight() * HASH_LENGTH;
+        if (offset + HASH_LENGTH > bestChainHashes.length) {
+            bestChainHashes = Arrays.copyOf(bestChainHashes, Math.max(bestChainHashes.length * 2, offset
+                    + HASH_LENGTH));
+        }
+        System.arraycopy(block.getHeader().getHash().getBytes(), 0, bestChainHashes, offset, HASH_LENGTH);
+    }
+}
@@ -0,0 +1,413 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.multibit.IsMultiBitClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.ProtocolException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+
+/**
+ * A {@link BlockStore} that keeps block headers as fixed size records in a memory mapped file, with an open
+ * addressing hash table in a second mapped file to find them by hash.<p>
+ *
+ * The block file starts with a header page holding the number of records and the record of the chain head, so
+ * opening the store maps the two files and reads a few ints whatever the length of the chain. A lookup probes the
+ * table and compares hashes in the mapped records, copying out only the record found. Records are never moved, and
+ * the table is rebuilt from the records if it does not match them, for instance after a crash.<p>
+ *
+ * The files only grow. They are extended by mapping a larger region, as a mapped file cannot be shortened or
+ * replaced on every platform while it is still mapped.<p>
+ *
+ * A store with no file yet can be filled from another store, typically a {@link BoundedOverheadBlockStore}, with
+ * {@link #migrateFrom(BlockStore)}.
+ */
+public class MappedBlockStore implements BlockStore, IsMultiBitClass {
+    private static final Logger log = LoggerFactory.getLogger(MappedBlockStore.class);
+
+    /**
+     * The suffix added to the name of the block file for the hash table.
+     */
+    public static final String INDEX_SUFFIX = ".index";
+
+    // "MBHS" and "MBHI"
+    private static final int MAGIC = 0x4d424853;
+    private static final int INDEX_MAGIC = 0x4d424849;
+    private static final int VERSION = 1;
+
+    // The header page of the block file holds the magic, version, number of records, record of the chain head and
+    // whether a migration is under way.
+    private static final int HEADER_PAGE_LENGTH = 4096;
+    private static final int NUMBER_OF_RECORDS_OFFSET = 8;
+    private static final int CHAIN_HEAD_OFFSET = 12;
+    private static final int MIGRATING_OFFSET = 16;
+
+    // Each record holds the hash, height, chain work and header of a block.
+    private static final int HASH_LENGTH = 32;
+    private static final int CHAIN_WORK_LENGTH = 16;
+    private static final int HEADER_LENGTH = 80;
+    private static final int HEIGHT_OFFSET = HASH_LENGTH;
+    private static final int CHAIN_WORK_OFFSET = HEIGHT_OFFSET + 4;
+    private static final int HEADER_OFFSET = CHAIN_WORK_OFFSET + CHAIN_WORK_LENGTH;
+    static final int RECORD_LENGTH = HEADER_OFFSET + HEADER_LENGTH;
+
+    // The block file grows by this many records at a time, about 8 MB.
+    private static final int RECORDS_PER_EXTENSION = 65536;
+
+    // The hash table file holds the magic, version, number of slots and number of entries, then a slot of four
+    // bytes each: the record number plus one, or zero if empty. It is kept at most half full.
+    private static final int INDEX_HEADER_LENGTH = 16;
+    private static final int NUMBER_OF_SLOTS_OFFSET = 8;
+    private static final int NUMBER_OF_ENTRIES_OFFSET = 12;
+    private static final int SLOT_LENGTH = 4;
+    private static final int INITIAL_NUMBER_OF_SLOTS = 1 << 17;
+
+    private final NetworkParameters params;
+    private final File file;
+    private final File indexFile;
+    private final RandomAccessFile raf;
+    private final RandomAccessFile indexRaf;
+
+    // Guarded by this, as are the fields below.
+    private MappedByteBuffer blocks;
+    private MappedByteBuffer index;
+
+    private int numberOfRecords;
+    private int numberOfSlots;
+    private StoredBlock chainHead;
+
+    /**
+     * Opens the store in the given file, creating it with the genesis block as the chain head if there is none. The
+     * hash table is kept in the same file name with {@link #INDEX_SUFFIX} added.
+     */
+    public MappedBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this.params = params;
+        this.file = file;
+        this.indexFile = new File(file.getPath() + INDEX_SUFFIX);
+        try {
+            boolean exists = file.exists() && file.length() >= HEADER_PAGE_LENGTH;
+            raf = new RandomAccessFile(file, "rw");
+            indexRaf = new RandomAccessFile(indexFile, "rw");
+            if (exists) {
+                blocks = map(raf, Math.max(raf.length(), HEADER_PAGE_LENGTH));
+                if (blocks.getInt(0) != MAGIC || blocks.getInt(4) != VERSION) {
+                    throw new BlockStoreException(file + " is not a block store that can be read");
+                }
+                numberOfRecords = blocks.getInt(NUMBER_OF_RECORDS_OFFSET);
+                openIndex();
+                chainHead = readRecord(blocks.getInt(CHAIN_HEAD_OFFSET));
+            } else {
+                createBlockFile();
+                createIndex(INITIAL_NUMBER_OF_SLOTS);
+                Block genesis = params.genesisBlock.cloneAsHeader();
+                StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+                put(storedGenesis);
+                setChainHead(storedGenesis);
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        byte[] hash = block.getHeader().getHash().getBytes();
+        int slot = findSlot(hash);
+        int entry = index.getInt(slotOffset(slot));
+        if (entry != 0) {
+            // Already stored. A block's height and chain work never change.
+            return;
+        }
+        int record = numberOfRecords;
+        ensureCapacity(record + 1);
+        writeRecord(record, hash, block);
+
+        // The record goes in before the count, so a crash leaves at most an unused record. The table entry and its
+        // count go in after, so a crash in between leaves a table that does not match and is rebuilt, see openIndex.
+        numberOfRecords++;
+        blocks.putInt(NUMBER_OF_RECORDS_OFFSET, numberOfRecords);
+        index.putInt(slotOffset(slot), record + 1);
+        index.putInt(NUMBER_OF_ENTRIES_OFFSET, numberOfRecords);
+        if (numberOfRecords * 2 > numberOfSlots) {
+            try {
+                rebuildIndex(numberOfSlots * 2);
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+    }
+
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        int entry = index.getInt(slotOffset(findSlot(hash.getBytes())));
+        return entry == 0 ? null : readRecord(entry - 1);
+    }
+
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        return chainHead;
+    }
+
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        byte[] hash = chainHead.getHeader().getHash().getBytes();
+        int entry = index.getInt(slotOffset(findSlot(hash)));
+        if (entry == 0) {
+            put(chainHead);
+            entry = index.getInt(slotOffset(findSlot(hash)));
+        }
+        blocks.putInt(CHAIN_HEAD_OFFSET, entry - 1);
+        this.chainHead = chainHead;
+    }
+
+    /**
+     * Returns the number of blocks stored.
+     */
+    public synchronized int getNumberOfBlocks() {
+        return numberOfRecords;
+    }
+
+    /**
+     * Returns true if a migration into this store was started and did not finish. It is safe to start it again.
+     */
+    public synchronized boolean isMigrating() {
+        return blocks.getInt(MIGRATING_OFFSET) != 0;
+    }
+
+    /**
+     * Copies the best chain of the given store into this one, from its chain head back to the genesis block, and
+     * makes its chain head the chain head here. Blocks already here are skipped, so a migration cut short can be
+     * started again. Side chains are not copied.
+     */
+    public synchronized void migrateFrom(BlockStore from) throws BlockStoreException {
+        long start = System.currentTimeMillis();
+        blocks.putInt(MIGRATING_OFFSET, 1);
+        blocks.force();
+
+        StoredBlock fromChainHead = from.getChainHead();
+        StoredBlock cursor = fromChainHead;
+        int numberOfBlocks = 0;
+        while (cursor != null) {
+            put(cursor);
+            numberOfBlocks++;
+            cursor = cursor.getHeight() == 0 ? null : from.get(cursor.getHeader().getPrevBlockHash());
+        }
+        setChainHead(fromChainHead);
+
+        blocks.force();
+        index.force();
+        blocks.putInt(MIGRATING_OFFSET, 0);
+        blocks.force();
+        log.info("Migrated {} blocks into {} in {} ms", new Object[] { numberOfBlocks, file,
+                System.currentTimeMillis() - start });
+    }
+
+    /**
+     * Writes the mapped files out to disk.
+     */
+    public synchronized void flush() {
+        blocks.force();
+        index.force();
+    }
+
+    /**
+     * Writes the mapped files out and closes them. The store cannot be used afterwards.
+     */
+    public synchronized void close() throws BlockStoreException {
+        flush();
+        try {
+            raf.close();
+            indexRaf.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void createBlockFile() throws IOException {
+        blocks = map(raf, HEADER_PAGE_LENGTH + (long) RECORD_LENGTH * RECORDS_PER_EXTENSION);
+        blocks.putInt(0, MAGIC);
+        blocks.putInt(4, VERSION);
+        blocks.putInt(NUMBER_OF_RECORDS_OFFSET, 0);
+        blocks.putInt(CHAIN_HEAD_OFFSET, 0);
+        blocks.putInt(MIGRATING_OFFSET, 0);
+        numberOfRecords = 0;
+    }
+
+    /**
+     * Maps the hash table, rebuilding it from the records if it is missing or does not match them.
+     */
+    private void openIndex() throws IOException {
+        if (indexRaf.length() >= INDEX_HEADER_LENGTH) {
+            index = map(indexRaf, indexRaf.length());
+            numberOfSlots = index.getInt(NUMBER_OF_SLOTS_OFFSET);
+            if (index.getInt(0) == INDEX_MAGIC && index.getInt(4) == VERSION && numberOfSlots > 0
+                    && Integer.bitCount(numberOfSlots) == 1
+                    && indexRaf.length() >= INDEX_HEADER_LENGTH + (long) SLOT_LENGTH * numberOfSlots
+                    && index.getInt(NUMBER_OF_ENTRIES_OFFSET) == numberOfRecords) {
+                return;
+            }
+        }
+        log.warn("The hash table of {} does not match its blocks, rebuilding it", file);
+        int slots = INITIAL_NUMBER_OF_SLOTS;
+        while (numberOfRecords * 2 > slots) {
+            slots *= 2;
+        }
+        rebuildIndex(slots);
+    }
+
+    private void createIndex(int slots) throws IOException {
+        numberOfSlots = slots;
+        long length = INDEX_HEADER_LENGTH + (long) SLOT_LENGTH * slots;
+        if (index == null || index.capacity() < length) {
+            index = map(indexRaf, Math.max(length, indexRaf.length()));
+        }
+        index.putInt(0, INDEX_MAGIC);
+        index.putInt(4, VERSION);
+        index.putInt(NUMBER_OF_SLOTS_OFFSET, slots);
+        // Marks the table as not matching the records until it is filled.
+        index.putInt(NUMBER_OF_ENTRIES_OFFSET, -1);
+        for (int slot = 0; slot < slots; slot++) {
+            index.putInt(slotOffset(slot), 0);
+        }
+    }
+
+    /**
+     * Makes a table with the given number of slots and files every record in it. The table is grown this way, in
+     * the same file, rather than copied to a new one.
+     */
+    private void rebuildIndex(int slots) throws IOException {
+        long start = System.currentTimeMillis();
+        createIndex(slots);
+        byte[] hash = new byte[HASH_LENGTH];
+        for (int record = 0; record < numberOfRecords; record++) {
+            ByteBuffer view = blocks.duplicate();
+            view.position(recordOffset(record));
+            view.get(hash);
+            index.putInt(slotOffset(findSlot(hash)), record + 1);
+        }
+        index.putInt(NUMBER_OF_ENTRIES_OFFSET, numberOfRecords);
+        log.debug("Filed {} blocks in a table of {} slots in {} ms", new Object[] { numberOfRecords, slots,
+                System.currentTimeMillis() - start });
+    }
+
+    /**
+     * Returns the slot holding the given hash, or the empty slot it would go in.
+     */
+    private int findSlot(byte[] hash) {
+        int mask = numberOfSlots - 1;
+        // The start of a block hash is mostly zeros, so the table is keyed on the end.
+        int slot = (((hash[28] & 0xff) << 24) | ((hash[29] & 0xff) << 16) | ((hash[30] & 0xff) << 8)
+                | (hash[31] & 0xff)) & mask;
+        while (true) {
+            int entry = index.getInt(slotOffset(slot));
+            if (entry == 0 || hashMatches(entry - 1, hash)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean hashMatches(int record, byte[] hash) {
+        int offset = recordOffset(record);
+        for (int i = HASH_LENGTH - 1; i >= 0; i--) {
+            if (blocks.get(offset + i) != hash[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private StoredBlock readRecord(int record) throws BlockStoreException {
+        if (record < 0 || record >= numberOfRecords) {
+            throw new BlockStoreException("No record " + record + " in " + file);
+        }
+        ByteBuffer view = blocks.duplicate();
+        int offset = recordOffset(record);
+        int height = blocks.getInt(offset + HEIGHT_OFFSET);
+        byte[] chainWork = new byte[CHAIN_WORK_LENGTH];
+        view.position(offset + CHAIN_WORK_OFFSET);
+        view.get(chainWork);
+        byte[] header = new byte[HEADER_LENGTH];
+        view.get(header);
+        try {
+            return new StoredBlock(new Block(params, header), new BigInteger(1, chainWork), height);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void writeRecord(int record, byte[] hash, StoredBlock block) throws BlockStoreException {
+        byte[] chainWork = block.getChainWork().toByteArray();
+        int start = 0;
+        while (start < chainWork.length - 1 && chainWork[start] == 0) {
+            start++;
+        }
+        if (chainWork.length - start > CHAIN_WORK_LENGTH) {
+            throw new BlockStoreException("Chain work " + block.getChainWork() + " does not fit in a record");
+        }
+        byte[] header = block.getHeader().bitcoinSerialize();
+
+        ByteBuffer view = blocks.duplicate();
+        int offset = recordOffset(record);
+        view.position(offset);
+        view.put(hash);
+        view.putInt(block.getHeight());
+        view.put(new byte[CHAIN_WORK_LENGTH - (chainWork.length - start)]);
+        view.put(chainWork, start, chainWork.length - start);
+        view.put(header, 0, HEADER_LENGTH);
+    }
+
+    private void ensureCapacity(int records) throws BlockStoreException {
+        long length = HEADER_PAGE_LENGTH + (long) RECORD_LENGTH * records;
+        if (length <= blocks.capacity()) {
+            return;
+        }
+        if (length + (long) RECORD_LENGTH * RECORDS_PER_EXTENSION > Integer.MAX_VALUE) {
+            throw new BlockStoreException(file + " is full");
+        }
+        try {
+            blocks = map(raf, length + (long) RECORD_LENGTH * RECORDS_PER_EXTENSION);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private static MappedByteBuffer map(RandomAccessFile raf, long length) throws IOException {
+        return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+    }
+
+    private static int recordOffset(int record) {
+        return HEADER_PAGE_LENGTH + record * RECORD_LENGTH;
+    }
+
+    private static int slotOffset(int slot) {
+        return INDEX_HEADER_LENGTH + slot * SLOT_LENGTH;
+    }
+}
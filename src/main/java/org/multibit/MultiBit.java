@@ -16,6 +16,8 @@ package org.multibit;
  * limitations under the License.
  */
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Properties;
 
@@ -124,16 +126,17 @@ public class MultiBit {
                 int numberOfWallets = Integer.parseInt(numberOfWalletsAsString);
 
                 if (numberOfWallets > 0) {
+                    List<String> walletFilenames = new ArrayList<String>();
                     for (int i = 1; i <= numberOfWallets; i++) {
                         // load up ith wallet filename
-                        String loopWalletFilename = userPreferences.getProperty(MultiBitModel.WALLET_FILENAME_PREFIX + i);
-                        if (activeWalletFilename != null && activeWalletFilename.equals(loopWalletFilename)) {
-                            controller.addWalletFromFilename(loopWalletFilename);
-                            controller.getModel().setActiveWalletByFilename(loopWalletFilename);
-
-                        } else {
-                            controller.addWalletFromFilename(loopWalletFilename);
-                        }
+                        walletFilenames.add(userPreferences.getProperty(MultiBitModel.WALLET_FILENAME_PREFIX + i));
+                    }
+
+                    // the wallets are shown from their wallet infos and
+                    // loaded in the background, the active wallet first
+                    multiBitService.addWalletsFromFilenames(walletFilenames, activeWalletFilename);
+                    if (activeWalletFilename != null) {
+                        controller.getModel().setActiveWalletByFilename(activeWalletFilename);
                     }
                     controller.fireNewWalletCreated();
                     controller.fireWalletChanged();
@@ -147,6 +150,9 @@ public class MultiBit {
         // display the next view
         controller.displayNextView(ViewSystem.NEW_VIEW_IS_SIBLING_OF_PREVIOUS);
 
+        // every wallet must be on the block chain before it is downloaded
+        multiBitService.waitForWalletsToLoad();
+
         // see if the user wants to connect to a single node
         multiBitService.downloadBlockChain();
     }
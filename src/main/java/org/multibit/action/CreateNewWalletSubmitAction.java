@@ -68,7 +68,7 @@ public class CreateNewWalletSubmitAction implements Action {
                             // create a new wallet
                             Wallet newWallet = new Wallet(controller.getMultiBitService().getNetworkParameters());
                             ECKey newKey = new ECKey();
-                            newWallet.keychain.add(newKey);
+                            newWallet.addKey(newKey);
                             PerWalletModelData perWalletModelData = new PerWalletModelData();
                             perWalletModelData.setWalletInfo(new WalletInfo(newWalletFilename));
                             perWalletModelData.setWallet(newWallet);
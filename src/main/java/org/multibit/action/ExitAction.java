@@ -36,8 +36,6 @@ public class ExitAction implements Action {
                     if (perWalletModelData.getWalletFilename() != null) {
                         controller.getModel().setUserPreference(MultiBitModel.WALLET_FILENAME_PREFIX + i,
                                 perWalletModelData.getWalletFilename());
-                        // save the ith wallet, including the wallet info
-                        controller.getFileHandler().savePerWalletModelData(perWalletModelData, false);
                     }
                 }
 
@@ -45,6 +43,10 @@ public class ExitAction implements Action {
 
         }
 
+        // save the wallets, including the wallet info, along with any saves
+        // already requested for them - the wallets are saved in parallel
+        controller.getFileHandler().flushAll();
+
         controller.getFileHandler().writeUserPreferences();
 
         // shut down the PeerGroup
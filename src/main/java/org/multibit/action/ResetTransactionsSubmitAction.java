@@ -11,7 +11,6 @@ import org.multibit.model.DataProvider;
 import org.multibit.model.MultiBitModel;
 import org.multibit.model.PerWalletModelData;
 
-import com.google.bitcoin.core.Block;
 import com.google.bitcoin.core.BlockChain;
 import com.google.bitcoin.core.StoredBlock;
 import com.google.bitcoin.core.Transaction;
@@ -24,7 +23,6 @@ import com.google.bitcoin.store.BlockStoreException;
  * 
  */
 public class ResetTransactionsSubmitAction implements Action {
-    private static final int NUMBER_OF_MILLISECOND_IN_A_SECOND = 1000;
     private MultiBitController controller;
 
     public ResetTransactionsSubmitAction(MultiBitController controller) {
@@ -35,6 +33,11 @@ public class ResetTransactionsSubmitAction implements Action {
         // check to see if another process has changed the active wallet
         // check to see if the wallet files have changed
         PerWalletModelData perWalletModelData = controller.getModel().getActivePerWalletModelData();
+        if (!perWalletModelData.isWalletLoaded()) {
+            // the wallet is still loading
+            return;
+        }
+
         boolean haveFilesChanged = controller.getFileHandler().haveFilesChanged(perWalletModelData);
 
         if (haveFilesChanged) {
@@ -81,28 +84,21 @@ public class ResetTransactionsSubmitAction implements Action {
                         "" + earliestTransactionDate.getTime());
             }
 
-            // navigate backwards in the blockchain to work out how far back in
-            // time to go
+            // find the block from before the earliest transaction with the
+            // block time index rather than stepping back block by block
             BlockChain blockChain = controller.getMultiBitService().getChain();
 
-            StoredBlock storedBlock = blockChain.getChainHead();
-            boolean haveGoneBackInTimeEnough = false;
+            StoredBlock storedBlock = null;
             boolean blockNavigationError = false;
-
-            while (!haveGoneBackInTimeEnough && !blockNavigationError) {
-                Block header = storedBlock.getHeader();
-                long headerTimeInSeconds = header.getTimeSeconds();
-                if (headerTimeInSeconds < (earliestTransactionDate.getTime() / NUMBER_OF_MILLISECOND_IN_A_SECOND)) {
-                    haveGoneBackInTimeEnough = true;
-                } else {
-                    try {
-                        storedBlock = storedBlock.getPrev(controller.getMultiBitService().getBlockStore());
-                    } catch (BlockStoreException e) {
-                        e.printStackTrace();
-                        // we have to stop - fail
-                        blockNavigationError = true;
-                    }
-                }
+            try {
+                storedBlock = controller.getMultiBitService().getBlockBefore(earliestTransactionDate);
+            } catch (BlockStoreException e) {
+                e.printStackTrace();
+                // we have to stop - fail
+                blockNavigationError = true;
+            }
+            if (storedBlock == null) {
+                blockNavigationError = true;
             }
 
             if (!blockNavigationError) {
@@ -117,7 +113,7 @@ public class ResetTransactionsSubmitAction implements Action {
                 activePerWalletModelData.getWallet().removeAllTransactions();
                 
                 // save the wallet without the transactions
-                controller.getFileHandler().savePerWalletModelData(perWalletModelData, true);
+                controller.getFileHandler().requestSave(perWalletModelData, true);
 
                 // set the block chain head to the block just before the
                 // earliest transaction in the wallet
@@ -60,8 +60,8 @@ public class SendBitcoinNowAction implements Action {
             controller.sendCoins(perWalletModelData, sendAddress, sendLabel, sendAmount, fee);
             sendWasSuccessful = Boolean.TRUE;
             
-            // save the wallet
-            controller.getFileHandler().savePerWalletModelData(perWalletModelData, false);
+            // save the address book (the wallet was saved by the send)
+            controller.getFileHandler().requestSave(perWalletModelData, false);
         } catch (IOException e) {
             log.error(e.getMessage(), e);
 
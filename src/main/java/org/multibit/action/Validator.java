@@ -8,6 +8,7 @@ import org.multibit.model.MultiBitModel;
 import com.google.bitcoin.core.Address;
 import com.google.bitcoin.core.AddressFormatException;
 import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
 import com.google.bitcoin.core.Wallet.BalanceType;
 
 /**
@@ -96,7 +97,10 @@ public class Validator {
                         feeBigInteger = Utils.toNanoCoins(fee);
                     }
                     BigInteger totalSpend = amountBigInteger.add(feeBigInteger);
-                    BigInteger availableBalance = controller.getModel().getActiveWallet().getBalance(BalanceType.AVAILABLE);
+                    // a wallet that is still loading has nothing available to spend
+                    Wallet activeWallet = controller.getModel().getActiveWallet();
+                    BigInteger availableBalance = activeWallet == null ? BigInteger.ZERO : activeWallet
+                            .getBalance(BalanceType.AVAILABLE);
                     if (totalSpend.compareTo(availableBalance) <= 0) {
                         // there is enough money
                     } else {
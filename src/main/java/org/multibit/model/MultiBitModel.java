@@ -2,13 +2,19 @@ package org.multibit.model;
 
 import com.google.bitcoin.core.*;
 import com.google.bitcoin.core.Wallet.BalanceType;
+import com.google.bitcoin.core.WalletSnapshot.TransactionSummary;
 import org.multibit.controller.MultiBitController;
 import org.multibit.network.MultiBitService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * model containing the MultiBit data
@@ -88,6 +94,10 @@ public class MultiBitModel {
     public static final String WALLET_INFO_FILE_SIZE = "walletInfoFileSize";
     public static final String WALLET_INFO_FILE_LAST_MODIFIED = "walletInfoFileLastModified";
 
+    // summary of the wallet shown at startup before the wallet is loaded
+    public static final String WALLET_ESTIMATED_BALANCE = "walletEstimatedBalance";
+    public static final String WALLET_NUMBER_OF_KEYS = "walletNumberOfKeys";
+
     // merchant menu
     public static final String SHOW_MERCHANT_MENU = "showMerchantMenu";
     public static final String MERCHANT_BULK_ADDRESSES_NUMBER_OF_ADDRESSES = "merchantBulkAddressesNumberOfAddresses";
@@ -95,6 +105,18 @@ public class MultiBitModel {
        
     // reset transactions 
     public static final String EARLIEST_TRANSACTION_DATE = "earliestTransactionDate";
+
+    // wallet events are passed to the controller on their own thread so that
+    // updating the views does not hold up block processing
+    private static final int WALLET_EVENT_QUEUE_CAPACITY = 1000;
+    private static final ExecutorService walletEventExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "MultiBit wallet events");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     // main controller class
     private final MultiBitController controller;
 
@@ -102,7 +124,8 @@ public class MultiBitModel {
     private Properties userPreferences;
 
     /**
-     * list of each wallet's total model data
+     * list of each wallet's total model data - wallets loaded in the
+     * background look themselves up in it while it is being used by the UI
      */
     private List<PerWalletModelData> perWalletModelDataList;
 
@@ -119,7 +142,7 @@ public class MultiBitModel {
         this.controller = controller;
         this.userPreferences = userPreferences;
 
-        perWalletModelDataList = new LinkedList<PerWalletModelData>();
+        perWalletModelDataList = new CopyOnWriteArrayList<PerWalletModelData>();
 
         activeWalletModelData = new PerWalletModelData();
         perWalletModelDataList.add(activeWalletModelData);
@@ -203,7 +226,21 @@ public class MultiBitModel {
         if (activeWalletModelData.getWallet() == null) {
             return BigInteger.ZERO;
         } else {
-            return activeWalletModelData.getWallet().getBalance(BalanceType.ESTIMATED);
+            return activeWalletModelData.getWallet().getSnapshot().getBalance(BalanceType.ESTIMATED);
+        }
+    }
+
+    /**
+     * get the latest snapshot of the active wallet, which can be read without
+     * waiting for the wallet to finish processing blocks
+     * 
+     * @return the snapshot or null if there is no active wallet
+     */
+    public WalletSnapshot getActiveWalletSnapshot() {
+        if (activeWalletModelData.getWallet() == null) {
+            return null;
+        } else {
+            return activeWalletModelData.getWallet().getSnapshot();
         }
     }
 
@@ -216,7 +253,7 @@ public class MultiBitModel {
         if (activeWalletModelData.getWallet() == null) {
             return BigInteger.ZERO;
         } else {
-            return activeWalletModelData.getWallet().getBalance(BalanceType.AVAILABLE);
+            return activeWalletModelData.getWallet().getSnapshot().getBalance(BalanceType.AVAILABLE);
         }
     }
 
@@ -320,26 +357,7 @@ public class MultiBitModel {
 
         // wire up the controller as a wallet event listener
         if (wallet != null) {
-            wallet.addEventListener(new WalletEventListener() {
-                public void onCoinsReceived(Wallet wallet, Transaction transaction, BigInteger prevBalance,
-                        BigInteger newBalance) {
-                    controller.onCoinsReceived(wallet, transaction, prevBalance, newBalance);
-                }
-
-                public void onPendingCoinsReceived(Wallet wallet, Transaction transaction) {
-                    controller.onPendingCoinsReceived(wallet, transaction);
-                }
-
-                @Override
-                public void onReorganize(Wallet wallet) {
-                    controller.onReorganise(wallet);
-                }
-
-                @Override
-                public void onDeadTransaction(Wallet wallet, Transaction deadTx, Transaction replacementTx) {
-                }
-
-            });
+            addWalletEventListener(wallet);
         }
 
         createWalletData(walletFilename);
@@ -348,6 +366,45 @@ public class MultiBitModel {
         return newPerWalletModelData;
     }
 
+    /**
+     * set the wallet of a wallet added from its summary once the wallet body
+     * has been loaded
+     */
+    public void setWalletLoaded(PerWalletModelData perWalletModelData, Wallet wallet) {
+        if (perWalletModelData == null || wallet == null) {
+            return;
+        }
+        addWalletEventListener(wallet);
+        perWalletModelData.setWallet(wallet);
+
+        createWalletData(perWalletModelData.getWalletFilename());
+        createAddressBookReceivingAddresses(perWalletModelData.getWalletFilename());
+    }
+
+    private void addWalletEventListener(Wallet wallet) {
+        wallet.setEventExecutor(walletEventExecutor, WALLET_EVENT_QUEUE_CAPACITY);
+        wallet.addEventListener(new WalletEventListener() {
+            public void onCoinsReceived(Wallet wallet, Transaction transaction, BigInteger prevBalance,
+                    BigInteger newBalance) {
+                controller.onCoinsReceived(wallet, transaction, prevBalance, newBalance);
+            }
+
+            public void onPendingCoinsReceived(Wallet wallet, Transaction transaction) {
+                controller.onPendingCoinsReceived(wallet, transaction);
+            }
+
+            @Override
+            public void onReorganize(Wallet wallet) {
+                controller.onReorganise(wallet);
+            }
+
+            @Override
+            public void onDeadTransaction(Wallet wallet, Transaction deadTx, Transaction replacementTx) {
+            }
+
+        });
+    }
+
     /**
      * get the active wallet filename
      * 
@@ -382,31 +439,38 @@ public class MultiBitModel {
         if (perWalletModelData == null || perWalletModelData.getWallet() == null) {
             return walletData;
         }
-        Set<Transaction> transactions = perWalletModelData.getWallet().getTransactions(false, false);
-
-        if (transactions != null) {
-            for (Transaction loopTransaction : transactions) {
-                WalletTableData walletDataRow = new WalletTableData(loopTransaction);
-                walletData.add(walletDataRow);
-                walletDataRow.setCredit(loopTransaction.getValueSentToMe(perWalletModelData.getWallet()));
-                try {
-                    walletDataRow.setDebit(loopTransaction.getValueSentFromMe(perWalletModelData.getWallet()));
-                } catch (ScriptException e) {
-                    log.error(e.getMessage(), e);
+        // everything shown of the live transactions is read from the snapshot
+        // so that the wallet lock is not needed and the rows all show the
+        // wallet at the same moment
+        List<TransactionSummary> summaries = perWalletModelData.getWallet().getSnapshot().getSummariesByTime();
+        for (TransactionSummary summary : summaries) {
+            WalletTableData walletDataRow = new WalletTableData(summary.getTransaction());
+            walletData.add(walletDataRow);
+            walletDataRow.setCredit(summary.getCredit());
+            walletDataRow.setDebit(summary.getDebit());
+            walletDataRow.setDescription(createDescription(perWalletModelData, summary.getReceivingAddress(),
+                    summary.getSendingAddress(), walletDataRow.getCredit(), walletDataRow.getDebit()));
+            walletDataRow.setDate(createDate(summary.getTransaction()));
+            walletDataRow.setHeight(workOutHeight(summary.getTransaction()));
+        }
 
-                }
-                List<TransactionInput> transactionInputs = loopTransaction.getInputs();
-                List<TransactionOutput> transactionOutputs = loopTransaction.getOutputs();
-                if (transactionInputs != null) {
-                    TransactionInput firstInput = transactionInputs.get(0);
-                    if (firstInput != null) {
-                        walletDataRow.setDescription(createDescription(perWalletModelData.getWallet(), transactionInputs,
-                                transactionOutputs, walletDataRow.getCredit(), walletDataRow.getDebit()));
-                    }
-                }
-                walletDataRow.setDate(createDate(loopTransaction));
-                walletDataRow.setHeight(workOutHeight(loopTransaction));
+        // archived transactions are listed from their summaries - the
+        // description is filled in when the row is first shown
+        for (ArchivedTransaction archivedTransaction : perWalletModelData.getWallet().getArchivedTransactions()) {
+            WalletTableData walletDataRow = new WalletTableData((Transaction) null);
+            walletDataRow.setArchivedTransaction(archivedTransaction);
+            walletData.add(walletDataRow);
+            BigInteger net = archivedTransaction.getNetValue();
+            if (net.compareTo(BigInteger.ZERO) >= 0) {
+                walletDataRow.setCredit(net);
+                walletDataRow.setDebit(BigInteger.ZERO);
+            } else {
+                walletDataRow.setCredit(BigInteger.ZERO);
+                walletDataRow.setDebit(net.negate());
             }
+            Date archivedDate = archivedTransaction.getTime();
+            walletDataRow.setDate(archivedDate == null ? new Date(0) : archivedDate);
+            walletDataRow.setHeight(archivedTransaction.getHeight());
         }
 
         // run through all the walletdata to see if both credit and debit are
@@ -428,6 +492,30 @@ public class MultiBitModel {
         return walletData;
     }
 
+    /**
+     * read the transaction for a row from the wallet archive and describe it
+     * 
+     * @param walletDataRow
+     *            a row created from an archived transaction in the active
+     *            wallet
+     */
+    public void describeArchivedTransaction(WalletTableData walletDataRow) {
+        Wallet wallet = getActiveWallet();
+        if (wallet == null || walletDataRow.getArchivedTransaction() == null) {
+            return;
+        }
+        try {
+            Transaction transaction = wallet.readArchivedTransaction(walletDataRow.getArchivedTransaction());
+            walletDataRow.setTransaction(transaction);
+            walletDataRow.setDescription(createDescription(wallet, transaction.getInputs(), transaction.getOutputs(),
+                    walletDataRow.getCredit(), walletDataRow.getDebit()));
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+            // do not try again every time the row is drawn
+            walletDataRow.setDescription("");
+        }
+    }
+
     /**
      * add the receiving addresses of all the keys of the specified wallet
      */
@@ -455,7 +543,7 @@ public class MultiBitModel {
                     if (networkParameters != null) {
                         if (perWalletModelData.getWalletInfo() != null) {
                             // clear the existing receiving addresses
-                            perWalletModelData.getWalletInfo().getReceivingAddresses().clear();
+                            perWalletModelData.getWalletInfo().clearReceivingAddresses();
                             for (ECKey key : keyChain) {
                                 Address address = key.toAddress(controller.getMultiBitService().getNetworkParameters());
                                 perWalletModelData.getWalletInfo().addReceivingAddressOfKey(address);
@@ -478,8 +566,6 @@ public class MultiBitModel {
      */
     public String createDescription(Wallet wallet, List<TransactionInput> transactionInputs,
             List<TransactionOutput> transactionOutputs, BigInteger credit, BigInteger debit) {
-        String toReturn = "";
-
         PerWalletModelData perWalletModelData = null;
         if (perWalletModelDataList != null) {
             for (PerWalletModelData loopPerWalletModelData : perWalletModelDataList) {
@@ -490,7 +576,7 @@ public class MultiBitModel {
             }
         }
         if (perWalletModelData == null) {
-            return toReturn;
+            return "";
         }
 
         TransactionOutput myOutput = null;
@@ -506,55 +592,70 @@ public class MultiBitModel {
             }
         }
 
+        String receivingAddress = null;
+        String sendingAddress = null;
+        try {
+            if (controller.getMultiBitService() != null && myOutput != null) {
+                receivingAddress = new Address(controller.getMultiBitService().getNetworkParameters(), myOutput
+                        .getScriptPubKey().getPubKeyHash()).toString();
+            }
+        } catch (ScriptException e) {
+            log.error(e.getMessage(), e);
+        }
+        try {
+            if (theirOutput != null) {
+                sendingAddress = theirOutput.getScriptPubKey().getToAddress().toString();
+            }
+        } catch (ScriptException e) {
+            log.error(e.getMessage(), e);
+        }
+        return createDescription(perWalletModelData, receivingAddress, sendingAddress, credit, debit);
+    }
+
+    /**
+     * describe a transaction from the addresses it pays, labelled from the
+     * address book of the wallet
+     * 
+     * @param receivingAddress
+     *            the address of the wallet the transaction pays, or null
+     * @param sendingAddress
+     *            the address of someone else the transaction pays, or null
+     */
+    private String createDescription(PerWalletModelData perWalletModelData, String receivingAddress,
+            String sendingAddress, BigInteger credit, BigInteger debit) {
+        String toReturn = "";
+
         if (credit != null && credit.compareTo(BigInteger.ZERO) > 0) {
             // credit
-            try {
-                String addressString = "";
+            String addressString = receivingAddress == null ? "" : receivingAddress;
 
-                if (controller.getMultiBitService() != null && myOutput != null) {
-                    Address toAddress = new Address(controller.getMultiBitService().getNetworkParameters(), myOutput
-                            .getScriptPubKey().getPubKeyHash());
-                    addressString = toAddress.toString();
-                }
+            String label = null;
+            if (perWalletModelData.getWalletInfo() != null) {
+                label = perWalletModelData.getWalletInfo().lookupLabelForReceivingAddress(addressString);
+            }
+            if (label != null && label != "") {
+                toReturn = controller.getLocaliser().getString("multiBitModel.creditDescriptionWithLabel",
+                        new Object[] { addressString, label });
+            } else {
+                toReturn = controller.getLocaliser().getString("multiBitModel.creditDescription",
+                        new Object[] { addressString });
+            }
+        }
 
+        if (debit != null && debit.compareTo(BigInteger.ZERO) > 0) {
+            // debit - see if the address is a known sending address
+            if (sendingAddress != null) {
                 String label = null;
                 if (perWalletModelData.getWalletInfo() != null) {
-                    label = perWalletModelData.getWalletInfo().lookupLabelForReceivingAddress(addressString);
+                    label = perWalletModelData.getWalletInfo().lookupLabelForSendingAddress(sendingAddress);
                 }
                 if (label != null && label != "") {
-                    toReturn = controller.getLocaliser().getString("multiBitModel.creditDescriptionWithLabel",
-                            new Object[] { addressString, label });
+                    toReturn = controller.getLocaliser().getString("multiBitModel.debitDescriptionWithLabel",
+                            new Object[] { sendingAddress, label });
                 } else {
-                    toReturn = controller.getLocaliser().getString("multiBitModel.creditDescription",
-                            new Object[] { addressString });
+                    toReturn = controller.getLocaliser().getString("multiBitModel.debitDescription",
+                            new Object[] { sendingAddress });
                 }
-            } catch (ScriptException e) {
-                log.error(e.getMessage(), e);
-
-            }
-        }
-
-        if (debit != null && debit.compareTo(BigInteger.ZERO) > 0) {
-            // debit
-            try {
-                // see if the address is a known sending address
-                if (theirOutput != null) {
-                    String addressString = theirOutput.getScriptPubKey().getToAddress().toString();
-                    String label = null;
-                    if (perWalletModelData.getWalletInfo() != null) {
-                        label = perWalletModelData.getWalletInfo().lookupLabelForSendingAddress(addressString);
-                    }
-                    if (label != null && label != "") {
-                        toReturn = controller.getLocaliser().getString("multiBitModel.debitDescriptionWithLabel",
-                                new Object[] { addressString, label });
-                    } else {
-                        toReturn = controller.getLocaliser().getString("multiBitModel.debitDescription",
-                                new Object[] { addressString });
-                    }
-                }
-            } catch (ScriptException e) {
-                log.error(e.getMessage(), e);
-
             }
         }
 
@@ -574,14 +675,13 @@ public class MultiBitModel {
         }
 
         // other wise return the date of the block it first appeared in
-        Set<StoredBlock> appearsIn = transaction.getAppearsIn();
+        Set<BlockReference> appearsIn = transaction.getAppearsIn();
         if (appearsIn != null) {
             if (!appearsIn.isEmpty()) {
-                Iterator<StoredBlock> iterator = appearsIn.iterator();
+                Iterator<BlockReference> iterator = appearsIn.iterator();
                 // just take the first i.e. ignore impact of side chains
                 if (iterator.hasNext()) {
-                    StoredBlock appearsInStoredBlock = iterator.next();
-                    Block appearsInBlock = appearsInStoredBlock.getHeader();
+                    BlockReference appearsInBlock = iterator.next();
                     // set the time of the block to be the time of the
                     // transaction - TODO get transaction time
                     return new Date(appearsInBlock.getTimeSeconds() * 1000);
@@ -598,15 +698,15 @@ public class MultiBitModel {
      * @return
      */
     private int workOutHeight(Transaction transaction) {
-        Set<StoredBlock> appearsIn = transaction.getAppearsIn();
+        Set<BlockReference> appearsIn = transaction.getAppearsIn();
         if (appearsIn != null) {
             if (!appearsIn.isEmpty()) {
-                Iterator<StoredBlock> iterator = appearsIn.iterator();
+                Iterator<BlockReference> iterator = appearsIn.iterator();
                 // just take the first i.e. ignore impact of side chains
                 if (iterator.hasNext()) {
-                    StoredBlock appearsInStoredBlock = iterator.next();
-                    if (appearsInStoredBlock != null) {
-                        return appearsInStoredBlock.getHeight();
+                    BlockReference appearsInBlock = iterator.next();
+                    if (appearsInBlock != null) {
+                        return appearsInBlock.getHeight();
                     }
                 }
             }
@@ -1,8 +1,10 @@
 package org.multibit.model;
 
+import java.math.BigInteger;
 import java.util.List;
 
 import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.Wallet.BalanceType;
 
 /**
  * this wrapper class wraps all the data pertaining to a single wallet
@@ -12,7 +14,11 @@ import com.google.bitcoin.core.Wallet;
  */
 public class PerWalletModelData {
 
-    private Wallet wallet;
+    /**
+     * the wallet - null until the wallet body has been loaded in the
+     * background
+     */
+    private volatile Wallet wallet;
     private String walletFilename;
     private WalletInfo walletInfo;
     private List<WalletTableData> walletTableDataList;
@@ -56,6 +62,65 @@ public class PerWalletModelData {
         this.wallet = wallet;
     }
 
+    /**
+     * @return true once the wallet body has been loaded, before then only the
+     *         summary in the wallet info is available
+     */
+    public boolean isWalletLoaded() {
+        return wallet != null;
+    }
+
+    /**
+     * get the estimated balance of the wallet, from the summary saved in the
+     * wallet info if the wallet has not been loaded yet
+     * 
+     * @return the estimated balance or null if it is not known
+     */
+    public BigInteger getEstimatedBalance() {
+        Wallet loadedWallet = wallet;
+        if (loadedWallet != null) {
+            return loadedWallet.getSnapshot().getBalance(BalanceType.ESTIMATED);
+        }
+        String estimatedBalance = getSummaryProperty(MultiBitModel.WALLET_ESTIMATED_BALANCE);
+        if (estimatedBalance == null) {
+            return null;
+        }
+        try {
+            return new BigInteger(estimatedBalance);
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+
+    /**
+     * get the number of keys in the wallet, from the summary saved in the
+     * wallet info if the wallet has not been loaded yet
+     * 
+     * @return the number of keys or -1 if it is not known
+     */
+    public int getNumberOfKeys() {
+        Wallet loadedWallet = wallet;
+        if (loadedWallet != null) {
+            return loadedWallet.keychain.size();
+        }
+        String numberOfKeys = getSummaryProperty(MultiBitModel.WALLET_NUMBER_OF_KEYS);
+        if (numberOfKeys == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(numberOfKeys);
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    private String getSummaryProperty(String key) {
+        if (walletInfo == null) {
+            return null;
+        }
+        return walletInfo.getProperty(key);
+    }
+
     public String getWalletFilename() {
         return walletFilename;
     }
@@ -13,6 +13,10 @@ import java.util.*;
  * 
  * it is stored in the same directory as the wallet and has the suffix ".info"
  * 
+ * it is written on the save thread while the ui changes it, so the methods
+ * that read or change the addresses and properties are synchronized on the
+ * wallet info, the same lock the file handler holds while saving
+ * 
  * @author jim
  * 
  */
@@ -22,9 +26,9 @@ public class WalletInfo {
 
     /**
      * the total receiving addresses known - from the address book (will include
-     * keys that are in other wallets)
+     * keys that are in other wallets), by address
      */
-    private Set<AddressBookData> candidateReceivingAddresses;
+    private Map<String, AddressBookData> candidateReceivingAddresses;
 
     /**
      * the actual receiving addresses exposed for this address book (only keys
@@ -33,11 +37,29 @@ public class WalletInfo {
     private Vector<AddressBookData> receivingAddresses;
     private Vector<AddressBookData> sendingAddresses;
 
+    /**
+     * the receiving and sending addresses by address, so that labels can be
+     * looked up without searching the lists. they are built when first needed
+     * and dropped whenever a list is changed other than by adding to it
+     */
+    private Map<String, AddressBookData> receivingAddressIndex;
+    private Map<String, AddressBookData> sendingAddressIndex;
+
+    /**
+     * the receiving and sending address lines as last written, so that a save
+     * after only the properties have changed does not encode every address
+     * again. null when the addresses have changed since
+     */
+    private byte[] encodedReceivingAddresses;
+    private byte[] encodedSendingAddresses;
+
     private static final String INFO_FILE_EXTENSION = "info";
     private static final String RECEIVE_ADDRESS_MARKER = "receive";
     private static final String SEND_ADDRESS_MARKER = "send";
     private static final String PROPERTY_MARKER = "property";
     private static final String SEPARATOR = ",";
+    private static final String ENCODING = "UTF8";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
 
     private static final String INFO_MAGIC_TEXT = "multiBit.info";
     private static final String INFO_VERSION_TEXT = "1";
@@ -62,7 +84,7 @@ public class WalletInfo {
     public WalletInfo(String walletFilename) {
         this.walletFilename = walletFilename;
 
-        candidateReceivingAddresses = new HashSet<AddressBookData>();
+        candidateReceivingAddresses = new LinkedHashMap<String, AddressBookData>();
         // TODO Consider an ArrayList if possible
         receivingAddresses = new Vector<AddressBookData>();
         sendingAddresses = new Vector<AddressBookData>();
@@ -78,7 +100,7 @@ public class WalletInfo {
      * @param key
      * @param value
      */
-    public void put(String key, String value) {
+    public synchronized void put(String key, String value) {
         walletPreferences.put(key, value);
     }
 
@@ -88,20 +110,58 @@ public class WalletInfo {
      * @param key
      * @return
      */
-    public String getProperty(String key) {
+    public synchronized String getProperty(String key) {
         return (String) walletPreferences.getProperty(key);
     }
 
+    /**
+     * get the receiving addresses - change them with the methods on this
+     * class so that the address index is kept up to date
+     */
     public Vector<AddressBookData> getReceivingAddresses() {
         return receivingAddresses;
     }
 
+    /**
+     * get the sending addresses - change them with the methods on this class
+     * so that the address index is kept up to date
+     */
     public Vector<AddressBookData> getSendingAddresses() {
         return sendingAddresses;
     }
 
-    public void setSendingAddresses(Vector<AddressBookData> sendingAddresses) {
+    public synchronized void setSendingAddresses(Vector<AddressBookData> sendingAddresses) {
         this.sendingAddresses = sendingAddresses;
+        sendingAddressIndex = null;
+        encodedSendingAddresses = null;
+    }
+
+    /**
+     * replace the receiving address on a row of the address book
+     */
+    public synchronized void setReceivingAddressByRow(int row, AddressBookData receivingAddress) {
+        receivingAddresses.set(row, receivingAddress);
+        receivingAddressIndex = null;
+        encodedReceivingAddresses = null;
+    }
+
+    /**
+     * replace the sending address on a row of the address book
+     */
+    public synchronized void setSendingAddressByRow(int row, AddressBookData sendingAddress) {
+        sendingAddresses.set(row, sendingAddress);
+        sendingAddressIndex = null;
+        encodedSendingAddresses = null;
+    }
+
+    /**
+     * remove all the receiving addresses of the keys of the wallet, leaving
+     * the candidate receiving addresses
+     */
+    public synchronized void clearReceivingAddresses() {
+        receivingAddresses.clear();
+        receivingAddressIndex = null;
+        encodedReceivingAddresses = null;
     }
 
     /**
@@ -112,32 +172,31 @@ public class WalletInfo {
      * @param addToCandidates
      *            - add to the list of candidate receiving addresses
      */
-    public void addReceivingAddress(AddressBookData receivingAddress, boolean addToCandidates) {
+    public synchronized void addReceivingAddress(AddressBookData receivingAddress, boolean addToCandidates) {
         if (receivingAddress == null) {
             return;
         }
 
-        Collection<AddressBookData> addressesToUse;
         if (addToCandidates) {
-            addressesToUse = candidateReceivingAddresses;
+            AddressBookData existingAddress = candidateReceivingAddresses.get(receivingAddress.getAddress());
+            if (existingAddress != null) {
+                // just update label
+                existingAddress.setLabel(receivingAddress.getLabel());
+            } else {
+                candidateReceivingAddresses.put(receivingAddress.getAddress(), receivingAddress);
+            }
         } else {
-            addressesToUse = receivingAddresses;
-        }
-
-        boolean done = false;
-        // check the address is not already in the set
-        for (AddressBookData addressBookData : addressesToUse) {
-            if (addressBookData.getAddress().equals(receivingAddress.getAddress())) {
+            Map<String, AddressBookData> index = getReceivingAddressIndex();
+            AddressBookData existingAddress = index.get(receivingAddress.getAddress());
+            if (existingAddress != null) {
                 // just update label
-                addressBookData.setLabel(receivingAddress.getLabel());
-                done = true;
-                break;
+                existingAddress.setLabel(receivingAddress.getLabel());
+            } else {
+                receivingAddresses.add(receivingAddress);
+                index.put(receivingAddress.getAddress(), receivingAddress);
             }
         }
-
-        if (!done) {
-            addressesToUse.add(receivingAddress);
-        }
+        encodedReceivingAddresses = null;
     }
 
     /**
@@ -147,296 +206,315 @@ public class WalletInfo {
      * 
      * @param receivingAddress
      */
-    public void addReceivingAddressOfKey(Address receivingAddress) {
+    public synchronized void addReceivingAddressOfKey(Address receivingAddress) {
         if (receivingAddress == null) {
             return;
         }
 
-        if (!containsReceivingAddress(receivingAddress.toString())) {
+        String address = receivingAddress.toString();
+        if (!containsReceivingAddress(address)) {
             // see if there is a label in the candidate receiving addresses
             String label = "";
-
-            for (AddressBookData addressBookData : candidateReceivingAddresses) {
-                if (addressBookData.getAddress().equals(receivingAddress.toString())) {
-                    label = addressBookData.getLabel();
-                    break;
-                }
+            AddressBookData candidateAddress = candidateReceivingAddresses.get(address);
+            if (candidateAddress != null) {
+                label = candidateAddress.getLabel();
             }
-            receivingAddresses.add(new AddressBookData(label, receivingAddress.toString()));
+            AddressBookData addressBookData = new AddressBookData(label, address);
+            receivingAddresses.add(addressBookData);
+            getReceivingAddressIndex().put(address, addressBookData);
+            encodedReceivingAddresses = null;
         }
     }
 
-    public boolean containsReceivingAddress(String receivingAddress) {
-        boolean toReturn = false;
+    public synchronized boolean containsReceivingAddress(String receivingAddress) {
         // see if the receiving address is on the current list
-        for (AddressBookData addressBookData : receivingAddresses) {
-            if (addressBookData.getAddress().equals(receivingAddress.toString())) {
-                // do nothing
-                toReturn = true;
-                break;
-            }
-        }
-
-        return toReturn;
+        return getReceivingAddressIndex().containsKey(receivingAddress);
     }
 
-    public void addSendingAddress(AddressBookData sendingAddress) {
+    public synchronized void addSendingAddress(AddressBookData sendingAddress) {
         if (sendingAddress == null) {
             return;
         }
 
-        boolean done = false;
-        // check the address is not already in the Vector
-        for (AddressBookData addressBookData : sendingAddresses) {
-            if (addressBookData.getAddress() != null && addressBookData.getAddress().equals(sendingAddress.getAddress())) {
+        if (sendingAddress.getAddress() == null) {
+            sendingAddresses.add(sendingAddress);
+        } else {
+            Map<String, AddressBookData> index = getSendingAddressIndex();
+            AddressBookData existingAddress = index.get(sendingAddress.getAddress());
+            if (existingAddress != null) {
                 // just update label
-                addressBookData.setLabel(sendingAddress.getLabel());
-                done = true;
-                break;
+                existingAddress.setLabel(sendingAddress.getLabel());
+            } else {
+                sendingAddresses.add(sendingAddress);
+                index.put(sendingAddress.getAddress(), sendingAddress);
             }
         }
-
-        if (!done) {
-            sendingAddresses.add(sendingAddress);
-        }
+        encodedSendingAddresses = null;
      }
 
-    public String lookupLabelForReceivingAddress(String address) {
-        for (AddressBookData addressBookData : receivingAddresses) {
-            if (addressBookData.getAddress().equals(address)) {
-                return addressBookData.getLabel();
-            }
+    public synchronized String lookupLabelForReceivingAddress(String address) {
+        AddressBookData addressBookData = getReceivingAddressIndex().get(address);
+        if (addressBookData != null) {
+            return addressBookData.getLabel();
         }
 
         return "";
     }
 
-    public String lookupLabelForSendingAddress(String address) {
-        for (AddressBookData addressBookData : sendingAddresses) {
-            if (addressBookData.getAddress().equals(address)) {
-                return addressBookData.getLabel();
-            }
+    public synchronized String lookupLabelForSendingAddress(String address) {
+        AddressBookData addressBookData = getSendingAddressIndex().get(address);
+        if (addressBookData != null) {
+            return addressBookData.getLabel();
         }
 
         return "";
     }
 
+    /**
+     * the address indexes are only used with the wallet info lock held
+     */
+    private Map<String, AddressBookData> getReceivingAddressIndex() {
+        if (receivingAddressIndex == null) {
+            receivingAddressIndex = createAddressIndex(receivingAddresses);
+        }
+        return receivingAddressIndex;
+    }
+
+    private Map<String, AddressBookData> getSendingAddressIndex() {
+        if (sendingAddressIndex == null) {
+            sendingAddressIndex = createAddressIndex(sendingAddresses);
+        }
+        return sendingAddressIndex;
+    }
+
+    /**
+     * index the addresses by address - where an address is on the list more
+     * than once the first one is used, as a search of the list would
+     */
+    private static Map<String, AddressBookData> createAddressIndex(List<AddressBookData> addresses) {
+        Map<String, AddressBookData> index = new HashMap<String, AddressBookData>(addresses.size() * 2 + 16);
+        for (AddressBookData addressBookData : addresses) {
+            if (addressBookData != null && addressBookData.getAddress() != null
+                    && !index.containsKey(addressBookData.getAddress())) {
+                index.put(addressBookData.getAddress(), addressBookData);
+            }
+        }
+        return index;
+    }
+
     /**
      * write out the wallet info to the file specified internally
      */
-    public void writeToFile() {
+    public synchronized void writeToFile() {
         writeToFile(createWalletInfoFilename(walletFilename));
     }
 
     /**
      * write out the wallet info to the file specified as a parameter - a comma
      * separated file format is used
+     * 
+     * the wallet info is written to a temporary file, synced and then renamed
+     * over the old one so that a program stopped part way through the write
+     * leaves either the old or the new wallet info
      */
-    public void writeToFile(String walletInfoFilename) {
+    public synchronized void writeToFile(String walletInfoFilename) {
+        File walletInfoFile = new File(walletInfoFilename);
+        File temporaryFile = new File(walletInfoFilename + TEMPORARY_SUFFIX);
+        FileOutputStream fileOutputStream = null;
+        OutputStream out = null;
         try {
-            // we write out the union of the candidate and actual receiving
-            // addresses
-            HashMap<String, AddressBookData> allReceivingAddresses = new HashMap<String, AddressBookData>();
-            if (candidateReceivingAddresses != null) {
-                for (AddressBookData addressBookData : candidateReceivingAddresses) {
-                    allReceivingAddresses.put(addressBookData.address, addressBookData);
+            fileOutputStream = new FileOutputStream(temporaryFile);
+            out = new BufferedOutputStream(fileOutputStream);
+            writeTo(out);
+            out.flush();
+            fileOutputStream.getFD().sync();
+            out.close();
+            out = null;
+
+            if (!temporaryFile.renameTo(walletInfoFile)) {
+                // on Windows the rename fails if the file exists
+                if (!walletInfoFile.delete() || !temporaryFile.renameTo(walletInfoFile)) {
+                    throw new IOException("Could not replace " + walletInfoFilename + " with " + temporaryFile);
                 }
             }
-            if (receivingAddresses != null) {
-                for (AddressBookData addressBookData : receivingAddresses) {
-                    allReceivingAddresses.put(addressBookData.address, addressBookData);
+        } catch (IOException ioe) {
+            log.error(ioe.getMessage(), ioe);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ioe) {
+                    log.error(ioe.getMessage(), ioe);
                 }
             }
+        }
+    }
 
-            // Create file
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(walletInfoFilename), "UTF8"));
+    /**
+     * write out the wallet info in the wallet info file format. the stream is
+     * not flushed or closed
+     */
+    public synchronized void writeTo(OutputStream out) throws IOException {
+        // the addresses are encoded again only if they have changed since
+        // they were last written
+        if (encodedReceivingAddresses == null) {
+            encodedReceivingAddresses = encodeReceivingAddresses();
+        }
+        if (encodedSendingAddresses == null) {
+            encodedSendingAddresses = encodeAddresses(SEND_ADDRESS_MARKER, sendingAddresses);
+        }
 
-            // write out the multibit addressbook identifier
-            out.write(INFO_MAGIC_TEXT + SEPARATOR + INFO_VERSION_TEXT + "\n");
+        // write out the multibit addressbook identifier and the wallet
+        // version
+        StringBuilder header = new StringBuilder();
+        appendLine(header, INFO_MAGIC_TEXT, INFO_VERSION_TEXT, null);
+        appendLine(header, WALLET_VERSION_MARKER, WALLET_VERSION_TEXT, null);
+        out.write(header.toString().getBytes(ENCODING));
 
-            // write out the wallet version
-            out.write(WALLET_VERSION_MARKER + SEPARATOR + WALLET_VERSION_TEXT + "\n");
+        out.write(encodedReceivingAddresses);
+        out.write(encodedSendingAddresses);
 
-            Collection<AddressBookData> receiveAddressValues = allReceivingAddresses.values();
-            for (AddressBookData addressBookData : receiveAddressValues) {
-                String columnOne = RECEIVE_ADDRESS_MARKER;
-                String columnTwo = addressBookData.getAddress();
-                String columnThree = addressBookData.getLabel();
-                if (columnTwo == null) {
-                    columnTwo = "";
-                }
-                out.write(columnOne + SEPARATOR + columnTwo + SEPARATOR + columnThree + "\n");
-            }
+        // the properties include the file sizes so change on every save
+        StringBuilder properties = new StringBuilder();
+        for (Object key : walletPreferences.keySet()) {
+            appendLine(properties, PROPERTY_MARKER, (String) key, (String) walletPreferences.get(key));
+        }
+        out.write(properties.toString().getBytes(ENCODING));
+    }
 
-            for (AddressBookData addressBookData : sendingAddresses) {
-                String columnOne = SEND_ADDRESS_MARKER;
-                String columnTwo = addressBookData.getAddress();
-                String columnThree = addressBookData.getLabel();
-                if (columnTwo == null) {
-                    columnTwo = "";
-                }
-                out.write(columnOne + SEPARATOR + columnTwo + SEPARATOR + columnThree + "\n");
+    /**
+     * put back a wallet info file that a write had deleted but not yet
+     * replaced when the program stopped
+     */
+    private static void recoverInterruptedWrite(String walletInfoFilename) {
+        File walletInfoFile = new File(walletInfoFilename);
+        File temporaryFile = new File(walletInfoFilename + TEMPORARY_SUFFIX);
+        if (!walletInfoFile.exists() && temporaryFile.exists()) {
+            if (temporaryFile.renameTo(walletInfoFile)) {
+                log.info("Recovered wallet info " + walletInfoFilename + " from an interrupted write");
+            } else {
+                log.error("Could not rename " + temporaryFile + " to " + walletInfoFilename);
             }
+        }
+    }
 
-            for (Object key : walletPreferences.keySet()) {
-                String columnOne = PROPERTY_MARKER;
-                String columnTwo = (String) key;
-                String columnThree = (String) walletPreferences.get(key);
-                if (columnTwo == null) {
-                    columnTwo = "";
-                }
-                out.write(columnOne + SEPARATOR + columnTwo + SEPARATOR + columnThree + "\n");
+    /**
+     * encode the union of the candidate and actual receiving addresses, with
+     * the labels of the actual receiving addresses taking precedence
+     */
+    private byte[] encodeReceivingAddresses() throws IOException {
+        Map<String, AddressBookData> index = getReceivingAddressIndex();
+        StringBuilder builder = new StringBuilder();
+        for (AddressBookData addressBookData : candidateReceivingAddresses.values()) {
+            if (!index.containsKey(addressBookData.getAddress())) {
+                appendLine(builder, RECEIVE_ADDRESS_MARKER, addressBookData.getAddress(), addressBookData.getLabel());
             }
+        }
+        for (AddressBookData addressBookData : index.values()) {
+            appendLine(builder, RECEIVE_ADDRESS_MARKER, addressBookData.getAddress(), addressBookData.getLabel());
+        }
+        return builder.toString().getBytes(ENCODING);
+    }
 
-            // Close the output stream
-            out.close();
-        } catch (IOException ioe) {
-            log.error(ioe.getMessage(), ioe);
+    private static byte[] encodeAddresses(String marker, List<AddressBookData> addresses) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (AddressBookData addressBookData : addresses) {
+            appendLine(builder, marker, addressBookData.getAddress(), addressBookData.getLabel());
+        }
+        return builder.toString().getBytes(ENCODING);
+    }
 
+    private static void appendLine(StringBuilder builder, String columnOne, String columnTwo, String columnThree) {
+        builder.append(columnOne).append(SEPARATOR);
+        builder.append(columnTwo == null ? "" : columnTwo);
+        if (columnThree != null) {
+            builder.append(SEPARATOR).append(columnThree);
         }
+        builder.append('\n');
     }
 
-    public void loadFromFile() {
-        // TODO Is this try/catch block too wide in scope?
-        try {
-            walletPreferences = new Properties();
+    /**
+     * read the wallet info in a single pass over the file. each address or
+     * property is on a line of its own as marker,address or key,label or value
+     * - a label or value may run on over following lines
+     */
+    public synchronized void loadFromFile() {
+        walletPreferences = new Properties();
+        recoverInterruptedWrite(createWalletInfoFilename(walletFilename));
 
-            // Read in the wallet info data
-            FileInputStream fileInputStream = new FileInputStream(createWalletInfoFilename(walletFilename));
-            // Get the object of DataInputStream
-            InputStream inputStream = new DataInputStream(fileInputStream);
-            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream, "UTF8"));
-            String inputLine;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(createWalletInfoFilename(walletFilename)),
+                    ENCODING));
 
             // check the first line is what we expect
-            String firstLine = bufferedReader.readLine();
-            StringTokenizer tokenizer = new StringTokenizer(firstLine, SEPARATOR);
-            int numberOfTokens = tokenizer.countTokens();
-            if (numberOfTokens == 2) {
-                String magicText = tokenizer.nextToken();
-                String versionNumber = tokenizer.nextToken();
-                if (!INFO_MAGIC_TEXT.equals(magicText) || !INFO_VERSION_TEXT.equals(versionNumber)) {
-                    // this is not an multibit address book
-                    return;
-                }
-            } else {
+            if (!(INFO_MAGIC_TEXT + SEPARATOR + INFO_VERSION_TEXT).equals(reader.readLine())) {
                 // this is not an multibit address book
                 return;
             }
 
             // read the wallet version
-            String secondLine = bufferedReader.readLine();
-            StringTokenizer walletVersionTokenizer = new StringTokenizer(secondLine, SEPARATOR);
-            int walletVersionTokenNumber = walletVersionTokenizer.countTokens();
-            if (walletVersionTokenNumber == 2) {
-                String walletVersionMarker = walletVersionTokenizer.nextToken();
-                String walletVersionString = walletVersionTokenizer.nextToken();
-                if (!WALLET_VERSION_MARKER.equals(walletVersionMarker) || !WALLET_VERSION_TEXT.equals(walletVersionString)) {
-                    // this refers to a version of the wallet we do not know
-                    // about
-
-                    // TODO throw exception
-                    return;
-                } else {
-                    walletVersion = walletVersionString;
-                }
-            } else {
-                // the format of the info format is wrong
+            if (!(WALLET_VERSION_MARKER + SEPARATOR + WALLET_VERSION_TEXT).equals(reader.readLine())) {
+                // this refers to a version of the wallet we do not know about
+                // or the format of the info file is wrong
+
+                // TODO throw exception
                 return;
             }
+            walletVersion = WALLET_VERSION_TEXT;
 
             // read the addresses and general properties
-            boolean isMultilineColumnThree = false;
-            String previousColumnOne = null;
-            String previousColumnTwo = null;
-            String multilineColumnThreeValue = null;
-
-            while ((inputLine = bufferedReader.readLine()) != null) {
-                if (inputLine.startsWith(RECEIVE_ADDRESS_MARKER + SEPARATOR)
-                        || inputLine.startsWith(SEND_ADDRESS_MARKER + SEPARATOR)
-                        || inputLine.startsWith(PROPERTY_MARKER + SEPARATOR)) {
-                    if (isMultilineColumnThree) {
-                        // add previous multiline column three to model
-                        if (RECEIVE_ADDRESS_MARKER.equals(previousColumnOne)) {
-                            addReceivingAddress(new AddressBookData(multilineColumnThreeValue, previousColumnTwo), true);
-                        } else {
-                            if (SEND_ADDRESS_MARKER.equals(previousColumnOne)) {
-                                addSendingAddress(new AddressBookData(multilineColumnThreeValue, previousColumnTwo));
-                            } else {
-                                if (PROPERTY_MARKER.equals(previousColumnOne)) {
-                                    walletPreferences.put(previousColumnTwo, multilineColumnThreeValue);
-                                }
-                            }
-                        }
-                        previousColumnOne = null;
-                        previousColumnTwo = null;
-                        multilineColumnThreeValue = null;
-
-                        isMultilineColumnThree = false;
-                    }
-                    StringTokenizer tokenizer2 = new StringTokenizer(inputLine, SEPARATOR);
-                    int numberOfTokens2 = tokenizer2.countTokens();
-                    String columnOne = null;
-                    String columnTwo = null;
-                    String columnThree = "";
-                    if (numberOfTokens2 == 2) {
-                        columnOne = tokenizer2.nextToken();
-                        columnTwo = tokenizer2.nextToken();
-                    } else {
-                        if (numberOfTokens2 == 3) {
-                            columnOne = tokenizer2.nextToken();
-                            columnTwo = tokenizer2.nextToken();
-                            columnThree = tokenizer2.nextToken();
-                        }
-                    }
-                    if (RECEIVE_ADDRESS_MARKER.equals(columnOne)) {
-                        addReceivingAddress(new AddressBookData(columnThree, columnTwo), true);
+            String columnOne = null;
+            String columnTwo = null;
+            StringBuilder columnThree = new StringBuilder();
+
+            String inputLine;
+            while ((inputLine = reader.readLine()) != null) {
+                int firstSeparator = inputLine.indexOf(SEPARATOR);
+                String marker = firstSeparator < 0 ? null : inputLine.substring(0, firstSeparator);
+                if (RECEIVE_ADDRESS_MARKER.equals(marker) || SEND_ADDRESS_MARKER.equals(marker)
+                        || PROPERTY_MARKER.equals(marker)) {
+                    addLoadedLine(columnOne, columnTwo, columnThree.toString());
+
+                    int secondSeparator = inputLine.indexOf(SEPARATOR, firstSeparator + 1);
+                    columnOne = marker;
+                    columnThree.setLength(0);
+                    if (secondSeparator < 0) {
+                        columnTwo = inputLine.substring(firstSeparator + 1);
                     } else {
-                        if (SEND_ADDRESS_MARKER.equals(columnOne)) {
-                            addSendingAddress(new AddressBookData(columnThree, columnTwo));
-                        } else {
-                            if (PROPERTY_MARKER.equals(columnOne)) {
-                                walletPreferences.put(columnTwo, columnThree);
-                            }
-                        }
+                        columnTwo = inputLine.substring(firstSeparator + 1, secondSeparator);
+                        columnThree.append(inputLine, secondSeparator + 1, inputLine.length());
                     }
-
-                    previousColumnOne = columnOne;
-                    previousColumnTwo = columnTwo;
-                    multilineColumnThreeValue = columnThree;
-                } else {
+                } else if (columnOne != null) {
                     // this is a multiline column 3 (typically a multiline
                     // label)
-                    isMultilineColumnThree = true;
-                    multilineColumnThreeValue = multilineColumnThreeValue + "\n" + inputLine;
+                    columnThree.append('\n').append(inputLine);
                 }
             }
-            if (isMultilineColumnThree) {
-                // add it to the model
-                // add previous multiline column three to model
-                if (RECEIVE_ADDRESS_MARKER.equals(previousColumnOne)) {
-                    addReceivingAddress(new AddressBookData(multilineColumnThreeValue, previousColumnTwo), true);
-                } else {
-                    if (SEND_ADDRESS_MARKER.equals(previousColumnOne)) {
-                        addSendingAddress(new AddressBookData(multilineColumnThreeValue, previousColumnTwo));
-                    } else {
-                        if (PROPERTY_MARKER.equals(previousColumnOne)) {
-                            walletPreferences.put(previousColumnTwo, multilineColumnThreeValue);
-                        }
-                    }
+            addLoadedLine(columnOne, columnTwo, columnThree.toString());
+        } catch (IOException e) {
+            // may well not be a file - absorb exception
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    log.error(e.getMessage(), e);
                 }
-                previousColumnOne = null;
-                previousColumnTwo = null;
-                multilineColumnThreeValue = null;
-
-                isMultilineColumnThree = false;
             }
+        }
+    }
 
-            // Close the input stream
-            inputStream.close();
-        } catch (Exception e) {
-            // Catch exception if any
-            // may well not be a file - absorb exception
+    private void addLoadedLine(String columnOne, String columnTwo, String columnThree) {
+        if (columnOne == null || columnTwo == null || "".equals(columnTwo)) {
+            return;
+        }
+        if (RECEIVE_ADDRESS_MARKER.equals(columnOne)) {
+            addReceivingAddress(new AddressBookData(columnThree, columnTwo), true);
+        } else if (SEND_ADDRESS_MARKER.equals(columnOne)) {
+            addSendingAddress(new AddressBookData(columnThree, columnTwo));
+        } else if (PROPERTY_MARKER.equals(columnOne)) {
+            walletPreferences.put(columnTwo, columnThree);
         }
     }
 
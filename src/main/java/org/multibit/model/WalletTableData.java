@@ -1,5 +1,6 @@
 package org.multibit.model;
 
+import com.google.bitcoin.core.ArchivedTransaction;
 import com.google.bitcoin.core.Transaction;
 
 import java.math.BigInteger;
@@ -20,6 +21,12 @@ public class WalletTableData {
             "walletData.debitText", "walletData.creditText" };
 
     private Transaction transaction;
+
+    /**
+     * set instead of the transaction for a transaction in the wallet archive -
+     * the transaction is read back from the archive when it is first described
+     */
+    private ArchivedTransaction archivedTransaction;
     
     /**
      * the height of the block this transaction appears in
@@ -55,6 +62,14 @@ public class WalletTableData {
         this.transaction = transaction;
     }
 
+    public ArchivedTransaction getArchivedTransaction() {
+        return archivedTransaction;
+    }
+
+    public void setArchivedTransaction(ArchivedTransaction archivedTransaction) {
+        this.archivedTransaction = archivedTransaction;
+    }
+
     public int getHeight() {
         return height;
     }
@@ -15,7 +15,18 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.multibit.ApplicationDataDirectoryLocator;
 import org.multibit.controller.MultiBitController;
@@ -27,6 +38,10 @@ import org.slf4j.LoggerFactory;
 
 import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.Wallet.BalanceType;
+import com.google.bitcoin.core.WalletArchive;
+import com.google.bitcoin.core.WalletFormat;
+import com.google.bitcoin.core.WalletJournal;
 
 /**
  * a class consolidating all the File IO in MultiBit
@@ -44,15 +59,201 @@ public class FileHandler {
     public static final String USER_PROPERTIES_FILE_NAME = "multibit.properties";
     public static final String USER_PROPERTIES_HEADER_TEXT = "multibit";
 
+    public static final String ARCHIVE_FILE_EXTENSION = "archive";
+    public static final String JOURNAL_FILE_EXTENSION = "journal";
+    public static final String UNFLUSHED_FILE_EXTENSION = "unflushed";
+
     private static final String SEPARATOR = "-";
     private static final String BACKUP_SUFFIX_FORMAT = "yyyyMMddHHmmss";
 
     private MultiBitController controller;
 
-    private Date dateForBackupName = null;
+
+    /**
+     * the default time, in milliseconds, a save requested with requestSave
+     * waits so that further requests for the same wallet are written with it
+     */
+    public static final long DEFAULT_SAVE_DELAY = 2000;
+
+    // wallets are written and wallet journals compacted on their own thread
+    // so that the Swing and network threads do not wait for the disk
+    private static final ScheduledExecutorService saveExecutor = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "MultiBit wallet saves");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private volatile long saveDelay = DEFAULT_SAVE_DELAY;
+
+    // the wallets with a save requested but not yet written, mapped to
+    // whether the save is forced
+    private final Map<PerWalletModelData, Boolean> pendingSaves = new LinkedHashMap<PerWalletModelData, Boolean>();
+
+    private boolean shutdownHookAdded = false;
+
+    /**
+     * told about every write of a wallet's files so that they are not taken
+     * as changes by another process
+     */
+    private final WalletFileWatcher walletFileWatcher;
+
+    /**
+     * saves the wallets in parallel when the program exits
+     */
+    private final WalletFlushCoordinator walletFlushCoordinator;
 
     public FileHandler(MultiBitController controller) {
         this.controller = controller;
+        this.walletFileWatcher = new WalletFileWatcher(controller);
+        this.walletFlushCoordinator = new WalletFlushCoordinator(this);
+    }
+
+    public WalletFileWatcher getWalletFileWatcher() {
+        return walletFileWatcher;
+    }
+
+    public WalletFlushCoordinator getWalletFlushCoordinator() {
+        return walletFlushCoordinator;
+    }
+
+    public long getSaveDelay() {
+        return saveDelay;
+    }
+
+    /**
+     * set how long, in milliseconds, a requested save waits before it is
+     * written
+     */
+    public void setSaveDelay(long saveDelay) {
+        this.saveDelay = saveDelay;
+    }
+
+    /**
+     * save the perWalletModelData on the background save thread. the save
+     * waits for the save delay and any further requests for the same wallet
+     * in that time are written with it
+     * 
+     * @param perWalletModelData
+     * @param forceWrite
+     *            force the write of the perWalletModelData
+     */
+    public void requestSave(final PerWalletModelData perWalletModelData, boolean forceWrite) {
+        if (perWalletModelData == null) {
+            return;
+        }
+        synchronized (pendingSaves) {
+            if (!shutdownHookAdded) {
+                // write out the outstanding saves when the program exits
+                Runtime.getRuntime().addShutdownHook(new Thread("MultiBit wallet saves shutdown") {
+                    @Override
+                    public void run() {
+                        flushAll();
+                    }
+                });
+                shutdownHookAdded = true;
+            }
+            Boolean pendingForceWrite = pendingSaves.get(perWalletModelData);
+            if (pendingForceWrite == null) {
+                pendingSaves.put(perWalletModelData, forceWrite);
+                saveExecutor.schedule(new Runnable() {
+                    public void run() {
+                        writePendingSave(perWalletModelData);
+                    }
+                }, saveDelay, TimeUnit.MILLISECONDS);
+            } else if (forceWrite && !pendingForceWrite) {
+                pendingSaves.put(perWalletModelData, true);
+            }
+        }
+    }
+
+    /**
+     * save the perWalletModelData now, including any save requested for it,
+     * and wait until it is written. use this when the wallet must be on disk
+     * before carrying on, for instance just after a send
+     */
+    public void flushAndWait(final PerWalletModelData perWalletModelData) {
+        if (perWalletModelData == null) {
+            return;
+        }
+        waitFor(saveExecutor.submit(new Runnable() {
+            public void run() {
+                Boolean forceWrite;
+                synchronized (pendingSaves) {
+                    forceWrite = pendingSaves.remove(perWalletModelData);
+                }
+                savePerWalletModelData(perWalletModelData, forceWrite != null && forceWrite);
+            }
+        }));
+    }
+
+    /**
+     * write every save that has been requested but not yet written, and every
+     * dirty wallet, and wait until they are done
+     */
+    public void flushAll() {
+        flushAll(WalletFlushCoordinator.DEFAULT_FLUSH_DEADLINE);
+    }
+
+    /**
+     * write every save that has been requested but not yet written, and every
+     * dirty wallet, in parallel and wait for them up to the deadline
+     * 
+     * @param deadline
+     *            the time, in milliseconds, to wait for the saves
+     * @return the wallets that were not saved by the deadline - they are
+     *         recovered when they are next loaded
+     */
+    public List<PerWalletModelData> flushAll(long deadline) {
+        Set<PerWalletModelData> perWalletModelDataSet = new LinkedHashSet<PerWalletModelData>();
+        synchronized (pendingSaves) {
+            perWalletModelDataSet.addAll(pendingSaves.keySet());
+        }
+        if (controller.getModel() != null) {
+            perWalletModelDataSet.addAll(controller.getModel().getPerWalletModelDataList());
+        }
+        return walletFlushCoordinator.flush(new ArrayList<PerWalletModelData>(perWalletModelDataSet), deadline);
+    }
+
+    /**
+     * take the save requested for a wallet so that it is not written again on
+     * the save thread
+     * 
+     * @return whether the save is forced, or null if no save was requested
+     */
+    Boolean takePendingSave(PerWalletModelData perWalletModelData) {
+        synchronized (pendingSaves) {
+            return pendingSaves.remove(perWalletModelData);
+        }
+    }
+
+    /**
+     * the number of wallets with a save requested but not yet written
+     */
+    int getNumberOfPendingSaves() {
+        synchronized (pendingSaves) {
+            return pendingSaves.size();
+        }
+    }
+
+    private void writePendingSave(PerWalletModelData perWalletModelData) {
+        Boolean forceWrite = takePendingSave(perWalletModelData);
+        if (forceWrite != null) {
+            // the save has not already been written by a flush
+            savePerWalletModelData(perWalletModelData, forceWrite);
+        }
+    }
+
+    private void waitFor(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error(e.getMessage(), e);
+        }
     }
 
     public PerWalletModelData loadFromFile(File walletFile) throws IOException {
@@ -61,7 +262,8 @@ public class FileHandler {
         }
 
         String walletFilename = walletFile.getAbsolutePath();
-        Wallet wallet = Wallet.loadFromFile(walletFile);
+
+        Wallet wallet = loadWallet(walletFile);
 
         // add the new wallet into the model
         PerWalletModelData perWalletModelData = controller.getModel().addWallet(wallet, walletFilename);
@@ -69,16 +271,34 @@ public class FileHandler {
         WalletInfo walletInfo = new WalletInfo(walletFilename);
         perWalletModelData.setWalletInfo(walletInfo);
 
-        // remove all the transactions from the wallet
-//        log.info("Wallet details for wallet file before clear= " + walletFilename + "\n" + wallet.toString());
-//        wallet.dead.clear();
-//        wallet.inactive.clear();
-//        wallet.pending.clear();
-//        wallet.spent.clear();
-//        wallet.unspent.clear();
-//        log.info("Wallet details for wallet file after clear= " + walletFilename + "\n" + wallet.toString());
-//
-//        savePerWalletModelData(perWalletModelData, false);
+        rememberFileSizesAndLastModified(walletFile, walletInfo);
+
+        perWalletModelData.setDirty(false);
+        perWalletModelData.setTransactionDirty(false);
+
+        recoverUnflushedWallet(perWalletModelData);
+
+        return perWalletModelData;
+    }
+
+    /**
+     * add a wallet to the model from its wallet info alone, which holds the
+     * description and a summary of the wallet, so that it can be shown
+     * straight away. the wallet itself is loaded later with loadWalletBody
+     * 
+     * @return the perWalletModelData, with no wallet
+     */
+    public PerWalletModelData loadHeaderFromFile(File walletFile) {
+        if (walletFile == null) {
+            return null;
+        }
+
+        String walletFilename = walletFile.getAbsolutePath();
+
+        PerWalletModelData perWalletModelData = controller.getModel().addWallet(null, walletFilename);
+
+        WalletInfo walletInfo = new WalletInfo(walletFilename);
+        perWalletModelData.setWalletInfo(walletInfo);
 
         rememberFileSizesAndLastModified(walletFile, walletInfo);
 
@@ -88,6 +308,88 @@ public class FileHandler {
         return perWalletModelData;
     }
 
+    /**
+     * load the wallet of a perWalletModelData added with loadHeaderFromFile.
+     * this may be called on a background thread and for several wallets at
+     * once
+     * 
+     * @return the wallet
+     */
+    public Wallet loadWalletBody(PerWalletModelData perWalletModelData) throws IOException {
+        File walletFile = new File(perWalletModelData.getWalletFilename());
+
+        Wallet wallet = loadWallet(walletFile);
+
+        WalletInfo walletInfo = perWalletModelData.getWalletInfo();
+        synchronized (walletInfo) {
+            controller.getModel().setWalletLoaded(perWalletModelData, wallet);
+
+            // adding the receiving addresses of the keys does not need
+            // saving, they are added each time the wallet is loaded
+            rememberFileSizesAndLastModified(walletFile, walletInfo);
+            perWalletModelData.setDirty(false);
+            perWalletModelData.setTransactionDirty(false);
+        }
+
+        recoverUnflushedWallet(perWalletModelData);
+
+        return wallet;
+    }
+
+    /**
+     * a wallet that was not saved when the program last exited is left with
+     * an unflushed marker. the wallet as loaded - the wallet file and the
+     * complete entries of its journal - is written again in full so that
+     * anything cut short is tidied away, and the marker is removed
+     */
+    private void recoverUnflushedWallet(PerWalletModelData perWalletModelData) {
+        File marker = new File(createWalletUnflushedFilename(perWalletModelData.getWalletFilename()));
+        if (!marker.exists()) {
+            return;
+        }
+        log.warn("Wallet " + perWalletModelData.getWalletFilename()
+                + " was not saved when MultiBit last exited, changes since its last save may need to be downloaded again");
+        savePerWalletModelData(perWalletModelData, true);
+        if (!perWalletModelData.isDirty() && !marker.delete()) {
+            log.error("Could not delete " + marker.getAbsolutePath());
+        }
+    }
+
+    private Wallet loadWallet(File walletFile) throws IOException {
+        String walletFilename = walletFile.getAbsolutePath();
+
+        WalletFormat.recoverInterruptedSave(walletFile);
+
+        // wallets written with Java serialization are rewritten once in the
+        // binary wallet format, keeping the original as a backup
+        try {
+            WalletFormat.migrateLegacyWallet(walletFile);
+        } catch (IOException e) {
+            // the legacy wallet can still be loaded as it is
+            log.error(e.getMessage(), e);
+        }
+
+        long start = System.currentTimeMillis();
+        Wallet wallet = Wallet.loadFromFile(walletFile);
+
+        // replay the changes saved since the wallet file was last written in
+        // full
+        WalletJournal.open(wallet, walletFile, new File(createWalletJournalFilename(walletFilename)));
+
+        // old fully spent transactions are kept in an archive next to the wallet
+        try {
+            WalletArchive walletArchive = new WalletArchive(wallet.getNetworkParameters(), new File(
+                    createWalletArchiveFilename(walletFilename)));
+            wallet.setArchive(walletArchive, WalletArchive.DEFAULT_DEPTH);
+        } catch (IOException e) {
+            // keep everything in memory rather than fail to open the wallet
+            log.error(e.getMessage(), e);
+        }
+        log.debug("Loading wallet " + walletFilename + " took " + (System.currentTimeMillis() - start) + " ms");
+
+        return wallet;
+    }
+
     /**
      * save the perWalletModelData to file
      * 
@@ -121,16 +423,20 @@ public class FileHandler {
 
                     synchronized (walletInfo) {
                         // save the companion wallet info
-                        if (walletInfo != null) {
-                            walletInfo.writeToFile();
-                        } else {
+                        if (walletInfo == null) {
                             walletInfo = new WalletInfo(perWalletModelData.getWalletFilename());
                             perWalletModelData.setWalletInfo(walletInfo);
-                            walletInfo.writeToFile();
                         }
+                        rememberWalletSummary(perWalletModelData.getWallet(), walletInfo);
+                        long writeToken = walletFileWatcher.beginWrite(perWalletModelData);
+                        try {
+                            walletInfo.writeToFile();
 
-                        if (perWalletModelData.getWallet() != null) {
-                            perWalletModelData.getWallet().saveToFile(walletFile);
+                            if (perWalletModelData.getWallet() != null) {
+                                saveWallet(perWalletModelData, walletFile, forceWrite);
+                            }
+                        } finally {
+                            walletFileWatcher.endWrite(perWalletModelData, writeToken);
                         }
 
                         rememberFileSizesAndLastModified(walletFile, walletInfo);
@@ -140,38 +446,19 @@ public class FileHandler {
                         perWalletModelData.setTransactionDirty(false);
                     }
                 } else {
-                    // write to backup files
+                    // write to a backup point in the wallet's backup store
                     File walletFile = new File(perWalletModelData.getWalletFilename());
                     WalletInfo walletInfo = perWalletModelData.getWalletInfo();
 
-                    // work out / reuse the backup file names
-                    String walletInfoBackupFilename = null;
-                    String walletBackupFilename = null;
-
-                    if (perWalletModelData.getWalletBackupFilename() != null) {
-                        walletBackupFilename = perWalletModelData.getWalletBackupFilename();
-                    }
-                    if (perWalletModelData.getWalletInfoBackupFilename() != null) {
-                        walletInfoBackupFilename = perWalletModelData.getWalletInfoBackupFilename();
-                    }
-
+                    // work out / reuse the backup point - the wallet and
+                    // wallet info are kept together in one manifest
+                    String walletBackupFilename = perWalletModelData.getWalletBackupFilename();
                     if (walletBackupFilename == null) {
-                        walletBackupFilename = createBackupFilename(walletFile, false);
+                        walletBackupFilename = createBackupManifestFilename(walletFile);
                         perWalletModelData.setWalletBackupFilename(walletBackupFilename);
-
-                        walletInfoBackupFilename = createBackupFilename(
-                                new File(WalletInfo.createWalletInfoFilename(perWalletModelData.getWalletFilename())), true);
-                        perWalletModelData.setWalletInfoBackupFilename(walletInfoBackupFilename);
-                    }
-
-                    // save the companion wallet info
-                    if (walletInfo != null) {
-                        walletInfo.writeToFile(walletInfoBackupFilename);
-                    }
-                    // save the wallet file
-                    if (perWalletModelData.getWallet() != null) {
-                        perWalletModelData.getWallet().saveToFile(new File(walletBackupFilename));
+                        perWalletModelData.setWalletInfoBackupFilename(walletBackupFilename);
                     }
+                    backupToStore(perWalletModelData, walletFile, walletInfo, new File(walletBackupFilename));
 
                     // the perWalletModelData is no longer dirty
                     perWalletModelData.setDirty(false);
@@ -184,6 +471,52 @@ public class FileHandler {
         return;
     }
 
+    /**
+     * save the wallet by appending its changes to the wallet journal, only
+     * writing the whole wallet when forced to or when the wallet has no
+     * journal yet. a journal that has grown large is compacted in the
+     * background
+     */
+    private void saveWallet(final PerWalletModelData perWalletModelData, final File walletFile, boolean forceWrite)
+            throws IOException {
+        Wallet wallet = perWalletModelData.getWallet();
+        final WalletJournal journal = wallet.getJournal();
+        if (journal == null) {
+            WalletJournal.create(wallet, walletFile,
+                    new File(createWalletJournalFilename(perWalletModelData.getWalletFilename())));
+        } else if (forceWrite) {
+            journal.compact();
+        } else {
+            journal.commit();
+            if (journal.isCompactionDue()) {
+                saveExecutor.execute(new Runnable() {
+                    public void run() {
+                        WalletInfo walletInfo = perWalletModelData.getWalletInfo();
+                        if (walletInfo == null) {
+                            return;
+                        }
+                        // the wallet info lock keeps the wallet file from
+                        // looking changed by another process until its new
+                        // size has been remembered
+                        synchronized (walletInfo) {
+                            long writeToken = walletFileWatcher.beginWrite(perWalletModelData);
+                            try {
+                                if (journal.isCompactionDue()) {
+                                    journal.compact();
+                                }
+                            } catch (IOException e) {
+                                log.error(e.getMessage(), e);
+                            } finally {
+                                walletFileWatcher.endWrite(perWalletModelData, writeToken);
+                            }
+                            rememberFileSizesAndLastModified(walletFile, walletInfo);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
     public boolean haveFilesChanged(PerWalletModelData perWalletModelData) {
         if (perWalletModelData == null || perWalletModelData.getWalletFilename() == null) {
             return false;
@@ -227,14 +560,9 @@ public class FileHandler {
                 // create backup filenames early if the files have changed
                 // (it is then available in the tooltip)
                 if (haveFilesChanged && perWalletModelData.getWalletBackupFilename() == null) {
-                    try {
-                        perWalletModelData.setWalletBackupFilename(createBackupFilename(walletFile, false));
-
-                        perWalletModelData.setWalletInfoBackupFilename(createBackupFilename(
-                                new File(WalletInfo.createWalletInfoFilename(perWalletModelData.getWalletFilename())), true));
-                    } catch (IOException e) {
-                        log.error(e.getMessage(), e);
-                    }
+                    String walletBackupFilename = createBackupManifestFilename(walletFile);
+                    perWalletModelData.setWalletBackupFilename(walletBackupFilename);
+                    perWalletModelData.setWalletInfoBackupFilename(walletBackupFilename);
                 }
             }
         }
@@ -242,6 +570,19 @@ public class FileHandler {
         return haveFilesChanged;
     }
 
+    /**
+     * keep a summary of the wallet in the wallet info so that the wallet can
+     * be shown at startup before it is loaded
+     */
+    private void rememberWalletSummary(Wallet wallet, WalletInfo walletInfo) {
+        if (wallet == null) {
+            return;
+        }
+        walletInfo.put(MultiBitModel.WALLET_ESTIMATED_BALANCE,
+                wallet.getSnapshot().getBalance(BalanceType.ESTIMATED).toString());
+        walletInfo.put(MultiBitModel.WALLET_NUMBER_OF_KEYS, "" + wallet.keychain.size());
+    }
+
     /**
      * keep a record of the wallet and wallet info files sizes and date last
      * modified
@@ -322,32 +663,97 @@ public class FileHandler {
     }
 
     /**
-     * create a backup filename the format is: original file: filename.suffix
-     * backup file: filename-yyyymmddhhmmss.suffix
-     * 
-     * @param file
-     * @param reusePreviousBackupDate
-     *            Reuse the previously created backup date so that wallet and
-     *            wallet info names match
-     * @return
-     * @throws IOException
+     * the wallet archive file is the wallet filename with an archive suffix
+     * e.g. original file: filename.wallet archive file: filename.archive
      */
-    private String createBackupFilename(File file, boolean reusePreviousBackupDate) throws IOException {
-        String filename = file.getAbsolutePath();
+    public static String createWalletArchiveFilename(String walletFilename) {
+        String walletArchiveFilename = walletFilename;
+        if (walletFilename.endsWith(MultiBitModel.WALLET_FILE_EXTENSION)) {
+            walletArchiveFilename = walletArchiveFilename.substring(0,
+                    walletFilename.length() - MultiBitModel.WALLET_FILE_EXTENSION.length() - 1);
+        }
+        return walletArchiveFilename + "." + ARCHIVE_FILE_EXTENSION;
+    }
 
-        // find suffix
-        int suffixSeparator = filename.lastIndexOf(".");
-        String stem = filename.substring(0, suffixSeparator);
-        String suffix = filename.substring(suffixSeparator); // includes
-                                                             // separating dot
+    /**
+     * the unflushed marker of a wallet is the wallet filename with an
+     * unflushed suffix e.g. original file: filename.wallet marker:
+     * filename.unflushed
+     */
+    public static String createWalletUnflushedFilename(String walletFilename) {
+        String walletUnflushedFilename = walletFilename;
+        if (walletFilename.endsWith(MultiBitModel.WALLET_FILE_EXTENSION)) {
+            walletUnflushedFilename = walletUnflushedFilename.substring(0,
+                    walletFilename.length() - MultiBitModel.WALLET_FILE_EXTENSION.length() - 1);
+        }
+        return walletUnflushedFilename + "." + UNFLUSHED_FILE_EXTENSION;
+    }
 
-        if (dateForBackupName == null || !reusePreviousBackupDate) {
-            dateForBackupName = new Date();
+    /**
+     * the wallet journal file is the wallet filename with a journal suffix
+     * e.g. original file: filename.wallet journal file: filename.journal
+     */
+    public static String createWalletJournalFilename(String walletFilename) {
+        String walletJournalFilename = walletFilename;
+        if (walletFilename.endsWith(MultiBitModel.WALLET_FILE_EXTENSION)) {
+            walletJournalFilename = walletJournalFilename.substring(0,
+                    walletFilename.length() - MultiBitModel.WALLET_FILE_EXTENSION.length() - 1);
+        }
+        return walletJournalFilename + "." + JOURNAL_FILE_EXTENSION;
+    }
+
+    /**
+     * create the filename of the manifest of a new backup point in the
+     * wallet's backup store. the format is: original file: filename.wallet
+     * backup point: filename-backups/filename-yyyymmddhhmmss.backup
+     */
+    private String createBackupManifestFilename(File walletFile) {
+        WalletBackupStore walletBackupStore = WalletBackupStore.forWallet(walletFile.getAbsolutePath());
+
+        String stem = walletFile.getName();
+        int suffixSeparator = stem.lastIndexOf(".");
+        if (suffixSeparator > 0) {
+            stem = stem.substring(0, suffixSeparator);
         }
         DateFormat dateFormat = new SimpleDateFormat(BACKUP_SUFFIX_FORMAT);
-        String backupFilename = stem + SEPARATOR + dateFormat.format(dateForBackupName) + suffix;
+        String backupPointName = stem + SEPARATOR + dateFormat.format(new Date());
+
+        return new File(walletBackupStore.getDirectory(), backupPointName + WalletBackupStore.MANIFEST_SUFFIX)
+                .getAbsolutePath();
+    }
+
+    /**
+     * write the wallet and wallet info to a backup point. they are encoded
+     * straight into the store, which only writes the chunks it does not
+     * already have
+     */
+    private void backupToStore(PerWalletModelData perWalletModelData, File walletFile, final WalletInfo walletInfo,
+            File manifestFile) throws IOException {
+        WalletBackupStore walletBackupStore = new WalletBackupStore(manifestFile.getParentFile());
+        Map<String, WalletBackupStore.Content> contents = new LinkedHashMap<String, WalletBackupStore.Content>();
+        // the wallet file
+        final Wallet wallet = perWalletModelData.getWallet();
+        if (wallet != null) {
+            contents.put(walletFile.getName(), new WalletBackupStore.Content() {
+                public void writeTo(OutputStream outputStream) throws IOException {
+                    WalletFormat.write(wallet, outputStream);
+                }
+            });
+        }
+        // the companion wallet info
+        if (walletInfo != null) {
+            String walletInfoFilename = WalletInfo.createWalletInfoFilename(walletFile.getAbsolutePath());
+            contents.put(new File(walletInfoFilename).getName(), new WalletBackupStore.Content() {
+                public void writeTo(OutputStream outputStream) throws IOException {
+                    walletInfo.writeTo(outputStream);
+                }
+            });
+        }
 
-        return backupFilename;
+        String manifestFilename = manifestFile.getName();
+        String backupPointName = manifestFilename.substring(0,
+                manifestFilename.length() - WalletBackupStore.MANIFEST_SUFFIX.length());
+        walletBackupStore.backup(backupPointName, contents);
     }
 
     /**
@@ -22,6 +22,13 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.multibit.controller.MultiBitController;
 import org.multibit.model.MultiBitModel;
@@ -37,6 +44,7 @@ import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.PeerAddress;
 import com.google.bitcoin.core.PeerGroup;
+import com.google.bitcoin.core.StoredBlock;
 import com.google.bitcoin.core.Transaction;
 import com.google.bitcoin.core.Utils;
 import com.google.bitcoin.core.Wallet;
@@ -44,7 +52,10 @@ import com.google.bitcoin.discovery.DnsDiscovery;
 import com.google.bitcoin.discovery.IrcDiscovery;
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.BlockTimeIndex;
 import com.google.bitcoin.store.BoundedOverheadBlockStore;
+import com.google.bitcoin.store.CachingBlockStore;
+import com.google.bitcoin.store.MappedBlockStore;
 
 /**
  * <p>
@@ -67,10 +78,23 @@ public class MultiBitService {
     public static final String SEPARATOR = "-";
 
     public static final String BLOCKCHAIN_SUFFIX = ".blockchain";
+    public static final String BLOCK_TIMES_SUFFIX = ".blocktimes";
+    public static final String HEADERS_SUFFIX = ".headers";
     public static final String WALLET_SUFFIX = ".wallet";
 
     public static final String IRC_CHANNEL_TEST = "#bitcoinTEST";;
 
+    /**
+     * the most threads large blocks are scanned for wallet transactions on
+     */
+    public static final int MAXIMUM_NUMBER_OF_SCAN_THREADS = 4;
+
+    /**
+     * the most a block's time may be ahead of the median time of the blocks before it, in seconds.
+     * Date based searches start this much earlier so they do not miss a block.
+     */
+    public static final int MAXIMUM_BLOCK_TIME_DRIFT = 2 * 60 * 60;
+
     public Logger logger = LoggerFactory.getLogger(MultiBitService.class.getName());
 
     private Wallet wallet;
@@ -79,7 +103,9 @@ public class MultiBitService {
 
     private BlockChain blockChain;
 
-    private BlockStore blockStore;
+    private CachingBlockStore blockStore;
+
+    private BlockTimeIndex blockTimeIndex;
     
     private boolean useTestNet;
 
@@ -87,6 +113,11 @@ public class MultiBitService {
 
     private final NetworkParameters networkParameters;
 
+    /**
+     * the wallets still being loaded in the background
+     */
+    private final List<Future<?>> walletLoads = new ArrayList<Future<?>>();
+
     /**
      * 
      * @param useTestNet
@@ -126,13 +157,46 @@ public class MultiBitService {
             // check to see if the user has a blockchain and copy over the installed one if they do not
             controller.getFileHandler().copyBlockChainFromInstallationDirectory(this, blockchainFilename);
             
-            log.debug("Reading block store '" + blockchainFilename + "' from disk");
+            // the headers are kept in a memory mapped store, filled from the blockchain file the first time
+            String blockchainFilenameStem = blockchainFilename.substring(0, blockchainFilename.length() - BLOCKCHAIN_SUFFIX.length());
+            File headersFile = new File(blockchainFilenameStem + HEADERS_SUFFIX);
+            boolean haveHeaders = headersFile.exists();
+            log.debug("Reading block store '" + headersFile + "' from disk");
+            MappedBlockStore mappedBlockStore = new MappedBlockStore(networkParameters, headersFile);
+            File blockchainFile = new File(blockchainFilename);
+            if ((!haveHeaders || mappedBlockStore.isMigrating()) && blockchainFile.exists()) {
+                log.debug("Migrating block store '" + blockchainFilename + "' to '" + headersFile + "'");
+                BoundedOverheadBlockStore oldBlockStore = new BoundedOverheadBlockStore(networkParameters, blockchainFile);
+                try {
+                    mappedBlockStore.migrateFrom(oldBlockStore);
+                } finally {
+                    oldBlockStore.close();
+                }
+            }
+
+            // keep recently used blocks and the best chain by height in memory in front of the file
+            blockStore = new CachingBlockStore(mappedBlockStore);
 
-            blockStore = new BoundedOverheadBlockStore(networkParameters, new File(blockchainFilename));
+            // index the median time of the best chain blocks by height, for finding blocks by date
+            String blockTimesFilename = blockchainFilenameStem + BLOCK_TIMES_SUFFIX;
+            blockTimeIndex = new BlockTimeIndex(new File(blockTimesFilename));
+            blockStore.setBlockTimeIndex(blockTimeIndex);
 
             log.debug("Connecting ...");
             blockChain = new BlockChain(networkParameters, blockStore);
 
+            // scan large blocks, such as those met catching up, on several threads
+            int numberOfScanThreads = Math.min(MAXIMUM_NUMBER_OF_SCAN_THREADS, Runtime.getRuntime().availableProcessors());
+            if (numberOfScanThreads > 1) {
+                blockChain.setScanExecutor(Executors.newFixedThreadPool(numberOfScanThreads, new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "MultiBit block scan");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }), numberOfScanThreads);
+            }
+
             peerGroup = new MultiBitPeerGroup(controller, blockStore, networkParameters, blockChain);
 
             String singleNodeConnection = controller.getModel().getUserPreference(MultiBitModel.SINGLE_NODE_CONNECTION);
@@ -224,7 +288,7 @@ public class MultiBitService {
                 // create a brand new wallet
                 wallet = new Wallet(networkParameters);
                 ECKey newKey = new ECKey();
-                wallet.keychain.add(newKey);
+                wallet.addKey(newKey);
 
                 perWalletModelDataToReturn = controller.getModel().addWallet(wallet, walletFile.getAbsolutePath());
 
@@ -278,6 +342,99 @@ public class MultiBitService {
         return perWalletModelDataToReturn;
     }
 
+    /**
+     * add the wallets to the model from their wallet infos straight away, so
+     * that they can be shown, and load the wallets themselves in the
+     * background. the wallets are loaded in parallel with the active wallet
+     * first. wallet filenames that do not refer to a wallet file are added
+     * immediately with addWalletFromFilename
+     * 
+     * @param walletFilenames
+     * @param activeWalletFilename
+     */
+    public void addWalletsFromFilenames(List<String> walletFilenames, String activeWalletFilename) {
+        List<PerWalletModelData> walletsToLoad = new ArrayList<PerWalletModelData>();
+        for (String walletFilename : walletFilenames) {
+            File walletFile = walletFilename == null ? null : new File(walletFilename);
+            if (walletFile == null || !walletFile.isFile()) {
+                controller.addWalletFromFilename(walletFilename);
+                continue;
+            }
+
+            PerWalletModelData perWalletModelData = controller.getFileHandler().loadHeaderFromFile(walletFile);
+            if (perWalletModelData == null || perWalletModelData.isWalletLoaded()) {
+                continue;
+            }
+            if (walletFilename.equals(activeWalletFilename)) {
+                walletsToLoad.add(0, perWalletModelData);
+            } else {
+                walletsToLoad.add(perWalletModelData);
+            }
+        }
+
+        if (walletsToLoad.isEmpty()) {
+            return;
+        }
+
+        int numberOfThreads = Math.min(walletsToLoad.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService walletLoadingExecutor = Executors.newFixedThreadPool(numberOfThreads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "MultiBit wallet loading");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        synchronized (walletLoads) {
+            for (final PerWalletModelData perWalletModelData : walletsToLoad) {
+                walletLoads.add(walletLoadingExecutor.submit(new Runnable() {
+                    public void run() {
+                        loadWalletBody(perWalletModelData);
+                    }
+                }));
+            }
+        }
+        walletLoadingExecutor.shutdown();
+    }
+
+    private void loadWalletBody(PerWalletModelData perWalletModelData) {
+        Wallet loadedWallet;
+        try {
+            loadedWallet = controller.getFileHandler().loadWalletBody(perWalletModelData);
+        } catch (IOException e) {
+            log.error("Could not load wallet " + perWalletModelData.getWalletFilename(), e);
+            return;
+        }
+
+        // add wallet to blockchain
+        blockChain.addWallet(loadedWallet);
+
+        // add wallet as PendingTransactionListener to PeerGroup
+        peerGroup.addPendingTransactionListener(loadedWallet);
+
+        controller.fireDataChanged();
+    }
+
+    /**
+     * wait for the wallets being loaded in the background to finish loading
+     */
+    public void waitForWalletsToLoad() {
+        List<Future<?>> loads;
+        synchronized (walletLoads) {
+            loads = new ArrayList<Future<?>>(walletLoads);
+            walletLoads.clear();
+        }
+        for (Future<?> load : loads) {
+            try {
+                load.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                log.error(e.getMessage(), e);
+            }
+        }
+    }
+
     /**
      * download the block chain
      */
@@ -308,7 +465,9 @@ public class MultiBitService {
         if (sendTransaction != null) {
             log.debug("MultiBitService#sendCoins - Sent coins. Transaction hash is " + sendTransaction.getHashAsString());
 
-            controller.getFileHandler().savePerWalletModelData(perWalletModelData, false);
+            // make sure the send is on disk before carrying on
+            perWalletModelData.setTransactionDirty(true);
+            controller.getFileHandler().flushAndWait(perWalletModelData);
 
             // notify all of the pendingTransactionsListeners about the new
             // transaction
@@ -338,4 +497,23 @@ public class MultiBitService {
     public BlockStore getBlockStore() {
         return blockStore;
     }
+
+    public BlockTimeIndex getBlockTimeIndex() {
+        return blockTimeIndex;
+    }
+
+    /**
+     * find the last block of the best chain from before the given date, with
+     * a binary search of the block time index. Use this to work out where to
+     * rescan the block chain from for a date
+     * 
+     * @param date
+     *            the date to find the block before
+     * @return the block, or the genesis block if the chain starts later
+     */
+    public StoredBlock getBlockBefore(Date date) throws BlockStoreException {
+        long timeSeconds = date.getTime() / 1000 - MAXIMUM_BLOCK_TIME_DRIFT;
+        int height = Math.max(0, blockTimeIndex.getHeightAtOrBefore(timeSeconds));
+        return blockStore.getBestChainBlock(height);
+    }
 }
@@ -0,0 +1,512 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.multibit.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Utils;
+
+/**
+ * a store of backups of the files of a wallet in which each distinct piece of
+ * content is kept only once
+ *
+ * the files of a backup point are split into chunks at places chosen by their
+ * content - where a rolling hash of the last few bytes has its low bits clear
+ * - so an insertion or deletion only changes the chunks around it. each chunk
+ * is stored once in the chunks directory, named by its SHA-256 hash, and each
+ * backup point is a small manifest listing the chunks of each file. writing a
+ * backup point only writes the chunks that are not already in the store, and
+ * restoring one copies its chunks back in order
+ */
+public class WalletBackupStore {
+
+    private static final Logger log = LoggerFactory.getLogger(WalletBackupStore.class);
+
+    public static final String BACKUP_DIRECTORY_SUFFIX = "-backups";
+    public static final String MANIFEST_SUFFIX = ".backup";
+
+    private static final String CHUNK_DIRECTORY = "chunks";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final String MANIFEST_MAGIC_TEXT = "multiBit.backup";
+    private static final String MANIFEST_VERSION_TEXT = "1";
+    private static final String FILE_MARKER = "file";
+    private static final String CHUNK_MARKER = "chunk";
+    private static final String SEPARATOR = ",";
+    private static final String ENCODING = "UTF8";
+
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    /**
+     * chunks are cut where the low bits of the rolling hash are all clear,
+     * giving chunks of 8KB on average, but never shorter than the minimum or
+     * longer than the maximum
+     */
+    static final int MINIMUM_CHUNK_SIZE = 2 * 1024;
+    static final int MAXIMUM_CHUNK_SIZE = 64 * 1024;
+    private static final long CHUNK_BOUNDARY_MASK = (1L << 13) - 1;
+
+    /**
+     * random values for each byte value, mixed into the rolling hash. the seed
+     * is fixed so that the same content is always cut in the same places
+     */
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x6d756c7469626974L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final File directory;
+    private final File chunkDirectory;
+
+    /**
+     * the number of chunks written by the last backup - the rest were already
+     * in the store
+     */
+    private int numberOfChunksWritten;
+
+    public WalletBackupStore(File directory) {
+        this.directory = directory;
+        this.chunkDirectory = new File(directory, CHUNK_DIRECTORY);
+    }
+
+    /**
+     * get the backup store kept next to a wallet
+     */
+    public static WalletBackupStore forWallet(String walletFilename) {
+        String stem = walletFilename;
+        int suffixSeparator = walletFilename.lastIndexOf(".");
+        if (suffixSeparator > walletFilename.lastIndexOf(File.separator)) {
+            stem = walletFilename.substring(0, suffixSeparator);
+        }
+        return new WalletBackupStore(new File(stem + BACKUP_DIRECTORY_SUFFIX));
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * the content of a file of a backup point, written straight into the
+     * store rather than copied from a file
+     */
+    public interface Content {
+        void writeTo(OutputStream outputStream) throws IOException;
+    }
+
+    /**
+     * back up some files as a backup point, replacing any backup point of the
+     * same name
+     *
+     * @param backupPointName
+     *            the name of the backup point, which must be usable as a
+     *            filename
+     * @param files
+     *            the files to back up - they are restored with the same names
+     * @return the manifest of the backup point
+     */
+    public synchronized File backup(String backupPointName, File... files) throws IOException {
+        Map<String, Content> contents = new LinkedHashMap<String, Content>();
+        for (final File file : files) {
+            contents.put(file.getName(), new Content() {
+                public void writeTo(OutputStream outputStream) throws IOException {
+                    InputStream inputStream = new BufferedInputStream(new FileInputStream(file));
+                    try {
+                        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                        int read;
+                        while ((read = inputStream.read(buffer)) >= 0) {
+                            outputStream.write(buffer, 0, read);
+                        }
+                    } finally {
+                        inputStream.close();
+                    }
+                }
+            });
+        }
+        return backup(backupPointName, contents);
+    }
+
+    /**
+     * back up content as a backup point, replacing any backup point of the
+     * same name. each content is cut into chunks as it is written, so it is
+     * never held whole in memory or written to a file of its own
+     *
+     * @param backupPointName
+     *            the name of the backup point, which must be usable as a
+     *            filename
+     * @param contents
+     *            the content of each file by the name it is restored with, in
+     *            the order they are to be written
+     * @return the manifest of the backup point
+     */
+    public synchronized File backup(String backupPointName, Map<String, Content> contents) throws IOException {
+        if (!chunkDirectory.isDirectory() && !chunkDirectory.mkdirs()) {
+            throw new IOException("Could not create backup directory " + chunkDirectory.getAbsolutePath());
+        }
+        numberOfChunksWritten = 0;
+
+        StringBuilder manifest = new StringBuilder();
+        manifest.append(MANIFEST_MAGIC_TEXT).append(SEPARATOR).append(MANIFEST_VERSION_TEXT).append('\n');
+        for (Map.Entry<String, Content> entry : contents.entrySet()) {
+            ChunkingOutputStream chunkingOutputStream = new ChunkingOutputStream();
+            entry.getValue().writeTo(chunkingOutputStream);
+            chunkingOutputStream.close();
+            manifest.append(FILE_MARKER).append(SEPARATOR).append(chunkingOutputStream.length).append(SEPARATOR)
+                    .append(entry.getKey()).append('\n');
+            manifest.append(chunkingOutputStream.chunkLines);
+        }
+
+        File manifestFile = getManifestFile(backupPointName);
+        boolean replacing = manifestFile.exists();
+        writeAtomically(manifestFile, manifest.toString().getBytes(ENCODING));
+        log.debug("Backed up " + contents.keySet() + " to " + manifestFile.getAbsolutePath() + ", writing "
+                + numberOfChunksWritten + " new chunks");
+
+        if (replacing) {
+            // the chunks only the replaced backup point used are not needed
+            removeUnusedChunks();
+        }
+        return manifestFile;
+    }
+
+    /**
+     * @return the names of the backup points in the store, oldest first
+     */
+    public synchronized List<String> getBackupPointNames() {
+        List<String> backupPointNames = new ArrayList<String>();
+        String[] filenames = directory.list();
+        if (filenames != null) {
+            Arrays.sort(filenames);
+            for (String filename : filenames) {
+                if (filename.endsWith(MANIFEST_SUFFIX)) {
+                    backupPointNames.add(filename.substring(0, filename.length() - MANIFEST_SUFFIX.length()));
+                }
+            }
+        }
+        return backupPointNames;
+    }
+
+    /**
+     * restore the files of a backup point into a directory
+     *
+     * @return the restored files
+     */
+    public synchronized List<File> restore(String backupPointName, File restoreDirectory) throws IOException {
+        List<File> restoredFiles = new ArrayList<File>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(
+                getManifestFile(backupPointName)), ENCODING));
+        OutputStream outputStream = null;
+        File file = null;
+        File temporaryFile = null;
+        try {
+            if (!(MANIFEST_MAGIC_TEXT + SEPARATOR + MANIFEST_VERSION_TEXT).equals(reader.readLine())) {
+                throw new IOException("Backup point " + backupPointName + " is not a MultiBit backup");
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split(SEPARATOR, 3);
+                if (columns.length != 3) {
+                    throw new IOException("Backup point " + backupPointName + " is damaged");
+                }
+                if (FILE_MARKER.equals(columns[0])) {
+                    finishRestoredFile(outputStream, temporaryFile, file);
+                    file = new File(restoreDirectory, columns[2]);
+                    temporaryFile = new File(restoreDirectory, columns[2] + TEMPORARY_SUFFIX);
+                    outputStream = new BufferedOutputStream(new FileOutputStream(temporaryFile));
+                    restoredFiles.add(file);
+                } else if (CHUNK_MARKER.equals(columns[0]) && outputStream != null) {
+                    byte[] chunk = readFile(getChunkFile(columns[2]));
+                    // chunks are named by their hash, so a damaged chunk of the right length is caught as well
+                    if (chunk.length != Integer.parseInt(columns[1])
+                            || !columns[2].equals(Utils.bytesToHexString(sha256(chunk)))) {
+                        throw new IOException("Chunk " + columns[2] + " of backup point " + backupPointName
+                                + " is damaged");
+                    }
+                    outputStream.write(chunk);
+                } else {
+                    throw new IOException("Backup point " + backupPointName + " is damaged");
+                }
+            }
+            finishRestoredFile(outputStream, temporaryFile, file);
+            outputStream = null;
+        } finally {
+            reader.close();
+            if (outputStream != null) {
+                outputStream.close();
+            }
+        }
+        return restoredFiles;
+    }
+
+    /**
+     * delete a backup point and the chunks only it used
+     */
+    public synchronized void delete(String backupPointName) throws IOException {
+        if (getManifestFile(backupPointName).delete()) {
+            removeUnusedChunks();
+        }
+    }
+
+    int getNumberOfChunksWritten() {
+        return numberOfChunksWritten;
+    }
+
+    int getNumberOfChunks() {
+        int numberOfChunks = 0;
+        File[] chunkSubdirectories = chunkDirectory.listFiles();
+        if (chunkSubdirectories != null) {
+            for (File chunkSubdirectory : chunkSubdirectories) {
+                String[] chunkFilenames = chunkSubdirectory.list();
+                numberOfChunks += chunkFilenames == null ? 0 : chunkFilenames.length;
+            }
+        }
+        return numberOfChunks;
+    }
+
+    /**
+     * read the next content defined chunk of a stream
+     *
+     * @return the chunk or null at the end of the stream
+     */
+    static byte[] readChunk(InputStream inputStream) throws IOException {
+        Chunker chunker = new Chunker();
+        int nextByte;
+        while ((nextByte = inputStream.read()) >= 0) {
+            if (chunker.add(nextByte)) {
+                break;
+            }
+        }
+        return chunker.takeChunk();
+    }
+
+    /**
+     * cuts a run of bytes into content defined chunks
+     */
+    static final class Chunker {
+        private final byte[] buffer = new byte[MAXIMUM_CHUNK_SIZE];
+        private int length;
+        private long hash;
+
+        /**
+         * add the next byte, returning true if it ends a chunk
+         */
+        boolean add(int nextByte) {
+            buffer[length++] = (byte) nextByte;
+            // each byte's contribution is shifted out after 64 bytes
+            hash = (hash << 1) + GEAR[nextByte];
+            return length == MAXIMUM_CHUNK_SIZE || (length >= MINIMUM_CHUNK_SIZE && (hash & CHUNK_BOUNDARY_MASK) == 0);
+        }
+
+        /**
+         * take the bytes added since the last chunk as a chunk
+         *
+         * @return the chunk or null if no bytes have been added
+         */
+        byte[] takeChunk() {
+            if (length == 0) {
+                return null;
+            }
+            byte[] chunk = Arrays.copyOf(buffer, length);
+            length = 0;
+            hash = 0;
+            return chunk;
+        }
+    }
+
+    /**
+     * stores the chunks of what is written to it, keeping the manifest lines
+     * that list them
+     */
+    private final class ChunkingOutputStream extends OutputStream {
+        private final Chunker chunker = new Chunker();
+        private final StringBuilder chunkLines = new StringBuilder();
+        private long length;
+
+        @Override
+        public void write(int b) throws IOException {
+            length++;
+            if (chunker.add(b & 0xff)) {
+                storeNextChunk();
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count) throws IOException {
+            for (int i = offset; i < offset + count; i++) {
+                write(bytes[i]);
+            }
+        }
+
+        /**
+         * store the last chunk, which may be shorter than the minimum
+         */
+        @Override
+        public void close() throws IOException {
+            storeNextChunk();
+        }
+
+        private void storeNextChunk() throws IOException {
+            byte[] chunk = chunker.takeChunk();
+            if (chunk != null) {
+                chunkLines.append(CHUNK_MARKER).append(SEPARATOR).append(chunk.length).append(SEPARATOR)
+                        .append(storeChunk(chunk)).append('\n');
+            }
+        }
+    }
+
+    private String storeChunk(byte[] chunk) throws IOException {
+        String chunkName = Utils.bytesToHexString(sha256(chunk));
+        File chunkFile = getChunkFile(chunkName);
+        if (!chunkFile.exists()) {
+            File chunkSubdirectory = chunkFile.getParentFile();
+            if (!chunkSubdirectory.isDirectory() && !chunkSubdirectory.mkdirs()) {
+                throw new IOException("Could not create backup directory " + chunkSubdirectory.getAbsolutePath());
+            }
+            writeAtomically(chunkFile, chunk);
+            numberOfChunksWritten++;
+        }
+        return chunkName;
+    }
+
+    private void removeUnusedChunks() throws IOException {
+        Set<String> usedChunkNames = new HashSet<String>();
+        for (String backupPointName : getBackupPointNames()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(
+                    getManifestFile(backupPointName)), ENCODING));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(CHUNK_MARKER + SEPARATOR)) {
+                        usedChunkNames.add(line.substring(line.lastIndexOf(SEPARATOR) + 1));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        File[] chunkSubdirectories = chunkDirectory.listFiles();
+        if (chunkSubdirectories == null) {
+            return;
+        }
+        for (File chunkSubdirectory : chunkSubdirectories) {
+            File[] chunkFiles = chunkSubdirectory.listFiles();
+            if (chunkFiles == null) {
+                continue;
+            }
+            for (File chunkFile : chunkFiles) {
+                if (!usedChunkNames.contains(chunkFile.getName()) && !chunkFile.delete()) {
+                    log.error("Could not delete unused backup chunk " + chunkFile.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    private File getManifestFile(String backupPointName) {
+        return new File(directory, backupPointName + MANIFEST_SUFFIX);
+    }
+
+    /**
+     * chunks are spread over subdirectories by the first byte of their hash
+     */
+    private File getChunkFile(String chunkName) {
+        return new File(new File(chunkDirectory, chunkName.substring(0, 2)), chunkName);
+    }
+
+    private static void finishRestoredFile(OutputStream outputStream, File temporaryFile, File file)
+            throws IOException {
+        if (outputStream == null) {
+            return;
+        }
+        outputStream.close();
+        if (!temporaryFile.renameTo(file)) {
+            // on Windows the rename fails if the file exists
+            if (!file.delete() || !temporaryFile.renameTo(file)) {
+                throw new IOException("Could not restore " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    private static void writeAtomically(File file, byte[] bytes) throws IOException {
+        File temporaryFile = new File(file.getAbsolutePath() + TEMPORARY_SUFFIX);
+        FileOutputStream outputStream = new FileOutputStream(temporaryFile);
+        try {
+            outputStream.write(bytes);
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+        if (!temporaryFile.renameTo(file)) {
+            if (!file.delete() || !temporaryFile.renameTo(file)) {
+                throw new IOException("Could not write " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                int read = inputStream.read(bytes, offset, bytes.length - offset);
+                if (read < 0) {
+                    throw new IOException("Could not read " + file.getAbsolutePath());
+                }
+                offset += read;
+            }
+        } finally {
+            inputStream.close();
+        }
+        return bytes;
+    }
+
+    private static byte[] sha256(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has SHA-256
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.multibit.network;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.multibit.controller.MultiBitController;
+import org.multibit.model.PerWalletModelData;
+import org.multibit.model.WalletInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * watches the files of the open wallets for changes made by other processes
+ *
+ * the wallet, wallet info and wallet journal files are checked a few times a
+ * second. a change is only reported once the files have stopped changing for
+ * one check, so that a burst of writes by another process is reported once.
+ * the file handler brackets each of its own writes with beginWrite and
+ * endWrite - a write token - and the files are then taken as they are, so
+ * MultiBit's own writes are never reported
+ *
+ * only the wallets whose files have changed are passed to the controller
+ */
+public class WalletFileWatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(WalletFileWatcher.class);
+
+    public static final long DEFAULT_POLL_INTERVAL = 250;
+
+    private static final ScheduledExecutorService watchExecutor = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "MultiBit wallet file watcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final MultiBitController controller;
+
+    /**
+     * what is known about the files of each wallet - guarded by this
+     */
+    private final Map<PerWalletModelData, WatchedWallet> watchedWallets = new HashMap<PerWalletModelData, WatchedWallet>();
+
+    private long lastWriteToken = 0;
+
+    private ScheduledFuture<?> watchTask;
+
+    public WalletFileWatcher(MultiBitController controller) {
+        this.controller = controller;
+    }
+
+    /**
+     * start checking the wallet files in the background
+     */
+    public synchronized void start(long pollInterval) {
+        if (watchTask != null) {
+            return;
+        }
+        watchTask = watchExecutor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    poll();
+                } catch (RuntimeException e) {
+                    // keep watching
+                    log.error(e.getMessage(), e);
+                }
+            }
+        }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (watchTask != null) {
+            watchTask.cancel(false);
+            watchTask = null;
+        }
+    }
+
+    /**
+     * note that MultiBit is about to write the files of a wallet
+     *
+     * @return the write token to pass to endWrite
+     */
+    public synchronized long beginWrite(PerWalletModelData perWalletModelData) {
+        getWatchedWallet(perWalletModelData).writesInProgress++;
+        return ++lastWriteToken;
+    }
+
+    /**
+     * note that MultiBit has finished writing the files of a wallet - the
+     * files as they are now are not a change by another process
+     */
+    public synchronized void endWrite(PerWalletModelData perWalletModelData, long writeToken) {
+        WatchedWallet watchedWallet = getWatchedWallet(perWalletModelData);
+        watchedWallet.writesInProgress--;
+        watchedWallet.lastWriteToken = writeToken;
+        watchedWallet.knownState = readFileState(perWalletModelData);
+        watchedWallet.pendingState = null;
+    }
+
+    /**
+     * check the files of all the open wallets once and tell the controller
+     * about the wallets that have been changed by another process
+     */
+    void poll() {
+        List<PerWalletModelData> changedWallets = new ArrayList<PerWalletModelData>();
+        synchronized (this) {
+            List<PerWalletModelData> perWalletModelDataList = controller.getModel().getPerWalletModelDataList();
+            for (PerWalletModelData loopModelData : perWalletModelDataList) {
+                if (!loopModelData.isWalletLoaded() || loopModelData.getWalletFilename() == null) {
+                    // loading a wallet can rewrite its files
+                    continue;
+                }
+                WatchedWallet watchedWallet = getWatchedWallet(loopModelData);
+                if (watchedWallet.writesInProgress > 0) {
+                    continue;
+                }
+
+                long[] state = readFileState(loopModelData);
+                if (watchedWallet.knownState == null || Arrays.equals(state, watchedWallet.knownState)) {
+                    watchedWallet.knownState = state;
+                    watchedWallet.pendingState = null;
+                } else if (watchedWallet.pendingState == null || !Arrays.equals(state, watchedWallet.pendingState)) {
+                    // still changing - wait for the other process to finish
+                    watchedWallet.pendingState = state;
+                } else {
+                    log.debug("Files of wallet " + loopModelData.getWalletFilename()
+                            + " have been changed by another process since write " + watchedWallet.lastWriteToken + ".");
+                    watchedWallet.knownState = state;
+                    watchedWallet.pendingState = null;
+                    changedWallets.add(loopModelData);
+                }
+            }
+            // forget the wallets that have been closed
+            Iterator<Map.Entry<PerWalletModelData, WatchedWallet>> iterator = watchedWallets.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<PerWalletModelData, WatchedWallet> entry = iterator.next();
+                if (entry.getValue().writesInProgress == 0 && !perWalletModelDataList.contains(entry.getKey())) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        for (PerWalletModelData changedWallet : changedWallets) {
+            if (!changedWallet.isFilesHaveBeenChangedByAnotherProcess()) {
+                // only fire once, when change happens
+                changedWallet.setFilesHaveBeenChangedByAnotherProcess(true);
+                controller.fireFilesHaveBeenChangedByAnotherProcess(changedWallet);
+            }
+        }
+    }
+
+    private WatchedWallet getWatchedWallet(PerWalletModelData perWalletModelData) {
+        WatchedWallet watchedWallet = watchedWallets.get(perWalletModelData);
+        if (watchedWallet == null) {
+            watchedWallet = new WatchedWallet();
+            watchedWallets.put(perWalletModelData, watchedWallet);
+        }
+        return watchedWallet;
+    }
+
+    /**
+     * the sizes and last modified times of the wallet, wallet info and wallet
+     * journal files
+     */
+    private static long[] readFileState(PerWalletModelData perWalletModelData) {
+        String walletFilename = perWalletModelData.getWalletFilename();
+        File[] files = new File[] { new File(walletFilename), new File(WalletInfo.createWalletInfoFilename(walletFilename)),
+                new File(FileHandler.createWalletJournalFilename(walletFilename)) };
+        long[] state = new long[files.length * 2];
+        for (int i = 0; i < files.length; i++) {
+            state[i * 2] = files[i].length();
+            state[i * 2 + 1] = files[i].lastModified();
+        }
+        return state;
+    }
+
+    private static class WatchedWallet {
+        /**
+         * the state of the files when last written by MultiBit or last seen to
+         * change, null until the files are first checked
+         */
+        long[] knownState;
+
+        /**
+         * a changed state seen at the last check, which is reported if it is
+         * the same at the next check
+         */
+        long[] pendingState;
+
+        int writesInProgress;
+
+        /**
+         * the token of the last write by MultiBit, 0 if there has not been one
+         */
+        long lastWriteToken;
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.multibit.network;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.multibit.model.PerWalletModelData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * saves the wallets that need saving when MultiBit exits
+ *
+ * the wallets are saved in parallel on a few threads, each with the usual
+ * crash safe writes of the file handler. before a wallet is saved an
+ * unflushed marker is written next to it, and the marker is only deleted once
+ * the save has finished. a wallet that is not saved by the deadline, or whose
+ * save is cut short by the program stopping, keeps its marker and is
+ * recovered by the file handler when it is next loaded
+ */
+public class WalletFlushCoordinator {
+
+    private static final Logger log = LoggerFactory.getLogger(WalletFlushCoordinator.class);
+
+    /**
+     * the default time, in milliseconds, to wait for the wallets to be saved
+     */
+    public static final long DEFAULT_FLUSH_DEADLINE = 10000;
+
+    /**
+     * the most wallets saved at once - beyond this the saves mostly wait for
+     * the disk
+     */
+    static final int MAXIMUM_NUMBER_OF_FLUSH_THREADS = 4;
+
+    private final FileHandler fileHandler;
+
+    /**
+     * the time, in milliseconds, each wallet took to save in the last flush,
+     * by wallet filename
+     */
+    private final Map<String, Long> flushTimes = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+
+    public WalletFlushCoordinator(FileHandler fileHandler) {
+        this.fileHandler = fileHandler;
+    }
+
+    /**
+     * save the wallets that need saving and wait for them, up to the deadline
+     *
+     * @param perWalletModelDataList
+     *            the wallets - the ones with no save requested that are not
+     *            dirty are left alone
+     * @param deadline
+     *            the time, in milliseconds, to wait for the saves
+     * @return the wallets that were not saved by the deadline
+     */
+    public List<PerWalletModelData> flush(List<PerWalletModelData> perWalletModelDataList, long deadline) {
+        long start = System.currentTimeMillis();
+        flushTimes.clear();
+
+        Map<PerWalletModelData, Boolean> walletsToFlush = new LinkedHashMap<PerWalletModelData, Boolean>();
+        for (PerWalletModelData perWalletModelData : perWalletModelDataList) {
+            if (perWalletModelData.getWalletFilename() == null || !perWalletModelData.isWalletLoaded()) {
+                continue;
+            }
+            Boolean forceWrite = fileHandler.takePendingSave(perWalletModelData);
+            if (forceWrite != null || perWalletModelData.isDirty() || perWalletModelData.isTransactionDirty()) {
+                walletsToFlush.put(perWalletModelData, forceWrite != null && forceWrite);
+            }
+        }
+        if (walletsToFlush.isEmpty()) {
+            return new ArrayList<PerWalletModelData>();
+        }
+
+        // record every wallet before any is saved, so a wallet is recovered
+        // however far the flush gets
+        for (PerWalletModelData perWalletModelData : walletsToFlush.keySet()) {
+            writeUnflushedMarker(perWalletModelData);
+        }
+
+        int numberOfThreads = Math.min(walletsToFlush.size(),
+                Math.min(Runtime.getRuntime().availableProcessors(), MAXIMUM_NUMBER_OF_FLUSH_THREADS));
+        ExecutorService flushExecutor = Executors.newFixedThreadPool(Math.max(1, numberOfThreads), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                // daemon threads so that a save still running at the
+                // deadline does not keep the program alive
+                Thread thread = new Thread(runnable, "MultiBit wallet flush");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        Map<PerWalletModelData, Future<Boolean>> flushes = new LinkedHashMap<PerWalletModelData, Future<Boolean>>();
+        try {
+            for (final Map.Entry<PerWalletModelData, Boolean> entry : walletsToFlush.entrySet()) {
+                flushes.put(entry.getKey(), flushExecutor.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        return flushWallet(entry.getKey(), entry.getValue());
+                    }
+                }));
+            }
+        } finally {
+            // the saves are never interrupted, a half written file is what
+            // the flush is avoiding
+            flushExecutor.shutdown();
+        }
+
+        List<PerWalletModelData> unflushedWallets = new ArrayList<PerWalletModelData>();
+        for (Map.Entry<PerWalletModelData, Future<Boolean>> entry : flushes.entrySet()) {
+            long timeLeft = start + deadline - System.currentTimeMillis();
+            try {
+                if (!entry.getValue().get(Math.max(0, timeLeft), TimeUnit.MILLISECONDS)) {
+                    unflushedWallets.add(entry.getKey());
+                }
+            } catch (TimeoutException e) {
+                unflushedWallets.add(entry.getKey());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                unflushedWallets.add(entry.getKey());
+            } catch (ExecutionException e) {
+                log.error(e.getMessage(), e);
+                unflushedWallets.add(entry.getKey());
+            }
+        }
+
+        log.info("Flushed " + (walletsToFlush.size() - unflushedWallets.size()) + " of " + walletsToFlush.size()
+                + " wallets on " + numberOfThreads + " threads in " + (System.currentTimeMillis() - start) + " ms");
+        for (PerWalletModelData unflushedWallet : unflushedWallets) {
+            log.error("Wallet " + unflushedWallet.getWalletFilename()
+                    + " was not saved in time and will be recovered when it is next loaded");
+        }
+        return unflushedWallets;
+    }
+
+    /**
+     * @return the time, in milliseconds, each wallet took to save in the last
+     *         flush, by wallet filename
+     */
+    public Map<String, Long> getFlushTimes() {
+        synchronized (flushTimes) {
+            return new LinkedHashMap<String, Long>(flushTimes);
+        }
+    }
+
+    private boolean flushWallet(PerWalletModelData perWalletModelData, boolean forceWrite) {
+        long start = System.currentTimeMillis();
+        fileHandler.savePerWalletModelData(perWalletModelData, forceWrite);
+        long flushTime = System.currentTimeMillis() - start;
+        flushTimes.put(perWalletModelData.getWalletFilename(), flushTime);
+
+        if (perWalletModelData.isDirty() || perWalletModelData.isTransactionDirty()) {
+            // the save failed and has been logged
+            return false;
+        }
+        File marker = new File(FileHandler.createWalletUnflushedFilename(perWalletModelData.getWalletFilename()));
+        if (!marker.delete()) {
+            log.error("Could not delete " + marker.getAbsolutePath());
+        }
+        log.debug("Flushed wallet " + perWalletModelData.getWalletFilename() + " in " + flushTime + " ms");
+        return true;
+    }
+
+    private static void writeUnflushedMarker(PerWalletModelData perWalletModelData) {
+        File marker = new File(FileHandler.createWalletUnflushedFilename(perWalletModelData.getWalletFilename()));
+        try {
+            FileOutputStream outputStream = new FileOutputStream(marker);
+            try {
+                outputStream.getFD().sync();
+            } finally {
+                outputStream.close();
+            }
+        } catch (IOException e) {
+            // the wallet is still saved, it just cannot be recovered if the
+            // save is cut short
+            log.error(e.getMessage(), e);
+        }
+    }
+}
@@ -18,7 +18,6 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
 import java.math.BigInteger;
-import java.util.Timer;
 
 import javax.swing.BorderFactory;
 import javax.swing.ImageIcon;
@@ -45,6 +44,7 @@ import org.multibit.controller.ActionForward;
 import org.multibit.controller.MultiBitController;
 import org.multibit.model.MultiBitModel;
 import org.multibit.model.PerWalletModelData;
+import org.multibit.network.WalletFileWatcher;
 import org.multibit.viewsystem.View;
 import org.multibit.viewsystem.ViewSystem;
 import org.multibit.viewsystem.swing.action.CreateNewWalletAction;
@@ -77,6 +77,8 @@ import com.google.bitcoin.core.ScriptException;
 import com.google.bitcoin.core.Transaction;
 import com.google.bitcoin.core.TransactionInput;
 import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.Wallet.BalanceType;
+import com.google.bitcoin.core.WalletSnapshot;
 
 /*
  * JFrame displaying Swing version of MultiBit
@@ -177,8 +179,6 @@ public class MultiBitFrame extends JFrame implements ViewSystem, ApplicationList
 
     private ViewFactory viewFactory;
 
-    private Timer fileChangeTimer;
-
     private JPanel headerPanel;
 
     @SuppressWarnings("deprecation")
@@ -236,9 +236,8 @@ public class MultiBitFrame extends JFrame implements ViewSystem, ApplicationList
         pack();
         setVisible(true);
 
-        fileChangeTimer = new Timer();
-        // fires once every minute
-        fileChangeTimer.schedule(new FileChangeTimerTask(controller, this), 0, 60000);
+        // watch for the wallet files being changed by another process
+        controller.getFileHandler().getWalletFileWatcher().start(WalletFileWatcher.DEFAULT_POLL_INTERVAL);
     }
 
     private void sizeAndCenter() {
@@ -834,6 +833,9 @@ public class MultiBitFrame extends JFrame implements ViewSystem, ApplicationList
             boolean dataHasChanged = false;
             if (perWalletModelDataList != null) {
                 for (PerWalletModelData perWalletModelData : perWalletModelDataList) {
+                    if (!perWalletModelData.isWalletLoaded()) {
+                        continue;
+                    }
                     // check bitcoin sent to me
                     BigInteger valueSentToMe = transaction.getValueSentToMe(perWalletModelData.getWallet());
                     if (valueSentToMe != null && valueSentToMe.compareTo(BigInteger.ZERO) > 0) {
@@ -898,6 +900,9 @@ public class MultiBitFrame extends JFrame implements ViewSystem, ApplicationList
             boolean dataHasChanged = false;
             if (perWalletModelDataList != null) {
                 for (PerWalletModelData perWalletModelData : perWalletModelDataList) {
+                    if (!perWalletModelData.isWalletLoaded()) {
+                        continue;
+                    }
                     BigInteger value = transaction.getValueSentToMe(perWalletModelData.getWallet());
                     if (value != null && value.compareTo(BigInteger.ZERO) > 0) {
                         logger.debug("Received " + controller.getLocaliser().bitcoinValueToString4(value, true, false) + " from "
@@ -1008,18 +1013,21 @@ public class MultiBitFrame extends JFrame implements ViewSystem, ApplicationList
             setUpdatesStoppedTooltip(estimatedBalanceTextLabel);
             availableBalanceTextLabel.setText("");
         } else {
-            estimatedBalanceTextLabel.setText(controller.getLocaliser().bitcoinValueToString4(controller.getModel()
-                    .getActiveWalletEstimatedBalance(), true, false));
+            // read both balances from the same snapshot so they are consistent with each other
+            WalletSnapshot snapshot = controller.getModel().getActiveWalletSnapshot();
+            BigInteger estimatedBalance = snapshot == null ? BigInteger.ZERO : snapshot.getBalance(BalanceType.ESTIMATED);
+            BigInteger availableBalance = snapshot == null ? BigInteger.ZERO : snapshot.getBalance(BalanceType.AVAILABLE);
+
+            estimatedBalanceTextLabel.setText(controller.getLocaliser().bitcoinValueToString4(estimatedBalance, true, false));
             estimatedBalanceTextLabel.setToolTipText(controller.getLocaliser().getString("multiBitFrame.balanceLabel.tooltip"));
 
-            if (model.getActiveWalletAvailableBalance() != null
-                    && model.getActiveWalletAvailableBalance().equals(controller.getModel().getActiveWalletEstimatedBalance())) {
+            if (availableBalance.equals(estimatedBalance)) {
                 availableBalanceTextLabel.setText("");
             } else {
                 availableBalanceTextLabel
                         .setText(controller.getLocaliser().getString(
                                 "multiBitFrame.availableToSpend",
-                                new Object[] { controller.getLocaliser().bitcoinValueToString4(model.getActiveWalletAvailableBalance(), true,
+                                new Object[] { controller.getLocaliser().bitcoinValueToString4(availableBalance, true,
                                         false) }));
             }
         }
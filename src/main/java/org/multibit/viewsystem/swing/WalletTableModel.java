@@ -87,6 +87,9 @@ public class WalletTableModel extends AbstractTableModel {
             return walletDataRow.getDate();
         }
         case 2:
+            if (walletDataRow.getDescription() == null && walletDataRow.getArchivedTransaction() != null) {
+                multiBitModel.describeArchivedTransaction(walletDataRow);
+            }
             return walletDataRow.getDescription();
         case 3:
             BigInteger debitAmount = walletDataRow.getDebit();
@@ -54,6 +54,11 @@ public class CreateBulkAddressesSubmitAction extends AbstractAction {
     public void actionPerformed(ActionEvent e) {
         // check to see if the wallet files have changed
         PerWalletModelData perWalletModelData = controller.getModel().getActivePerWalletModelData();
+        if (!perWalletModelData.isWalletLoaded()) {
+            // the wallet is still loading
+            return;
+        }
+
         boolean haveFilesChanged = controller.getFileHandler().haveFilesChanged(perWalletModelData);
 
         if (haveFilesChanged) {
@@ -101,7 +106,7 @@ public class CreateBulkAddressesSubmitAction extends AbstractAction {
                         String addressString = null;
                         for (int i = 0; i < numberOfAddresses; i++) {
                             ECKey key = new ECKey();
-                            perWalletModelData.getWallet().keychain.add(key);
+                            perWalletModelData.getWallet().addKey(key);
                             Address address = key.toAddress(controller.getMultiBitService().getNetworkParameters());
                             addressString = address.toString();
                             outputStreamWriter.write(addressString + "\n");
@@ -112,7 +117,7 @@ public class CreateBulkAddressesSubmitAction extends AbstractAction {
                         controller.getModel().setActiveWalletPreference(MultiBitModel.RECEIVE_ADDRESS, addressString);
                         controller.getModel().setActiveWalletPreference(MultiBitModel.RECEIVE_LABEL, "");
 
-                        controller.getFileHandler().savePerWalletModelData(perWalletModelData, false);
+                        controller.getFileHandler().requestSave(perWalletModelData, false);
                     } catch (FileNotFoundException fnfe) {
                         fnfe.printStackTrace();
                     } catch (IOException ioe) {
@@ -45,6 +45,11 @@ public class CreateNewReceivingAddressAction extends AbstractAction {
     public void actionPerformed(ActionEvent e) {
         // check to see if the wallet files have changed
         PerWalletModelData perWalletModelData = controller.getModel().getActivePerWalletModelData();
+        if (!perWalletModelData.isWalletLoaded()) {
+            // the wallet is still loading
+            return;
+        }
+
         boolean haveFilesChanged = controller.getFileHandler().haveFilesChanged(perWalletModelData);
 
         if (haveFilesChanged) {
@@ -53,7 +58,7 @@ public class CreateNewReceivingAddressAction extends AbstractAction {
             controller.fireFilesHaveBeenChangedByAnotherProcess(perWalletModelData);
         } else {
             ECKey newKey = new ECKey();
-            perWalletModelData.getWallet().keychain.add(newKey);
+            perWalletModelData.getWallet().addKey(newKey);
 
             String addressString = newKey.toAddress(controller.getMultiBitService().getNetworkParameters()).toString();
             WalletInfo walletInfo = perWalletModelData.getWalletInfo();
@@ -65,7 +70,7 @@ public class CreateNewReceivingAddressAction extends AbstractAction {
             controller.getModel().setActiveWalletPreference(MultiBitModel.RECEIVE_ADDRESS, addressString);
             controller.getModel().setActiveWalletPreference(MultiBitModel.RECEIVE_LABEL, "");
             
-            controller.getFileHandler().savePerWalletModelData(perWalletModelData, false);
+            controller.getFileHandler().requestSave(perWalletModelData, false);
 
             controller.setActionForwardToSibling(ActionForward.FORWARD_TO_SAME);
 
@@ -569,7 +569,7 @@ public abstract class AbstractTradePanel extends JPanel implements View, DataPro
         // save any changes
         if (controller.getModel().getActivePerWalletModelData() != null
                 && controller.getModel().getActivePerWalletModelData().isDirty()) {
-            controller.getFileHandler().savePerWalletModelData(controller.getModel().getActivePerWalletModelData(), false);
+            controller.getFileHandler().requestSave(controller.getModel().getActivePerWalletModelData(), false);
         }
     }
 
@@ -72,10 +72,9 @@ public class AddressBookTableModel extends DefaultTableModel {
             addresses = walletInfo.getSendingAddresses();
         }
 
-        AddressBookData[] addressesArray = addresses.toArray(new AddressBookData[addresses.size()]);
         AddressBookData addressBookData = null;
         if (row >= 0 && row < addresses.size()) {
-            addressBookData = addressesArray[row];
+            addressBookData = addresses.get(row);
         }
 
         if (addressBookData == null) {
@@ -175,7 +174,13 @@ public class AddressBookTableModel extends DefaultTableModel {
         }
 
         if (addresses != null && addresses.size() > row) {
-            addresses.set(row, addressBookData);
+            // replaced through the wallet info so that its address index is
+            // kept up to date
+            if (isReceiving) {
+                walletInfo.setReceivingAddressByRow(row, addressBookData);
+            } else {
+                walletInfo.setSendingAddressByRow(row, addressBookData);
+            }
             fireTableRowsUpdated(row, row);
         }
     }
@@ -10,6 +10,7 @@ import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
 import java.awt.event.MouseListener;
 import java.io.File;
+import java.math.BigInteger;
 
 import javax.swing.BorderFactory;
 import javax.swing.JLabel;
@@ -23,8 +24,6 @@ import org.multibit.model.PerWalletModelData;
 import org.multibit.viewsystem.swing.MultiBitFrame;
 import org.multibit.viewsystem.swing.view.BlinkLabel;
 
-import com.google.bitcoin.core.Wallet.BalanceType;
-
 public class SingleWalletPanel extends RoundedPanel implements ActionListener, FocusListener {
 
     private static final long serialVersionUID = -7110340338285836548L;
@@ -120,8 +119,7 @@ public class SingleWalletPanel extends RoundedPanel implements ActionListener, F
         amountLabel = new BlinkLabel();
         amountLabel.setBackground(BACKGROUND_COLOR_NORMAL);
         amountLabel.setBorder(BorderFactory.createEmptyBorder(0, 0, 0, 3));
-        amountLabel.setText(controller.getLocaliser().bitcoinValueToString4(perWalletModelData.getWallet().getBalance(BalanceType.ESTIMATED),
-                true, false));
+        amountLabel.setText(createAmountText());
         constraints.fill = GridBagConstraints.NONE;
         constraints.gridx = 1;
         constraints.gridy = 3;
@@ -217,17 +215,28 @@ public class SingleWalletPanel extends RoundedPanel implements ActionListener, F
             if (text != null && !text.equals(perWalletModelData.getWalletDescription())) {
                 perWalletModelData.setWalletDescription(text);
                 mainFrame.setActiveWalletTooltip(new File(perWalletModelData.getWalletFilename()), text);
-                controller.getFileHandler().savePerWalletModelData(perWalletModelData, false);
+                controller.getFileHandler().requestSave(perWalletModelData, false);
             }
         }
     }
 
+    /**
+     * the balance is shown from the wallet info summary until the wallet has
+     * loaded
+     */
+    private String createAmountText() {
+        BigInteger estimatedBalance = perWalletModelData.getEstimatedBalance();
+        if (estimatedBalance == null) {
+            return "";
+        }
+        return controller.getLocaliser().bitcoinValueToString4(estimatedBalance, true, false);
+    }
+
     /**
      * update any UI elements from the model (hint that data has changed)
      */
     public void updateFromModel() {
-        String newAmountText = controller.getLocaliser().bitcoinValueToString4(
-                perWalletModelData.getWallet().getBalance(BalanceType.ESTIMATED), true, false);
+        String newAmountText = createAmountText();
         if (newAmountText != null && !newAmountText.equals(amountLabel.getText())) {
             amountLabel.blink(newAmountText);
         }
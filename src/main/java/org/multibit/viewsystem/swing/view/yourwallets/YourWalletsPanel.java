@@ -129,7 +129,7 @@ public class YourWalletsPanel extends JPanel implements View, DataProvider {
             for (PerWalletModelData loopModelData : perWalletModelDataList) {
                 if (loopModelData != null) {
                     if (loopModelData.isDirty() && !loopModelData.isFilesHaveBeenChangedByAnotherProcess()) {
-                        controller.getFileHandler().savePerWalletModelData(loopModelData, false);
+                        controller.getFileHandler().requestSave(loopModelData, false);
                     }
                 }
             }
@@ -229,7 +229,10 @@ public class YourWalletsPanel extends JPanel implements View, DataProvider {
 
         if (perWalletModelDataList != null) {
             for (PerWalletModelData loopPerWalletModelData : perWalletModelDataList) {
-                if (loopPerWalletModelData.getWallet() != null) {
+                // wallets still loading are shown from their wallet info
+                // summaries
+                String loopWalletFilename = loopPerWalletModelData.getWalletFilename();
+                if (loopWalletFilename != null && !"".equals(loopWalletFilename)) {
                     JPanel outerPanel = new JPanel();
                     outerPanel.setOpaque(false);
                     outerPanel.setBorder(BorderFactory.createEmptyBorder(0, 9, 18, 9));
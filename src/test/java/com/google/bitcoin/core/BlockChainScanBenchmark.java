@@ -0,0 +1,86 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.store.MemoryBlockStore;
+
+/**
+ * Logs the time to scan a set of large blocks for wallet transactions with 1, 2, 4 and 8 threads, using the wallets
+ * and blocks of {@link BlockChainScanTest}. This is not part of the unit tests, run it with
+ * mvn test -Dtest=BlockChainScanBenchmark.
+ */
+public class BlockChainScanBenchmark extends TestCase {
+
+    private static final Logger log = LoggerFactory.getLogger(BlockChainScanBenchmark.class);
+
+    private static final int NUMBER_OF_BLOCKS = 10;
+    private static final int NUMBER_OF_RUNS = 5;
+
+    private static final int[] NUMBERS_OF_THREADS = { 1, 2, 4, 8 };
+
+    private final NetworkParameters params = NetworkParameters.unitTests();
+
+    @Test
+    public void testScanTime() throws Exception {
+        BlockChainScanTest fixture = new BlockChainScanTest();
+        fixture.setUp();
+        List<Block> blocks = new ArrayList<Block>();
+        for (int i = 0; i < NUMBER_OF_BLOCKS; i++) {
+            blocks.add(fixture.createBlock(i, BlockChainScanTest.TRANSACTIONS_PER_BLOCK));
+        }
+        BlockChain blockChain = new BlockChain(params, fixture.wallets, new MemoryBlockStore(params));
+
+        StringBuilder times = new StringBuilder();
+        for (int numberOfThreads : NUMBERS_OF_THREADS) {
+            ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+            try {
+                blockChain.setScanExecutor(executor, numberOfThreads);
+                long best = Long.MAX_VALUE;
+                for (int run = 0; run < NUMBER_OF_RUNS; run++) {
+                    // the scripts are parsed and kept on the first scan, so scan fresh copies of the blocks each run
+                    List<Block> copies = new ArrayList<Block>();
+                    for (Block block : blocks) {
+                        copies.add(new Block(params, block.bitcoinSerialize()));
+                    }
+                    long start = System.nanoTime();
+                    for (Block block : copies) {
+                        blockChain.scanTransactions(block, new HashMap<Wallet, List<Transaction>>());
+                    }
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                times.append(numberOfThreads).append(" threads ").append(best / 1000000).append(" ms, ");
+            } finally {
+                executor.shutdown();
+            }
+        }
+        log.info("Scanning " + NUMBER_OF_BLOCKS + " blocks of " + BlockChainScanTest.TRANSACTIONS_PER_BLOCK
+                + " transactions for " + fixture.wallets.size() + " wallets took "
+                + times.substring(0, times.length() - 2) + ".");
+    }
+}
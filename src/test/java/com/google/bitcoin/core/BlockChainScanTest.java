@@ -0,0 +1,127 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.google.bitcoin.store.MemoryBlockStore;
+
+/**
+ * Checks scanning blocks for wallet transactions on several threads finds the same transactions, in the same order,
+ * as scanning on one. {@link BlockChainScanBenchmark} times the scan with different numbers of threads.
+ */
+public class BlockChainScanTest extends TestCase {
+
+    private static final int NUMBER_OF_WALLETS = 8;
+    private static final int KEYS_PER_WALLET = 50;
+    static final int TRANSACTIONS_PER_BLOCK = 1000;
+
+    private final NetworkParameters params = NetworkParameters.unitTests();
+
+    private final Address someoneElse = new ECKey().toAddress(params);
+
+    final List<Wallet> wallets = new ArrayList<Wallet>();
+
+    private final List<ECKey> walletKeys = new ArrayList<ECKey>();
+
+    @Override
+    public void setUp() throws Exception {
+        for (int i = 0; i < NUMBER_OF_WALLETS; i++) {
+            Wallet wallet = new Wallet(params);
+            for (int j = 0; j < KEYS_PER_WALLET; j++) {
+                ECKey key = new ECKey();
+                wallet.addKey(key);
+                walletKeys.add(key);
+            }
+            wallets.add(wallet);
+        }
+    }
+
+    @Test
+    public void testParallelScanKeepsBlockOrder() throws Exception {
+        Block block = createBlock(0, TRANSACTIONS_PER_BLOCK);
+        BlockChain blockChain = new BlockChain(params, wallets, new MemoryBlockStore(params));
+        HashMap<Wallet, List<Transaction>> serial = new HashMap<Wallet, List<Transaction>>();
+        blockChain.scanTransactions(block, serial);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            blockChain.setScanExecutor(executor, 4);
+            HashMap<Wallet, List<Transaction>> parallel = new HashMap<Wallet, List<Transaction>>();
+            blockChain.scanTransactions(block, parallel);
+            assertEquals(serial, parallel);
+        } finally {
+            executor.shutdown();
+        }
+
+        // one transaction in ten pays a wallet key and one in twenty-five spends from one
+        int found = 0;
+        for (List<Transaction> transactions : serial.values()) {
+            found += transactions.size();
+            int lastIndex = -1;
+            for (Transaction tx : transactions) {
+                int index = block.transactions.indexOf(tx);
+                assertTrue(index > lastIndex);
+                lastIndex = index;
+            }
+        }
+        assertTrue(found >= TRANSACTIONS_PER_BLOCK / 10);
+
+        // once the executor is shut down blocks are scanned on the calling thread again
+        HashMap<Wallet, List<Transaction>> afterShutdown = new HashMap<Wallet, List<Transaction>>();
+        blockChain.scanTransactions(block, afterShutdown);
+        assertEquals(serial, afterShutdown);
+    }
+
+    /**
+     * Creates a block of transactions each spending one output and making one payment. One in ten pays a wallet key
+     * and one in twenty-five spends from one, the rest are between strangers.
+     */
+    Block createBlock(int blockNumber, int numberOfTransactions) throws Exception {
+        Block block = params.genesisBlock.createNextBlock(someoneElse);
+        ECKey stranger = new ECKey();
+        Transaction funding = new Transaction(params);
+        for (int i = 0; i < numberOfTransactions; i++) {
+            ECKey from = i % 25 == 0 ? walletKeys.get((blockNumber + i) % walletKeys.size()) : stranger;
+            funding.addOutput(new TransactionOutput(params, funding, BigInteger.ONE, from.toAddress(params)));
+        }
+
+        // the inputs are not checked while scanning, so a dummy signature saves signing every one
+        byte[] signature = new byte[72];
+        for (int i = 0; i < numberOfTransactions; i++) {
+            TransactionOutput output = funding.getOutputs().get(i);
+            ECKey from = i % 25 == 0 ? walletKeys.get((blockNumber + i) % walletKeys.size()) : stranger;
+            Address to = i % 10 == 0 ? walletKeys.get((blockNumber * 7 + i) % walletKeys.size()).toAddress(params)
+                    : someoneElse;
+            Transaction tx = new Transaction(params);
+            tx.addInput(output);
+            tx.getInputs().get(0).setScriptBytes(Script.createInputScript(signature, from.getPubKey()));
+            tx.addOutput(new TransactionOutput(params, tx, BigInteger.ONE, to));
+            block.transactions.add(tx);
+        }
+        return block;
+    }
+}
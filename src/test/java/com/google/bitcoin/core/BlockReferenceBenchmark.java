@@ -0,0 +1,80 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the heap held per block by the block references transactions keep, against the stored blocks they used
+ * to keep. This is not part of the unit tests, run it with mvn test -Dtest=BlockReferenceBenchmark.
+ */
+public class BlockReferenceBenchmark extends TestCase {
+
+    private static final Logger log = LoggerFactory.getLogger(BlockReferenceBenchmark.class);
+
+    private static final int NUMBER_OF_BLOCKS = 5000;
+
+    private final NetworkParameters params = NetworkParameters.unitTests();
+
+    private final Address someoneElse = new ECKey().toAddress(params);
+
+    @Test
+    public void testHeapPerBlock() throws Exception {
+        List<StoredBlock> storedBlocks = createChain();
+        long before = usedMemory();
+        List<BlockReference> references = new ArrayList<BlockReference>();
+        for (StoredBlock block : storedBlocks) {
+            references.add(BlockReference.of(block));
+        }
+        long referenceHeap = usedMemory() - before;
+        storedBlocks = null;
+        long afterReferences = usedMemory();
+        storedBlocks = createChain();
+        long storedBlockHeap = usedMemory() - afterReferences;
+
+        log.info("With " + NUMBER_OF_BLOCKS + " blocks the blocks hold about " + referenceHeap / NUMBER_OF_BLOCKS
+                + " bytes of heap each as references against " + storedBlockHeap / NUMBER_OF_BLOCKS
+                + " bytes as stored blocks.");
+        // keep both sets of blocks alive until they are measured
+        assertEquals(references.size(), storedBlocks.size());
+    }
+
+    private List<StoredBlock> createChain() throws Exception {
+        List<StoredBlock> storedBlocks = new ArrayList<StoredBlock>();
+        StoredBlock chainHead = TestBlocks.createGenesis(params);
+        for (int i = 0; i < NUMBER_OF_BLOCKS; i++) {
+            chainHead = TestBlocks.createNextBlock(chainHead, someoneElse);
+            storedBlocks.add(chainHead);
+        }
+        return storedBlocks;
+    }
+
+    private long usedMemory() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
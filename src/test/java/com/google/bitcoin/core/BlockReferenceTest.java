@@ -0,0 +1,105 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.google.bitcoin.store.MemoryBlockStore;
+
+/**
+ * Checks transactions refer to the blocks they appear in by hash, height and time, that the whole block can be
+ * looked up again, and that the references are saved with the wallet. {@link BlockReferenceBenchmark} measures the
+ * heap saved against holding the stored blocks.
+ */
+public class BlockReferenceTest extends TestCase {
+
+    private static final int NUMBER_OF_BLOCKS = 100;
+
+    private final NetworkParameters params = NetworkParameters.unitTests();
+
+    private final Address someoneElse = new ECKey().toAddress(params);
+
+    // the blocks made by createWallet
+    private final Map<Sha256Hash, StoredBlock> blocksByHash = new HashMap<Sha256Hash, StoredBlock>();
+
+    @Test
+    public void testReferenceResolves() throws Exception {
+        Wallet wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        StoredBlock genesis = TestBlocks.createGenesis(params);
+        StoredBlock b1 = TestBlocks.createNextBlock(genesis, someoneElse);
+        wallet.receive(createPayment(key, 1), b1, BlockChain.NewBlockType.BEST_CHAIN);
+
+        Transaction tx = wallet.unspent.values().iterator().next();
+        BlockReference reference = tx.getAppearsIn().iterator().next();
+        assertEquals(b1.getHeader().getHash(), reference.getHash());
+        assertEquals(b1.getHeight(), reference.getHeight());
+        assertEquals(b1.getHeader().getTimeSeconds(), reference.getTimeSeconds());
+        assertEquals(BlockReference.of(b1), reference);
+
+        MemoryBlockStore blockStore = new MemoryBlockStore(params);
+        blockStore.put(b1);
+        assertEquals(b1, reference.resolve(blockStore));
+    }
+
+    @Test
+    public void testReferencesAreSaved() throws Exception {
+        Wallet wallet = createWallet(NUMBER_OF_BLOCKS);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        WalletFormat.write(wallet, bytes);
+        Wallet copy = WalletFormat.read(new ByteArrayInputStream(bytes.toByteArray()));
+
+        assertEquals(wallet.getBalance(), copy.getBalance());
+        for (Transaction tx : wallet.unspent.values()) {
+            Transaction copyOfTx = copy.unspent.get(tx.getHash());
+            assertEquals(tx.getAppearsIn(), copyOfTx.getAppearsIn());
+            BlockReference block = tx.getAppearsIn().iterator().next();
+            BlockReference copyOfBlock = copyOfTx.getAppearsIn().iterator().next();
+            assertEquals(block.getHeight(), copyOfBlock.getHeight());
+            assertEquals(block.getTimeSeconds(), copyOfBlock.getTimeSeconds());
+            assertEquals(blocksByHash.get(block.getHash()).getHeight(), copyOfBlock.getHeight());
+        }
+    }
+
+    private Wallet createWallet(int numberOfBlocks) throws Exception {
+        Wallet wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        StoredBlock chainHead = TestBlocks.createGenesis(params);
+        for (int i = 0; i < numberOfBlocks; i++) {
+            chainHead = TestBlocks.createNextBlock(chainHead, someoneElse);
+            blocksByHash.put(chainHead.getHeader().getHash(), chainHead);
+            wallet.receive(createPayment(key, i + 1), chainHead, BlockChain.NewBlockType.BEST_CHAIN);
+        }
+        return wallet;
+    }
+
+    private Transaction createPayment(ECKey key, int value) {
+        Transaction tx = new Transaction(params);
+        tx.addOutput(new TransactionOutput(params, tx, BigInteger.valueOf(value), key.toAddress(params)));
+        return tx;
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the coin selectors against a wallet sized set of spendable outputs, logging the time taken, the number of
+ * inputs chosen and the change left over for each. This is not part of the unit tests, run it with
+ * mvn test -Dtest=CoinSelectorBenchmark.
+ */
+public class CoinSelectorBenchmark extends TestCase {
+
+    private static final Logger log = LoggerFactory.getLogger(CoinSelectorBenchmark.class);
+
+    private static final int NUMBER_OF_OUTPUTS = 100000;
+    private static final int NUMBER_OF_SENDS = 20;
+
+    @Test
+    public void testLargeWallet() {
+        Random random = new Random(1);
+        List<SpendableOutput> candidates = CoinSelectorTest.createRandomOutputs(random, NUMBER_OF_OUTPUTS);
+        long[] targets = new long[NUMBER_OF_SENDS];
+        for (int i = 0; i < NUMBER_OF_SENDS; i++) {
+            targets[i] = 1000000L + (long) (random.nextDouble() * 5000000000L);
+        }
+
+        for (CoinSelector selector : CoinSelectorTest.createSelectors()) {
+            // warm up
+            selector.select(targets[0], candidates);
+
+            long start = System.currentTimeMillis();
+            long numberOfInputs = 0;
+            long change = 0;
+            for (long target : targets) {
+                List<SpendableOutput> selected = selector.select(target, candidates);
+                numberOfInputs += selected.size();
+                change += CoinSelectorTest.sum(selected) - target;
+            }
+            long time = System.currentTimeMillis() - start;
+            log.info(selector.getClass().getSimpleName() + " over " + NUMBER_OF_OUTPUTS + " outputs took "
+                    + time / NUMBER_OF_SENDS + " ms per send, " + (double) numberOfInputs / NUMBER_OF_SENDS
+                    + " inputs per send, average change " + change / NUMBER_OF_SENDS + " nanocoins.");
+        }
+    }
+}
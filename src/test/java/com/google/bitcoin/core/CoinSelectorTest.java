@@ -0,0 +1,141 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Checks the coin selectors. {@link CoinSelectorBenchmark} runs them against a wallet sized set of spendable outputs.
+ */
+public class CoinSelectorTest extends TestCase {
+
+    private static final int NUMBER_OF_OUTPUTS = 200;
+    private static final int NUMBER_OF_SENDS = 20;
+
+    @Test
+    public void testSelectorsCoverTarget() {
+        List<SpendableOutput> candidates = createOutputs(5, 1, 7, 3, 2);
+        CoinSelector[] selectors = createSelectors();
+        for (CoinSelector selector : selectors) {
+            List<SpendableOutput> selected = selector.select(9, candidates);
+            assertNotNull(selected);
+            assertTrue(sum(selected) >= 9);
+
+            // more than the candidates hold cannot be raised
+            assertNull(selector.select(19, candidates));
+        }
+    }
+
+    @Test
+    public void testLargestFirst() {
+        List<SpendableOutput> selected = new LargestFirstCoinSelector().select(9, createOutputs(5, 1, 7, 3, 2));
+        assertEquals(Arrays.asList(7L, 5L), values(selected));
+    }
+
+    @Test
+    public void testSmallestSufficient() {
+        CoinSelector selector = new SmallestSufficientCoinSelector();
+        assertEquals(Arrays.asList(5L), values(selector.select(4, createOutputs(5, 1, 7, 3, 2))));
+
+        // no single output is enough so the largest go first
+        assertEquals(Arrays.asList(7L, 5L), values(selector.select(9, createOutputs(5, 1, 7, 3, 2))));
+    }
+
+    @Test
+    public void testBranchAndBoundFindsExactMatch() {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector();
+        List<SpendableOutput> selected = selector.select(9, createOutputs(5, 1, 7, 3, 2));
+        assertEquals(9, sum(selected));
+
+        // no exact match so the fallback is used
+        assertNull(selector.findMatch(4, createOutputs(10, 20, 30)));
+        assertEquals(Arrays.asList(10L), values(selector.select(4, createOutputs(10, 20, 30))));
+
+        // a match within the cost of change is accepted
+        BranchAndBoundCoinSelector tolerant = new BranchAndBoundCoinSelector(2, new LargestFirstCoinSelector());
+        assertEquals(Arrays.asList(10L), values(tolerant.findMatch(8, createOutputs(10, 20, 30))));
+    }
+
+    @Test
+    public void testSelectorsCoverRandomTargets() {
+        Random random = new Random(1);
+        List<SpendableOutput> candidates = createRandomOutputs(random, NUMBER_OF_OUTPUTS);
+        for (CoinSelector selector : createSelectors()) {
+            for (int i = 0; i < NUMBER_OF_SENDS; i++) {
+                long target = 1000000L + (long) (random.nextDouble() * 5000000000L);
+                List<SpendableOutput> selected = selector.select(target, candidates);
+                assertNotNull(selected);
+                assertTrue(sum(selected) >= target);
+            }
+        }
+    }
+
+    /**
+     * Creates outputs worth between 0.001 and 10 BTC each.
+     */
+    static List<SpendableOutput> createRandomOutputs(Random random, int numberOfOutputs) {
+        List<SpendableOutput> outputs = new ArrayList<SpendableOutput>(numberOfOutputs);
+        for (int i = 0; i < numberOfOutputs; i++) {
+            long value = 100000L + (long) (random.nextDouble() * 1000000000L);
+            outputs.add(new SpendableOutput(createHash(i), 0, value, null));
+        }
+        return outputs;
+    }
+
+    static CoinSelector[] createSelectors() {
+        return new CoinSelector[] { new LargestFirstCoinSelector(), new SmallestSufficientCoinSelector(),
+                new BranchAndBoundCoinSelector() };
+    }
+
+    private List<SpendableOutput> createOutputs(long... values) {
+        List<SpendableOutput> outputs = new ArrayList<SpendableOutput>();
+        for (int i = 0; i < values.length; i++) {
+            outputs.add(new SpendableOutput(createHash(i), i, values[i], null));
+        }
+        return outputs;
+    }
+
+    private static Sha256Hash createHash(int i) {
+        byte[] bytes = new byte[32];
+        Utils.uint32ToByteArrayBE(i, bytes, 0);
+        return new Sha256Hash(bytes);
+    }
+
+    static long sum(Collection<SpendableOutput> outputs) {
+        long sum = 0;
+        for (SpendableOutput output : outputs) {
+            sum += output.getValue();
+        }
+        return sum;
+    }
+
+    private List<Long> values(List<SpendableOutput> outputs) {
+        List<Long> values = new ArrayList<Long>();
+        for (SpendableOutput output : outputs) {
+            values.add(output.getValue());
+        }
+        return values;
+    }
+}
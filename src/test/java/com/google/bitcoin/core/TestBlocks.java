@@ -0,0 +1,105 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds header only blocks on top of the genesis block, and wallets that have received transactions in them, for
+ * the wallet tests.
+ */
+final class TestBlocks {
+
+    private TestBlocks() {
+    }
+
+    static StoredBlock createGenesis(NetworkParameters params) {
+        Block genesis = params.genesisBlock.cloneAsHeader();
+        return new StoredBlock(genesis, genesis.getWork(), 0);
+    }
+
+    /**
+     * Returns a block on top of the given one with its coinbase paying the given address.
+     */
+    static StoredBlock createNextBlock(StoredBlock prev, Address coinbaseTo) throws VerificationException {
+        return prev.build(prev.getHeader().createNextBlock(coinbaseTo).cloneAsHeader());
+    }
+
+    /**
+     * Returns a transaction with no inputs and one output paying the given value to the given address.
+     */
+    static Transaction createTransaction(NetworkParameters params, Address to, BigInteger value) {
+        Transaction tx = new Transaction(params);
+        tx.addOutput(new TransactionOutput(params, tx, value, to));
+        return tx;
+    }
+
+    /**
+     * Creates a wallet with the given number of new keys.
+     */
+    static Wallet createWallet(NetworkParameters params, int numberOfKeys) {
+        Wallet wallet = new Wallet(params);
+        for (int i = 0; i < numberOfKeys; i++) {
+            wallet.addKey(new ECKey());
+        }
+        return wallet;
+    }
+
+    /**
+     * A chain of blocks that each pay a wallet several times, spread over its keys, and spend one of the previous
+     * block's payments to someone else. Each call to receiveBlocks carries on from the last block received.
+     */
+    static final class Payments {
+
+        private final NetworkParameters params;
+        private final int transactionsPerBlock;
+        private final Address someoneElse;
+
+        private StoredBlock chainHead;
+        private Transaction previous;
+        private int value = 1;
+
+        Payments(NetworkParameters params, int transactionsPerBlock) {
+            this.params = params;
+            this.transactionsPerBlock = transactionsPerBlock;
+            this.someoneElse = new ECKey().toAddress(params);
+            this.chainHead = createGenesis(params);
+        }
+
+        void receiveBlocks(Wallet wallet, int numberOfBlocks) throws Exception {
+            for (int i = 0; i < numberOfBlocks; i++) {
+                chainHead = createNextBlock(chainHead, someoneElse);
+                List<Transaction> transactions = new ArrayList<Transaction>();
+                for (int j = 0; j < transactionsPerBlock; j++) {
+                    // different values so each transaction has its own hash
+                    Address to = wallet.keychain.get(value % wallet.keychain.size()).toAddress(params);
+                    transactions.add(createTransaction(params, to, BigInteger.valueOf(value++)));
+                }
+                if (previous != null) {
+                    Transaction spend = new Transaction(params);
+                    spend.addInput(previous.getOutputs().get(0));
+                    spend.addOutput(new TransactionOutput(params, spend, BigInteger.valueOf(value++), someoneElse));
+                    transactions.add(spend);
+                }
+                previous = transactions.get(0);
+                wallet.receiveBlock(chainHead, transactions, BlockChain.NewBlockType.BEST_CHAIN);
+            }
+        }
+    }
+}
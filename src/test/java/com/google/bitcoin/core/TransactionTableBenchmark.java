@@ -0,0 +1,149 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Wallet.Pool;
+
+/**
+ * Compares the memory use and throughput of the transaction table with the separate maps it replaces on a wallet
+ * with 50k transactions. This is not part of the unit tests, run it with mvn test -Dtest=TransactionTableBenchmark.
+ */
+public class TransactionTableBenchmark extends TestCase {
+
+    private static final Logger log = LoggerFactory.getLogger(TransactionTableBenchmark.class);
+
+    private static final int NUMBER_OF_TRANSACTIONS = 50000;
+
+    private final NetworkParameters params = NetworkParameters.prodNet();
+    private final Address address = new ECKey().toAddress(params);
+
+    @Test
+    public void testCompareWithSeparateMaps() {
+        List<Transaction> transactions = new ArrayList<Transaction>(NUMBER_OF_TRANSACTIONS);
+        for (int i = 0; i < NUMBER_OF_TRANSACTIONS; i++) {
+            Transaction tx = createTransaction(i);
+            tx.getHash();
+            transactions.add(tx);
+        }
+
+        // warm up
+        runSeparateMaps(transactions);
+        runTable(transactions);
+
+        long before = usedMemory();
+        long start = System.currentTimeMillis();
+        Object maps = runSeparateMaps(transactions);
+        long mapsTime = System.currentTimeMillis() - start;
+        long mapsMemory = usedMemory() - before;
+        maps.hashCode();
+        maps = null;
+
+        before = usedMemory();
+        start = System.currentTimeMillis();
+        Object table = runTable(transactions);
+        long tableTime = System.currentTimeMillis() - start;
+        long tableMemory = usedMemory() - before;
+        table.hashCode();
+
+        log.info("With " + NUMBER_OF_TRANSACTIONS + " transactions separate maps took " + mapsTime + " ms and about "
+                + mapsMemory / 1024 + " KB, the transaction table took " + tableTime + " ms and about "
+                + tableMemory / 1024 + " KB.");
+    }
+
+    /**
+     * Files every transaction as pending, confirms them all into unspent, spends half of them and then looks each
+     * one up across the unspent, spent and pending pools as getValueSentFromMe does.
+     */
+    private Object runSeparateMaps(List<Transaction> transactions) {
+        List<Map<Sha256Hash, Transaction>> pools = new ArrayList<Map<Sha256Hash, Transaction>>();
+        Map<Sha256Hash, Transaction> pending = new HashMap<Sha256Hash, Transaction>();
+        Map<Sha256Hash, Transaction> unspent = new HashMap<Sha256Hash, Transaction>();
+        Map<Sha256Hash, Transaction> spent = new HashMap<Sha256Hash, Transaction>();
+        pools.add(pending);
+        pools.add(unspent);
+        pools.add(spent);
+        pools.add(new HashMap<Sha256Hash, Transaction>());
+        pools.add(new HashMap<Sha256Hash, Transaction>());
+        for (Transaction tx : transactions) {
+            pending.put(tx.getHash(), tx);
+        }
+        for (Transaction tx : transactions) {
+            unspent.put(tx.getHash(), pending.remove(tx.getHash()));
+        }
+        for (int i = 0; i < transactions.size(); i += 2) {
+            Sha256Hash hash = transactions.get(i).getHash();
+            spent.put(hash, unspent.remove(hash));
+        }
+        int found = 0;
+        for (Transaction tx : transactions) {
+            Transaction connected = unspent.get(tx.getHash());
+            if (connected == null) connected = spent.get(tx.getHash());
+            if (connected == null) connected = pending.get(tx.getHash());
+            if (connected != null) found++;
+        }
+        assertEquals(transactions.size(), found);
+        return pools;
+    }
+
+    private Object runTable(List<Transaction> transactions) {
+        TransactionTable table = new TransactionTable();
+        for (Transaction tx : transactions) {
+            table.put(tx.getHash(), tx, Pool.PENDING);
+        }
+        for (Transaction tx : transactions) {
+            table.move(tx.getHash(), Pool.PENDING, Pool.UNSPENT);
+        }
+        for (int i = 0; i < transactions.size(); i += 2) {
+            table.move(transactions.get(i).getHash(), Pool.UNSPENT, Pool.SPENT);
+        }
+        int mask = TransactionTable.mask(Pool.UNSPENT, Pool.SPENT, Pool.PENDING);
+        int found = 0;
+        for (Transaction tx : transactions) {
+            if (table.get(tx.getHash(), mask) != null) found++;
+        }
+        assertEquals(transactions.size(), found);
+        return table;
+    }
+
+    private long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private Transaction createTransaction(int value) {
+        Transaction tx = new Transaction(params);
+        tx.addOutput(new TransactionOutput(params, tx, Utils.toNanoCoins(0, value % 100 + 1), address));
+        // make every transaction unique
+        tx.addOutput(new TransactionOutput(params, tx, BigInteger.valueOf(value + 1), address));
+        return tx;
+    }
+}
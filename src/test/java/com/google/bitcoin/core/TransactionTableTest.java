@@ -0,0 +1,156 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.google.bitcoin.core.Wallet.Pool;
+
+/**
+ * Checks the pool views of the transaction table behave like the separate maps they replace.
+ * {@link TransactionTableBenchmark} compares the memory use and throughput of the two.
+ */
+public class TransactionTableTest extends TestCase {
+
+    private final NetworkParameters params = NetworkParameters.prodNet();
+    private final Address address = new ECKey().toAddress(params);
+
+    @Test
+    public void testPoolViews() {
+        TransactionTable table = new TransactionTable();
+        Map<Sha256Hash, Transaction> pending = table.view(Pool.PENDING);
+        Map<Sha256Hash, Transaction> inactive = table.view(Pool.INACTIVE);
+        Map<Sha256Hash, Transaction> unspent = table.view(Pool.UNSPENT);
+        Map<Sha256Hash, Transaction> spent = table.view(Pool.SPENT);
+
+        Transaction first = createTransaction(1);
+        Transaction second = createTransaction(2);
+        assertNull(pending.put(first.getHash(), first));
+        assertSame(first, pending.put(first.getHash(), first));
+        pending.put(second.getHash(), second);
+
+        // a transaction can be in two pools at once
+        inactive.put(first.getHash(), first);
+        assertSame(first, pending.get(first.getHash()));
+        assertSame(first, inactive.get(first.getHash()));
+        assertEquals(2, pending.size());
+        assertEquals(1, inactive.size());
+        assertEquals(2, table.size(TransactionTable.mask(Pool.ALL)));
+
+        assertTrue(table.move(second.getHash(), Pool.PENDING, Pool.UNSPENT));
+        assertFalse(table.move(second.getHash(), Pool.PENDING, Pool.SPENT));
+        assertNull(pending.get(second.getHash()));
+        assertSame(second, unspent.get(second.getHash()));
+        assertEquals(new HashSet<Transaction>(pending.values()), new HashSet<Transaction>(inactive.values()));
+
+        Map<Sha256Hash, Transaction> union = table.view(Pool.UNSPENT, Pool.SPENT, Pool.PENDING);
+        assertEquals(2, union.size());
+        assertEquals(2, new ArrayList<Transaction>(union.values()).size());
+        try {
+            union.put(first.getHash(), first);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        // removing from one pool leaves the other
+        assertSame(first, pending.remove(first.getHash()));
+        assertSame(first, inactive.get(first.getHash()));
+        inactive.clear();
+        assertTrue(inactive.isEmpty());
+        assertEquals(1, table.size(TransactionTable.mask(Pool.ALL)));
+
+        assertSame(second, unspent.values().iterator().next());
+        assertEquals(second.getHash(), unspent.keySet().iterator().next());
+        Iterator<Transaction> iterator = unspent.values().iterator();
+        iterator.next();
+        iterator.remove();
+        assertTrue(unspent.isEmpty());
+        assertTrue(spent.isEmpty());
+    }
+
+    @Test
+    public void testSerializedFormHasSeparatePools() throws Exception {
+        Wallet wallet = new Wallet(params);
+        wallet.addKey(new ECKey());
+        Transaction both = createTransaction(1);
+        Transaction spentTx = createTransaction(2);
+        wallet.pending.put(both.getHash(), both);
+        wallet.inactive.put(both.getHash(), both);
+        wallet.spent.put(spentTx.getHash(), spentTx);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(wallet);
+        out.close();
+        Wallet copy = (Wallet) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        assertEquals(1, copy.keychain.size());
+        assertEquals(1, copy.pending.size());
+        assertEquals(1, copy.inactive.size());
+        assertEquals(1, copy.spent.size());
+        assertSame(copy.pending.get(both.getHash()), copy.inactive.get(both.getHash()));
+        assertTrue(copy.unspent.isEmpty());
+        assertTrue(copy.dead.isEmpty());
+    }
+
+    @Test
+    public void testTransactionsAreFoundAfterMoving() {
+        TransactionTable table = new TransactionTable();
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        for (int i = 0; i < 100; i++) {
+            Transaction tx = createTransaction(i);
+            transactions.add(tx);
+            table.put(tx.getHash(), tx, Pool.PENDING);
+        }
+        for (Transaction tx : transactions) {
+            assertTrue(table.move(tx.getHash(), Pool.PENDING, Pool.UNSPENT));
+        }
+        for (int i = 0; i < transactions.size(); i += 2) {
+            assertTrue(table.move(transactions.get(i).getHash(), Pool.UNSPENT, Pool.SPENT));
+        }
+
+        assertEquals(0, table.size(TransactionTable.mask(Pool.PENDING)));
+        assertEquals(50, table.size(TransactionTable.mask(Pool.UNSPENT)));
+        assertEquals(50, table.size(TransactionTable.mask(Pool.SPENT)));
+        int mask = TransactionTable.mask(Pool.UNSPENT, Pool.SPENT, Pool.PENDING);
+        for (Transaction tx : transactions) {
+            assertSame(tx, table.get(tx.getHash(), mask));
+        }
+    }
+
+    private Transaction createTransaction(int value) {
+        Transaction tx = new Transaction(params);
+        tx.addOutput(new TransactionOutput(params, tx, Utils.toNanoCoins(0, value % 100 + 1), address));
+        // make every transaction unique
+        tx.addOutput(new TransactionOutput(params, tx, BigInteger.valueOf(value + 1), address));
+        return tx;
+    }
+}
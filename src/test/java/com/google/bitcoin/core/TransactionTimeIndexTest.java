@@ -0,0 +1,99 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class TransactionTimeIndexTest extends TestCase {
+
+    private final NetworkParameters params = NetworkParameters.prodNet();
+
+    @Test
+    public void testNewestFirstWithTiesBrokenByHash() {
+        TransactionTimeIndex index = new TransactionTimeIndex();
+        Transaction oldest = createTransaction(1000);
+        Transaction middle1 = createTransaction(2000);
+        Transaction middle2 = createTransaction(2000);
+        Transaction newest = createTransaction(3000);
+        Transaction undated = createTransaction(-1);
+        index.add(middle1);
+        index.add(undated);
+        index.add(newest);
+        index.add(oldest);
+        index.add(middle2);
+
+        List<Transaction> ordered = new ArrayList<Transaction>(index.newestFirst());
+        assertEquals(5, ordered.size());
+        assertSame(newest, ordered.get(0));
+        assertTrue(ordered.indexOf(middle1) > 0 && ordered.indexOf(middle1) < 3);
+        assertTrue(ordered.indexOf(middle2) > 0 && ordered.indexOf(middle2) < 3);
+        assertSame(oldest, ordered.get(3));
+        assertSame(undated, ordered.get(4));
+
+        // the same order whichever way round they were added
+        TransactionTimeIndex otherIndex = new TransactionTimeIndex();
+        otherIndex.add(middle2);
+        otherIndex.add(middle1);
+        assertEquals(ordered.subList(1, 3), new ArrayList<Transaction>(otherIndex.newestFirst()));
+    }
+
+    @Test
+    public void testReAddingMovesTransaction() {
+        TransactionTimeIndex index = new TransactionTimeIndex();
+        Transaction first = createTransaction(1000);
+        Transaction second = createTransaction(2000);
+        index.add(first);
+        index.add(second);
+
+        index.remove(first.getHash());
+        first.setUpdatedAt(new Date(3000));
+        index.add(first);
+        assertEquals(2, index.size());
+        assertSame(first, index.newestFirst().iterator().next());
+
+        index.remove(second.getHash());
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void testBetween() {
+        TransactionTimeIndex index = new TransactionTimeIndex();
+        for (int i = 1; i <= 10; i++) {
+            index.add(createTransaction(i * 1000));
+        }
+        List<Transaction> range = new ArrayList<Transaction>(index.between(new Date(3000), new Date(5000)));
+        assertEquals(3, range.size());
+        assertEquals(new Date(5000), range.get(0).getUpdateTime());
+        assertEquals(new Date(3000), range.get(2).getUpdateTime());
+
+        assertEquals(0, index.between(new Date(5000), new Date(3000)).size());
+        assertEquals(10, index.between(new Date(0), new Date(10000)).size());
+    }
+
+    private Transaction createTransaction(long time) {
+        Transaction tx = new Transaction(params);
+        tx.addOutput(new TransactionOutput(params, tx, Utils.toNanoCoins(1, 0), new ECKey().toAddress(params)));
+        tx.setUpdatedAt(time < 0 ? null : new Date(time));
+        return tx;
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class WalletArchiveTest extends TestCase {
+
+    private final NetworkParameters params = NetworkParameters.unitTests();
+
+    private final ECKey key = new ECKey();
+    private final Address coinbaseTo = new ECKey().toAddress(params);
+
+    @Test
+    public void testSpentTransactionsAreArchivedAndRestored() throws Exception {
+        File file = File.createTempFile("multibit", ".archive");
+        file.delete();
+        file.deleteOnExit();
+
+        Wallet wallet = new Wallet(params);
+        wallet.addKey(key);
+
+        StoredBlock genesis = TestBlocks.createGenesis(params);
+        StoredBlock b1 = TestBlocks.createNextBlock(genesis, coinbaseTo);
+        StoredBlock b2 = TestBlocks.createNextBlock(b1, coinbaseTo);
+        StoredBlock b3 = TestBlocks.createNextBlock(b2, coinbaseTo);
+        StoredBlock b4 = TestBlocks.createNextBlock(b3, coinbaseTo);
+
+        // a pays us and b spends it all to someone else
+        Transaction a = new Transaction(params);
+        a.addOutput(new TransactionOutput(params, a, Utils.toNanoCoins(1, 0), key.toAddress(params)));
+        Transaction b = new Transaction(params);
+        b.addInput(a.getOutputs().get(0));
+        b.addOutput(new TransactionOutput(params, b, Utils.toNanoCoins(1, 0), coinbaseTo));
+        wallet.receiveBlock(b1, Collections.singletonList(a), BlockChain.NewBlockType.BEST_CHAIN);
+        wallet.receiveBlock(b2, Collections.singletonList(b), BlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(2, wallet.spent.size());
+
+        wallet.setArchive(new WalletArchive(params, file), 2);
+        // b is not yet buried two blocks deep
+        assertEquals(0, wallet.archiveBuriedTransactions(3));
+        assertEquals(2, wallet.archiveBuriedTransactions(4));
+
+        assertTrue(wallet.spent.isEmpty());
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+        List<ArchivedTransaction> archived = wallet.getArchivedTransactions();
+        assertEquals(2, archived.size());
+        ArchivedTransaction archivedA = archived.get(0).getHash().equals(a.getHash()) ? archived.get(0) : archived
+                .get(1);
+        ArchivedTransaction archivedB = archivedA == archived.get(0) ? archived.get(1) : archived.get(0);
+        assertEquals(Utils.toNanoCoins(1, 0), archivedA.getNetValue());
+        assertEquals(Utils.toNanoCoins(1, 0).negate(), archivedB.getNetValue());
+        assertEquals(1, archivedA.getHeight());
+        assertEquals(2, archivedB.getHeight());
+
+        Transaction readBack = wallet.readArchivedTransaction(archivedA);
+        assertEquals(a.getHash(), readBack.getHash());
+        assertEquals(1, readBack.getAppearsIn().size());
+        assertEquals(1, readBack.getAppearsIn().iterator().next().getHeight());
+
+        // the summaries are read back when the archive is opened again
+        assertEquals(2, new WalletArchive(params, file).size());
+
+        // a re-org down to b2 brings them back into the wallet
+        List<StoredBlock> oldBlocks = new ArrayList<StoredBlock>();
+        oldBlocks.add(b4);
+        oldBlocks.add(b3);
+        oldBlocks.add(b2);
+        List<StoredBlock> newBlocks = new ArrayList<StoredBlock>();
+        newBlocks.add(TestBlocks.createNextBlock(b1, coinbaseTo));
+        wallet.reorganize(oldBlocks, newBlocks);
+
+        assertEquals(0, wallet.getArchive().size());
+        assertTrue(wallet.unspent.containsKey(a.getHash()));
+        assertTrue(wallet.pending.containsKey(b.getHash()));
+    }
+
+    @Test
+    public void testPartlyWrittenRecordIsDropped() throws Exception {
+        File file = File.createTempFile("multibit", ".archive");
+        file.delete();
+        file.deleteOnExit();
+
+        WalletArchive archive = new WalletArchive(params, file);
+        Transaction tx = new Transaction(params);
+        tx.addOutput(new TransactionOutput(params, tx, Utils.toNanoCoins(1, 0), key.toAddress(params)));
+        List<ArchivedTransaction> summaries = new ArrayList<ArchivedTransaction>();
+        summaries.add(new ArchivedTransaction(tx.getHash(), 1, 100, 1000, new long[] { 100 }));
+        archive.append(Collections.singletonList(tx), summaries);
+        long length = file.length();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(length);
+        raf.writeInt(50);
+        raf.write(new byte[] { 1, 2, 3 });
+        raf.close();
+
+        WalletArchive reopened = new WalletArchive(params, file);
+        assertEquals(1, reopened.size());
+        assertEquals(length, file.length());
+        assertEquals(tx.getHash(), reopened.read(reopened.get(tx.getHash())).getHash());
+    }
+}
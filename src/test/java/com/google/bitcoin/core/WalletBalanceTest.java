@@ -0,0 +1,131 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.google.bitcoin.core.Wallet.BalanceType;
+
+/**
+ * Checks the running balance totals against the balances worked out from the pools by {@link Wallet#checkBalances()}
+ * for each way a transaction can change what the wallet holds.
+ */
+public class WalletBalanceTest extends TestCase {
+
+    private final NetworkParameters params = NetworkParameters.prodNet();
+
+    private Wallet wallet;
+    private ECKey key;
+    private Address someoneElse;
+    private StoredBlock b1;
+    private StoredBlock b2;
+
+    @Override
+    public void setUp() throws Exception {
+        wallet = new Wallet(params);
+        key = new ECKey();
+        wallet.addKey(key);
+        someoneElse = new ECKey().toAddress(params);
+        b1 = TestBlocks.createNextBlock(TestBlocks.createGenesis(params), someoneElse);
+        b2 = TestBlocks.createNextBlock(b1, someoneElse);
+    }
+
+    @Test
+    public void testPendingTransactionIsConfirmed() throws Exception {
+        Transaction tx = createPayment(Utils.toNanoCoins(1, 0), key.toAddress(params));
+        wallet.processPendingTransaction(tx);
+        assertBalances(BigInteger.ZERO, Utils.toNanoCoins(1, 0));
+
+        wallet.receive(tx, b1, BlockChain.NewBlockType.BEST_CHAIN);
+        assertFalse(wallet.pending.containsKey(tx.getHash()));
+        assertBalances(Utils.toNanoCoins(1, 0), Utils.toNanoCoins(1, 0));
+    }
+
+    @Test
+    public void testSendWithChangeIsConfirmed() throws Exception {
+        wallet.receive(createPayment(Utils.toNanoCoins(1, 0), key.toAddress(params)), b1,
+                BlockChain.NewBlockType.BEST_CHAIN);
+        Transaction send = wallet.createSend(someoneElse, Utils.toNanoCoins(0, 40), BigInteger.ZERO);
+        wallet.confirmSend(send);
+        // the change only counts once the send is in a block
+        assertBalances(BigInteger.ZERO, Utils.toNanoCoins(0, 60));
+
+        wallet.receive(send, b2, BlockChain.NewBlockType.BEST_CHAIN);
+        assertBalances(Utils.toNanoCoins(0, 60), Utils.toNanoCoins(0, 60));
+    }
+
+    @Test
+    public void testDoubleSpendKillsPendingSend() throws Exception {
+        wallet.receive(createPayment(Utils.toNanoCoins(1, 0), key.toAddress(params)), b1,
+                BlockChain.NewBlockType.BEST_CHAIN);
+        Transaction send = wallet.createSend(someoneElse, Utils.toNanoCoins(0, 40), BigInteger.ZERO);
+        Transaction doubleSpend = wallet.createSend(new ECKey().toAddress(params), Utils.toNanoCoins(0, 30),
+                BigInteger.ZERO);
+        wallet.confirmSend(send);
+        assertBalances(BigInteger.ZERO, Utils.toNanoCoins(0, 60));
+
+        // a block spends the same coin, so the pending send and its change are dropped
+        wallet.receive(doubleSpend, b2, BlockChain.NewBlockType.BEST_CHAIN);
+        assertTrue(wallet.dead.containsKey(send.getHash()));
+        assertBalances(Utils.toNanoCoins(0, 70), Utils.toNanoCoins(0, 70));
+    }
+
+    @Test
+    public void testAddedKeyMakesOutputsOurs() throws Exception {
+        ECKey laterKey = new ECKey();
+        Transaction confirmed = createPayment(Utils.toNanoCoins(1, 0), key.toAddress(params));
+        confirmed.addOutput(new TransactionOutput(params, confirmed, Utils.toNanoCoins(2, 0),
+                laterKey.toAddress(params)));
+        wallet.receive(confirmed, b1, BlockChain.NewBlockType.BEST_CHAIN);
+        Transaction pending = createPayment(Utils.toNanoCoins(0, 50), key.toAddress(params));
+        pending.addOutput(new TransactionOutput(params, pending, Utils.toNanoCoins(4, 0),
+                laterKey.toAddress(params)));
+        wallet.processPendingTransaction(pending);
+        assertBalances(Utils.toNanoCoins(1, 0), Utils.toNanoCoins(1, 50));
+
+        wallet.addKey(laterKey);
+        assertBalances(Utils.toNanoCoins(3, 0), Utils.toNanoCoins(7, 50));
+    }
+
+    @Test
+    public void testRemoveAllTransactions() throws Exception {
+        wallet.receive(createPayment(Utils.toNanoCoins(1, 0), key.toAddress(params)), b1,
+                BlockChain.NewBlockType.BEST_CHAIN);
+        wallet.confirmSend(wallet.createSend(someoneElse, Utils.toNanoCoins(0, 40), BigInteger.ZERO));
+        wallet.processPendingTransaction(createPayment(Utils.toNanoCoins(2, 0), key.toAddress(params)));
+        assertBalances(BigInteger.ZERO, Utils.toNanoCoins(2, 60));
+
+        wallet.removeAllTransactions();
+        assertBalances(BigInteger.ZERO, BigInteger.ZERO);
+    }
+
+    private Transaction createPayment(BigInteger value, Address to) {
+        Transaction tx = new Transaction(params);
+        tx.addOutput(new TransactionOutput(params, tx, value, to));
+        return tx;
+    }
+
+    private void assertBalances(BigInteger available, BigInteger estimated) {
+        assertEquals(available, wallet.getBalance(BalanceType.AVAILABLE));
+        assertEquals(estimated, wallet.getBalance(BalanceType.ESTIMATED));
+        assertTrue(wallet.checkBalances());
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class WalletEventQueueTest extends TestCase {
+
+    private final NetworkParameters params = NetworkParameters.prodNet();
+
+    /**
+     * Holds on to the drain task so the test decides when events are dispatched.
+     */
+    private static class ManualExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    private static class PlainRecordingListener implements WalletEventListener {
+        final List<String> events = new ArrayList<String>();
+
+        public void onCoinsReceived(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+            events.add("coins " + prevBalance + "->" + newBalance);
+        }
+
+        public void onPendingCoinsReceived(Wallet wallet, Transaction tx) {
+            events.add("pending");
+        }
+
+        public void onReorganize(Wallet wallet) {
+            events.add("reorganize");
+        }
+
+        public void onDeadTransaction(Wallet wallet, Transaction deadTx, Transaction replacementTx) {
+            events.add("dead");
+        }
+    }
+
+    private static class RecordingListener extends PlainRecordingListener implements BatchWalletEventListener {
+        public void onCoinsReceived(Wallet wallet, List<Transaction> transactions, BigInteger prevBalance,
+                BigInteger newBalance) {
+            events.add("batch of " + transactions.size() + " " + prevBalance + "->" + newBalance);
+        }
+
+        public void onBlockReceived(Wallet wallet, StoredBlock block, List<Transaction> transactions,
+                List<Transaction> coinsReceived, BigInteger prevBalance, BigInteger newBalance) {
+            events.add("block of " + transactions.size() + " " + prevBalance + "->" + newBalance);
+        }
+    }
+
+    @Test
+    public void testEventsAreCoalescedAndKeptInOrder() {
+        ManualExecutor executor = new ManualExecutor();
+        WalletEventQueue queue = new WalletEventQueue(new Wallet(params), executor, 10);
+        RecordingListener listener = new RecordingListener();
+        List<WalletEventListener> listeners = Collections.<WalletEventListener> singletonList(listener);
+        Transaction tx = new Transaction(params);
+
+        queue.add(new WalletEventQueue.CoinsReceivedEvent(listeners, tx, BigInteger.valueOf(0), BigInteger.valueOf(1)));
+        queue.add(new WalletEventQueue.CoinsReceivedEvent(listeners, tx, BigInteger.valueOf(1), BigInteger.valueOf(2)));
+        queue.add(new WalletEventQueue.CoinsReceivedEvent(listeners, tx, BigInteger.valueOf(2), BigInteger.valueOf(3)));
+        queue.add(new WalletEventQueue.PendingCoinsReceivedEvent(listeners, tx));
+        queue.add(new WalletEventQueue.CoinsReceivedEvent(listeners, tx, BigInteger.valueOf(3), BigInteger.valueOf(4)));
+        queue.add(new WalletEventQueue.ReorganizeEvent(listeners));
+
+        assertTrue(listener.events.isEmpty());
+        assertEquals(4, queue.getQueueLength());
+        executor.runAll();
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("batch of 3 0->3");
+        expected.add("pending");
+        expected.add("coins 3->4");
+        expected.add("reorganize");
+        assertEquals(expected, listener.events);
+
+        assertEquals(6, queue.getEventsQueued());
+        assertEquals(2, queue.getEventsCoalesced());
+        assertEquals(4, queue.getEventsDispatched());
+        assertEquals(4, queue.getMaximumQueueLength());
+        assertEquals(0, queue.getQueueLength());
+    }
+
+    @Test
+    public void testBlocksAreCoalesced() {
+        ManualExecutor executor = new ManualExecutor();
+        WalletEventQueue queue = new WalletEventQueue(new Wallet(params), executor, 10);
+        RecordingListener listener = new RecordingListener();
+        List<WalletEventListener> listeners = Collections.<WalletEventListener> singletonList(listener);
+        Transaction tx = new Transaction(params);
+        List<Transaction> oneTransaction = Collections.singletonList(tx);
+        List<Transaction> noTransactions = Collections.emptyList();
+
+        queue.add(new WalletEventQueue.BlockReceivedEvent(listeners, null, oneTransaction, oneTransaction,
+                BigInteger.valueOf(0), BigInteger.valueOf(1)));
+        queue.add(new WalletEventQueue.BlockReceivedEvent(listeners, null, oneTransaction, noTransactions,
+                BigInteger.valueOf(1), BigInteger.valueOf(1)));
+        queue.add(new WalletEventQueue.BlockReceivedEvent(listeners, null, oneTransaction, oneTransaction,
+                BigInteger.valueOf(1), BigInteger.valueOf(2)));
+        queue.add(new WalletEventQueue.ReorganizeEvent(listeners));
+        queue.add(new WalletEventQueue.BlockReceivedEvent(listeners, null, oneTransaction, oneTransaction,
+                BigInteger.valueOf(2), BigInteger.valueOf(3)));
+        assertEquals(3, queue.getQueueLength());
+        executor.runAll();
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("block of 3 0->2");
+        expected.add("reorganize");
+        expected.add("block of 1 2->3");
+        assertEquals(expected, listener.events);
+        // the lists given with the first block are left alone
+        assertEquals(1, oneTransaction.size());
+    }
+
+    @Test
+    public void testListenersWithoutBatchesGetTheBalancesOfEachTransaction() {
+        ManualExecutor executor = new ManualExecutor();
+        WalletEventQueue queue = new WalletEventQueue(new Wallet(params), executor, 10);
+        RecordingListener batchListener = new RecordingListener();
+        PlainRecordingListener plainListener = new PlainRecordingListener();
+        List<WalletEventListener> listeners = new ArrayList<WalletEventListener>();
+        listeners.add(batchListener);
+        listeners.add(plainListener);
+        Transaction tx = new Transaction(params);
+        List<Transaction> oneTransaction = Collections.singletonList(tx);
+
+        queue.add(new WalletEventQueue.CoinsReceivedEvent(listeners, tx, BigInteger.valueOf(0), BigInteger.valueOf(1)));
+        queue.add(new WalletEventQueue.CoinsReceivedEvent(listeners, tx, BigInteger.valueOf(1), BigInteger.valueOf(3)));
+        queue.add(new WalletEventQueue.ReorganizeEvent(listeners));
+        queue.add(new WalletEventQueue.BlockReceivedEvent(listeners, null, oneTransaction, oneTransaction,
+                BigInteger.valueOf(3), BigInteger.valueOf(4)));
+        queue.add(new WalletEventQueue.BlockReceivedEvent(listeners, null, oneTransaction, oneTransaction,
+                BigInteger.valueOf(4), BigInteger.valueOf(6)));
+        assertEquals(3, queue.getQueueLength());
+        executor.runAll();
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("batch of 2 0->3");
+        expected.add("reorganize");
+        expected.add("block of 2 3->6");
+        assertEquals(expected, batchListener.events);
+
+        expected.clear();
+        expected.add("coins 0->1");
+        expected.add("coins 1->3");
+        expected.add("reorganize");
+        expected.add("coins 3->4");
+        expected.add("coins 4->6");
+        assertEquals(expected, plainListener.events);
+    }
+
+    @Test
+    public void testRejectedDrainIsRetried() throws Exception {
+        final ManualExecutor manualExecutor = new ManualExecutor();
+        final boolean[] rejecting = new boolean[] { true };
+        Executor executor = new Executor() {
+            public void execute(Runnable task) {
+                if (rejecting[0]) {
+                    throw new RejectedExecutionException();
+                }
+                manualExecutor.execute(task);
+            }
+        };
+        WalletEventQueue queue = new WalletEventQueue(new Wallet(params), executor, 10);
+        RecordingListener listener = new RecordingListener();
+        List<WalletEventListener> listeners = Collections.<WalletEventListener> singletonList(listener);
+
+        queue.add(new WalletEventQueue.ReorganizeEvent(listeners));
+        assertEquals(1, queue.getQueueLength());
+        // the event is still queued, so the queue is not empty
+        assertFalse(queue.awaitEmpty(50));
+        rejecting[0] = false;
+        queue.add(new WalletEventQueue.ReorganizeEvent(listeners));
+        manualExecutor.runAll();
+        assertEquals(2, listener.events.size());
+        assertEquals(0, queue.getQueueLength());
+        assertTrue(queue.awaitEmpty(0));
+    }
+
+    @Test
+    public void testFullQueueWaitsThenOverflows() {
+        ManualExecutor executor = new ManualExecutor();
+        WalletEventQueue queue = new WalletEventQueue(new Wallet(params), executor, 1);
+        List<WalletEventListener> listeners = Collections.<WalletEventListener> singletonList(new RecordingListener());
+
+        queue.awaitCapacity();
+        assertEquals(0, queue.getNumberOfWaits());
+
+        queue.add(new WalletEventQueue.ReorganizeEvent(listeners));
+        // nothing is draining the queue so this gives up after the maximum wait
+        queue.awaitCapacity();
+        assertEquals(1, queue.getNumberOfWaits());
+        assertEquals(1, queue.getNumberOfOverflows());
+        assertTrue(queue.getTotalWaitMillis() >= WalletEventQueue.MAXIMUM_WAIT_MILLIS - 50);
+
+        executor.runAll();
+        queue.awaitCapacity();
+        assertEquals(1, queue.getNumberOfWaits());
+    }
+}
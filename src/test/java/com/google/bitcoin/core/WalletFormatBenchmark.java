@@ -0,0 +1,95 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the load and save times and sizes of the binary wallet format with Java serialization on a large wallet.
+ * This is not part of the unit tests, run it with mvn test -Dtest=WalletFormatBenchmark.
+ */
+public class WalletFormatBenchmark extends TestCase {
+
+    private static final Logger log = LoggerFactory.getLogger(WalletFormatBenchmark.class);
+
+    private static final int NUMBER_OF_KEYS = 100;
+    private static final int NUMBER_OF_BLOCKS = 200;
+    private static final int TRANSACTIONS_PER_BLOCK = 25;
+    private static final int NUMBER_OF_RUNS = 3;
+
+    private final NetworkParameters params = NetworkParameters.unitTests();
+
+    @Test
+    public void testCompareWithJavaSerialization() throws Exception {
+        Wallet wallet = TestBlocks.createWallet(params, NUMBER_OF_KEYS);
+        new TestBlocks.Payments(params, TRANSACTIONS_PER_BLOCK).receiveBlocks(wallet, NUMBER_OF_BLOCKS);
+
+        byte[] legacy = null;
+        byte[] binary = null;
+        long legacySaveTime = 0;
+        long legacyLoadTime = 0;
+        long binarySaveTime = 0;
+        long binaryLoadTime = 0;
+        // the first run warms up
+        for (int run = 0; run <= NUMBER_OF_RUNS; run++) {
+            long start = System.currentTimeMillis();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(wallet);
+            out.close();
+            legacy = bytes.toByteArray();
+            long saved = System.currentTimeMillis();
+            Wallet legacyCopy = (Wallet) new ObjectInputStream(new ByteArrayInputStream(legacy)).readObject();
+            long loaded = System.currentTimeMillis();
+            if (run > 0) {
+                legacySaveTime += saved - start;
+                legacyLoadTime += loaded - saved;
+            }
+            assertEquals(wallet.getBalance(), legacyCopy.getBalance());
+
+            start = System.currentTimeMillis();
+            bytes = new ByteArrayOutputStream();
+            WalletFormat.write(wallet, bytes);
+            binary = bytes.toByteArray();
+            saved = System.currentTimeMillis();
+            Wallet binaryCopy = WalletFormat.read(new ByteArrayInputStream(binary));
+            loaded = System.currentTimeMillis();
+            if (run > 0) {
+                binarySaveTime += saved - start;
+                binaryLoadTime += loaded - saved;
+            }
+            assertEquals(wallet.getBalance(), binaryCopy.getBalance());
+            assertEquals(wallet.unspent.size(), binaryCopy.unspent.size());
+            assertEquals(wallet.spent.size(), binaryCopy.spent.size());
+        }
+
+        log.info("Wallet with " + wallet.unspent.size() + " unspent and " + wallet.spent.size()
+                + " spent transactions. Java serialization: " + legacy.length + " bytes, save "
+                + legacySaveTime / NUMBER_OF_RUNS + " ms, load " + legacyLoadTime / NUMBER_OF_RUNS
+                + " ms. Binary format: " + binary.length + " bytes, save " + binarySaveTime / NUMBER_OF_RUNS
+                + " ms, load " + binaryLoadTime / NUMBER_OF_RUNS + " ms.");
+    }
+}
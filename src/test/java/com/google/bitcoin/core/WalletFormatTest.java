@@ -0,0 +1,177 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Checks wallets come back from the binary wallet format as they were written and that legacy wallets are migrated.
+ * {@link WalletFormatBenchmark} compares the binary format with Java serialization on a large wallet.
+ */
+public class WalletFormatTest extends TestCase {
+
+    private static final int NUMBER_OF_KEYS = 100;
+    private static final int SMALL_WALLET_BLOCKS = 10;
+    private static final int TRANSACTIONS_PER_BLOCK = 25;
+
+    private final NetworkParameters params = NetworkParameters.unitTests();
+
+    private final Address someoneElse = new ECKey().toAddress(params);
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Wallet wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        StoredBlock genesis = TestBlocks.createGenesis(params);
+        StoredBlock b1 = TestBlocks.createNextBlock(genesis, someoneElse);
+        StoredBlock b2 = TestBlocks.createNextBlock(b1, someoneElse);
+
+        // a pays us, b spends half of it back to us as change, c is pending and also seen on a side chain
+        Transaction a = new Transaction(params);
+        a.addOutput(new TransactionOutput(params, a, Utils.toNanoCoins(2, 0), key.toAddress(params)));
+        Transaction b = new Transaction(params);
+        b.addInput(a.getOutputs().get(0));
+        b.addOutput(new TransactionOutput(params, b, Utils.toNanoCoins(1, 0), someoneElse));
+        b.addOutput(new TransactionOutput(params, b, Utils.toNanoCoins(1, 0), key.toAddress(params)));
+        Transaction c = new Transaction(params);
+        c.addOutput(new TransactionOutput(params, c, Utils.toNanoCoins(3, 0), key.toAddress(params)));
+        wallet.receive(a, b1, BlockChain.NewBlockType.BEST_CHAIN);
+        wallet.receive(b, b2, BlockChain.NewBlockType.BEST_CHAIN);
+        wallet.processPendingTransaction(c);
+        wallet.receive(c, TestBlocks.createNextBlock(b1, someoneElse), BlockChain.NewBlockType.SIDE_CHAIN);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        WalletFormat.write(wallet, bytes);
+        Wallet copy = WalletFormat.read(new ByteArrayInputStream(bytes.toByteArray()));
+
+        assertEquals(params.genesisBlock.getHash(), copy.getNetworkParameters().genesisBlock.getHash());
+        assertEquals(1, copy.keychain.size());
+        assertTrue(copy.isPubKeyMine(key.getPubKey()));
+        assertEquals(wallet.getBalance(), copy.getBalance());
+        assertEquals(wallet.getBalance(Wallet.BalanceType.ESTIMATED), copy.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertTrue(copy.spent.containsKey(a.getHash()));
+        assertTrue(copy.unspent.containsKey(b.getHash()));
+        assertSame(copy.pending.get(c.getHash()), copy.inactive.get(c.getHash()));
+
+        // the spend of a is connected again
+        Transaction copyOfA = copy.spent.get(a.getHash());
+        Transaction copyOfB = copy.unspent.get(b.getHash());
+        assertFalse(copyOfA.getOutputs().get(0).isAvailableForSpending());
+        assertSame(copyOfB.getInputs().get(0), copyOfA.getOutputs().get(0).getSpentBy());
+        assertEquals(Utils.toNanoCoins(2, 0), copyOfB.getValueSentFromMe(copy));
+
+        // update times and block appearances are kept
+        assertEquals(a.getUpdateTime(), copyOfA.getUpdateTime());
+        assertEquals(b2.getHeight(), copyOfB.getAppearsIn().iterator().next().getHeight());
+    }
+
+    @Test
+    public void testConfirmedSendRoundTrip() throws Exception {
+        Wallet wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        StoredBlock b1 = TestBlocks.createNextBlock(TestBlocks.createGenesis(params), someoneElse);
+        StoredBlock b2 = TestBlocks.createNextBlock(b1, someoneElse);
+        StoredBlock b3 = TestBlocks.createNextBlock(b2, someoneElse);
+
+        Transaction a = new Transaction(params);
+        a.addOutput(new TransactionOutput(params, a, Utils.toNanoCoins(1, 0), key.toAddress(params)));
+        wallet.receive(a, b1, BlockChain.NewBlockType.BEST_CHAIN);
+        Transaction send = wallet.createSend(someoneElse, Utils.toNanoCoins(0, 50), BigInteger.ZERO);
+        wallet.confirmSend(send);
+
+        // the output paying someone else is spent as far as the wallet is concerned, pending or confirmed
+        Wallet copy = roundTrip(wallet);
+        assertTrue(copy.pending.containsKey(send.getHash()));
+        assertForeignOutputsAreSpent(copy, copy.pending.get(send.getHash()));
+        assertEquals(wallet.getBalance(Wallet.BalanceType.ESTIMATED), copy.getBalance(Wallet.BalanceType.ESTIMATED));
+
+        wallet.receive(send, b2, BlockChain.NewBlockType.BEST_CHAIN);
+        copy = roundTrip(wallet);
+        Transaction copyOfSend = copy.unspent.get(send.getHash());
+        assertForeignOutputsAreSpent(copy, copyOfSend);
+        assertEquals(Utils.toNanoCoins(0, 50), copy.getBalance());
+
+        // so once the change is spent the send moves to the spent pool, as it does without the round trip
+        Transaction spendChange = copy.createSend(someoneElse, Utils.toNanoCoins(0, 50), BigInteger.ZERO);
+        copy.confirmSend(spendChange);
+        copy.receive(spendChange, b3, BlockChain.NewBlockType.BEST_CHAIN);
+        assertTrue(copy.spent.containsKey(send.getHash()));
+        assertEquals(BigInteger.ZERO, copy.getBalance());
+    }
+
+    private Wallet roundTrip(Wallet wallet) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        WalletFormat.write(wallet, bytes);
+        return WalletFormat.read(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private static void assertForeignOutputsAreSpent(Wallet wallet, Transaction tx) {
+        int numberOfForeignOutputs = 0;
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (!output.isMine(wallet)) {
+                assertFalse(output.isAvailableForSpending());
+                numberOfForeignOutputs++;
+            }
+        }
+        assertEquals(1, numberOfForeignOutputs);
+    }
+
+    @Test
+    public void testLegacyWalletIsMigrated() throws Exception {
+        Wallet wallet = createWallet(SMALL_WALLET_BLOCKS);
+        File file = File.createTempFile("multibit", ".wallet");
+        file.deleteOnExit();
+        File backup = new File(file.getAbsolutePath() + WalletFormat.LEGACY_BACKUP_SUFFIX);
+        backup.deleteOnExit();
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
+        out.writeObject(wallet);
+        out.close();
+
+        // legacy wallets can still be loaded
+        assertEquals(wallet.getBalance(), Wallet.loadFromFile(file).getBalance());
+
+        assertTrue(WalletFormat.migrateLegacyWallet(file));
+        assertTrue(backup.exists());
+        assertFalse(WalletFormat.migrateLegacyWallet(file));
+        Wallet migrated = Wallet.loadFromFile(file);
+        assertEquals(wallet.getBalance(), migrated.getBalance());
+        assertEquals(wallet.unspent.size(), migrated.unspent.size());
+        assertEquals(wallet.spent.size(), migrated.spent.size());
+        assertEquals(wallet.keychain.size(), migrated.keychain.size());
+    }
+
+    /**
+     * Creates a wallet that has received the given number of blocks, each paying it several times and spending one
+     * of the previous block's payments.
+     */
+    private Wallet createWallet(int numberOfBlocks) throws Exception {
+        Wallet wallet = TestBlocks.createWallet(params, NUMBER_OF_KEYS);
+        new TestBlocks.Payments(params, TRANSACTIONS_PER_BLOCK).receiveBlocks(wallet, numberOfBlocks);
+        return wallet;
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the time to commit a change to the wallet journal with the time to save the whole wallet, on a large
+ * wallet. This is not part of the unit tests, run it with mvn test -Dtest=WalletJournalBenchmark.
+ */
+public class WalletJournalBenchmark extends TestCase {
+
+    private static final Logger log = LoggerFactory.getLogger(WalletJournalBenchmark.class);
+
+    private static final int NUMBER_OF_KEYS = 10;
+    private static final int NUMBER_OF_BLOCKS = 200;
+    private static final int TRANSACTIONS_PER_BLOCK = 25;
+    private static final int NUMBER_OF_SAVES = 20;
+
+    private final NetworkParameters params = NetworkParameters.unitTests();
+
+    @Test
+    public void testCommitIsCheaperThanFullSave() throws Exception {
+        File walletFile = File.createTempFile("multibit", ".wallet");
+        walletFile.deleteOnExit();
+        File journalFile = new File(walletFile.getAbsolutePath() + ".journal");
+        journalFile.deleteOnExit();
+        File fullSaveFile = new File(walletFile.getAbsolutePath() + ".full");
+        fullSaveFile.deleteOnExit();
+
+        Wallet wallet = TestBlocks.createWallet(params, NUMBER_OF_KEYS);
+        TestBlocks.Payments payments = new TestBlocks.Payments(params, TRANSACTIONS_PER_BLOCK);
+        payments.receiveBlocks(wallet, NUMBER_OF_BLOCKS);
+        WalletJournal journal = WalletJournal.create(wallet, walletFile, journalFile);
+
+        // warm up
+        payments.receiveBlocks(wallet, 1);
+        journal.commit();
+        saveInFull(wallet, fullSaveFile);
+
+        long commitTime = 0;
+        long fullSaveTime = 0;
+        for (int i = 0; i < NUMBER_OF_SAVES; i++) {
+            payments.receiveBlocks(wallet, 1);
+
+            long start = System.currentTimeMillis();
+            journal.commit();
+            long committed = System.currentTimeMillis();
+            saveInFull(wallet, fullSaveFile);
+            long saved = System.currentTimeMillis();
+            commitTime += committed - start;
+            fullSaveTime += saved - committed;
+        }
+        journal.close();
+
+        log.info("Wallet with " + wallet.unspent.size() + " unspent and " + wallet.spent.size()
+                + " spent transactions. A commit took " + commitTime / NUMBER_OF_SAVES + " ms and appended "
+                + (journalFile.length() / (NUMBER_OF_SAVES + 1)) + " bytes, a full save took "
+                + fullSaveTime / NUMBER_OF_SAVES + " ms and wrote " + fullSaveFile.length() + " bytes.");
+    }
+
+    /**
+     * Saves the whole wallet and syncs it, as a commit does.
+     */
+    private void saveInFull(Wallet wallet, File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            WalletFormat.write(wallet, out);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Checks a wallet comes back from its wallet file and journal as it was saved, including after an incomplete write
+ * and an interrupted compaction. {@link WalletJournalBenchmark} compares the time to commit a change with the time
+ * to save the whole wallet.
+ */
+public class WalletJournalTest extends TestCase {
+
+    private static final int SMALL_WALLET_BLOCKS = 10;
+    private static final int TRANSACTIONS_PER_BLOCK = 25;
+    private static final int NUMBER_OF_COMMITS = 5;
+
+    private final NetworkParameters params = NetworkParameters.unitTests();
+
+    private final Address someoneElse = new ECKey().toAddress(params);
+
+    private final TestBlocks.Payments payments = new TestBlocks.Payments(params, TRANSACTIONS_PER_BLOCK);
+
+    private File walletFile;
+    private File journalFile;
+
+    @Override
+    public void setUp() throws Exception {
+        walletFile = File.createTempFile("multibit", ".wallet");
+        walletFile.deleteOnExit();
+        journalFile = new File(walletFile.getAbsolutePath() + ".journal");
+        journalFile.deleteOnExit();
+    }
+
+    @Test
+    public void testChangesAreReplayed() throws Exception {
+        Wallet wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        WalletJournal journal = WalletJournal.create(wallet, walletFile, journalFile);
+        long walletFileLength = walletFile.length();
+
+        StoredBlock genesis = TestBlocks.createGenesis(params);
+        StoredBlock b1 = TestBlocks.createNextBlock(genesis, someoneElse);
+        Transaction a = TestBlocks.createTransaction(params, key.toAddress(params), Utils.toNanoCoins(2, 0));
+        wallet.receive(a, b1, BlockChain.NewBlockType.BEST_CHAIN);
+        journal.commit();
+
+        // b spends a, paying half back to a new key
+        ECKey change = new ECKey();
+        wallet.addKey(change);
+        Transaction b = new Transaction(params);
+        b.addInput(a.getOutputs().get(0));
+        b.addOutput(new TransactionOutput(params, b, Utils.toNanoCoins(1, 0), someoneElse));
+        b.addOutput(new TransactionOutput(params, b, Utils.toNanoCoins(1, 0), change.toAddress(params)));
+        wallet.receive(b, TestBlocks.createNextBlock(b1, someoneElse), BlockChain.NewBlockType.BEST_CHAIN);
+        journal.commit();
+        journal.close();
+
+        // the wallet file was left alone
+        assertEquals(walletFileLength, walletFile.length());
+
+        Wallet loaded = load();
+        assertEquals(2, loaded.keychain.size());
+        assertTrue(loaded.isPubKeyMine(change.getPubKey()));
+        assertEquals(Utils.toNanoCoins(1, 0), loaded.getBalance());
+        assertTrue(loaded.spent.containsKey(a.getHash()));
+        assertTrue(loaded.unspent.containsKey(b.getHash()));
+        Transaction loadedA = loaded.spent.get(a.getHash());
+        Transaction loadedB = loaded.unspent.get(b.getHash());
+        assertSame(loadedB.getInputs().get(0), loadedA.getOutputs().get(0).getSpentBy());
+    }
+
+    @Test
+    public void testConfirmedSendIsReplayed() throws Exception {
+        Wallet wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        StoredBlock b1 = TestBlocks.createNextBlock(TestBlocks.createGenesis(params), someoneElse);
+        wallet.receive(TestBlocks.createTransaction(params, key.toAddress(params), Utils.toNanoCoins(1, 0)), b1,
+                BlockChain.NewBlockType.BEST_CHAIN);
+        WalletJournal journal = WalletJournal.create(wallet, walletFile, journalFile);
+
+        Transaction send = wallet.createSend(someoneElse, Utils.toNanoCoins(0, 50), BigInteger.ZERO);
+        wallet.confirmSend(send);
+        journal.commit();
+        journal.close();
+
+        // the output paying someone else comes back spent
+        Wallet loaded = load();
+        Transaction loadedSend = loaded.pending.get(send.getHash());
+        for (TransactionOutput output : loadedSend.getOutputs()) {
+            assertEquals(output.isMine(loaded), output.isAvailableForSpending());
+        }
+        assertEquals(wallet.getBalance(Wallet.BalanceType.ESTIMATED), loaded.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    @Test
+    public void testCompactionEmptiesJournal() throws Exception {
+        Wallet wallet = createWallet(SMALL_WALLET_BLOCKS);
+        WalletJournal journal = WalletJournal.create(wallet, walletFile, journalFile);
+        long emptyLength = journal.getLength();
+        payments.receiveBlocks(wallet, 5);
+        journal.commit();
+        assertTrue(journal.getLength() > emptyLength);
+
+        journal.compact();
+        assertEquals(emptyLength, journal.getLength());
+        assertEquals(emptyLength, journalFile.length());
+        journal.close();
+
+        // the wallet file alone now has everything
+        assertEquals(wallet.getBalance(), Wallet.loadFromFile(walletFile).getBalance());
+        assertEquals(wallet.getBalance(), load().getBalance());
+    }
+
+    @Test
+    public void testIncompleteEntryIsDiscarded() throws Exception {
+        Wallet wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        WalletJournal journal = WalletJournal.create(wallet, walletFile, journalFile);
+        Transaction a = TestBlocks.createTransaction(params, key.toAddress(params), Utils.toNanoCoins(2, 0));
+        wallet.receive(a, TestBlocks.createNextBlock(TestBlocks.createGenesis(params), someoneElse),
+                BlockChain.NewBlockType.BEST_CHAIN);
+        journal.commit();
+        long committedLength = journal.getLength();
+        journal.close();
+
+        // the start of an entry that never finished
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        file.seek(committedLength);
+        file.writeInt(1000);
+        file.writeInt(0);
+        file.write(new byte[10]);
+        file.close();
+
+        Wallet loaded = load();
+        assertEquals(Utils.toNanoCoins(2, 0), loaded.getBalance());
+        assertEquals(committedLength, journalFile.length());
+    }
+
+    @Test
+    public void testReplayAfterInterruptedCompaction() throws Exception {
+        Wallet wallet = createWallet(SMALL_WALLET_BLOCKS);
+        WalletJournal journal = WalletJournal.create(wallet, walletFile, journalFile);
+        payments.receiveBlocks(wallet, 3);
+        journal.commit();
+        payments.receiveBlocks(wallet, 3);
+
+        // the program stops after the new wallet file is in place but before the journal is emptied
+        byte[] uncompactedJournal = readFile(journalFile);
+        journal.compact();
+        journal.close();
+        FileOutputStream out = new FileOutputStream(journalFile);
+        out.write(uncompactedJournal);
+        out.close();
+
+        Wallet loaded = load();
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+        assertEquals(wallet.unspent.size(), loaded.unspent.size());
+        assertEquals(wallet.spent.size(), loaded.spent.size());
+    }
+
+    @Test
+    public void testReorganizeIsJournaled() throws Exception {
+        Wallet wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        WalletJournal journal = WalletJournal.create(wallet, walletFile, journalFile);
+
+        StoredBlock genesis = TestBlocks.createGenesis(params);
+        StoredBlock b1 = TestBlocks.createNextBlock(genesis, someoneElse);
+        StoredBlock b2 = TestBlocks.createNextBlock(genesis, someoneElse);
+        Transaction a = TestBlocks.createTransaction(params, key.toAddress(params), Utils.toNanoCoins(1, 0));
+        Transaction c = TestBlocks.createTransaction(params, key.toAddress(params), Utils.toNanoCoins(3, 0));
+        wallet.receive(a, b1, BlockChain.NewBlockType.BEST_CHAIN);
+        wallet.receive(c, b2, BlockChain.NewBlockType.SIDE_CHAIN);
+        journal.commit();
+
+        List<StoredBlock> oldBlocks = new ArrayList<StoredBlock>();
+        oldBlocks.add(b1);
+        List<StoredBlock> newBlocks = new ArrayList<StoredBlock>();
+        newBlocks.add(b2);
+        wallet.reorganize(oldBlocks, newBlocks);
+        assertEquals(Utils.toNanoCoins(3, 0), wallet.getBalance());
+        journal.commit();
+        journal.close();
+
+        Wallet loaded = load();
+        assertEquals(Utils.toNanoCoins(3, 0), loaded.getBalance());
+        assertTrue(loaded.inactive.containsKey(a.getHash()));
+        assertTrue(loaded.unspent.containsKey(c.getHash()));
+    }
+
+    @Test
+    public void testCommitsAreReplayed() throws Exception {
+        Wallet wallet = createWallet(SMALL_WALLET_BLOCKS);
+        WalletJournal journal = WalletJournal.create(wallet, walletFile, journalFile);
+        for (int i = 0; i < NUMBER_OF_COMMITS; i++) {
+            payments.receiveBlocks(wallet, 1);
+            journal.commit();
+        }
+        journal.close();
+
+        Wallet loaded = load();
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+        assertEquals(wallet.unspent.size(), loaded.unspent.size());
+        assertEquals(wallet.spent.size(), loaded.spent.size());
+    }
+
+    private Wallet load() throws IOException {
+        Wallet loaded = Wallet.loadFromFile(walletFile);
+        WalletJournal.open(loaded, walletFile, journalFile).close();
+        return loaded;
+    }
+
+    private Wallet createWallet(int numberOfBlocks) throws Exception {
+        Wallet wallet = TestBlocks.createWallet(params, 10);
+        payments.payments.receiveBlocks(wallet, numberOfBlocks);
+        return wallet;
+    }
+
+    private byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                int read = in.read(bytes, offset, bytes.length - offset);
+                if (read < 0) {
+                    throw new EOFException(file + " is shorter than " + bytes.length + " bytes");
+                }
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Times scanning a block's worth of transactions against a small and a large keychain. With the key indexes in place
+ * the scan time should be roughly the same for both. This is not part of the unit tests, run it with
+ * mvn test -Dtest=WalletKeyIndexBenchmark.
+ */
+public class WalletKeyIndexBenchmark extends TestCase {
+
+    private static final Logger log = LoggerFactory.getLogger(WalletKeyIndexBenchmark.class);
+
+    private static final int SMALL_KEYCHAIN_SIZE = 10;
+    private static final int LARGE_KEYCHAIN_SIZE = 2000;
+    private static final int NUMBER_OF_TRANSACTIONS = 2000;
+    private static final int NUMBER_OF_SCANS = 5;
+
+    private final NetworkParameters params = NetworkParameters.prodNet();
+
+    @Test
+    public void testScanCostDoesNotGrowWithKeychainSize() {
+        List<Transaction> block = createBlockOfTransactions(NUMBER_OF_TRANSACTIONS);
+
+        Wallet smallWallet = createWallet(SMALL_KEYCHAIN_SIZE);
+        Wallet largeWallet = createWallet(LARGE_KEYCHAIN_SIZE);
+
+        // warm up
+        scan(smallWallet, block);
+        scan(largeWallet, block);
+
+        long smallTime = time(smallWallet, block);
+        long largeTime = time(largeWallet, block);
+
+        log.info("Scanning " + NUMBER_OF_TRANSACTIONS + " transactions took " + smallTime / NUMBER_OF_SCANS
+                + " ms with " + SMALL_KEYCHAIN_SIZE + " keys and " + largeTime / NUMBER_OF_SCANS + " ms with "
+                + LARGE_KEYCHAIN_SIZE + " keys.");
+    }
+
+    private long time(Wallet wallet, List<Transaction> block) {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < NUMBER_OF_SCANS; i++) {
+            scan(wallet, block);
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private int scan(Wallet wallet, List<Transaction> block) {
+        int numberMine = 0;
+        for (Transaction tx : block) {
+            if (tx.isMine(wallet)) {
+                numberMine++;
+            }
+        }
+        return numberMine;
+    }
+
+    private Wallet createWallet(int numberOfKeys) {
+        Wallet wallet = new Wallet(params);
+        for (int i = 0; i < numberOfKeys; i++) {
+            wallet.addKey(new ECKey());
+        }
+        return wallet;
+    }
+
+    private List<Transaction> createBlockOfTransactions(int numberOfTransactions) {
+        // a handful of addresses that belong to neither wallet
+        List<Address> addresses = new ArrayList<Address>();
+        for (int i = 0; i < 20; i++) {
+            addresses.add(new ECKey().toAddress(params));
+        }
+        List<Transaction> transactions = new ArrayList<Transaction>(numberOfTransactions);
+        for (int i = 0; i < numberOfTransactions; i++) {
+            transactions.add(createTransaction(addresses.get(i % addresses.size())));
+        }
+        return transactions;
+    }
+
+    private Transaction createTransaction(Address to) {
+        Transaction tx = new Transaction(params);
+        tx.addOutput(new TransactionOutput(params, tx, Utils.toNanoCoins(1, 0), to));
+        return tx;
+    }
+}
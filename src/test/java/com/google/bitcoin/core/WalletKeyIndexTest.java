@@ -0,0 +1,105 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Checks the wallet key indexes give the same answers as the keychain and that scanning a block only finds the
+ * transactions paying the wallet. {@link WalletKeyIndexBenchmark} times the scan.
+ */
+public class WalletKeyIndexTest extends TestCase {
+
+    private final NetworkParameters params = NetworkParameters.prodNet();
+
+    @Test
+    public void testLookupsMatchKeychain() {
+        Wallet wallet = createWallet(50);
+        for (ECKey key : wallet.keychain) {
+            assertSame(key, wallet.findKeyFromPubHash(key.getPubKeyHash()));
+            assertSame(key, wallet.findKeyFromPubKey(key.getPubKey()));
+        }
+
+        ECKey stranger = new ECKey();
+        assertFalse(wallet.isPubKeyHashMine(stranger.getPubKeyHash()));
+        assertFalse(wallet.isPubKeyMine(stranger.getPubKey()));
+
+        // keys added straight to the keychain list are still found
+        wallet.keychain.add(stranger);
+        assertTrue(wallet.isPubKeyHashMine(stranger.getPubKeyHash()));
+        assertTrue(wallet.isPubKeyMine(stranger.getPubKey()));
+    }
+
+    @Test
+    public void testScanFindsOnlyTransactionsPayingTheWallet() {
+        Wallet smallWallet = createWallet(5);
+        Wallet largeWallet = createWallet(50);
+        List<Transaction> block = createBlockOfTransactions(100);
+
+        // none of the transactions pay to either wallet
+        assertEquals(0, scan(smallWallet, block));
+        assertEquals(0, scan(largeWallet, block));
+
+        // a transaction paying to the last key in the large wallet is found
+        Transaction mine = createTransaction(largeWallet.keychain.get(largeWallet.keychain.size() - 1)
+                .toAddress(params));
+        assertTrue(mine.isMine(largeWallet));
+        assertFalse(mine.isMine(smallWallet));
+    }
+
+    private int scan(Wallet wallet, List<Transaction> block) {
+        int numberMine = 0;
+        for (Transaction tx : block) {
+            if (tx.isMine(wallet)) {
+                numberMine++;
+            }
+        }
+        return numberMine;
+    }
+
+    private Wallet createWallet(int numberOfKeys) {
+        Wallet wallet = new Wallet(params);
+        for (int i = 0; i < numberOfKeys; i++) {
+            wallet.addKey(new ECKey());
+        }
+        return wallet;
+    }
+
+    private List<Transaction> createBlockOfTransactions(int numberOfTransactions) {
+        // a handful of addresses that belong to neither wallet
+        List<Address> addresses = new ArrayList<Address>();
+        for (int i = 0; i < 20; i++) {
+            addresses.add(new ECKey().toAddress(params));
+        }
+        List<Transaction> transactions = new ArrayList<Transaction>(numberOfTransactions);
+        for (int i = 0; i < numberOfTransactions; i++) {
+            transactions.add(createTransaction(addresses.get(i % addresses.size())));
+        }
+        return transactions;
+    }
+
+    private Transaction createTransaction(Address to) {
+        Transaction tx = new Transaction(params);
+        tx.addOutput(new TransactionOutput(params, tx, Utils.toNanoCoins(1, 0), to));
+        return tx;
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.multibit.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks a block given to Wallet.receiveBlock ends up with the same wallet as receiving its transactions one at a
+ * time, with one event for the block, and compares the time taken by the two. The block is only large enough for
+ * the times to mean anything with benchmarks enabled.
+ */
+public class WalletReceiveBlockTest extends TestCase {
+
+    private static final Logger log = LoggerFactory.getLogger(WalletReceiveBlockTest.class);
+
+    private static final int NUMBER_OF_TRANSACTIONS = 100;
+    private static final int BENCHMARK_TRANSACTIONS = 2000;
+
+    private final NetworkParameters params = NetworkParameters.prodNet();
+
+    private static class CountingListener implements BatchWalletEventListener {
+        int coinsReceived;
+        int batches;
+        int blocks;
+        int transactionsInBlocks;
+        int coinsReceivedInBlocks;
+
+        public void onCoinsReceived(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+            coinsReceived++;
+        }
+
+        public void onCoinsReceived(Wallet wallet, List<Transaction> transactions, BigInteger prevBalance,
+                BigInteger newBalance) {
+            batches++;
+        }
+
+        public void onBlockReceived(Wallet wallet, StoredBlock block, List<Transaction> transactions,
+                List<Transaction> coinsReceived, BigInteger prevBalance, BigInteger newBalance) {
+            blocks++;
+            transactionsInBlocks += transactions.size();
+            coinsReceivedInBlocks += coinsReceived.size();
+        }
+
+        public void onPendingCoinsReceived(Wallet wallet, Transaction tx) {
+        }
+
+        public void onReorganize(Wallet wallet) {
+        }
+
+        public void onDeadTransaction(Wallet wallet, Transaction deadTx, Transaction replacementTx) {
+        }
+    }
+
+    @Test
+    public void testBlockIsReceivedInOneGo() throws Exception {
+        int numberOfTransactions = Boolean.getBoolean(Constants.BENCHMARKS_PROPERTY) ? BENCHMARK_TRANSACTIONS
+                : NUMBER_OF_TRANSACTIONS;
+        ECKey key = new ECKey();
+        List<Transaction> block = createBlockOfTransactions(key, numberOfTransactions);
+
+        Wallet oneAtATime = createWallet(key);
+        CountingListener oneAtATimeListener = new CountingListener();
+        oneAtATime.addEventListener(oneAtATimeListener);
+        long start = System.currentTimeMillis();
+        for (Transaction tx : block) {
+            oneAtATime.receive(tx, null, BlockChain.NewBlockType.BEST_CHAIN);
+        }
+        long oneAtATimeTime = System.currentTimeMillis() - start;
+
+        Wallet batched = createWallet(key);
+        CountingListener batchedListener = new CountingListener();
+        batched.addEventListener(batchedListener);
+        start = System.currentTimeMillis();
+        batched.receiveBlock(null, block, BlockChain.NewBlockType.BEST_CHAIN);
+        long batchedTime = System.currentTimeMillis() - start;
+
+        log.info("Receiving " + numberOfTransactions + " transactions took " + oneAtATimeTime
+                + " ms one at a time and " + batchedTime + " ms as a block.");
+
+        assertEquals(oneAtATime.getBalance(), batched.getBalance());
+        assertEquals(numberOfTransactions, batched.unspent.size());
+        assertEquals(batched.getBalance(), batched.getSnapshot().getBalance(Wallet.BalanceType.AVAILABLE));
+
+        assertEquals(numberOfTransactions, oneAtATimeListener.coinsReceived);
+        assertEquals(0, batchedListener.coinsReceived);
+        assertEquals(0, batchedListener.batches);
+        assertEquals(1, batchedListener.blocks);
+        assertEquals(numberOfTransactions, batchedListener.transactionsInBlocks);
+        assertEquals(numberOfTransactions, batchedListener.coinsReceivedInBlocks);
+    }
+
+    @Test
+    public void testSideChainBlockSendsNoEvent() throws Exception {
+        ECKey key = new ECKey();
+        Wallet wallet = createWallet(key);
+        CountingListener listener = new CountingListener();
+        wallet.addEventListener(listener);
+
+        wallet.receiveBlock(null, createBlockOfTransactions(key, 10), BlockChain.NewBlockType.SIDE_CHAIN);
+
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+        assertEquals(10, wallet.inactive.size());
+        assertEquals(0, listener.blocks);
+    }
+
+    private Wallet createWallet(ECKey key) {
+        Wallet wallet = new Wallet(params);
+        wallet.addKey(key);
+        return wallet;
+    }
+
+    private List<Transaction> createBlockOfTransactions(ECKey key, int numberOfTransactions) {
+        Address to = key.toAddress(params);
+        List<Transaction> transactions = new ArrayList<Transaction>(numberOfTransactions);
+        for (int i = 0; i < numberOfTransactions; i++) {
+            // different values so each transaction has its own hash
+            Transaction tx = new Transaction(params);
+            tx.addOutput(new TransactionOutput(params, tx, BigInteger.valueOf(i + 1), to));
+            transactions.add(tx);
+        }
+        return transactions;
+    }
+}
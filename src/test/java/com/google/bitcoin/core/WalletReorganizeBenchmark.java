@@ -0,0 +1,45 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Times repeated one block re-orgs on a small and a large wallet built on synthetic chains. The re-org time should
+ * not grow with the number of transactions buried in the common part of the chain. This is not part of the unit
+ * tests, run it with mvn test -Dtest=WalletReorganizeBenchmark.
+ */
+public class WalletReorganizeBenchmark extends TestCase {
+
+    private static final Logger log = LoggerFactory.getLogger(WalletReorganizeBenchmark.class);
+
+    private static final int SMALL_WALLET_SIZE = 10;
+    private static final int LARGE_WALLET_SIZE = 20000;
+
+    @Test
+    public void testReorganizeCostDoesNotGrowWithWalletSize() throws Exception {
+        long smallTime = new WalletReorganizeTest().timeReorganize(SMALL_WALLET_SIZE);
+        long largeTime = new WalletReorganizeTest().timeReorganize(LARGE_WALLET_SIZE);
+
+        log.info(WalletReorganizeTest.NUMBER_OF_REORGS + " one block re-orgs took " + smallTime + " ms with "
+                + SMALL_WALLET_SIZE + " buried transactions and " + largeTime + " ms with " + LARGE_WALLET_SIZE + ".");
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Checks Wallet.reorganize moves the transactions in the blocks either side of the split and keeps the balances
+ * right over repeated one block re-orgs. {@link WalletReorganizeBenchmark} times the re-orgs on a large wallet.
+ */
+public class WalletReorganizeTest extends TestCase {
+
+    private static final int TRANSACTIONS_PER_BLOCK = 100;
+    static final int NUMBER_OF_REORGS = 20;
+
+    private final NetworkParameters params = NetworkParameters.unitTests();
+
+    private final ECKey key = new ECKey();
+    private final Address coinbaseTo = new ECKey().toAddress(params);
+
+    private int nextValue = 1;
+
+    @Test
+    public void testReorganizeMovesTransactions() throws Exception {
+        Wallet wallet = createWallet();
+        StoredBlock genesis = TestBlocks.createGenesis(params);
+        StoredBlock common = TestBlocks.createNextBlock(genesis, coinbaseTo);
+        StoredBlock oldBlock = TestBlocks.createNextBlock(common, coinbaseTo);
+        StoredBlock newBlock = TestBlocks.createNextBlock(common, coinbaseTo);
+
+        Transaction commonTx = createTransaction();
+        Transaction oldTx = createTransaction();
+        Transaction newTx = createTransaction();
+        wallet.receiveBlock(common, Collections.singletonList(commonTx), BlockChain.NewBlockType.BEST_CHAIN);
+        wallet.receiveBlock(oldBlock, Collections.singletonList(oldTx), BlockChain.NewBlockType.BEST_CHAIN);
+        wallet.receiveBlock(newBlock, Collections.singletonList(newTx), BlockChain.NewBlockType.SIDE_CHAIN);
+        assertEquals(commonTx.getValueSentToMe(wallet).add(oldTx.getValueSentToMe(wallet)), wallet.getBalance());
+
+        wallet.reorganize(list(oldBlock), list(newBlock));
+
+        assertTrue(wallet.unspent.containsKey(commonTx.getHash()));
+        assertTrue(wallet.unspent.containsKey(newTx.getHash()));
+        assertTrue(wallet.inactive.containsKey(oldTx.getHash()));
+        assertEquals(2, wallet.unspent.size());
+        assertEquals(commonTx.getValueSentToMe(wallet).add(newTx.getValueSentToMe(wallet)), wallet.getBalance());
+
+        // and back again
+        wallet.reorganize(list(newBlock), list(oldBlock));
+
+        assertTrue(wallet.unspent.containsKey(oldTx.getHash()));
+        assertTrue(wallet.inactive.containsKey(newTx.getHash()));
+        assertEquals(commonTx.getValueSentToMe(wallet).add(oldTx.getValueSentToMe(wallet)), wallet.getBalance());
+    }
+
+    @Test
+    public void testReorganizeReleasesOutputsSpentOnTheOldChain() throws Exception {
+        Wallet wallet = createWallet();
+        StoredBlock genesis = TestBlocks.createGenesis(params);
+        StoredBlock common = TestBlocks.createNextBlock(genesis, coinbaseTo);
+        StoredBlock oldBlock = TestBlocks.createNextBlock(common, coinbaseTo);
+        StoredBlock newBlock = TestBlocks.createNextBlock(common, coinbaseTo);
+
+        Transaction commonTx = createTransaction();
+        Transaction otherTx = createTransaction();
+        wallet.receiveBlock(common, Arrays.asList(commonTx, otherTx), BlockChain.NewBlockType.BEST_CHAIN);
+        Transaction spend = new Transaction(params);
+        spend.addInput(commonTx.getOutputs().get(0));
+        spend.addOutput(new TransactionOutput(params, spend, commonTx.getValueSentToMe(wallet), coinbaseTo));
+        wallet.receiveBlock(oldBlock, Collections.singletonList(spend), BlockChain.NewBlockType.BEST_CHAIN);
+        assertTrue(wallet.spent.containsKey(commonTx.getHash()));
+        assertEquals(otherTx.getValueSentToMe(wallet), wallet.getBalance());
+
+        wallet.reorganize(list(oldBlock), list(newBlock));
+
+        // the spend is no longer in the chain so it goes back to pending, spending the common output again
+        assertTrue(wallet.pending.containsKey(spend.getHash()));
+        assertSame(spend, commonTx.getOutputs().get(0).getSpentBy().getParentTransaction());
+        assertEquals(otherTx.getValueSentToMe(wallet), wallet.getBalance());
+        assertTrue(wallet.checkBalances());
+    }
+
+    @Test
+    public void testRepeatedReorganizesKeepBalances() throws Exception {
+        // spans several blocks so some of the buried transactions share a block
+        timeReorganize(TRANSACTIONS_PER_BLOCK + 10);
+    }
+
+    /**
+     * Builds a wallet with the given number of transactions in the common chain, then switches back and forth
+     * between two one block side chains, each with one of our transactions in. Returns the time the re-orgs took.
+     */
+    long timeReorganize(int numberOfTransactions) throws Exception {
+        Wallet wallet = createWallet();
+        StoredBlock chainHead = TestBlocks.createGenesis(params);
+        int remaining = numberOfTransactions;
+        while (remaining > 0) {
+            chainHead = TestBlocks.createNextBlock(chainHead, coinbaseTo);
+            List<Transaction> transactions = new ArrayList<Transaction>();
+            for (int i = 0; i < TRANSACTIONS_PER_BLOCK && remaining > 0; i++, remaining--) {
+                transactions.add(createTransaction());
+            }
+            wallet.receiveBlock(chainHead, transactions, BlockChain.NewBlockType.BEST_CHAIN);
+        }
+
+        StoredBlock blockA = TestBlocks.createNextBlock(chainHead, coinbaseTo);
+        StoredBlock blockB = TestBlocks.createNextBlock(chainHead, coinbaseTo);
+        wallet.receiveBlock(blockA, Collections.singletonList(createTransaction()), BlockChain.NewBlockType.BEST_CHAIN);
+        wallet.receiveBlock(blockB, Collections.singletonList(createTransaction()), BlockChain.NewBlockType.SIDE_CHAIN);
+        BigInteger balance = wallet.getBalance();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < NUMBER_OF_REORGS; i++) {
+            if (i % 2 == 0) {
+                wallet.reorganize(list(blockA), list(blockB));
+            } else {
+                wallet.reorganize(list(blockB), list(blockA));
+            }
+        }
+        long time = System.currentTimeMillis() - start;
+
+        assertEquals(numberOfTransactions + 1, wallet.unspent.size());
+        assertEquals(1, wallet.inactive.size());
+        assertEquals(balance, wallet.getBalance());
+        assertTrue(wallet.checkBalances());
+        return time;
+    }
+
+    private Wallet createWallet() {
+        Wallet wallet = new Wallet(params);
+        wallet.addKey(key);
+        return wallet;
+    }
+
+    private Transaction createTransaction() {
+        // different values so each transaction has its own hash
+        Transaction tx = new Transaction(params);
+        tx.addOutput(new TransactionOutput(params, tx, BigInteger.valueOf(nextValue++), key.toAddress(params)));
+        return tx;
+    }
+
+    private static List<StoredBlock> list(StoredBlock block) {
+        // reorganize reverses the new blocks list in place
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        blocks.add(block);
+        return blocks;
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.multibit.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks the routing index finds every wallet holding a key, follows keys added after the wallet, and compares the
+ * time to route outputs through it with asking every wallet in turn. The wallets are only large enough for the times
+ * to mean anything with benchmarks enabled.
+ */
+public class WalletRoutingIndexTest extends TestCase {
+
+    private static final Logger log = LoggerFactory.getLogger(WalletRoutingIndexTest.class);
+
+    private static final int NUMBER_OF_WALLETS = 12;
+    private static final int KEYS_PER_WALLET = 10;
+    private static final int NUMBER_OF_LOOKUPS = 1000;
+    private static final int BENCHMARK_KEYS_PER_WALLET = 500;
+    private static final int BENCHMARK_LOOKUPS = 100000;
+
+    private final NetworkParameters params = NetworkParameters.unitTests();
+
+    @Test
+    public void testKeysAreRouted() throws Exception {
+        WalletRoutingIndex index = new WalletRoutingIndex();
+        Wallet first = new Wallet(params);
+        Wallet second = new Wallet(params);
+        ECKey shared = new ECKey();
+        ECKey mine = new ECKey();
+        first.addKey(shared);
+        first.addKey(mine);
+        second.addKey(shared);
+        index.addWallet(first);
+        index.addWallet(second);
+
+        assertEquals(2, index.getWalletsForPubKeyHash(shared.getPubKeyHash()).size());
+        assertEquals(2, index.getWalletsForPubKey(shared.getPubKey()).size());
+        assertTrue(index.getWalletsForPubKeyHash(mine.getPubKeyHash()).contains(first));
+        assertFalse(index.getWalletsForPubKeyHash(mine.getPubKeyHash()).contains(second));
+        assertTrue(index.getWalletsForPubKeyHash(new ECKey().getPubKeyHash()).isEmpty());
+        assertTrue(index.getWalletsForPubKey(null).isEmpty());
+
+        // keys added through addKey and straight to the keychain are both picked up
+        ECKey added = new ECKey();
+        ECKey addedToKeychain = new ECKey();
+        second.addKey(added);
+        second.keychain.add(addedToKeychain);
+        assertTrue(index.getWalletsForPubKeyHash(added.getPubKeyHash()).isEmpty());
+        index.update();
+        assertTrue(index.getWalletsForPubKeyHash(added.getPubKeyHash()).contains(second));
+        assertTrue(index.getWalletsForPubKey(addedToKeychain.getPubKey()).contains(second));
+
+        // adding a wallet twice files it once
+        index.addWallet(first);
+        assertEquals(2, index.getWalletsForPubKeyHash(shared.getPubKeyHash()).size());
+    }
+
+    @Test
+    public void testRoutingTime() throws Exception {
+        boolean benchmark = Boolean.getBoolean(Constants.BENCHMARKS_PROPERTY);
+        int keysPerWallet = benchmark ? BENCHMARK_KEYS_PER_WALLET : KEYS_PER_WALLET;
+        int numberOfLookups = benchmark ? BENCHMARK_LOOKUPS : NUMBER_OF_LOOKUPS;
+        WalletRoutingIndex index = new WalletRoutingIndex();
+        List<Wallet> wallets = new ArrayList<Wallet>();
+        List<byte[]> pubKeyHashes = new ArrayList<byte[]>();
+        for (int i = 0; i < NUMBER_OF_WALLETS; i++) {
+            Wallet wallet = new Wallet(params);
+            for (int j = 0; j < keysPerWallet; j++) {
+                ECKey key = new ECKey();
+                wallet.addKey(key);
+                pubKeyHashes.add(key.getPubKeyHash());
+            }
+            wallets.add(wallet);
+            index.addWallet(wallet);
+        }
+        assertEquals(NUMBER_OF_WALLETS * keysPerWallet, index.numberOfPubKeyHashes());
+
+        // most outputs in a block belong to no wallet
+        for (int i = 0; i < numberOfLookups / 10; i++) {
+            pubKeyHashes.add(new ECKey().getPubKeyHash());
+        }
+
+        long start = System.nanoTime();
+        int routed = 0;
+        for (int i = 0; i < numberOfLookups; i++) {
+            routed += index.getWalletsForPubKeyHash(pubKeyHashes.get(i % pubKeyHashes.size())).size();
+        }
+        long indexTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int asked = 0;
+        for (int i = 0; i < numberOfLookups; i++) {
+            byte[] pubKeyHash = pubKeyHashes.get(i % pubKeyHashes.size());
+            for (Wallet wallet : wallets) {
+                if (wallet.isPubKeyHashMine(pubKeyHash)) {
+                    asked++;
+                }
+            }
+        }
+        long walletTime = System.nanoTime() - start;
+
+        assertEquals(asked, routed);
+        log.info("Routing " + numberOfLookups + " outputs among " + NUMBER_OF_WALLETS + " wallets of "
+                + keysPerWallet + " keys took " + indexTime / 1000000 + " ms with the routing index and "
+                + walletTime / 1000000 + " ms asking every wallet.");
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Checks that saving a wallet does not hold the wallet lock while it is written, that what is written is the wallet
+ * as it was when the save started, and that a save replaces the wallet file in one step.
+ */
+public class WalletSaveTest extends TestCase {
+
+    private final NetworkParameters params = NetworkParameters.unitTests();
+
+    private final Address someoneElse = new ECKey().toAddress(params);
+
+    @Test
+    public void testWalletIsNotLockedWhileWriting() throws Exception {
+        final Wallet wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        StoredBlock b1 = TestBlocks.createNextBlock(TestBlocks.createGenesis(params), someoneElse);
+        wallet.receive(TestBlocks.createTransaction(params, key.toAddress(params), Utils.toNanoCoins(1, 0)), b1,
+                BlockChain.NewBlockType.BEST_CHAIN);
+
+        // a stream that holds up the save until the test lets it go
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch carryOn = new CountDownLatch(1);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final OutputStream slowStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                writing.countDown();
+                try {
+                    carryOn.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+                bytes.write(b, off, len);
+            }
+        };
+        final Exception[] failure = new Exception[1];
+        Thread saver = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    WalletFormat.write(wallet, slowStream);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        saver.start();
+        assertTrue(writing.await(10, TimeUnit.SECONDS));
+
+        // the wallet takes a new block while the save is part way through writing
+        wallet.receive(TestBlocks.createTransaction(params, key.toAddress(params), Utils.toNanoCoins(2, 0)),
+                TestBlocks.createNextBlock(b1, someoneElse), BlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(Utils.toNanoCoins(3, 0), wallet.getBalance());
+
+        carryOn.countDown();
+        saver.join();
+        assertNull(failure[0]);
+
+        // the saved wallet is the wallet as it was when the save started
+        Wallet saved = WalletFormat.read(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(Utils.toNanoCoins(1, 0), saved.getBalance());
+    }
+
+    @Test
+    public void testSaveReplacesFile() throws Exception {
+        Wallet wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        wallet.receive(TestBlocks.createTransaction(params, key.toAddress(params), Utils.toNanoCoins(1, 0)),
+                TestBlocks.createNextBlock(TestBlocks.createGenesis(params), someoneElse),
+                BlockChain.NewBlockType.BEST_CHAIN);
+
+        File walletFile = File.createTempFile("multibit", ".wallet");
+        walletFile.deleteOnExit();
+        File temporaryFile = new File(walletFile.getAbsolutePath() + ".tmp");
+        temporaryFile.deleteOnExit();
+        wallet.saveToFile(walletFile);
+        assertFalse(temporaryFile.exists());
+        assertEquals(wallet.getBalance(), Wallet.loadFromFile(walletFile).getBalance());
+
+        // the program stopped after deleting the old wallet file but before renaming the new one into place
+        assertTrue(walletFile.renameTo(temporaryFile));
+        WalletFormat.recoverInterruptedSave(walletFile);
+        assertTrue(walletFile.exists());
+        assertFalse(temporaryFile.exists());
+        assertEquals(wallet.getBalance(), Wallet.loadFromFile(walletFile).getBalance());
+
+        // nothing to do when the wallet file is there
+        WalletFormat.recoverInterruptedSave(walletFile);
+        assertTrue(walletFile.exists());
+    }
+}
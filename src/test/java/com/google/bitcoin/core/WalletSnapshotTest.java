@@ -0,0 +1,182 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.google.bitcoin.core.Wallet.BalanceType;
+
+public class WalletSnapshotTest extends TestCase {
+
+    private final NetworkParameters params = NetworkParameters.prodNet();
+
+    @Test
+    public void testSnapshotIsPublishedAfterChanges() {
+        Wallet wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+
+        WalletSnapshot empty = wallet.getSnapshot();
+        assertEquals(BigInteger.ZERO, empty.getBalance(BalanceType.ESTIMATED));
+        assertTrue(empty.getPending().isEmpty());
+
+        Transaction tx = new Transaction(params);
+        tx.addOutput(new TransactionOutput(params, tx, Utils.toNanoCoins(1, 0), key.toAddress(params)));
+        wallet.processPendingTransaction(tx);
+
+        WalletSnapshot snapshot = wallet.getSnapshot();
+        assertNotSame(empty, snapshot);
+        assertEquals(Utils.toNanoCoins(1, 0), snapshot.getBalance(BalanceType.ESTIMATED));
+        assertEquals(BigInteger.ZERO, snapshot.getBalance(BalanceType.AVAILABLE));
+        assertEquals(1, snapshot.getPending().size());
+        assertSame(tx, snapshot.getTransactionsByTime().get(0));
+        assertEquals(1, snapshot.getRecentTransactions(5).size());
+
+        // earlier snapshots do not change
+        assertTrue(empty.getPending().isEmpty());
+        assertTrue(empty.getTransactionsByTime().isEmpty());
+        try {
+            snapshot.getPending().clear();
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        // reading the same state again gives the same snapshot
+        assertSame(snapshot, wallet.getSnapshot());
+        wallet.addKey(new ECKey());
+        assertNotSame(snapshot, wallet.getSnapshot());
+
+        // a snapshot first read after a later change still shows the wallet as it was when published
+        WalletSnapshot unread = wallet.getSnapshot();
+        Transaction tx2 = new Transaction(params);
+        tx2.addOutput(new TransactionOutput(params, tx2, Utils.toNanoCoins(2, 0), key.toAddress(params)));
+        wallet.processPendingTransaction(tx2);
+        assertEquals(Utils.toNanoCoins(1, 0), unread.getBalance(BalanceType.ESTIMATED));
+        assertEquals(1, unread.getPending().size());
+        assertEquals(1, unread.getSummariesByTime().size());
+        assertEquals(Utils.toNanoCoins(3, 0), wallet.getSnapshot().getBalance(BalanceType.ESTIMATED));
+        assertEquals(2, wallet.getSnapshot().getPending().size());
+    }
+
+    @Test
+    public void testSummariesMatchTheTransactions() throws Exception {
+        Wallet wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        Address someoneElse = new ECKey().toAddress(params);
+        StoredBlock b1 = TestBlocks.createNextBlock(TestBlocks.createGenesis(params), someoneElse);
+
+        Transaction funding = new Transaction(params);
+        funding.addOutput(new TransactionOutput(params, funding, Utils.toNanoCoins(1, 0), key.toAddress(params)));
+        wallet.receive(funding, b1, BlockChain.NewBlockType.BEST_CHAIN);
+        Transaction send = wallet.createSend(someoneElse, Utils.toNanoCoins(0, 40), BigInteger.ZERO);
+        wallet.confirmSend(send);
+
+        WalletSnapshot snapshot = wallet.getSnapshot();
+        List<WalletSnapshot.TransactionSummary> summaries = snapshot.getSummariesByTime();
+        assertEquals(snapshot.getTransactionsByTime().size(), summaries.size());
+        for (int i = 0; i < summaries.size(); i++) {
+            WalletSnapshot.TransactionSummary summary = summaries.get(i);
+            Transaction tx = snapshot.getTransactionsByTime().get(i);
+            assertSame(tx, summary.getTransaction());
+            assertEquals(tx.getValueSentToMe(wallet), summary.getCredit());
+            assertEquals(tx.getValueSentFromMe(wallet), summary.getDebit());
+            assertTrue(summary.isMine());
+        }
+
+        WalletSnapshot.TransactionSummary sendSummary = findSummary(snapshot, send);
+        assertEquals(Utils.toNanoCoins(1, 0), sendSummary.getDebit());
+        assertEquals(Utils.toNanoCoins(0, 60), sendSummary.getCredit());
+        assertEquals(someoneElse.toString(), sendSummary.getSendingAddress());
+        assertEquals(key.toAddress(params).toString(), sendSummary.getReceivingAddress());
+
+        // a key added later makes an output already in the wallet ours, which the next snapshot shows
+        ECKey laterKey = new ECKey();
+        Transaction later = new Transaction(params);
+        later.addOutput(new TransactionOutput(params, later, Utils.toNanoCoins(1, 0), key.toAddress(params)));
+        later.addOutput(new TransactionOutput(params, later, Utils.toNanoCoins(2, 0), laterKey.toAddress(params)));
+        wallet.processPendingTransaction(later);
+        assertEquals(Utils.toNanoCoins(1, 0), findSummary(wallet.getSnapshot(), later).getCredit());
+        wallet.addKey(laterKey);
+        assertEquals(Utils.toNanoCoins(3, 0), findSummary(wallet.getSnapshot(), later).getCredit());
+    }
+
+    @Test
+    public void testConfirmingASendAlreadyInABlock() throws Exception {
+        Wallet wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        Address someoneElse = new ECKey().toAddress(params);
+        StoredBlock b1 = TestBlocks.createNextBlock(TestBlocks.createGenesis(params), someoneElse);
+        StoredBlock b2 = TestBlocks.createNextBlock(b1, someoneElse);
+
+        Transaction funding = new Transaction(params);
+        funding.addOutput(new TransactionOutput(params, funding, Utils.toNanoCoins(1, 0), key.toAddress(params)));
+        wallet.receive(funding, b1, BlockChain.NewBlockType.BEST_CHAIN);
+        Transaction send = wallet.createSend(someoneElse, Utils.toNanoCoins(0, 40), BigInteger.ZERO);
+
+        // the block with the send in arrives while sendCoins is still broadcasting it
+        wallet.receive(send, b2, BlockChain.NewBlockType.BEST_CHAIN);
+        BigInteger balance = wallet.getBalance();
+        wallet.confirmSend(send);
+
+        assertEquals(1, Integer.bitCount(wallet.transactions.pools(send.getHash())));
+        assertFalse(wallet.pending.containsKey(send.getHash()));
+        assertEquals(balance, wallet.getBalance());
+        assertEquals(balance, wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(Utils.toNanoCoins(0, 60), balance);
+    }
+
+    @Test
+    public void testConfirmingASendDoubleSpentByABlock() throws Exception {
+        Wallet wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        Address someoneElse = new ECKey().toAddress(params);
+        StoredBlock b1 = TestBlocks.createNextBlock(TestBlocks.createGenesis(params), someoneElse);
+        StoredBlock b2 = TestBlocks.createNextBlock(b1, someoneElse);
+
+        Transaction funding = new Transaction(params);
+        funding.addOutput(new TransactionOutput(params, funding, Utils.toNanoCoins(1, 0), key.toAddress(params)));
+        wallet.receive(funding, b1, BlockChain.NewBlockType.BEST_CHAIN);
+        Transaction send = wallet.createSend(someoneElse, Utils.toNanoCoins(0, 40), BigInteger.ZERO);
+
+        // while the send is being broadcast a block arrives with another transaction spending the same coin
+        Transaction doubleSpend = wallet.createSend(new ECKey().toAddress(params), Utils.toNanoCoins(0, 30),
+                BigInteger.ZERO);
+        wallet.receive(doubleSpend, b2, BlockChain.NewBlockType.BEST_CHAIN);
+        wallet.confirmSend(send);
+
+        assertTrue(wallet.dead.containsKey(send.getHash()));
+        assertFalse(wallet.pending.containsKey(send.getHash()));
+        assertSame(doubleSpend, funding.getOutputs().get(0).getSpentBy().getParentTransaction());
+        assertEquals(Utils.toNanoCoins(0, 70), wallet.getBalance());
+        assertEquals(Utils.toNanoCoins(0, 70), wallet.getBalance(BalanceType.ESTIMATED));
+        assertFalse(wallet.getSnapshot().getTransactionsByTime().contains(send));
+        assertEquals(1, wallet.getSnapshot().getDead().size());
+    }
+
+    private WalletSnapshot.TransactionSummary findSummary(WalletSnapshot snapshot, Transaction tx) {
+        return snapshot.getSummariesByTime().get(snapshot.getTransactionsByTime().indexOf(tx));
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import java.io.File;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.StoredBlock;
+
+/**
+ * Compares finding the block before a time with the block time index against stepping back from the head of a long
+ * chain. This is not part of the unit tests, run it with mvn test -Dtest=BlockTimeIndexBenchmark.
+ */
+public class BlockTimeIndexBenchmark extends TestCase {
+
+    private static final Logger log = LoggerFactory.getLogger(BlockTimeIndexBenchmark.class);
+
+    private static final int NUMBER_OF_BLOCKS = 2000;
+
+    private final NetworkParameters params = NetworkParameters.unitTests();
+
+    @Test
+    public void testSearchTime() throws Exception {
+        BlockTimeIndexTest fixture = new BlockTimeIndexTest();
+        File file = fixture.createIndexFile();
+        CachingBlockStore blockStore = new CachingBlockStore(new MemoryBlockStore(params), 16);
+        BlockTimeIndex index = new BlockTimeIndex(file);
+        blockStore.setBlockTimeIndex(index);
+        List<StoredBlock> chain = fixture.extend(blockStore, blockStore.getChainHead(), NUMBER_OF_BLOCKS);
+        long timeSeconds = chain.get(1).getHeader().getTimeSeconds();
+
+        // stepping back from the head until a block is older, as resetting transactions did
+        long start = System.nanoTime();
+        long missesBefore = blockStore.getMisses();
+        StoredBlock cursor = blockStore.getChainHead();
+        int steps = 0;
+        while (cursor.getHeight() > 0 && cursor.getHeader().getTimeSeconds() >= timeSeconds) {
+            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+            steps++;
+        }
+        long walkTime = System.nanoTime() - start;
+        long walkReads = blockStore.getMisses() - missesBefore;
+
+        start = System.nanoTime();
+        int height = index.getHeightAtOrBefore(timeSeconds - 1);
+        long searchTime = System.nanoTime() - start;
+        assertEquals(cursor.getHeight(), Math.max(0, height));
+
+        log.info("Finding the block before a time in a chain of " + NUMBER_OF_BLOCKS + " blocks took " + steps
+                + " steps, " + walkReads + " store reads and " + walkTime / 1000 + " us stepping back, and "
+                + searchTime / 1000 + " us searching the index.");
+        index.close();
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.StoredBlock;
+
+/**
+ * Checks the block time index holds the median time of each block of the best chain, follows re-organizes and
+ * resets, and survives being reopened. {@link BlockTimeIndexBenchmark} compares finding a block by time with it
+ * against stepping back from the head.
+ */
+public class BlockTimeIndexTest extends TestCase {
+
+    private final NetworkParameters params = NetworkParameters.unitTests();
+
+    private final Address someoneElse = new ECKey().toAddress(params);
+
+    @Test
+    public void testMedianTimesAreIndexed() throws Exception {
+        File file = createIndexFile();
+        CachingBlockStore blockStore = new CachingBlockStore(new MemoryBlockStore(params));
+        BlockTimeIndex index = new BlockTimeIndex(file);
+        blockStore.setBlockTimeIndex(index);
+        List<StoredBlock> chain = extend(blockStore, blockStore.getChainHead(), 100);
+
+        assertEquals(101, index.getNumberOfBlocks());
+        checkIndex(index, chain);
+
+        // the index is read back from the file
+        index.close();
+        BlockTimeIndex reopened = new BlockTimeIndex(file);
+        assertEquals(101, reopened.getNumberOfBlocks());
+        checkIndex(reopened, chain);
+        reopened.close();
+    }
+
+    @Test
+    public void testIndexFollowsTheBestChain() throws Exception {
+        File file = createIndexFile();
+        CachingBlockStore blockStore = new CachingBlockStore(new MemoryBlockStore(params));
+        BlockTimeIndex index = new BlockTimeIndex(file);
+        blockStore.setBlockTimeIndex(index);
+        List<StoredBlock> chain = extend(blockStore, blockStore.getChainHead(), 100);
+
+        // a longer side chain from height 60 takes over
+        List<StoredBlock> sideChain = new ArrayList<StoredBlock>(chain.subList(0, 61));
+        StoredBlock cursor = chain.get(60);
+        for (int i = 0; i < 50; i++) {
+            cursor = cursor.build(cursor.getHeader().createNextBlock(someoneElse).cloneAsHeader());
+            blockStore.put(cursor);
+            sideChain.add(cursor);
+        }
+        blockStore.setChainHead(cursor);
+        assertEquals(111, index.getNumberOfBlocks());
+        checkIndex(index, sideChain);
+
+        // reset back in time, as resetting transactions does
+        blockStore.setChainHead(sideChain.get(20));
+        assertEquals(21, index.getNumberOfBlocks());
+        checkIndex(index, sideChain.subList(0, 21));
+        index.close();
+    }
+
+    @Test
+    public void testIndexIsRebuiltWhenItDoesNotMatchTheChain() throws Exception {
+        File file = createIndexFile();
+        MemoryBlockStore memoryBlockStore = new MemoryBlockStore(params);
+        List<StoredBlock> chain = extend(memoryBlockStore, memoryBlockStore.getChainHead(), 50);
+
+        // an index of some other chain
+        CachingBlockStore otherBlockStore = new CachingBlockStore(new MemoryBlockStore(params));
+        BlockTimeIndex index = new BlockTimeIndex(file);
+        otherBlockStore.setBlockTimeIndex(index);
+        extend(otherBlockStore, otherBlockStore.getChainHead(), 80);
+        assertEquals(81, index.getNumberOfBlocks());
+        index.close();
+
+        CachingBlockStore blockStore = new CachingBlockStore(memoryBlockStore);
+        index = new BlockTimeIndex(file);
+        blockStore.setBlockTimeIndex(index);
+        assertEquals(51, index.getNumberOfBlocks());
+        checkIndex(index, chain);
+        index.close();
+
+        // a file that is not an index at all is started again
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeInt(0);
+        raf.close();
+        index = new BlockTimeIndex(file);
+        assertEquals(0, index.getNumberOfBlocks());
+        blockStore.setBlockTimeIndex(index);
+        checkIndex(index, chain);
+        index.close();
+    }
+
+    /**
+     * Checks the index has the median time of each block of the chain, and that searching it agrees with searching
+     * the chain one block at a time.
+     */
+    private void checkIndex(BlockTimeIndex index, List<StoredBlock> chain) {
+        assertEquals(chain.size(), index.getNumberOfBlocks());
+        long[] medianTimes = new long[chain.size()];
+        for (int height = 0; height < chain.size(); height++) {
+            int count = Math.min(height + 1, BlockTimeIndex.MEDIAN_TIME_SPAN);
+            long[] times = new long[count];
+            for (int i = 0; i < count; i++) {
+                times[i] = chain.get(height - i).getHeader().getTimeSeconds();
+            }
+            Arrays.sort(times);
+            medianTimes[height] = Math.max(times[count / 2], height == 0 ? 0 : medianTimes[height - 1]);
+            assertEquals(medianTimes[height], index.getMedianTime(height));
+        }
+        for (int height = 0; height < chain.size(); height++) {
+            for (long timeSeconds = medianTimes[height] - 1; timeSeconds <= medianTimes[height] + 1; timeSeconds++) {
+                int expected = -1;
+                for (int i = 0; i < chain.size(); i++) {
+                    if (medianTimes[i] <= timeSeconds) {
+                        expected = i;
+                    }
+                }
+                assertEquals(expected, index.getHeightAtOrBefore(timeSeconds));
+            }
+        }
+    }
+
+    /**
+     * Adds the given number of blocks on top of the given block and makes the last the chain head. Returns the whole
+     * chain by height.
+     */
+    List<StoredBlock> extend(BlockStore blockStore, StoredBlock from, int numberOfBlocks) throws Exception {
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        StoredBlock cursor = from;
+        while (cursor != null) {
+            chain.add(0, cursor);
+            cursor = cursor.getHeight() == 0 ? null : blockStore.get(cursor.getHeader().getPrevBlockHash());
+        }
+        cursor = from;
+        for (int i = 0; i < numberOfBlocks; i++) {
+            cursor = cursor.build(cursor.getHeader().createNextBlock(someoneElse).cloneAsHeader());
+            blockStore.put(cursor);
+            blockStore.setChainHead(cursor);
+            chain.add(cursor);
+        }
+        return chain;
+    }
+
+    File createIndexFile() throws Exception {
+        File file = File.createTempFile("multibit", ".blocktimes");
+        file.deleteOnExit();
+        return file;
+    }
+}
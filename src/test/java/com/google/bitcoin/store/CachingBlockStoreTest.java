@@ -0,0 +1,205 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.multibit.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+
+/**
+ * Checks the caching store finds blocks of the best chain by height through extensions, re-organizes and resets, and
+ * counts the reads of the underlying store saved walking back through the chain. With benchmarks enabled the walk is
+ * a whole difficulty interval and is timed.
+ */
+public class CachingBlockStoreTest extends TestCase {
+
+    private static final Logger log = LoggerFactory.getLogger(CachingBlockStoreTest.class);
+
+    private static final int NUMBER_OF_BLOCKS = 300;
+
+    private static final int WALK_LENGTH = 200;
+
+    private static final int BENCHMARK_BLOCKS = 3000;
+
+    private static final int INTERVAL = 2016;
+
+    private final NetworkParameters params = NetworkParameters.unitTests();
+
+    private final Address someoneElse = new ECKey().toAddress(params);
+
+    /**
+     * A memory store that counts its lookups, standing in for a store on disk.
+     */
+    private static class CountingBlockStore implements BlockStore {
+        private final MemoryBlockStore blockStore;
+        private int numberOfGets;
+
+        CountingBlockStore(NetworkParameters params) {
+            blockStore = new MemoryBlockStore(params);
+        }
+
+        public void put(StoredBlock block) throws BlockStoreException {
+            blockStore.put(block);
+        }
+
+        public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+            numberOfGets++;
+            return blockStore.get(hash);
+        }
+
+        public StoredBlock getChainHead() throws BlockStoreException {
+            return blockStore.getChainHead();
+        }
+
+        public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+            blockStore.setChainHead(chainHead);
+        }
+    }
+
+    @Test
+    public void testBestChainIsIndexedByHeight() throws Exception {
+        CachingBlockStore blockStore = new CachingBlockStore(new CountingBlockStore(params));
+        List<StoredBlock> chain = extend(blockStore, blockStore.getChainHead(), 100);
+
+        for (int height = 0; height <= 100; height++) {
+            assertEquals(chain.get(height), blockStore.getBestChainBlock(height));
+            assertTrue(blockStore.isOnBestChain(chain.get(height)));
+        }
+        assertNull(blockStore.getBestChainBlock(101));
+        assertNull(blockStore.getBestChainBlock(-1));
+        assertEquals(chain.get(40), blockStore.getAncestor(chain.get(100), 40));
+        assertEquals(chain.get(100), blockStore.getAncestor(chain.get(100), 100));
+        assertNull(blockStore.getAncestor(chain.get(40), 41));
+    }
+
+    @Test
+    public void testIndexIsFilledInFromTheUnderlyingStore() throws Exception {
+        // a chain already in the store when the cache is opened
+        CountingBlockStore countingBlockStore = new CountingBlockStore(params);
+        List<StoredBlock> chain = extend(countingBlockStore, countingBlockStore.getChainHead(), 50);
+
+        CachingBlockStore blockStore = new CachingBlockStore(countingBlockStore);
+        assertEquals(1, blockStore.getNumberOfIndexedBlocks());
+        assertEquals(chain.get(10), blockStore.getBestChainBlock(10));
+        assertEquals(41, blockStore.getNumberOfIndexedBlocks());
+        assertEquals(chain.get(0), blockStore.getBestChainBlock(0));
+        assertEquals(51, blockStore.getNumberOfIndexedBlocks());
+    }
+
+    @Test
+    public void testReorganizeAndReset() throws Exception {
+        CachingBlockStore blockStore = new CachingBlockStore(new CountingBlockStore(params));
+        List<StoredBlock> chain = extend(blockStore, blockStore.getChainHead(), 100);
+
+        // a side chain from height 60 that is not the best chain yet
+        StoredBlock forkPoint = chain.get(60);
+        List<StoredBlock> sideChain = new ArrayList<StoredBlock>();
+        StoredBlock cursor = forkPoint;
+        for (int i = 0; i < 50; i++) {
+            cursor = cursor.build(cursor.getHeader().createNextBlock(someoneElse).cloneAsHeader());
+            blockStore.put(cursor);
+            sideChain.add(cursor);
+        }
+        StoredBlock sideChainHead = sideChain.get(sideChain.size() - 1);
+        assertFalse(blockStore.isOnBestChain(sideChainHead));
+        assertEquals(forkPoint, blockStore.findFork(sideChainHead));
+        assertEquals(chain.get(30), blockStore.getAncestor(sideChainHead, 30));
+        assertEquals(sideChain.get(0), blockStore.getAncestor(sideChainHead, 61));
+
+        // the side chain takes over
+        blockStore.setChainHead(sideChainHead);
+        assertEquals(sideChain.get(0), blockStore.getBestChainBlock(61));
+        assertEquals(sideChainHead, blockStore.getBestChainBlock(110));
+        assertEquals(forkPoint, blockStore.getBestChainBlock(60));
+        assertFalse(blockStore.isOnBestChain(chain.get(100)));
+        assertEquals(forkPoint, blockStore.findFork(chain.get(100)));
+
+        // reset the chain head back in time, as resetting transactions does
+        blockStore.setChainHead(chain.get(20));
+        assertNull(blockStore.getBestChainBlock(21));
+        assertEquals(chain.get(20), blockStore.getBestChainBlock(20));
+        List<StoredBlock> newChain = extend(blockStore, chain.get(20), 10);
+        assertEquals(newChain.get(25), blockStore.getBestChainBlock(25));
+        assertEquals(chain.get(3), blockStore.getBestChainBlock(3));
+    }
+
+    @Test
+    public void testRetargetWalk() throws Exception {
+        CountingBlockStore countingBlockStore = new CountingBlockStore(params);
+        CachingBlockStore blockStore = new CachingBlockStore(countingBlockStore);
+        boolean benchmark = Boolean.getBoolean(Constants.BENCHMARKS_PROPERTY);
+        int numberOfBlocks = benchmark ? BENCHMARK_BLOCKS : NUMBER_OF_BLOCKS;
+        int walkLength = benchmark ? INTERVAL : WALK_LENGTH;
+        List<StoredBlock> chain = extend(blockStore, blockStore.getChainHead(), numberOfBlocks);
+        StoredBlock head = chain.get(numberOfBlocks);
+
+        // walking back block by block against the underlying store
+        countingBlockStore.numberOfGets = 0;
+        long start = System.nanoTime();
+        StoredBlock cursor = head;
+        for (int i = 0; i < walkLength - 1; i++) {
+            cursor = countingBlockStore.get(cursor.getHeader().getPrevBlockHash());
+        }
+        long walkTime = System.nanoTime() - start;
+        int walkReads = countingBlockStore.numberOfGets;
+
+        // the same block by height through the cache
+        countingBlockStore.numberOfGets = 0;
+        start = System.nanoTime();
+        StoredBlock ancestor = blockStore.getAncestor(head, head.getHeight() - (walkLength - 1));
+        long indexTime = System.nanoTime() - start;
+        assertEquals(cursor, ancestor);
+        assertEquals(0, countingBlockStore.numberOfGets);
+
+        log.info("Walking back " + (walkLength - 1) + " blocks took " + walkReads + " reads and " + walkTime / 1000
+                + " us block by block, and " + countingBlockStore.numberOfGets + " reads and " + indexTime / 1000
+                + " us by height. " + blockStore);
+    }
+
+    /**
+     * Adds the given number of blocks on top of the given block and makes the last the chain head. Returns the whole
+     * chain by height.
+     */
+    private List<StoredBlock> extend(BlockStore blockStore, StoredBlock from, int numberOfBlocks) throws Exception {
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        StoredBlock cursor = from;
+        while (cursor != null) {
+            chain.add(0, cursor);
+            cursor = cursor.getHeight() == 0 ? null : blockStore.get(cursor.getHeader().getPrevBlockHash());
+        }
+        cursor = from;
+        for (int i = 0; i < numberOfBlocks; i++) {
+            cursor = cursor.build(cursor.getHeader().createNextBlock(someoneElse).cloneAsHeader());
+            blockStore.put(cursor);
+            blockStore.setChainHead(cursor);
+            chain.add(cursor);
+        }
+        return chain;
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.StoredBlock;
+
+/**
+ * Compares the store and lookup times of the mapped store with the bounded overhead and memory stores, and times
+ * reopening the mapped store. This is not part of the unit tests, run it with
+ * mvn test -Dtest=MappedBlockStoreBenchmark.
+ */
+public class MappedBlockStoreBenchmark extends TestCase {
+
+    private static final Logger log = LoggerFactory.getLogger(MappedBlockStoreBenchmark.class);
+
+    private static final int NUMBER_OF_BLOCKS = 5000;
+
+    private final NetworkParameters params = NetworkParameters.unitTests();
+
+    private final Address someoneElse = new ECKey().toAddress(params);
+
+    @Test
+    public void testLookupTime() throws Exception {
+        File boundedFile = File.createTempFile("multibit", ".blockchain");
+        boundedFile.deleteOnExit();
+        File mappedFile = new MappedBlockStoreTest().createBlockFile();
+        BlockStore[] blockStores = new BlockStore[] { new MemoryBlockStore(params),
+                new BoundedOverheadBlockStore(params, boundedFile), new MappedBlockStore(params, mappedFile) };
+
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        StoredBlock cursor = blockStores[0].getChainHead();
+        for (int i = 0; i < NUMBER_OF_BLOCKS; i++) {
+            cursor = cursor.build(cursor.getHeader().createNextBlock(someoneElse).cloneAsHeader());
+            chain.add(cursor);
+        }
+
+        for (BlockStore blockStore : blockStores) {
+            long start = System.nanoTime();
+            for (StoredBlock block : chain) {
+                blockStore.put(block);
+                blockStore.setChainHead(block);
+            }
+            long putTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = chain.size() - 1; i >= 0; i--) {
+                assertEquals(chain.get(i), blockStore.get(chain.get(i).getHeader().getHash()));
+            }
+            long getTime = System.nanoTime() - start;
+
+            log.info(blockStore.getClass().getSimpleName() + " stored " + NUMBER_OF_BLOCKS + " blocks in " + putTime
+                    / 1000000 + " ms and looked them up in " + getTime / 1000000 + " ms");
+        }
+        ((MappedBlockStore) blockStores[2]).close();
+
+        long start = System.nanoTime();
+        MappedBlockStore reopened = new MappedBlockStore(params, mappedFile);
+        long openTime = System.nanoTime() - start;
+        assertEquals(chain.get(NUMBER_OF_BLOCKS - 1), reopened.getChainHead());
+        log.info("Reopening the mapped store of " + reopened.getNumberOfBlocks() + " blocks took " + openTime / 1000
+                + " us");
+        reopened.close();
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2011 multibit.org
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.store;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+
+/**
+ * Checks the mapped store keeps blocks and the chain head across reopening, rebuilds its hash table when it does not
+ * match the records, and migrates from another store in a way that can be restarted.
+ * {@link MappedBlockStoreBenchmark} compares its lookup and store times with the bounded overhead and memory stores.
+ */
+public class MappedBlockStoreTest extends TestCase {
+
+    private final NetworkParameters params = NetworkParameters.unitTests();
+
+    private final Address someoneElse = new ECKey().toAddress(params);
+
+    @Test
+    public void testBlocksAndChainHeadSurviveReopening() throws Exception {
+        File file = createBlockFile();
+        MappedBlockStore blockStore = new MappedBlockStore(params, file);
+        assertEquals(1, blockStore.getNumberOfBlocks());
+        assertEquals(params.genesisBlock.getHash(), blockStore.getChainHead().getHeader().getHash());
+
+        List<StoredBlock> chain = extend(blockStore, blockStore.getChainHead(), 100);
+        checkChain(blockStore, chain);
+        assertNull(blockStore.get(new Sha256Hash(new byte[32])));
+
+        // putting a block again does not add a record
+        blockStore.put(chain.get(50));
+        assertEquals(101, blockStore.getNumberOfBlocks());
+        blockStore.close();
+
+        blockStore = new MappedBlockStore(params, file);
+        assertEquals(101, blockStore.getNumberOfBlocks());
+        assertFalse(blockStore.isMigrating());
+        checkChain(blockStore, chain);
+
+        // the chain head can go back in time, as resetting transactions does
+        blockStore.setChainHead(chain.get(20));
+        blockStore.close();
+        blockStore = new MappedBlockStore(params, file);
+        assertEquals(chain.get(20), blockStore.getChainHead());
+        blockStore.close();
+    }
+
+    @Test
+    public void testIndexIsRebuilt() throws Exception {
+        File file = createBlockFile();
+        File indexFile = new File(file.getPath() + MappedBlockStore.INDEX_SUFFIX);
+        indexFile.deleteOnExit();
+        MappedBlockStore blockStore = new MappedBlockStore(params, file);
+        List<StoredBlock> chain = extend(blockStore, blockStore.getChainHead(), 100);
+        blockStore.close();
+
+        // an index with the wrong number of entries, as after a crash
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+        raf.seek(12);
+        raf.writeInt(7);
+        raf.close();
+        blockStore = new MappedBlockStore(params, file);
+        checkChain(blockStore, chain);
+        blockStore.close();
+
+        // no index at all
+        assertTrue(indexFile.delete());
+        blockStore = new MappedBlockStore(params, file);
+        checkChain(blockStore, chain);
+        blockStore.close();
+    }
+
+    @Test
+    public void testMigrateFromAnotherStore() throws Exception {
+        MemoryBlockStore memoryBlockStore = new MemoryBlockStore(params);
+        List<StoredBlock> chain = extend(memoryBlockStore, memoryBlockStore.getChainHead(), 200);
+
+        File file = createBlockFile();
+        MappedBlockStore blockStore = new MappedBlockStore(params, file);
+        blockStore.migrateFrom(memoryBlockStore);
+        assertFalse(blockStore.isMigrating());
+        assertEquals(201, blockStore.getNumberOfBlocks());
+        checkChain(blockStore, chain);
+
+        // migrating again, as after a crash part way through, adds nothing
+        blockStore.migrateFrom(memoryBlockStore);
+        assertEquals(201, blockStore.getNumberOfBlocks());
+        blockStore.close();
+
+        blockStore = new MappedBlockStore(params, file);
+        checkChain(blockStore, chain);
+        blockStore.close();
+    }
+
+    private void checkChain(BlockStore blockStore, List<StoredBlock> chain) throws Exception {
+        for (StoredBlock block : chain) {
+            StoredBlock stored = blockStore.get(block.getHeader().getHash());
+            assertEquals(block, stored);
+            assertEquals(block.getHeight(), stored.getHeight());
+            assertEquals(block.getChainWork(), stored.getChainWork());
+        }
+    }
+
+    /**
+     * Adds the given number of blocks on top of the given block and makes the last the chain head. Returns the whole
+     * chain by height.
+     */
+    private List<StoredBlock> extend(BlockStore blockStore, StoredBlock from, int numberOfBlocks) throws Exception {
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        StoredBlock cursor = from;
+        while (cursor != null) {
+            chain.add(0, cursor);
+            cursor = cursor.getHeight() == 0 ? null : blockStore.get(cursor.getHeader().getPrevBlockHash());
+        }
+        cursor = from;
+        for (int i = 0; i < numberOfBlocks; i++) {
+            cursor = cursor.build(cursor.getHeader().createNextBlock(someoneElse).cloneAsHeader());
+            blockStore.put(cursor);
+            blockStore.setChainHead(cursor);
+            chain.add(cursor);
+        }
+        return chain;
+    }
+
+    /**
+     * Returns a name for a block file that does not exist yet, so the store is created with the genesis block.
+     */
+    File createBlockFile() throws Exception {
+        File file = File.createTempFile("multibit", ".headers");
+        file.delete();
+        file.deleteOnExit();
+        new File(file.getPath() + MappedBlockStore.INDEX_SUFFIX).deleteOnExit();
+        return file;
+    }
+}
@@ -2,4 +2,7 @@ package org.multibit;
 
 public class Constants {
     public static final String TESTDATA_DIRECTORY = "./src/test/resources";
+
+    // the benchmark tests only time a large workload and log the result, run them with -Dmultibit.benchmarks=true
+    public static final String BENCHMARKS_PROPERTY = "multibit.benchmarks";
 }
@@ -0,0 +1,200 @@
+/**
+ * Copyright 2011 MultiBit
+ */
+
+package org.multibit.model;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.multibit.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+
+/**
+ * Checks the wallet info reads back what it writes, that label lookups follow
+ * changes made through the wallet info, that addresses added while it is being
+ * saved are written, and times saving and loading an address book. The address
+ * book is only large enough for the times to mean anything with benchmarks
+ * enabled.
+ */
+public class WalletInfoTest extends TestCase {
+
+    private static final Logger log = LoggerFactory.getLogger(WalletInfoTest.class);
+
+    private static final int NUMBER_OF_ADDRESSES = 1000;
+    private static final int BENCHMARK_ADDRESSES = 100000;
+    private static final int NUMBER_OF_CONCURRENT_ADDRESSES = 200;
+
+    private final NetworkParameters params = NetworkParameters.prodNet();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        String walletFilename = createTemporaryWalletFilename();
+        WalletInfo walletInfo = new WalletInfo(walletFilename);
+
+        String keyAddress = new ECKey().toAddress(params).toString();
+        String candidateAddress = new ECKey().toAddress(params).toString();
+        String sendingAddress = new ECKey().toAddress(params).toString();
+
+        walletInfo.addReceivingAddress(new AddressBookData("candidate", candidateAddress), true);
+        walletInfo.addReceivingAddress(new AddressBookData("first line\nsecond line", keyAddress), false);
+        walletInfo.addSendingAddress(new AddressBookData("shop, with a comma", sendingAddress));
+        walletInfo.put(WalletInfo.DESCRIPTION_PROPERTY, "a description");
+        walletInfo.writeToFile();
+
+        WalletInfo loadedWalletInfo = new WalletInfo(walletFilename);
+        assertEquals("1", loadedWalletInfo.getWalletVersion());
+        assertEquals("a description", loadedWalletInfo.getProperty(WalletInfo.DESCRIPTION_PROPERTY));
+        assertEquals(1, loadedWalletInfo.getSendingAddresses().size());
+        assertEquals("shop, with a comma", loadedWalletInfo.lookupLabelForSendingAddress(sendingAddress));
+
+        // all the receiving addresses are read as candidates until they are
+        // known to be keys of the wallet
+        assertEquals(0, loadedWalletInfo.getReceivingAddresses().size());
+        assertFalse(loadedWalletInfo.containsReceivingAddress(keyAddress));
+        loadedWalletInfo.addReceivingAddressOfKey(new ECKey().toAddress(params));
+        loadedWalletInfo.addReceivingAddressOfKey(new Address(params, keyAddress));
+        assertTrue(loadedWalletInfo.containsReceivingAddress(keyAddress));
+        assertEquals("first line\nsecond line", loadedWalletInfo.lookupLabelForReceivingAddress(keyAddress));
+        assertFalse(loadedWalletInfo.containsReceivingAddress(candidateAddress));
+        assertEquals("", loadedWalletInfo.lookupLabelForReceivingAddress(candidateAddress));
+
+        // the candidates are kept when the wallet info is written again
+        loadedWalletInfo.writeToFile();
+        WalletInfo reloadedWalletInfo = new WalletInfo(walletFilename);
+        reloadedWalletInfo.addReceivingAddressOfKey(new Address(params, candidateAddress));
+        assertEquals("candidate", reloadedWalletInfo.lookupLabelForReceivingAddress(candidateAddress));
+    }
+
+    @Test
+    public void testLookupsFollowChanges() throws Exception {
+        WalletInfo walletInfo = new WalletInfo(createTemporaryWalletFilename());
+        String firstAddress = new ECKey().toAddress(params).toString();
+        String secondAddress = new ECKey().toAddress(params).toString();
+
+        walletInfo.addSendingAddress(new AddressBookData("first", firstAddress));
+        walletInfo.addSendingAddress(new AddressBookData("renamed", firstAddress));
+        assertEquals(1, walletInfo.getSendingAddresses().size());
+        assertEquals("renamed", walletInfo.lookupLabelForSendingAddress(firstAddress));
+
+        walletInfo.setSendingAddressByRow(0, new AddressBookData("second", secondAddress));
+        assertEquals("", walletInfo.lookupLabelForSendingAddress(firstAddress));
+        assertEquals("second", walletInfo.lookupLabelForSendingAddress(secondAddress));
+
+        walletInfo.addReceivingAddress(new AddressBookData("mine", firstAddress), false);
+        assertTrue(walletInfo.containsReceivingAddress(firstAddress));
+        walletInfo.clearReceivingAddresses();
+        assertFalse(walletInfo.containsReceivingAddress(firstAddress));
+        assertEquals(0, walletInfo.getReceivingAddresses().size());
+    }
+
+    @Test
+    public void testAddressesAddedDuringSaveAreWritten() throws Exception {
+        String walletFilename = createTemporaryWalletFilename();
+        final WalletInfo walletInfo = new WalletInfo(walletFilename);
+        final AtomicBoolean adding = new AtomicBoolean(true);
+        final AtomicReference<Throwable> saveFailure = new AtomicReference<Throwable>();
+
+        // save over and over, as the save thread does, while addresses are
+        // added
+        Thread saveThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (adding.get()) {
+                        walletInfo.writeToFile();
+                    }
+                } catch (Throwable t) {
+                    saveFailure.set(t);
+                }
+            }
+        });
+        saveThread.start();
+
+        List<Address> receivingAddresses = new ArrayList<Address>();
+        for (int i = 0; i < NUMBER_OF_CONCURRENT_ADDRESSES; i++) {
+            Address receivingAddress = new ECKey().toAddress(params);
+            receivingAddresses.add(receivingAddress);
+            walletInfo.addReceivingAddress(new AddressBookData("receive" + i, receivingAddress.toString()), false);
+            walletInfo.addSendingAddress(new AddressBookData("send" + i, "address" + i));
+        }
+        adding.set(false);
+        saveThread.join();
+        assertNull(saveFailure.get());
+
+        // the save requested after the last change writes every address
+        walletInfo.writeToFile();
+        WalletInfo loadedWalletInfo = new WalletInfo(walletFilename);
+        assertEquals(NUMBER_OF_CONCURRENT_ADDRESSES, loadedWalletInfo.getSendingAddresses().size());
+        for (int i = 0; i < NUMBER_OF_CONCURRENT_ADDRESSES; i++) {
+            assertEquals("send" + i, loadedWalletInfo.lookupLabelForSendingAddress("address" + i));
+            loadedWalletInfo.addReceivingAddressOfKey(receivingAddresses.get(i));
+            assertEquals("receive" + i,
+                    loadedWalletInfo.lookupLabelForReceivingAddress(receivingAddresses.get(i).toString()));
+        }
+    }
+
+    @Test
+    public void testLargeAddressBook() throws Exception {
+        int numberOfAddresses = Boolean.getBoolean(Constants.BENCHMARKS_PROPERTY) ? BENCHMARK_ADDRESSES
+                : NUMBER_OF_ADDRESSES;
+        String walletFilename = createTemporaryWalletFilename();
+        WalletInfo walletInfo = new WalletInfo(walletFilename);
+
+        // addresses do not have to be valid to be stored
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < numberOfAddresses; i++) {
+            walletInfo.addReceivingAddress(new AddressBookData("", "address" + i), false);
+        }
+        long addTime = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        walletInfo.writeToFile();
+        long firstWriteTime = System.currentTimeMillis() - start;
+
+        // only the properties have changed so the addresses are not encoded
+        // again
+        walletInfo.put(WalletInfo.DESCRIPTION_PROPERTY, "changed");
+        start = System.currentTimeMillis();
+        walletInfo.writeToFile();
+        long secondWriteTime = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        WalletInfo loadedWalletInfo = new WalletInfo(walletFilename);
+        long loadTime = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        for (int i = 0; i < numberOfAddresses; i++) {
+            assertEquals("", walletInfo.lookupLabelForReceivingAddress("address" + i));
+        }
+        long lookupTime = System.currentTimeMillis() - start;
+
+        log.info("With " + numberOfAddresses + " addresses adding took " + addTime + " ms, the first write "
+                + firstWriteTime + " ms, a write after a property change " + secondWriteTime + " ms, loading "
+                + loadTime + " ms and looking up every label " + lookupTime + " ms.");
+
+        assertEquals("changed", loadedWalletInfo.getProperty(WalletInfo.DESCRIPTION_PROPERTY));
+        loadedWalletInfo.addReceivingAddressOfKey(new ECKey().toAddress(params));
+        assertEquals(1, loadedWalletInfo.getReceivingAddresses().size());
+    }
+
+    private String createTemporaryWalletFilename() throws Exception {
+        File directory = File.createTempFile("multibit", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        directory.deleteOnExit();
+        String walletFilename = directory.getAbsolutePath() + File.separator + "info.wallet";
+        new File(WalletInfo.createWalletInfoFilename(walletFilename)).deleteOnExit();
+        return walletFilename;
+    }
+}
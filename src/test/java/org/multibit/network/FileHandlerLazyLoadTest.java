@@ -0,0 +1,109 @@
+/**
+ * Copyright 2011 MultiBit
+ */
+
+package org.multibit.network;
+
+import java.io.File;
+import java.math.BigInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.multibit.controller.MultiBitController;
+import org.multibit.model.MultiBitModel;
+import org.multibit.model.PerWalletModelData;
+import org.multibit.model.WalletInfo;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
+
+/**
+ * Checks a wallet can be shown from the summary in its wallet info before the
+ * wallet itself is loaded, and that loading it later fills in the wallet.
+ */
+public class FileHandlerLazyLoadTest extends TestCase {
+
+    private static final int NUMBER_OF_KEYS = 3;
+
+    @Test
+    public void testHeaderIsReadBeforeWalletIsLoaded() throws Exception {
+        String walletFilename = createSavedWallet("lazy wallet");
+
+        MultiBitController controller = createController();
+        FileHandler fileHandler = controller.getFileHandler();
+
+        PerWalletModelData perWalletModelData = fileHandler.loadHeaderFromFile(new File(walletFilename));
+        assertFalse(perWalletModelData.isWalletLoaded());
+        assertNull(perWalletModelData.getWallet());
+        assertSame(perWalletModelData, controller.getModel().getPerWalletModelDataByWalletFilename(walletFilename));
+        assertEquals("lazy wallet", perWalletModelData.getWalletDescription());
+        assertEquals(NUMBER_OF_KEYS, perWalletModelData.getNumberOfKeys());
+        assertEquals(BigInteger.ZERO, perWalletModelData.getEstimatedBalance());
+        assertFalse(fileHandler.haveFilesChanged(perWalletModelData));
+
+        Wallet wallet = fileHandler.loadWalletBody(perWalletModelData);
+        assertTrue(perWalletModelData.isWalletLoaded());
+        assertSame(wallet, perWalletModelData.getWallet());
+        assertEquals(NUMBER_OF_KEYS, wallet.keychain.size());
+        assertEquals(NUMBER_OF_KEYS, perWalletModelData.getNumberOfKeys());
+        assertFalse(perWalletModelData.isDirty());
+        assertFalse(fileHandler.haveFilesChanged(perWalletModelData));
+    }
+
+    @Test
+    public void testWalletWithoutSummaryHasUnknownBalance() throws Exception {
+        String walletFilename = createTemporaryWalletFilename();
+        Wallet wallet = new Wallet(NetworkParameters.prodNet());
+        wallet.addKey(new ECKey());
+        wallet.saveToFile(new File(walletFilename));
+
+        FileHandler fileHandler = createController().getFileHandler();
+        PerWalletModelData perWalletModelData = fileHandler.loadHeaderFromFile(new File(walletFilename));
+        assertNull(perWalletModelData.getEstimatedBalance());
+        assertEquals(-1, perWalletModelData.getNumberOfKeys());
+
+        fileHandler.loadWalletBody(perWalletModelData);
+        assertEquals(BigInteger.ZERO, perWalletModelData.getEstimatedBalance());
+        assertEquals(1, perWalletModelData.getNumberOfKeys());
+    }
+
+    private String createSavedWallet(String description) throws Exception {
+        String walletFilename = createTemporaryWalletFilename();
+
+        Wallet wallet = new Wallet(NetworkParameters.prodNet());
+        for (int i = 0; i < NUMBER_OF_KEYS; i++) {
+            wallet.addKey(new ECKey());
+        }
+        PerWalletModelData perWalletModelData = new PerWalletModelData();
+        perWalletModelData.setWallet(wallet);
+        perWalletModelData.setWalletFilename(walletFilename);
+        perWalletModelData.setWalletInfo(new WalletInfo(walletFilename));
+        perWalletModelData.setWalletDescription(description);
+
+        FileHandler fileHandler = createController().getFileHandler();
+        fileHandler.savePerWalletModelData(perWalletModelData, true);
+        wallet.getJournal().close();
+        return walletFilename;
+    }
+
+    private MultiBitController createController() {
+        MultiBitController controller = new MultiBitController();
+        controller.setModel(new MultiBitModel(controller));
+        return controller;
+    }
+
+    private String createTemporaryWalletFilename() throws Exception {
+        File directory = File.createTempFile("multibit", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        directory.deleteOnExit();
+        String walletFilename = directory.getAbsolutePath() + File.separator + "lazy.wallet";
+        new File(walletFilename).deleteOnExit();
+        new File(WalletInfo.createWalletInfoFilename(walletFilename)).deleteOnExit();
+        new File(FileHandler.createWalletJournalFilename(walletFilename)).deleteOnExit();
+        new File(FileHandler.createWalletArchiveFilename(walletFilename)).deleteOnExit();
+        return walletFilename;
+    }
+}
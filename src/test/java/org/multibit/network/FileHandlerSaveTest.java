@@ -0,0 +1,90 @@
+/**
+ * Copyright 2011 MultiBit
+ */
+
+package org.multibit.network;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.multibit.controller.MultiBitController;
+import org.multibit.model.PerWalletModelData;
+import org.multibit.model.WalletInfo;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
+
+/**
+ * Checks requested saves are written in the background, that repeated requests
+ * for a wallet are written together and that a flush writes them straight
+ * away.
+ */
+public class FileHandlerSaveTest extends TestCase {
+
+    @Test
+    public void testRequestedSavesAreCoalesced() throws Exception {
+        FileHandler fileHandler = new FileHandler(new MultiBitController());
+        // long enough that the test always runs inside the window
+        fileHandler.setSaveDelay(60 * 1000);
+
+        PerWalletModelData perWalletModelData = createPerWalletModelData();
+        File walletFile = new File(perWalletModelData.getWalletFilename());
+
+        // the wallet is new so the first save is forced, and the later
+        // requests do not undo that
+        for (int i = 0; i < 10; i++) {
+            perWalletModelData.getWallet().addKey(new ECKey());
+            perWalletModelData.setDirty(true);
+            fileHandler.requestSave(perWalletModelData, i == 0);
+        }
+        assertEquals(1, fileHandler.getNumberOfPendingSaves());
+        assertFalse(walletFile.exists());
+
+        fileHandler.flushAndWait(perWalletModelData);
+        assertEquals(0, fileHandler.getNumberOfPendingSaves());
+        assertTrue(walletFile.exists());
+        assertFalse(perWalletModelData.isDirty());
+        assertEquals(10, Wallet.loadFromFile(walletFile).keychain.size());
+    }
+
+    @Test
+    public void testRequestedSaveIsWrittenAfterDelay() throws Exception {
+        FileHandler fileHandler = new FileHandler(new MultiBitController());
+        fileHandler.setSaveDelay(50);
+
+        PerWalletModelData perWalletModelData = createPerWalletModelData();
+        perWalletModelData.getWallet().addKey(new ECKey());
+        perWalletModelData.setDirty(true);
+        fileHandler.requestSave(perWalletModelData, true);
+
+        File walletFile = new File(perWalletModelData.getWalletFilename());
+        for (int i = 0; i < 100 && fileHandler.getNumberOfPendingSaves() > 0; i++) {
+            Thread.sleep(50);
+        }
+        // the flush waits for a save that is part way through
+        fileHandler.flushAll();
+        assertEquals(0, fileHandler.getNumberOfPendingSaves());
+        assertTrue(walletFile.exists());
+        assertEquals(1, Wallet.loadFromFile(walletFile).keychain.size());
+    }
+
+    private PerWalletModelData createPerWalletModelData() throws Exception {
+        File directory = File.createTempFile("multibit", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        directory.deleteOnExit();
+        String walletFilename = directory.getAbsolutePath() + File.separator + "save.wallet";
+        new File(walletFilename).deleteOnExit();
+        new File(WalletInfo.createWalletInfoFilename(walletFilename)).deleteOnExit();
+        new File(FileHandler.createWalletJournalFilename(walletFilename)).deleteOnExit();
+
+        PerWalletModelData perWalletModelData = new PerWalletModelData();
+        perWalletModelData.setWallet(new Wallet(NetworkParameters.prodNet()));
+        perWalletModelData.setWalletFilename(walletFilename);
+        perWalletModelData.setWalletInfo(new WalletInfo(walletFilename));
+        return perWalletModelData;
+    }
+}
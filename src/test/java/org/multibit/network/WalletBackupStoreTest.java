@@ -0,0 +1,214 @@
+/**
+ * Copyright 2011 MultiBit
+ */
+
+package org.multibit.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.multibit.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks backup points restore exactly what was backed up and refuse damaged
+ * chunks, that a small change to a file only adds a few chunks to the store,
+ * that streamed content is cut into the same chunks as a file, and times
+ * backing up and restoring a file. The file is only large enough for the times
+ * to mean anything with benchmarks enabled.
+ */
+public class WalletBackupStoreTest extends TestCase {
+
+    private static final Logger log = LoggerFactory.getLogger(WalletBackupStoreTest.class);
+
+    private static final int FILE_SIZE = 256 * 1024;
+    private static final int BENCHMARK_FILE_SIZE = 4 * 1024 * 1024;
+
+    @Test
+    public void testRestoreIsExact() throws Exception {
+        File directory = createTemporaryDirectory();
+        byte[] walletBytes = randomBytes(100000, 1);
+        byte[] walletInfoBytes = "multiBit.info,1\n".getBytes("UTF8");
+        File walletFile = writeFile(new File(directory, "restore.wallet"), walletBytes);
+        File walletInfoFile = writeFile(new File(directory, "restore.info"), walletInfoBytes);
+        File emptyFile = writeFile(new File(directory, "empty.journal"), new byte[0]);
+
+        WalletBackupStore walletBackupStore = WalletBackupStore.forWallet(walletFile.getAbsolutePath());
+        walletBackupStore.backup("first", walletFile, walletInfoFile, emptyFile);
+        assertEquals(Arrays.asList("first"), walletBackupStore.getBackupPointNames());
+
+        File restoreDirectory = new File(directory, "restored");
+        assertTrue(restoreDirectory.mkdir());
+        List<File> restoredFiles = walletBackupStore.restore("first", restoreDirectory);
+        assertEquals(3, restoredFiles.size());
+        assertTrue(Arrays.equals(walletBytes, readFile(new File(restoreDirectory, "restore.wallet"))));
+        assertTrue(Arrays.equals(walletInfoBytes, readFile(new File(restoreDirectory, "restore.info"))));
+        assertEquals(0, new File(restoreDirectory, "empty.journal").length());
+    }
+
+    @Test
+    public void testDamagedChunkIsNotRestored() throws Exception {
+        File directory = createTemporaryDirectory();
+        File walletFile = writeFile(new File(directory, "damaged.wallet"), randomBytes(100000, 4));
+        WalletBackupStore walletBackupStore = WalletBackupStore.forWallet(walletFile.getAbsolutePath());
+        walletBackupStore.backup("first", walletFile);
+
+        // flip a byte of a chunk, keeping its length
+        File chunkSubdirectory = new File(walletBackupStore.getDirectory(), "chunks").listFiles()[0];
+        File chunkFile = chunkSubdirectory.listFiles()[0];
+        byte[] chunk = readFile(chunkFile);
+        chunk[chunk.length / 2] ^= 1;
+        writeFile(chunkFile, chunk);
+
+        File restoreDirectory = new File(directory, "restored");
+        assertTrue(restoreDirectory.mkdir());
+        try {
+            walletBackupStore.restore("first", restoreDirectory);
+            fail("a damaged chunk was restored");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(new File(restoreDirectory, "damaged.wallet").exists());
+    }
+
+    @Test
+    public void testChunksAreDeduplicated() throws Exception {
+        int fileSize = Boolean.getBoolean(Constants.BENCHMARKS_PROPERTY) ? BENCHMARK_FILE_SIZE : FILE_SIZE;
+        File directory = createTemporaryDirectory();
+        byte[] bytes = randomBytes(fileSize, 2);
+        File walletFile = writeFile(new File(directory, "dedup.wallet"), bytes);
+        WalletBackupStore walletBackupStore = WalletBackupStore.forWallet(walletFile.getAbsolutePath());
+
+        long start = System.currentTimeMillis();
+        walletBackupStore.backup("first", walletFile);
+        long firstBackupTime = System.currentTimeMillis() - start;
+        int numberOfChunks = walletBackupStore.getNumberOfChunks();
+        assertEquals(numberOfChunks, walletBackupStore.getNumberOfChunksWritten());
+
+        // backing up the same file again writes nothing new
+        walletBackupStore.backup("second", walletFile);
+        assertEquals(0, walletBackupStore.getNumberOfChunksWritten());
+
+        // insert a few bytes in the middle - only the chunks around the
+        // insertion change
+        byte[] changedBytes = new byte[bytes.length + 10];
+        System.arraycopy(bytes, 0, changedBytes, 0, bytes.length / 2);
+        System.arraycopy(bytes, bytes.length / 2, changedBytes, bytes.length / 2 + 10, bytes.length - bytes.length / 2);
+        writeFile(walletFile, changedBytes);
+        start = System.currentTimeMillis();
+        walletBackupStore.backup("third", walletFile);
+        long changedBackupTime = System.currentTimeMillis() - start;
+        assertTrue(walletBackupStore.getNumberOfChunksWritten() <= 3);
+
+        File restoreDirectory = new File(directory, "restored");
+        assertTrue(restoreDirectory.mkdir());
+        start = System.currentTimeMillis();
+        walletBackupStore.restore("first", restoreDirectory);
+        long restoreTime = System.currentTimeMillis() - start;
+        assertTrue(Arrays.equals(bytes, readFile(new File(restoreDirectory, "dedup.wallet"))));
+
+        log.info("Backing up " + fileSize + " bytes in " + numberOfChunks + " chunks took " + firstBackupTime
+                + " ms, backing up after a small change " + changedBackupTime + " ms and restoring " + restoreTime
+                + " ms.");
+
+        // deleting a backup point removes the chunks only it used
+        walletBackupStore.delete("first");
+        walletBackupStore.delete("second");
+        int numberOfChunksLeft = walletBackupStore.getNumberOfChunks();
+        walletBackupStore.delete("third");
+        assertTrue(numberOfChunksLeft > 0);
+        assertEquals(0, walletBackupStore.getNumberOfChunks());
+    }
+
+    @Test
+    public void testStreamedContentMatchesFiles() throws Exception {
+        File directory = createTemporaryDirectory();
+        final byte[] walletBytes = randomBytes(100000, 5);
+        File walletFile = writeFile(new File(directory, "streamed.wallet"), walletBytes);
+        WalletBackupStore walletBackupStore = WalletBackupStore.forWallet(walletFile.getAbsolutePath());
+        walletBackupStore.backup("first", walletFile);
+
+        // the same bytes written in uneven pieces are cut into the same chunks
+        Map<String, WalletBackupStore.Content> contents = new LinkedHashMap<String, WalletBackupStore.Content>();
+        contents.put("streamed.wallet", new WalletBackupStore.Content() {
+            public void writeTo(OutputStream outputStream) throws IOException {
+                int offset = 0;
+                for (int length = 1; offset < walletBytes.length; length = length * 3 + 1) {
+                    int count = Math.min(length, walletBytes.length - offset);
+                    outputStream.write(walletBytes, offset, count);
+                    offset += count;
+                }
+            }
+        });
+        walletBackupStore.backup("second", contents);
+        assertEquals(0, walletBackupStore.getNumberOfChunksWritten());
+
+        File restoreDirectory = new File(directory, "restored");
+        assertTrue(restoreDirectory.mkdir());
+        walletBackupStore.restore("second", restoreDirectory);
+        assertTrue(Arrays.equals(walletBytes, readFile(new File(restoreDirectory, "streamed.wallet"))));
+    }
+
+    @Test
+    public void testChunkSizesAreBounded() throws Exception {
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(randomBytes(FILE_SIZE, 3));
+        byte[] chunk;
+        int total = 0;
+        while ((chunk = WalletBackupStore.readChunk(inputStream)) != null) {
+            total += chunk.length;
+            assertTrue(chunk.length <= WalletBackupStore.MAXIMUM_CHUNK_SIZE);
+            assertTrue(chunk.length >= WalletBackupStore.MINIMUM_CHUNK_SIZE || total == FILE_SIZE);
+        }
+        assertEquals(FILE_SIZE, total);
+
+        // runs of the same byte never find a boundary
+        inputStream = new ByteArrayInputStream(new byte[WalletBackupStore.MAXIMUM_CHUNK_SIZE * 2]);
+        assertEquals(WalletBackupStore.MAXIMUM_CHUNK_SIZE, WalletBackupStore.readChunk(inputStream).length);
+    }
+
+    private byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private File writeFile(File file, byte[] bytes) throws Exception {
+        FileOutputStream outputStream = new FileOutputStream(file);
+        outputStream.write(bytes);
+        outputStream.close();
+        file.deleteOnExit();
+        return file;
+    }
+
+    private byte[] readFile(File file) throws Exception {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream inputStream = new FileInputStream(file);
+        int offset = 0;
+        while (offset < bytes.length) {
+            offset += inputStream.read(bytes, offset, bytes.length - offset);
+        }
+        inputStream.close();
+        return bytes;
+    }
+
+    private File createTemporaryDirectory() throws Exception {
+        File directory = File.createTempFile("multibit", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        directory.deleteOnExit();
+        return directory;
+    }
+}
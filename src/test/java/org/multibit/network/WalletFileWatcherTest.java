@@ -0,0 +1,115 @@
+/**
+ * Copyright 2011 MultiBit
+ */
+
+package org.multibit.network;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.multibit.controller.MultiBitController;
+import org.multibit.model.MultiBitModel;
+import org.multibit.model.PerWalletModelData;
+import org.multibit.model.WalletInfo;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
+
+/**
+ * Checks that MultiBit's own writes are not reported as changes by another
+ * process, that other changes are, and that a burst of changes is reported
+ * once it has finished.
+ */
+public class WalletFileWatcherTest extends TestCase {
+
+    @Test
+    public void testOwnWritesAreIgnored() throws Exception {
+        MultiBitController controller = createController();
+        PerWalletModelData perWalletModelData = createSavedWallet(controller);
+        WalletFileWatcher walletFileWatcher = controller.getFileHandler().getWalletFileWatcher();
+        walletFileWatcher.poll();
+
+        for (int i = 0; i < 3; i++) {
+            perWalletModelData.getWallet().addKey(new ECKey());
+            perWalletModelData.setDirty(true);
+            controller.getFileHandler().savePerWalletModelData(perWalletModelData, i == 2);
+            walletFileWatcher.poll();
+            walletFileWatcher.poll();
+        }
+        assertFalse(perWalletModelData.isFilesHaveBeenChangedByAnotherProcess());
+    }
+
+    @Test
+    public void testOtherChangesAreReportedOnceFinished() throws Exception {
+        MultiBitController controller = createController();
+        PerWalletModelData perWalletModelData = createSavedWallet(controller);
+        WalletFileWatcher walletFileWatcher = controller.getFileHandler().getWalletFileWatcher();
+        walletFileWatcher.poll();
+
+        File walletInfoFile = new File(WalletInfo.createWalletInfoFilename(perWalletModelData.getWalletFilename()));
+
+        // another process writes twice in quick succession
+        changeFile(walletInfoFile);
+        walletFileWatcher.poll();
+        assertFalse(perWalletModelData.isFilesHaveBeenChangedByAnotherProcess());
+        changeFile(walletInfoFile);
+        walletFileWatcher.poll();
+        assertFalse(perWalletModelData.isFilesHaveBeenChangedByAnotherProcess());
+
+        // and then stops
+        walletFileWatcher.poll();
+        assertTrue(perWalletModelData.isFilesHaveBeenChangedByAnotherProcess());
+    }
+
+    @Test
+    public void testChangesAreSeenInTheBackground() throws Exception {
+        MultiBitController controller = createController();
+        PerWalletModelData perWalletModelData = createSavedWallet(controller);
+        WalletFileWatcher walletFileWatcher = controller.getFileHandler().getWalletFileWatcher();
+        walletFileWatcher.start(50);
+        try {
+            Thread.sleep(200);
+            changeFile(new File(perWalletModelData.getWalletFilename()));
+            for (int i = 0; i < 40 && !perWalletModelData.isFilesHaveBeenChangedByAnotherProcess(); i++) {
+                Thread.sleep(50);
+            }
+            assertTrue(perWalletModelData.isFilesHaveBeenChangedByAnotherProcess());
+        } finally {
+            walletFileWatcher.stop();
+        }
+    }
+
+    private void changeFile(File file) throws Exception {
+        FileOutputStream outputStream = new FileOutputStream(file, true);
+        outputStream.write('\n');
+        outputStream.close();
+    }
+
+    private MultiBitController createController() {
+        MultiBitController controller = new MultiBitController();
+        controller.setModel(new MultiBitModel(controller));
+        return controller;
+    }
+
+    private PerWalletModelData createSavedWallet(MultiBitController controller) throws Exception {
+        File directory = File.createTempFile("multibit", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        directory.deleteOnExit();
+        String walletFilename = directory.getAbsolutePath() + File.separator + "watched.wallet";
+        new File(walletFilename).deleteOnExit();
+        new File(WalletInfo.createWalletInfoFilename(walletFilename)).deleteOnExit();
+        new File(FileHandler.createWalletJournalFilename(walletFilename)).deleteOnExit();
+
+        Wallet wallet = new Wallet(NetworkParameters.prodNet());
+        wallet.addKey(new ECKey());
+        PerWalletModelData perWalletModelData = controller.getModel().addWallet(wallet, walletFilename);
+        perWalletModelData.setWalletInfo(new WalletInfo(walletFilename));
+        controller.getFileHandler().savePerWalletModelData(perWalletModelData, true);
+        return perWalletModelData;
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2011 MultiBit
+ */
+
+package org.multibit.network;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.multibit.Constants;
+import org.multibit.controller.MultiBitController;
+import org.multibit.model.MultiBitModel;
+import org.multibit.model.PerWalletModelData;
+import org.multibit.model.WalletInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
+
+/**
+ * Checks every dirty wallet is saved by a flush and its marker removed, that
+ * a wallet left with a marker is recovered when it is loaded, and logs the
+ * time each wallet took to flush. The wallets are only large enough for the
+ * times to mean anything with benchmarks enabled.
+ */
+public class WalletFlushCoordinatorTest extends TestCase {
+
+    private static final Logger log = LoggerFactory.getLogger(WalletFlushCoordinatorTest.class);
+
+    private static final int NUMBER_OF_WALLETS = 8;
+
+    private static final int NUMBER_OF_KEYS = 20;
+
+    private static final int BENCHMARK_KEYS = 500;
+
+    private final int numberOfKeys = Boolean.getBoolean(Constants.BENCHMARKS_PROPERTY) ? BENCHMARK_KEYS
+            : NUMBER_OF_KEYS;
+
+    @Test
+    public void testDirtyWalletsAreFlushed() throws Exception {
+        MultiBitController controller = createController();
+        FileHandler fileHandler = controller.getFileHandler();
+
+        List<PerWalletModelData> perWalletModelDataList = new ArrayList<PerWalletModelData>();
+        for (int i = 0; i < NUMBER_OF_WALLETS; i++) {
+            perWalletModelDataList.add(createWallet(controller, "flush" + i));
+        }
+        // one wallet is left clean and is not written
+        PerWalletModelData cleanWallet = perWalletModelDataList.get(0);
+        cleanWallet.setDirty(false);
+
+        long start = System.currentTimeMillis();
+        List<PerWalletModelData> unflushedWallets = fileHandler.flushAll(60 * 1000);
+        long flushTime = System.currentTimeMillis() - start;
+        assertTrue(unflushedWallets.isEmpty());
+
+        assertFalse(new File(cleanWallet.getWalletFilename()).exists());
+        for (PerWalletModelData perWalletModelData : perWalletModelDataList.subList(1, NUMBER_OF_WALLETS)) {
+            String walletFilename = perWalletModelData.getWalletFilename();
+            assertFalse(perWalletModelData.isDirty());
+            assertEquals(numberOfKeys, Wallet.loadFromFile(new File(walletFilename)).keychain.size());
+            assertFalse(new File(FileHandler.createWalletUnflushedFilename(walletFilename)).exists());
+        }
+
+        Map<String, Long> flushTimes = fileHandler.getWalletFlushCoordinator().getFlushTimes();
+        assertEquals(NUMBER_OF_WALLETS - 1, flushTimes.size());
+        log.info("Flushing " + (NUMBER_OF_WALLETS - 1) + " wallets of " + numberOfKeys + " keys took " + flushTime
+                + " ms, by wallet " + flushTimes + ".");
+    }
+
+    @Test
+    public void testUnflushedWalletIsRecoveredOnLoad() throws Exception {
+        MultiBitController controller = createController();
+        PerWalletModelData perWalletModelData = createWallet(controller, "recover");
+        String walletFilename = perWalletModelData.getWalletFilename();
+        controller.getFileHandler().savePerWalletModelData(perWalletModelData, true);
+        perWalletModelData.getWallet().getJournal().close();
+
+        // the program stopped part way through a flush
+        File marker = new File(FileHandler.createWalletUnflushedFilename(walletFilename));
+        assertTrue(marker.createNewFile());
+
+        MultiBitController nextController = createController();
+        PerWalletModelData loadedModelData = nextController.getFileHandler().loadFromFile(new File(walletFilename));
+        assertFalse(marker.exists());
+        assertFalse(loadedModelData.isDirty());
+        assertEquals(numberOfKeys, loadedModelData.getWallet().keychain.size());
+    }
+
+    private MultiBitController createController() {
+        MultiBitController controller = new MultiBitController();
+        controller.setModel(new MultiBitModel(controller));
+        return controller;
+    }
+
+    private PerWalletModelData createWallet(MultiBitController controller, String name) throws Exception {
+        File directory = File.createTempFile("multibit", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        directory.deleteOnExit();
+        String walletFilename = directory.getAbsolutePath() + File.separator + name + ".wallet";
+        new File(walletFilename).deleteOnExit();
+        new File(WalletInfo.createWalletInfoFilename(walletFilename)).deleteOnExit();
+        new File(FileHandler.createWalletJournalFilename(walletFilename)).deleteOnExit();
+        new File(FileHandler.createWalletArchiveFilename(walletFilename)).deleteOnExit();
+        new File(FileHandler.createWalletUnflushedFilename(walletFilename)).deleteOnExit();
+
+        Wallet wallet = new Wallet(NetworkParameters.prodNet());
+        for (int i = 0; i < numberOfKeys; i++) {
+            wallet.addKey(new ECKey());
+        }
+        PerWalletModelData perWalletModelData = controller.getModel().addWallet(wallet, walletFilename);
+        perWalletModelData.setWalletInfo(new WalletInfo(walletFilename));
+        perWalletModelData.setDirty(true);
+        return perWalletModelData;
+    }
+}